@@ -3,9 +3,17 @@ drop table trenes cascade constraints;
 drop table recorridos cascade constraints;
 drop table viajes cascade constraints;
 drop table tickets cascade constraints;
+drop table ticketsAsientos cascade constraints;
+drop table paradasRecorrido cascade constraints;
+drop table plazasTramo cascade constraints;
+drop table ticketsTramos cascade constraints;
+drop table idempotencia cascade constraints;
 drop table revisionesModelo cascade constraints;
 drop table revisionesTren cascade constraints;
 drop table conductores cascade constraints;
+drop table reservas cascade constraints;
+drop table cuposReserva cascade constraints;
+drop table viajesCubetas cascade constraints;
 
 drop sequence seq_tickets;
 
@@ -48,7 +56,10 @@ create table recorridos
     horaSalida      timestamp,              --Oracle no tiene time 
     horaLlegada     timestamp     not null, --Oracle no tiene time   
     precio          numeric(5, 2) not null,
-    unique (estacionOrigen, estacionDestino, horaSalida)
+    -- Minuto del dia de la salida, para buscar por hora sin aplicar funciones a horaSalida
+    minutoSalida    integer generated always as
+        (extract(hour from horaSalida) * 60 + extract(minute from horaSalida)) virtual,
+    constraint uq_recorridos_salida unique (estacionOrigen, estacionDestino, minutoSalida)
 );
 
 create table viajes
@@ -61,7 +72,7 @@ create table viajes
     --realizado      boolean default false not null,
     realizado     smallint default 0            not null check (realizado in (0, 1)),
     idConductor   integer                       not null references conductores,
-    unique (idRecorrido, fecha)
+    constraint uq_viajes_recorrido_fecha unique (idRecorrido, fecha)
 );
 
 create table tickets
@@ -73,8 +84,93 @@ create table tickets
     precio      numeric(5, 2)             not null
 );
 
+-- Tickets de un viaje; con la cantidad, las sumas por viaje no leen la tabla
+create index ix_tickets_viaje on tickets (idViaje, cantidad);
+
+-- Asientos asignados a los tickets, numerados desde 1 hasta las plazas del
+-- modelo del tren; la clave impide vender dos veces el mismo asiento
+create table ticketsAsientos
+(
+    idViaje  integer references viajes not null,
+    asiento  integer                   not null,
+    idTicket integer                   not null references tickets on delete cascade,
+    primary key (idViaje, asiento)
+);
+
+create index ix_asientos_ticket on ticketsAsientos (idTicket, asiento);
+
+-- Paradas de los recorridos con paradas intermedias, en orden desde 1; el
+-- tramo n va de la parada n a la n + 1
+create table paradasRecorrido
+(
+    idRecorrido integer references recorridos not null,
+    orden       integer                       not null,
+    estacion    varchar(15)                   not null,
+    primary key (idRecorrido, orden),
+    unique (idRecorrido, estacion)
+);
+
+-- Plazas libres de cada tramo de los viajes con paradas; en ellos
+-- nPlazasLibres es el minimo de sus tramos
+create table plazasTramo
+(
+    idViaje integer references viajes not null,
+    tramo   integer                   not null,
+    plazas  integer                   not null check (plazas >= 0),
+    primary key (idViaje, tramo)
+);
+
+-- Tramos de los tickets comprados entre dos paradas
+create table ticketsTramos
+(
+    idTicket   integer primary key references tickets on delete cascade,
+    tramoDesde integer not null,
+    tramoHasta integer not null
+);
+
+-- Resultado de las compras y anulaciones con clave de idempotencia: el ticket
+-- si se hicieron o el codigo de error si se rechazaron
+create table idempotencia
+(
+    operacion varchar(10) not null,
+    clave     varchar(64) not null,
+    resultado integer     not null,
+    idTicket  integer     not null,
+    creada    timestamp default systimestamp not null,
+    primary key (operacion, clave)
+);
+
 create sequence seq_tickets;
 
+-- Plazas libres de los viajes repartidos en cubetas para que los compradores
+-- no esperen todos por la misma fila. Al repartir un viaje sus plazas libres
+-- pasan a las cubetas y nPlazasLibres queda a 0 hasta reunirlo; las libres son
+-- nPlazasLibres mas la suma de sus cubetas
+create table viajesCubetas
+(
+    idViaje integer references viajes not null,
+    cubeta  integer                   not null,
+    plazas  integer                   not null check (plazas >= 0),
+    primary key (idViaje, cubeta)
+);
+
+-- Plazas descontadas de viajes por el gestor de reservas: las retenidas mas las
+-- que tiene en reserva para atender nuevas retenciones sin escribir
+create table cuposReserva
+(
+    idViaje integer primary key references viajes,
+    plazas  integer not null check (plazas >= 0)
+);
+
+-- Retenciones activas, copiadas periodicamente desde memoria
+create table reservas
+(
+    idReserva integer primary key,
+    idViaje   integer references viajes not null,
+    plazas    integer not null,
+    caduca    timestamp not null
+);
+
 create table revisionesTren
 (
     idRevisionA integer primary key,
@@ -144,6 +240,11 @@ INSERT INTO recorridos
 VALUES (4, 'Leon', 'Zamora', 150, TO_TIMESTAMP('01/01/0001 08:00', 'DD/MM/YYYY HH24:MI'),
         TO_TIMESTAMP('01/01/0001 09:30', 'DD/MM/YYYY HH24:MI'), 6);
 
+INSERT INTO recorridos
+(idRecorrido, estacionOrigen, estacionDestino, kms, horaSalida, horaLlegada, precio)
+VALUES (5, 'Bilbao', 'Madrid', 395, TO_TIMESTAMP('01/01/0001 07:00', 'DD/MM/YYYY HH24:MI'),
+        TO_TIMESTAMP('01/01/0001 11:00', 'DD/MM/YYYY HH24:MI'), 20);
+
 
 insert into viajes
 (idViaje, idTren, idRecorrido, fecha, nPlazasLibres, realizado, idConductor)
@@ -161,11 +262,27 @@ insert into viajes
 (idViaje, idTren, idRecorrido, fecha, nPlazasLibres, realizado, idConductor)
 values (4, 2, 4, CURRENT_DATE + 7, 40, 0, 1);
 
+insert into viajes
+(idViaje, idTren, idRecorrido, fecha, nPlazasLibres, realizado, idConductor)
+values (5, 5, 5, DATE '2022-4-20', 30, 1, 2);
+
 
 insert into tickets (idTicket, idViaje, fechaCompra, cantidad, precio)
 values (seq_tickets.nextval, 1, CURRENT_DATE, 1, 10);
 insert into tickets (idTicket, idViaje, fechaCompra, cantidad, precio)
-values (seq_tickets.nextval, 2, CURRENT_DATE - 1, 2, 10);	    
+values (seq_tickets.nextval, 2, CURRENT_DATE - 1, 2, 10);
+
+insert into paradasRecorrido (idRecorrido, orden, estacion)
+values (5, 1, 'Bilbao');
+insert into paradasRecorrido (idRecorrido, orden, estacion)
+values (5, 2, 'Burgos');
+insert into paradasRecorrido (idRecorrido, orden, estacion)
+values (5, 3, 'Madrid');
+
+insert into plazasTramo (idViaje, tramo, plazas)
+select v.idViaje, p.orden, v.nPlazasLibres
+from viajes v join paradasRecorrido p on p.idRecorrido = v.idRecorrido
+where p.orden < (select max(q.orden) from paradasRecorrido q where q.idRecorrido = v.idRecorrido);	    
  
 ----
 
@@ -40,6 +40,105 @@ public class CompraBilleteTren {
 		// Ejecutar tests
 		tests.ejecutarTestsAnularBilletes();
 
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests
+		tests.ejecutarTestsCompraLote();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests
+		tests.ejecutarTestsBusquedaSalidas();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests
+		tests.ejecutarTestsReservas();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests
+		tests.ejecutarTestsExportacion();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar test de carga
+		tests.ejecutarTestsCarga();
+
+		// Ejecutar tests del cargador de scripts y CSV (usan su propia tabla)
+		tests.ejecutarTestsCargaHorarios();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de los almacenes Oracle y en memoria
+		tests.ejecutarTestsAlmacenes();
+
+		// Ejecutar test de planes de consulta (no modifica datos)
+		tests.ejecutarTestsPlanes();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de asignacion de asientos
+		tests.ejecutarTestsAsientos();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de venta por tramos
+		tests.ejecutarTestsTramos();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de claves de idempotencia
+		tests.ejecutarTestsIdempotencia();
+
+		// Ejecutar tests de reintentos (no usan la base de datos)
+		tests.ejecutarTestsReintentos();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de la fachada asincrona
+		tests.ejecutarTestsAsync();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests del inventario en memoria
+		tests.ejecutarTestsInventarioMemoria();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests del panel de ocupacion
+		tests.ejecutarTestsOcupacion();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de concurrencia
+		tests.ejecutarTestsConcurrenciaCompra();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de concurrencia con compras agrupadas
+		tests.ejecutarTestsConcurrenciaCompraAgrupada();
+
+		// Crear las tablas y filas en base de datos para la prueba
+		ExecuteScript.run("sql/CompraBilleteTren.sql");
+
+		// Ejecutar tests de concurrencia con el viaje repartido en cubetas
+		tests.ejecutarTestsConcurrenciaCompraCubetas();
+
 		LOGGER.info("Fin de los tests");
 	}
 }
@@ -15,6 +15,11 @@ import org.slf4j.LoggerFactory;
  * CompraBilleteTrenException: Implementa las excepciones contextualizadas de la
  * transaccion de CompraBilleteTren
  * 
+ * Son rechazos de negocio normales (por ejemplo, un viaje agotado), no fallos,
+ * asi que no capturan la traza de pila: crearlas y lanzarlas es barato. Los
+ * errores reales de la base de datos siguen llegando como SQLException con su
+ * traza completa.
+ * 
  * @author <a href="mailto:jmaudes@ubu.es">Jes�s Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Ra�l Marticorena</a>
  * @version 1.0
@@ -30,6 +35,7 @@ public class CompraBilleteTrenException extends SQLException {
 	public static final int NO_EXISTE_VIAJE = 2; //En caso de que no exista el viaje tendra que recibir 2
 	public static final int NO_RESERVAS = 3;//En caso de que no se hayan realizado reservas
 	public static final int NO_TICKET = 4; //En caso de que el ticket seleccionado no se encuentre
+	public static final int NO_RETENCION = 5; //En caso de que la retencion de plazas no exista o haya caducado
 
 	private int codigo; 
 	private String mensaje;
@@ -45,15 +51,17 @@ public class CompraBilleteTrenException extends SQLException {
 			mensaje="El número de plazas a anular es mayor que las plazas reservadas en el ticket";
 		}else if(codigo==NO_TICKET) {
 			mensaje="El ticket seleccionado no se ha encontrado";
+		}else if(codigo==NO_RETENCION) {
+			mensaje="La retencion de plazas no existe o ha caducado";
 		}
 		
 
 		LOGGER.debug(mensaje);//Guardamos el mensaje en el logger
+	}
 
-		// Traza_de_pila
-		for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-			LOGGER.debug(ste.toString());
-		}
+	@Override
+	public synchronized Throwable fillInStackTrace() { // Sin traza de pila: el codigo identifica el rechazo
+		return this;
 	}
 
 	@Override
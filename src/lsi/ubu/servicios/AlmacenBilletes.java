@@ -0,0 +1,46 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Almacen de viajes y tickets sobre el que trabaja {@link ServicioRepositorio}.
+ * Hay una implementacion sobre Oracle ({@link AlmacenOracle}) y otra en memoria
+ * ({@link AlmacenMemoria}) que se carga del mismo script
+ * {@code sql/CompraBilleteTren.sql}.
+ */
+public interface AlmacenBilletes {
+
+	/**
+	 * Empieza una transaccion.
+	 *
+	 * @return transaccion nueva, que hay que cerrar
+	 * @throws SQLException si no se puede empezar
+	 */
+	TransaccionAlmacen iniciar() throws SQLException;
+
+	/**
+	 * Busca las salidas con plazas libres entre dos estaciones en un rango de
+	 * fechas, fuera de cualquier transaccion.
+	 *
+	 * @param origen  estacion de origen
+	 * @param destino estacion de destino
+	 * @param desde   primera fecha, incluida
+	 * @param hasta   ultima fecha, incluida
+	 * @return salidas ordenadas por fecha y hora
+	 * @throws SQLException si hay un error en el almacen
+	 */
+	List<Salida> buscarSalidas(String origen, String destino, java.util.Date desde, java.util.Date hasta)
+			throws SQLException;
+
+	/**
+	 * Indica si el almacen es la base de datos de la aplicacion, la que siguen
+	 * {@link IndiceDisponibilidad} y {@link PanelOcupacion}. Solo los cambios de
+	 * plazas de ese almacen se publican en {@link EventosServicio}.
+	 *
+	 * @return true si los cambios de plazas se publican
+	 */
+	default boolean publicaEventos() {
+		return false;
+	}
+}
@@ -0,0 +1,402 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.LectorScript;
+
+/**
+ * {@link AlmacenBilletes} en memoria, para ejecutar la aplicacion y las pruebas
+ * sin servidor de base de datos. Se carga interpretando los INSERT de
+ * recorridos, viajes y tickets del script {@code sql/CompraBilleteTren.sql}; el
+ * resto de sentencias se ignoran.
+ * <p>
+ * Cada viaje y cada ticket tiene su cerrojo, que la transaccion que lo modifica
+ * mantiene hasta confirmar o deshacer. Los viajes se bloquean siempre antes que
+ * los tickets, y la lectura de la cantidad de un ticket no bloquea, como en
+ * Oracle. Los tickets nuevos no son visibles hasta confirmar. Las plazas
+ * libres, en cambio, se modifican en el sitio, asi que las busquedas de salidas
+ * ven las de las transacciones en curso.
+ */
+public class AlmacenMemoria implements AlmacenBilletes {
+
+	private static final Pattern INSERT = Pattern
+			.compile("(?is)insert\\s+into\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*values\\s*\\((.*)\\)\\s*");
+	private static final Pattern SECUENCIA = Pattern.compile("(?is)create\\s+sequence\\s+(\\w+).*");
+	private static final Pattern NUMERO = Pattern.compile("-?\\d+(\\.\\d+)?");
+	private static final Pattern FECHA = Pattern.compile("(?is)date\\s*'([^']*)'");
+	private static final Pattern FECHA_ACTUAL = Pattern.compile("(?is)current_date\\s*(?:([+-])\\s*(\\d+))?");
+	private static final Pattern TIMESTAMP = Pattern.compile("(?is)to_timestamp\\s*\\(\\s*'([^']*)'.*\\)");
+	private static final Pattern NEXTVAL = Pattern.compile("(?is)(\\w+)\\.nextval");
+	private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.ofPattern("y-M-d");
+	private static final DateTimeFormatter FORMATO_TIMESTAMP = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+	private static final String SECUENCIA_TICKETS = "seq_tickets";
+
+	private final Map<Integer, Recorrido> recorridos = new HashMap<>();
+	private final Map<Integer, Viaje> viajes = new TreeMap<>();
+	private final Map<String, Viaje> viajesPorClave = new HashMap<>();
+	private final Map<Integer, Ticket> tickets = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> secuencias = new HashMap<>();
+
+	private AlmacenMemoria() {
+	}
+
+	/**
+	 * Crea el almacen con los datos del script.
+	 *
+	 * @param script script SQL con el esquema y los datos iniciales
+	 * @return almacen cargado
+	 * @throws IOException              si no se puede leer el script
+	 * @throws IllegalArgumentException si un INSERT usa un valor que no se sabe
+	 *                                  interpretar
+	 */
+	public static AlmacenMemoria desdeScript(Path script) throws IOException {
+		AlmacenMemoria almacen = new AlmacenMemoria();
+		try (Reader r = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+			LectorScript lector = new LectorScript(r);
+			LectorScript.Sentencia s;
+			while ((s = lector.siguiente()) != null) {
+				almacen.interpretar(s);
+			}
+		}
+		return almacen;
+	}
+
+	@Override
+	public TransaccionAlmacen iniciar() {
+		return new Transaccion();
+	}
+
+	@Override
+	public List<Salida> buscarSalidas(String origen, String destino, java.util.Date desde, java.util.Date hasta) {
+		LocalDate primera = fechaLocal(desde);
+		LocalDate ultima = fechaLocal(hasta);
+		List<Viaje> encontrados = new ArrayList<>();
+		for (Viaje v : viajes.values()) {
+			if (v.recorrido.origen.equals(origen) && v.recorrido.destino.equals(destino)
+					&& !v.fecha.isBefore(primera) && !v.fecha.isAfter(ultima)) {
+				encontrados.add(v);
+			}
+		}
+		encontrados.sort(Comparator.comparing((Viaje v) -> v.fecha).thenComparing(v -> v.recorrido.horaSalida));
+		List<Salida> salidas = new ArrayList<>();
+		for (Viaje v : encontrados) {
+			int libres = v.libres;
+			if (libres > 0) {
+				salidas.add(new Salida(v.datos.getIdViaje(), origen, destino, java.sql.Date.valueOf(v.fecha),
+						Time.valueOf(v.recorrido.horaSalida + ":00"), libres, v.datos.getPrecio()));
+			}
+		}
+		return salidas;
+	}
+
+	/**
+	 * Plazas libres y vendidas de cada viaje, en el formato de
+	 * {@code GeneradorCarga.EstadoInventario}. Solo es coherente sin
+	 * transacciones en curso.
+	 *
+	 * @return por id de viaje, {libres, vendidas}
+	 */
+	public Map<Integer, int[]> plazasPorViaje() {
+		Map<Integer, int[]> resultado = new TreeMap<>();
+		for (Viaje v : viajes.values()) {
+			resultado.put(v.datos.getIdViaje(), new int[] { v.libres, 0 });
+		}
+		for (Ticket t : tickets.values()) {
+			resultado.get(t.idViaje)[1] += t.cantidad;
+		}
+		return resultado;
+	}
+
+	private void interpretar(LectorScript.Sentencia s) {
+		Matcher m = SECUENCIA.matcher(s.getTexto());
+		if (m.matches()) {
+			secuencias.put(m.group(1).toLowerCase(Locale.ROOT), new AtomicInteger());
+			return;
+		}
+		m = INSERT.matcher(s.getTexto());
+		if (!m.matches()) {
+			return;
+		}
+		String tabla = m.group(1).toLowerCase(Locale.ROOT);
+		if (!tabla.equals("recorridos") && !tabla.equals("viajes") && !tabla.equals("tickets")) {
+			return;
+		}
+		String[] columnas = m.group(2).split(",");
+		List<String> valores = separarValores(m.group(3));
+		if (columnas.length != valores.size()) {
+			throw new IllegalArgumentException("linea " + s.getLinea() + ": " + columnas.length + " columnas y "
+					+ valores.size() + " valores");
+		}
+		Map<String, Object> fila = new HashMap<>();
+		for (int i = 0; i < columnas.length; i++) {
+			fila.put(columnas[i].trim().toLowerCase(Locale.ROOT), valor(valores.get(i).trim(), s.getLinea()));
+		}
+		switch (tabla) {
+		case "recorridos":
+			recorridos.put(entero(fila, "idrecorrido"),
+					new Recorrido((String) fila.get("estacionorigen"), (String) fila.get("estaciondestino"),
+							((LocalDateTime) fila.get("horasalida")).toLocalTime().toString(),
+							((BigDecimal) fila.get("precio")).intValue()));
+			break;
+		case "viajes":
+			int idRecorrido = entero(fila, "idrecorrido");
+			Recorrido rec = recorridos.get(idRecorrido);
+			Viaje viaje = new Viaje(new DatosViaje(entero(fila, "idviaje"), idRecorrido, rec.precio), rec,
+					(LocalDate) fila.get("fecha"), entero(fila, "nplazaslibres"));
+			viajes.put(viaje.datos.getIdViaje(), viaje);
+			viajesPorClave.put(clave(rec.origen, rec.destino, viaje.fecha, rec.horaSalida), viaje);
+			break;
+		default:
+			tickets.put(entero(fila, "idticket"), new Ticket(entero(fila, "idviaje"), entero(fila, "cantidad")));
+			break;
+		}
+	}
+
+	private Object valor(String texto, int linea) {
+		if (texto.startsWith("'")) {
+			return texto.substring(1, texto.length() - 1).replace("''", "'");
+		}
+		if (NUMERO.matcher(texto).matches()) {
+			return new BigDecimal(texto);
+		}
+		Matcher m = FECHA.matcher(texto);
+		if (m.matches()) {
+			return LocalDate.parse(m.group(1), FORMATO_FECHA);
+		}
+		m = FECHA_ACTUAL.matcher(texto);
+		if (m.matches()) {
+			int dias = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+			return LocalDate.now().plusDays("-".equals(m.group(1)) ? -dias : dias);
+		}
+		m = TIMESTAMP.matcher(texto);
+		if (m.matches()) {
+			return LocalDateTime.parse(m.group(1), FORMATO_TIMESTAMP);
+		}
+		m = NEXTVAL.matcher(texto);
+		if (m.matches() && secuencias.containsKey(m.group(1).toLowerCase(Locale.ROOT))) {
+			return BigDecimal.valueOf(secuencias.get(m.group(1).toLowerCase(Locale.ROOT)).incrementAndGet());
+		}
+		throw new IllegalArgumentException("linea " + linea + ": valor no soportado " + texto);
+	}
+
+	/** Separa la lista de VALUES por las comas que no estan entre comillas ni parentesis. */
+	private static List<String> separarValores(String texto) {
+		List<String> valores = new ArrayList<>();
+		int nivel = 0;
+		boolean cadena = false;
+		int inicio = 0;
+		for (int i = 0; i < texto.length(); i++) {
+			char c = texto.charAt(i);
+			if (c == '\'') {
+				cadena = !cadena;
+			} else if (!cadena && c == '(') {
+				nivel++;
+			} else if (!cadena && c == ')') {
+				nivel--;
+			} else if (!cadena && nivel == 0 && c == ',') {
+				valores.add(texto.substring(inicio, i));
+				inicio = i + 1;
+			}
+		}
+		valores.add(texto.substring(inicio));
+		return valores;
+	}
+
+	private static int entero(Map<String, Object> fila, String columna) {
+		return ((BigDecimal) fila.get(columna)).intValueExact();
+	}
+
+	// java.sql.Date no admite toInstant: se pasa por milisegundos.
+	private static LocalDate fechaLocal(java.util.Date fecha) {
+		return new java.util.Date(fecha.getTime()).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+	}
+
+	private static String clave(String origen, String destino, LocalDate fecha, String hora) {
+		return origen + '|' + destino + '|' + fecha + '|' + hora;
+	}
+
+	private static final class Recorrido {
+		final String origen;
+		final String destino;
+		final String horaSalida;
+		final int precio;
+
+		Recorrido(String origen, String destino, String horaSalida, int precio) {
+			this.origen = origen;
+			this.destino = destino;
+			this.horaSalida = horaSalida;
+			this.precio = precio;
+		}
+	}
+
+	private static final class Viaje {
+		final DatosViaje datos;
+		final Recorrido recorrido;
+		final LocalDate fecha;
+		final ReentrantLock cerrojo = new ReentrantLock();
+		volatile int libres;
+
+		Viaje(DatosViaje datos, Recorrido recorrido, LocalDate fecha, int libres) {
+			this.datos = datos;
+			this.recorrido = recorrido;
+			this.fecha = fecha;
+			this.libres = libres;
+		}
+	}
+
+	private static final class Ticket {
+		final int idViaje;
+		final ReentrantLock cerrojo = new ReentrantLock();
+		volatile int cantidad;
+
+		Ticket(int idViaje, int cantidad) {
+			this.idViaje = idViaje;
+			this.cantidad = cantidad;
+		}
+	}
+
+	/**
+	 * Transaccion ligada al hilo que la usa: los cerrojos son reentrantes y se
+	 * sueltan al terminar.
+	 */
+	private final class Transaccion implements TransaccionAlmacen {
+
+		private final List<ReentrantLock> cerrojos = new ArrayList<>();
+		private final Deque<Runnable> deshacer = new ArrayDeque<>();
+		private final Map<Integer, Ticket> nuevos = new HashMap<>();
+		private boolean terminada;
+
+		@Override
+		public DatosViaje buscarViaje(Time hora, java.util.Date fecha, String origen, String destino)
+				throws CompraBilleteTrenException {
+			Viaje viaje = viajesPorClave.get(clave(origen, destino, fechaLocal(fecha), hora.toString().substring(0, 5)));
+			if (viaje == null) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+			}
+			return viaje.datos;
+		}
+
+		@Override
+		public boolean descontarPlazas(int idViaje, int nroPlazas) {
+			Viaje viaje = bloquearViaje(idViaje);
+			if (viaje.libres < nroPlazas) {
+				return false;
+			}
+			viaje.libres -= nroPlazas;
+			deshacer.push(() -> viaje.libres += nroPlazas);
+			return true;
+		}
+
+		@Override
+		public void devolverPlazas(int idViaje, int nroPlazas) {
+			Viaje viaje = bloquearViaje(idViaje);
+			viaje.libres += nroPlazas;
+			deshacer.push(() -> viaje.libres -= nroPlazas);
+		}
+
+		@Override
+		public int insertarTicket(DatosViaje viaje, int cantidad) {
+			// Como la secuencia de Oracle, el numero no se devuelve al deshacer.
+			int idTicket = secuencias.get(SECUENCIA_TICKETS).incrementAndGet();
+			nuevos.put(idTicket, new Ticket(viaje.getIdViaje(), cantidad));
+			return idTicket;
+		}
+
+		@Override
+		public int cantidadTicket(int idTicket) {
+			Ticket ticket = nuevos.containsKey(idTicket) ? nuevos.get(idTicket) : tickets.get(idTicket);
+			return ticket == null ? 0 : ticket.cantidad;
+		}
+
+		@Override
+		public void cambiarCantidadTicket(int idTicket, int cantidad) {
+			Ticket nuevo = nuevos.get(idTicket);
+			if (nuevo != null) {
+				if (cantidad > 0) {
+					nuevo.cantidad = cantidad;
+				} else {
+					nuevos.remove(idTicket);
+				}
+				return;
+			}
+			Ticket ticket = tickets.get(idTicket);
+			if (ticket == null) {
+				return;
+			}
+			bloquear(ticket.cerrojo);
+			int anterior = ticket.cantidad;
+			if (cantidad > 0) {
+				ticket.cantidad = cantidad;
+				deshacer.push(() -> ticket.cantidad = anterior);
+			} else if (tickets.remove(idTicket, ticket)) {
+				deshacer.push(() -> tickets.put(idTicket, ticket));
+			}
+		}
+
+		@Override
+		public void confirmar() {
+			tickets.putAll(nuevos);
+			nuevos.clear();
+			deshacer.clear();
+			terminar();
+		}
+
+		@Override
+		public void close() {
+			if (terminada) {
+				return;
+			}
+			while (!deshacer.isEmpty()) {
+				deshacer.pop().run();
+			}
+			nuevos.clear();
+			terminar();
+		}
+
+		private Viaje bloquearViaje(int idViaje) {
+			Viaje viaje = viajes.get(idViaje);
+			bloquear(viaje.cerrojo);
+			return viaje;
+		}
+
+		private void bloquear(ReentrantLock cerrojo) {
+			if (!cerrojo.isHeldByCurrentThread()) {
+				cerrojo.lock();
+				cerrojos.add(cerrojo);
+			}
+		}
+
+		private void terminar() {
+			terminada = true;
+			for (ReentrantLock c : cerrojos) {
+				c.unlock();
+			}
+			cerrojos.clear();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * {@link AlmacenBilletes} sobre Oracle. Cada transaccion usa una conexion del
+ * pool de la aplicacion (o del {@link DataSource} indicado). Los viajes se
+ * resuelven con {@link CacheViajes} y los ids de ticket con
+ * {@link AsignadorTickets}: los compartidos sobre el pool de la aplicacion, o
+ * unos propios del almacen sobre otro {@link DataSource}, que hay que vaciar
+ * con {@link #invalidar()} si se recargan sus tablas. Las busquedas de salidas
+ * consultan siempre la base de datos. Solo el almacen sobre el pool de la
+ * aplicacion publica sus cambios en {@link EventosServicio}.
+ */
+public class AlmacenOracle implements AlmacenBilletes {
+
+	private static final String UPDATE_DESCONTAR_PLAZAS = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - ? "
+			+ "WHERE IDVIAJE = ? AND NPLAZASLIBRES >= ?";
+	private static final String UPDATE_DEVOLVER_PLAZAS = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = ?";
+	private static final String INSERT_TICKET = "INSERT INTO tickets VALUES (?, ?, CURRENT_DATE, ?, ?)";
+	private static final String SELECT_TICKET = "SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?";
+	private static final String UPDATE_CANTIDAD_TICKET = "UPDATE tickets SET CANTIDAD = ? WHERE IDTICKET = ?";
+	private static final String DELETE_TICKET = "DELETE FROM tickets WHERE IDTICKET = ?";
+	private static final String SELECT_SALIDAS = "SELECT a.IDVIAJE, a.FECHA, to_char(b.horaSalida, 'HH24:MI'), "
+			+ "a.NPLAZASLIBRES + NVL((SELECT SUM(c.PLAZAS) FROM viajesCubetas c WHERE c.IDVIAJE = a.IDVIAJE), 0), "
+			+ "b.PRECIO FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO "
+			+ "WHERE b.ESTACIONORIGEN = ? AND b.ESTACIONDESTINO = ? AND a.FECHA BETWEEN ? AND ? "
+			+ "ORDER BY a.FECHA, b.MINUTOSALIDA";
+
+	private final Conexiones conexiones;
+	private final CacheViajes viajes;
+	private final AsignadorTickets tickets;
+	private final boolean compartido;
+
+	/**
+	 * Almacen sobre el pool de conexiones de la aplicacion.
+	 */
+	public AlmacenOracle() {
+		this(() -> PoolDeConexiones.getInstance().getConnection(), CacheViajes.getInstance(),
+				AsignadorTickets.getInstance(), true);
+	}
+
+	/**
+	 * Almacen sobre otro origen de conexiones.
+	 *
+	 * @param ds origen de las conexiones
+	 */
+	public AlmacenOracle(DataSource ds) {
+		this(ds::getConnection, new CacheViajes(), new AsignadorTickets(ds), false);
+	}
+
+	private AlmacenOracle(Conexiones conexiones, CacheViajes viajes, AsignadorTickets tickets, boolean compartido) {
+		this.conexiones = conexiones;
+		this.viajes = viajes;
+		this.tickets = tickets;
+		this.compartido = compartido;
+	}
+
+	@Override
+	public TransaccionAlmacen iniciar() throws SQLException {
+		Connection con = conexiones.obtener();
+		con.setAutoCommit(false);
+		return new Transaccion(con);
+	}
+
+	@Override
+	public List<Salida> buscarSalidas(String origen, String destino, java.util.Date desde, java.util.Date hasta)
+			throws SQLException {
+		List<Salida> salidas = new ArrayList<>();
+		Connection con = conexiones.obtener();
+		try {
+			con.setAutoCommit(false);
+			try (PreparedStatement st = con.prepareStatement(SELECT_SALIDAS)) {
+				st.setString(1, origen);
+				st.setString(2, destino);
+				st.setDate(3, soloFecha(desde));
+				st.setDate(4, soloFecha(hasta));
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						if (rs.getInt(4) > 0) {
+							salidas.add(new Salida(rs.getInt(1), origen, destino, rs.getDate(2),
+									Time.valueOf(rs.getString(3) + ":00"), rs.getInt(4), rs.getInt(5)));
+						}
+					}
+				}
+			}
+			con.commit();
+		} finally {
+			con.close();
+		}
+		return salidas;
+	}
+
+	@Override
+	public boolean publicaEventos() {
+		return compartido;
+	}
+
+	/**
+	 * Vacia la cache de viajes y los ids de ticket reservados. Con el pool de la
+	 * aplicacion no hace falta: se vacian al recargar las tablas con
+	 * {@link lsi.ubu.util.ExecuteScript}.
+	 */
+	public void invalidar() {
+		viajes.invalidar();
+		tickets.invalidar();
+	}
+
+	// Las fechas de viajes no tienen hora: se descarta la de los limites.
+	private static java.sql.Date soloFecha(java.util.Date fecha) {
+		return java.sql.Date.valueOf(new java.sql.Date(fecha.getTime()).toLocalDate());
+	}
+
+	private interface Conexiones {
+		Connection obtener() throws SQLException;
+	}
+
+	private final class Transaccion implements TransaccionAlmacen {
+
+		private final Connection con;
+		private boolean confirmada;
+
+		Transaccion(Connection con) {
+			this.con = con;
+		}
+
+		@Override
+		public DatosViaje buscarViaje(Time hora, java.util.Date fecha, String origen, String destino)
+				throws SQLException {
+			return viajes.resolver(con, hora, fecha, origen, destino);
+		}
+
+		@Override
+		public boolean descontarPlazas(int idViaje, int nroPlazas) throws SQLException {
+			try (PreparedStatement st = con.prepareStatement(UPDATE_DESCONTAR_PLAZAS)) {
+				st.setInt(1, nroPlazas);
+				st.setInt(2, idViaje);
+				st.setInt(3, nroPlazas);
+				return st.executeUpdate() == 1;
+			}
+		}
+
+		@Override
+		public void devolverPlazas(int idViaje, int nroPlazas) throws SQLException {
+			try (PreparedStatement st = con.prepareStatement(UPDATE_DEVOLVER_PLAZAS)) {
+				st.setInt(1, nroPlazas);
+				st.setInt(2, idViaje);
+				st.executeUpdate();
+			}
+		}
+
+		@Override
+		public int insertarTicket(DatosViaje viaje, int cantidad) throws SQLException {
+			int idTicket = tickets.siguiente(con);
+			try (PreparedStatement st = con.prepareStatement(INSERT_TICKET)) {
+				st.setInt(1, idTicket);
+				st.setInt(2, viaje.getIdViaje());
+				st.setInt(3, cantidad);
+				st.setInt(4, viaje.getPrecio() * cantidad);
+				st.executeUpdate();
+			}
+			return idTicket;
+		}
+
+		@Override
+		public int cantidadTicket(int idTicket) throws SQLException {
+			try (PreparedStatement st = con.prepareStatement(SELECT_TICKET)) {
+				st.setInt(1, idTicket);
+				try (ResultSet rs = st.executeQuery()) {
+					return rs.next() ? rs.getInt(1) : 0;
+				}
+			}
+		}
+
+		@Override
+		public void cambiarCantidadTicket(int idTicket, int cantidad) throws SQLException {
+			try (PreparedStatement st = con.prepareStatement(cantidad > 0 ? UPDATE_CANTIDAD_TICKET : DELETE_TICKET)) {
+				if (cantidad > 0) {
+					st.setInt(1, cantidad);
+					st.setInt(2, idTicket);
+				} else {
+					st.setInt(1, idTicket);
+				}
+				st.executeUpdate();
+			}
+		}
+
+		@Override
+		public void confirmar() throws SQLException {
+			con.commit();
+			confirmada = true;
+		}
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				if (!confirmada) {
+					con.rollback();
+				}
+			} finally {
+				con.close();
+			}
+		}
+	}
+}
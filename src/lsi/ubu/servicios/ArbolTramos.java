@@ -0,0 +1,82 @@
+package lsi.ubu.servicios;
+
+/**
+ * Arbol de segmentos con las plazas libres de cada tramo de un viaje. Suma a
+ * un rango de tramos y obtiene el minimo de un rango en tiempo logaritmico: las
+ * plazas libres entre dos paradas son el minimo de los tramos que las separan.
+ *
+ * <p>
+ * Cada nodo guarda el minimo de su subarbol mas lo que se ha sumado al nodo
+ * entero, sin propagarlo a los hijos. Los tramos se numeran desde 0.
+ */
+final class ArbolTramos {
+
+	private final int tramos;
+	private final int[] minimo;
+	private final int[] suma;
+
+	ArbolTramos(int[] plazas) {
+		this.tramos = plazas.length;
+		this.minimo = new int[4 * Math.max(tramos, 1)];
+		this.suma = new int[minimo.length];
+		if (tramos > 0) {
+			construir(1, 0, tramos - 1, plazas);
+		}
+	}
+
+	int getTramos() {
+		return tramos;
+	}
+
+	/**
+	 * @return plazas libres en todos los tramos de desde a hasta, incluidos
+	 */
+	synchronized int minimo(int desde, int hasta) {
+		return minimo(1, 0, tramos - 1, desde, hasta);
+	}
+
+	/**
+	 * Suma plazas a los tramos de desde a hasta, incluidos.
+	 */
+	synchronized void sumar(int desde, int hasta, int plazas) {
+		sumar(1, 0, tramos - 1, desde, hasta, plazas);
+	}
+
+	private void construir(int nodo, int izq, int der, int[] plazas) {
+		if (izq == der) {
+			minimo[nodo] = plazas[izq];
+			return;
+		}
+		int mitad = (izq + der) >>> 1;
+		construir(2 * nodo, izq, mitad, plazas);
+		construir(2 * nodo + 1, mitad + 1, der, plazas);
+		minimo[nodo] = Math.min(minimo[2 * nodo], minimo[2 * nodo + 1]);
+	}
+
+	private int minimo(int nodo, int izq, int der, int desde, int hasta) {
+		if (hasta < izq || der < desde) {
+			return Integer.MAX_VALUE;
+		}
+		if (desde <= izq && der <= hasta) {
+			return minimo[nodo];
+		}
+		int mitad = (izq + der) >>> 1;
+		return Math.min(minimo(2 * nodo, izq, mitad, desde, hasta),
+				minimo(2 * nodo + 1, mitad + 1, der, desde, hasta)) + suma[nodo];
+	}
+
+	private void sumar(int nodo, int izq, int der, int desde, int hasta, int plazas) {
+		if (hasta < izq || der < desde) {
+			return;
+		}
+		if (desde <= izq && der <= hasta) {
+			minimo[nodo] += plazas;
+			suma[nodo] += plazas;
+			return;
+		}
+		int mitad = (izq + der) >>> 1;
+		sumar(2 * nodo, izq, mitad, desde, hasta, plazas);
+		sumar(2 * nodo + 1, mitad + 1, der, desde, hasta, plazas);
+		minimo[nodo] = Math.min(minimo[2 * nodo], minimo[2 * nodo + 1]) + suma[nodo];
+	}
+}
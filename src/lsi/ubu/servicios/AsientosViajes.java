@@ -0,0 +1,186 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lsi.ubu.util.ExecuteScript;
+
+/**
+ * Asientos de cada viaje. Mantiene en memoria un {@link MapaAsientos} por
+ * viaje, con la capacidad del modelo del tren, cargado de
+ * {@code ticketsAsientos} la primera vez que se usa; desde entonces la
+ * asignacion no consulta la base de datos. Los asientos se numeran desde 1.
+ *
+ * <p>
+ * Las plazas libres de {@code viajes} siguen decidiendo si hay sitio: el mapa
+ * solo escoge que asientos lleva cada ticket vendido. Se asignan asientos
+ * seguidos siempre que los haya y, si no, los primeros libres.
+ *
+ * <p>
+ * Se vacia automaticamente cuando {@link ExecuteScript} recarga las tablas; si
+ * una transaccion que ha asignado asientos se deshace hay que devolverlos con
+ * {@link #liberar(int, int[])}. Volver a leer el viaje con
+ * {@link #invalidar(int)} liberaria tambien los que tienen reservados otras
+ * compras aun sin confirmar.
+ */
+public class AsientosViajes {
+
+	private static final String SELECT_CAPACIDAD = "SELECT m.NPLAZAS FROM viajes v "
+			+ "JOIN trenes t ON v.IDTREN = t.IDTREN JOIN modelos m ON t.MODELO = m.IDMODELO WHERE v.IDVIAJE = ?";
+	private static final String SELECT_OCUPADOS = "SELECT ASIENTO FROM ticketsAsientos WHERE IDVIAJE = ?";
+	private static final String SELECT_ASIENTOS_TICKET = "SELECT ASIENTO FROM ticketsAsientos "
+			+ "WHERE IDTICKET = ? AND IDVIAJE = ? ORDER BY ASIENTO DESC";
+	private static final String DELETE_ASIENTOS_TICKET = "DELETE FROM ticketsAsientos "
+			+ "WHERE IDTICKET = ? AND IDVIAJE = ? AND ASIENTO >= ?";
+	static final String INSERT_ASIENTO = "INSERT INTO ticketsAsientos VALUES (?, ?, ?)";
+
+	private static final AsientosViajes INSTANCIA = new AsientosViajes();
+
+	private final Map<Integer, MapaAsientos> mapas = new ConcurrentHashMap<>();
+
+	private AsientosViajes() {
+		ExecuteScript.alRecargar(this::invalidar);
+	}
+
+	public static AsientosViajes getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Reserva en memoria asientos para una compra. Hay que darlos de alta en
+	 * {@code ticketsAsientos} en la transaccion de la compra o liberarlos con
+	 * {@link #liberar(int, int[])} si no se vende.
+	 *
+	 * @param con       conexion con la que cargar el viaje si aun no esta en
+	 *                  memoria
+	 * @param idViaje   viaje de la compra
+	 * @param nroPlazas asientos a reservar, al menos uno
+	 * @return asientos reservados en orden, o null si el mapa no tiene tantos
+	 *         libres
+	 * @throws SQLException si hay un error al cargar el viaje
+	 */
+	public int[] asignar(Connection con, int idViaje, int nroPlazas) throws SQLException {
+		MapaAsientos mapa = mapa(con, idViaje);
+		int inicio = mapa.reservar(nroPlazas);
+		int[] asientos = new int[nroPlazas];
+		if (inicio >= 0) {
+			for (int i = 0; i < nroPlazas; i++) {
+				asientos[i] = inicio + i + 1;
+			}
+			return asientos;
+		}
+		for (int i = 0; i < nroPlazas; i++) {
+			int asiento = mapa.reservar(1);
+			if (asiento < 0) {
+				liberar(idViaje, Arrays.copyOf(asientos, i));
+				return null;
+			}
+			asientos[i] = asiento + 1;
+		}
+		Arrays.sort(asientos);
+		return asientos;
+	}
+
+	/**
+	 * Devuelve asientos al mapa del viaje.
+	 */
+	public void liberar(int idViaje, int[] asientos) {
+		MapaAsientos mapa = mapas.get(idViaje);
+		if (mapa != null) {
+			for (int asiento : asientos) {
+				mapa.liberar(asiento - 1, 1);
+			}
+		}
+	}
+
+	/**
+	 * Da de baja en {@code ticketsAsientos}, sin confirmar la transaccion, los
+	 * asientos mas altos de un ticket para anular plazas. El mapa no cambia hasta
+	 * que se liberan con {@link #liberar(int, int[])} tras confirmar.
+	 *
+	 * @param con       conexion de la transaccion
+	 * @param idTicket  ticket anulado
+	 * @param idViaje   viaje del ticket
+	 * @param nroPlazas plazas anuladas
+	 * @return asientos dados de baja; vacio si el ticket no tiene asientos
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public int[] quitar(Connection con, int idTicket, int idViaje, int nroPlazas) throws SQLException {
+		int[] asientos = new int[nroPlazas];
+		int n = 0;
+		try (PreparedStatement st = con.prepareStatement(SELECT_ASIENTOS_TICKET)) {
+			st.setInt(1, idTicket);
+			st.setInt(2, idViaje);
+			try (ResultSet rs = st.executeQuery()) {
+				while (n < nroPlazas && rs.next()) {
+					asientos[n++] = rs.getInt(1);
+				}
+			}
+		}
+		if (n > 0) {
+			try (PreparedStatement st = con.prepareStatement(DELETE_ASIENTOS_TICKET)) {
+				st.setInt(1, idTicket);
+				st.setInt(2, idViaje);
+				st.setInt(3, asientos[n - 1]);
+				st.executeUpdate();
+			}
+		}
+		return Arrays.copyOf(asientos, n);
+	}
+
+	/**
+	 * Descarta el mapa de un viaje, que se volvera a leer de la base de datos.
+	 */
+	public void invalidar(int idViaje) {
+		mapas.remove(idViaje);
+	}
+
+	/**
+	 * Descarta todos los mapas.
+	 */
+	public void invalidar() {
+		mapas.clear();
+	}
+
+	private MapaAsientos mapa(Connection con, int idViaje) throws SQLException {
+		MapaAsientos mapa = mapas.get(idViaje);
+		if (mapa != null) {
+			return mapa;
+		}
+		synchronized (this) {
+			mapa = mapas.get(idViaje);
+			if (mapa == null) {
+				mapa = cargar(con, idViaje);
+				mapas.put(idViaje, mapa);
+			}
+			return mapa;
+		}
+	}
+
+	private static MapaAsientos cargar(Connection con, int idViaje) throws SQLException {
+		MapaAsientos mapa;
+		try (PreparedStatement st = con.prepareStatement(SELECT_CAPACIDAD)) {
+			st.setInt(1, idViaje);
+			try (ResultSet rs = st.executeQuery()) {
+				mapa = new MapaAsientos(rs.next() ? rs.getInt(1) : 0);
+			}
+		}
+		try (PreparedStatement st = con.prepareStatement(SELECT_OCUPADOS)) {
+			st.setInt(1, idViaje);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					int asiento = rs.getInt(1);
+					if (asiento >= 1 && asiento <= mapa.getCapacidad()) {
+						mapa.ocupar(asiento - 1);
+					}
+				}
+			}
+		}
+		return mapa;
+	}
+}
@@ -0,0 +1,182 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Asigna los ids de los tickets desde el cliente. Reserva bloques de valores
+ * de {@code seq_tickets} con una sola consulta y los reparte sin bloqueos; solo
+ * se sincroniza al reservar el bloque siguiente.
+ *
+ * <p>
+ * Como con la secuencia, un id asignado a una compra que luego se deshace por
+ * un error se pierde. Los de las compras rechazadas por falta de plazas se
+ * pueden devolver con {@link #devolver(int)} para que los use la siguiente.
+ *
+ * <p>
+ * Se vacia automaticamente cuando {@link ExecuteScript} recarga las tablas,
+ * porque entonces se vuelve a crear la secuencia.
+ */
+public class AsignadorTickets {
+
+	private static final int TAMANO_BLOQUE = 50;
+
+	private static final String SELECT_BLOQUE = "SELECT seq_tickets.nextval FROM dual CONNECT BY level <= ?";
+
+	private static final Bloque VACIO = new Bloque(new int[0]);
+
+	private static final AsignadorTickets INSTANCIA = new AsignadorTickets(null);
+
+	static {
+		ExecuteScript.alRecargar(INSTANCIA::invalidar);
+	}
+
+	/** Origen de las conexiones de {@link #siguiente()}, null para el pool de la aplicacion. */
+	private final DataSource origen;
+
+	private volatile Bloque bloque = VACIO;
+	private final ConcurrentLinkedQueue<Integer> devueltos = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Asignador propio de un almacen que no usa el pool de la aplicacion. No se
+	 * vacia al recargar las tablas: quien lo crea llama a {@link #invalidar()}.
+	 *
+	 * @param origen origen de las conexiones, o null para el pool de la
+	 *               aplicacion
+	 */
+	AsignadorTickets(DataSource origen) {
+		this.origen = origen;
+	}
+
+	public static AsignadorTickets getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Asigna un id de ticket.
+	 *
+	 * @param con conexion con la que reservar un bloque nuevo si se ha agotado el
+	 *            actual; la consulta no forma parte de su transaccion
+	 * @return id del ticket, que ninguna otra llamada recibe
+	 * @throws SQLException si hay un error al reservar el bloque
+	 */
+	public int siguiente(Connection con) throws SQLException {
+		return asignar(con);
+	}
+
+	/**
+	 * Asigna un id de ticket sin tener una conexion abierta: si se ha agotado el
+	 * bloque actual, toma una de su origen para reservar el siguiente.
+	 *
+	 * @return id del ticket, que ninguna otra llamada recibe
+	 * @throws SQLException si hay un error al reservar el bloque
+	 */
+	public int siguiente() throws SQLException {
+		return asignar(null);
+	}
+
+	/**
+	 * Reserva un bloque nuevo si el actual esta agotado, para que las siguientes
+	 * asignaciones no tengan que ir a la base de datos.
+	 *
+	 * @param con conexion con la que reservar el bloque; la consulta no forma
+	 *            parte de su transaccion
+	 * @throws SQLException si hay un error al reservar el bloque
+	 */
+	public void precargar(Connection con) throws SQLException {
+		Bloque b = bloque;
+		if (b.siguiente.get() < b.ids.length) {
+			return;
+		}
+		synchronized (this) {
+			if (bloque == b) {
+				bloque = reservar(con);
+			}
+		}
+	}
+
+	private int asignar(Connection con) throws SQLException {
+		Integer devuelto = devueltos.poll();
+		if (devuelto != null) {
+			return devuelto;
+		}
+		for (;;) {
+			Bloque b = bloque;
+			int i = b.siguiente.getAndIncrement();
+			if (i < b.ids.length) {
+				return b.ids[i];
+			}
+			synchronized (this) {
+				if (bloque == b) {
+					bloque = con != null ? reservar(con) : reservarAparte();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Devuelve un id que no se ha llegado a usar en {@code tickets}.
+	 *
+	 * @param idTicket id obtenido con {@link #siguiente(Connection)}
+	 */
+	public void devolver(int idTicket) {
+		devueltos.add(idTicket);
+	}
+
+	/**
+	 * Descarta el bloque actual y los ids devueltos. Hay que llamarlo cuando se
+	 * vuelve a crear {@code seq_tickets}.
+	 */
+	public synchronized void invalidar() {
+		bloque = VACIO;
+		devueltos.clear();
+	}
+
+	private static Bloque reservar(Connection con) throws SQLException {
+		int[] ids = new int[TAMANO_BLOQUE];
+		int n = 0;
+		try (PreparedStatement st = con.prepareStatement(SELECT_BLOQUE)) {
+			st.setInt(1, TAMANO_BLOQUE);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next() && n < ids.length) {
+					ids[n++] = rs.getInt(1);
+				}
+			}
+		}
+		if (n == 0) {
+			throw new SQLException("No se han podido reservar ids de seq_tickets");
+		}
+		return new Bloque(n == ids.length ? ids : java.util.Arrays.copyOf(ids, n));
+	}
+
+	private Bloque reservarAparte() throws SQLException {
+		Connection con = origen == null ? PoolDeConexiones.getInstance().getConnection() : origen.getConnection();
+		try {
+			Bloque reservado = reservar(con);
+			if (!con.getAutoCommit()) {
+				con.commit();
+			}
+			return reservado;
+		} finally {
+			con.close();
+		}
+	}
+
+	private static final class Bloque {
+		final int[] ids;
+		final AtomicInteger siguiente = new AtomicInteger();
+
+		Bloque(int[] ids) {
+			this.ids = ids;
+		}
+	}
+}
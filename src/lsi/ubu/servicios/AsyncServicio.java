@@ -0,0 +1,242 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.sql.Time;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.Plazo;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Fachada asincrona de un {@link Servicio}. Cada llamada se ejecuta en su propio
+ * hilo virtual (si la JVM los soporta) y devuelve un {@link CompletableFuture}.
+ *
+ * <p>
+ * Como mucho hay tantas llamadas en curso como conexiones tiene el pool; el
+ * resto espera un numero acotado de ellas y las que exceden ese limite se
+ * rechazan en el momento, de forma que nunca se encolan sin limite.
+ *
+ * <p>
+ * Cada llamada se ejecuta con su propio {@link Plazo}. Al vencer el plazo o al
+ * cancelar el futuro se cancela en la base de datos la sentencia en curso, se
+ * impide que la transaccion se confirme y se interrumpe el hilo; el futuro
+ * termina con {@link SQLTimeoutException} o {@link CancellationException}. Si la
+ * transaccion ya se estaba confirmando, o ya se ha confirmado, la llamada no se
+ * cancela: el futuro termina con su resultado y {@code cancel} devuelve false. Asi, un futuro que
+ * termina por plazo vencido o cancelacion nunca deja cambios confirmados. Con
+ * las variantes con clave de idempotencia la llamada se puede repetir sin
+ * riesgo de hacerla dos veces.
+ */
+public class AsyncServicio implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncServicio.class);
+
+	private final Servicio servicio;
+	private final int maxAdmitidas;
+	private final Semaphore permisos;
+	private final AtomicInteger admitidas = new AtomicInteger();
+	private final ExecutorService ejecutor;
+
+	/**
+	 * Crea la fachada limitando la concurrencia al tamano maximo del pool de
+	 * conexiones y permitiendo otras tantas llamadas en espera.
+	 *
+	 * @param servicio servicio al que se delegan las llamadas
+	 */
+	public AsyncServicio(Servicio servicio) {
+		this(servicio, PoolDeConexiones.getInstance().getMaxPoolSize(),
+				PoolDeConexiones.getInstance().getMaxPoolSize());
+	}
+
+	/**
+	 * Crea la fachada.
+	 *
+	 * @param servicio        servicio al que se delegan las llamadas
+	 * @param maxConcurrencia llamadas que pueden estar ejecutandose a la vez
+	 * @param maxEnEspera     llamadas que pueden esperar turno; las demas se
+	 *                        rechazan
+	 */
+	public AsyncServicio(Servicio servicio, int maxConcurrencia, int maxEnEspera) {
+		this.servicio = servicio;
+		this.maxAdmitidas = maxConcurrencia + maxEnEspera;
+		this.permisos = new Semaphore(maxConcurrencia, true);
+		this.ejecutor = crearEjecutor();
+	}
+
+	/**
+	 * Compra un billete de forma asincrona.
+	 *
+	 * @param plazo  tiempo maximo para completar la compra
+	 * @param unidad unidad del plazo
+	 * @return futuro que se completa con el id del ticket al terminar la compra o
+	 *         con la excepcion correspondiente
+	 * @see Servicio#comprarBillete(Time, java.util.Date, String, String, int)
+	 */
+	public CompletableFuture<Integer> comprarBillete(Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas, long plazo, TimeUnit unidad) {
+		return ejecutar(() -> servicio.comprarBillete(hora, fecha, origen, destino, nroPlazas), plazo, unidad);
+	}
+
+	/**
+	 * Compra un billete de forma asincrona con una clave de idempotencia.
+	 *
+	 * @param plazo  tiempo maximo para completar la compra
+	 * @param unidad unidad del plazo
+	 * @return futuro que se completa con el id del ticket al terminar la compra o
+	 *         con la excepcion correspondiente
+	 * @see Servicio#comprarBillete(String, Time, java.util.Date, String, String,
+	 *      int)
+	 */
+	public CompletableFuture<Integer> comprarBillete(String clave, Time hora, java.util.Date fecha, String origen,
+			String destino, int nroPlazas, long plazo, TimeUnit unidad) {
+		return ejecutar(() -> servicio.comprarBillete(clave, hora, fecha, origen, destino, nroPlazas), plazo, unidad);
+	}
+
+	/**
+	 * Anula un billete de forma asincrona.
+	 *
+	 * @param plazo  tiempo maximo para completar la anulacion
+	 * @param unidad unidad del plazo
+	 * @return futuro que se completa al terminar la anulacion o con la excepcion
+	 *         correspondiente
+	 * @see Servicio#anularBillete(Time, java.util.Date, String, String, int, int)
+	 */
+	public CompletableFuture<Void> anularBillete(Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas, int ticket, long plazo, TimeUnit unidad) {
+		return ejecutar(() -> {
+			servicio.anularBillete(hora, fecha, origen, destino, nroPlazas, ticket);
+			return null;
+		}, plazo, unidad);
+	}
+
+	/**
+	 * Anula un billete de forma asincrona con una clave de idempotencia.
+	 *
+	 * @param plazo  tiempo maximo para completar la anulacion
+	 * @param unidad unidad del plazo
+	 * @return futuro que se completa al terminar la anulacion o con la excepcion
+	 *         correspondiente
+	 * @see Servicio#anularBillete(String, Time, java.util.Date, String, String,
+	 *      int, int)
+	 */
+	public CompletableFuture<Void> anularBillete(String clave, Time hora, java.util.Date fecha, String origen,
+			String destino, int nroPlazas, int ticket, long plazo, TimeUnit unidad) {
+		return ejecutar(() -> {
+			servicio.anularBillete(clave, hora, fecha, origen, destino, nroPlazas, ticket);
+			return null;
+		}, plazo, unidad);
+	}
+
+	/**
+	 * Deja de admitir llamadas; las que estan en curso terminan normalmente.
+	 */
+	@Override
+	public void close() {
+		ejecutor.shutdown();
+	}
+
+	private <T> CompletableFuture<T> ejecutar(Llamada<T> llamada, long plazo, TimeUnit unidad) {
+		EnCurso<T> resultado = new EnCurso<>(new Plazo(plazo, unidad));
+
+		// Control de admision: ni hilos ni esperas sin limite.
+		if (admitidas.incrementAndGet() > maxAdmitidas) {
+			admitidas.decrementAndGet();
+			resultado.completeExceptionally(new SQLTransientException("Servicio saturado, reintentar mas tarde"));
+			return resultado;
+		}
+
+		try {
+			resultado.tarea = ejecutor.submit(() -> {
+				try {
+					if (!permisos.tryAcquire(resultado.plazo.restanteMs(), TimeUnit.MILLISECONDS)) {
+						resultado.completeExceptionally(new SQLTimeoutException("Sin conexion libre dentro del plazo"));
+						return;
+					}
+					try {
+						if (!resultado.isDone()) {
+							resultado.complete(resultado.plazo.ejecutar(llamada::ejecutar));
+						}
+					} finally {
+						permisos.release();
+					}
+				} catch (Exception e) {// incluida la interrupcion por cancelacion o plazo vencido
+					resultado.completeExceptionally(e);
+				} finally {
+					admitidas.decrementAndGet();
+				}
+			});
+		} catch (RuntimeException e) {// ejecutor cerrado
+			admitidas.decrementAndGet();
+			resultado.completeExceptionally(e);
+			return resultado;
+		}
+
+		CompletableFuture.delayedExecutor(plazo, unidad).execute(resultado::vencer);
+		return resultado;
+	}
+
+	// Futuro de una llamada que al cancelarse o vencer cancela tambien su ejecucion.
+	private static final class EnCurso<T> extends CompletableFuture<T> {
+		final Plazo plazo;
+		volatile Future<?> tarea;
+
+		EnCurso(Plazo plazo) {
+			this.plazo = plazo;
+		}
+
+		@Override
+		public boolean cancel(boolean interrumpir) {
+			boolean[] cancelado = new boolean[1];
+			if (isDone() || !plazo.cancelar(() -> cancelado[0] = super.cancel(interrumpir))) {
+				return false;
+			}
+			detener();
+			return cancelado[0];
+		}
+
+		void vencer() {
+			SQLTimeoutException vencido = new SQLTimeoutException("Plazo de la llamada vencido");
+			if (!isDone() && plazo.cancelar(() -> completeExceptionally(vencido))) {
+				detener();
+			}
+		}
+
+		// Despierta al hilo si espera un permiso o una conexion.
+		private void detener() {
+			Future<?> enEjecucion = tarea;
+			if (enEjecucion != null) {
+				enEjecucion.cancel(true);
+			}
+		}
+	}
+
+	// Hilos virtuales si la JVM los ofrece (Java 21+) y, si no, hilos de plataforma.
+	// En ambos casos el numero de hilos vivos lo limita la admision de llamadas.
+	private static ExecutorService crearEjecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			LOGGER.debug("Hilos virtuales no disponibles, se usan hilos de plataforma");
+			return Executors.newCachedThreadPool(r -> {
+				Thread hilo = new Thread(r, "async-servicio");
+				hilo.setDaemon(true);
+				return hilo;
+			});
+		}
+	}
+
+	private interface Llamada<T> {
+		T ejecutar() throws Exception;
+	}
+}
@@ -0,0 +1,231 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.CacheLRU;
+import lsi.ubu.util.ExecuteScript;
+
+/**
+ * Cache de la resolucion (origen, destino, fecha, HH:mm) a (idViaje,
+ * idRecorrido, precio), que casi nunca cambia. Evita el join entre
+ * {@code viajes} y {@code recorridos} en cada compra o anulacion.
+ *
+ * <p>
+ * Se vacia automaticamente cuando {@link ExecuteScript} recarga las tablas; si
+ * se reescriben por otra via hay que llamar a {@link #invalidar()}.
+ */
+public class CacheViajes {
+
+	private static final int TAMANO_MAXIMO = 1024;
+	private static final long TTL_MS = 10 * 60 * 1000L;
+
+	// Se filtra por la columna virtual MINUTOSALIDA y no por una funcion de horaSalida para que
+	// la busqueda use los indices unicos de recorridos y de viajes (ver PlanesConsulta).
+	static final String SELECT_VIAJE = "SELECT a.IDVIAJE, a.IDRECORRIDO, b.PRECIO "
+			+ "FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO "
+			+ "WHERE b.ESTACIONORIGEN = ? AND b.ESTACIONDESTINO = ? AND b.MINUTOSALIDA = ? AND a.FECHA = ?";
+
+	// Se completa con una tupla (?, ?, ?, ?) por cada viaje a resolver.
+	static final String SELECT_VIAJES_LOTE = "SELECT b.ESTACIONORIGEN, b.ESTACIONDESTINO, a.FECHA, "
+			+ "to_char(b.horaSalida, 'HH24:MI'), a.IDVIAJE, a.IDRECORRIDO, b.PRECIO "
+			+ "FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO "
+			+ "WHERE (b.ESTACIONORIGEN, b.ESTACIONDESTINO, b.MINUTOSALIDA, a.FECHA) IN (";
+
+	private static final CacheViajes INSTANCIA = new CacheViajes();
+
+	static {
+		ExecuteScript.alRecargar(INSTANCIA::invalidar);
+	}
+
+	private final CacheLRU<Clave, DatosViaje> cache = new CacheLRU<>(TAMANO_MAXIMO, TTL_MS);
+
+	/**
+	 * Cache propia de un almacen que no usa el pool de la aplicacion. No se
+	 * vacia al recargar las tablas: quien la crea llama a {@link #invalidar()}.
+	 */
+	CacheViajes() {
+	}
+
+	public static CacheViajes getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Resuelve el viaje, consultando la base de datos solo si no esta en cache.
+	 *
+	 * @param con     conexion a usar en caso de fallo de cache
+	 * @param hora    hora de salida (se usan horas y minutos)
+	 * @param fecha   fecha del viaje
+	 * @param origen  estacion de origen
+	 * @param destino estacion de destino
+	 * @return datos del viaje
+	 * @throws CompraBilleteTrenException con NO_EXISTE_VIAJE si no existe
+	 * @throws SQLException               si hay un error con la base de datos
+	 */
+	public DatosViaje resolver(Connection con, Time hora, java.util.Date fecha, String origen, String destino)
+			throws SQLException {
+		Clave clave = new Clave(origen, destino, aFecha(fecha), hora.toString().substring(0, 5));
+		DatosViaje viaje = cache.get(clave);
+		if (viaje == null) {
+			viaje = consultar(con, clave);
+			cache.put(clave, viaje);
+		}
+		return viaje;
+	}
+
+	/**
+	 * Consulta el viaje solo en la cache, sin ir a la base de datos.
+	 *
+	 * @return datos del viaje, o null si no esta en cache
+	 */
+	public DatosViaje buscarEnCache(Time hora, java.util.Date fecha, String origen, String destino) {
+		return cache.get(new Clave(origen, destino, aFecha(fecha), hora.toString().substring(0, 5)));
+	}
+
+	/**
+	 * Resuelve los viajes de un lote de compras. Los que no estan en cache se
+	 * consultan todos juntos en una unica sentencia.
+	 *
+	 * @param con         conexion a usar para los fallos de cache
+	 * @param solicitudes compras a resolver
+	 * @return datos de cada viaje, en el orden de las solicitudes, o null si no
+	 *         existe
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public DatosViaje[] resolverTodos(Connection con, List<SolicitudCompra> solicitudes) throws SQLException {
+		DatosViaje[] viajes = new DatosViaje[solicitudes.size()];
+		Clave[] claves = new Clave[solicitudes.size()];
+		Set<Clave> pendientes = new LinkedHashSet<>();
+		for (int i = 0; i < viajes.length; i++) {
+			SolicitudCompra s = solicitudes.get(i);
+			claves[i] = new Clave(s.getOrigen(), s.getDestino(), aFecha(s.getFecha()),
+					s.getHora().toString().substring(0, 5));
+			viajes[i] = cache.get(claves[i]);
+			if (viajes[i] == null) {
+				pendientes.add(claves[i]);
+			}
+		}
+		if (pendientes.isEmpty()) {
+			return viajes;
+		}
+
+		StringBuilder sql = new StringBuilder(SELECT_VIAJES_LOTE);
+		for (int i = 0; i < pendientes.size(); i++) {
+			sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+		}
+		sql.append(')');
+
+		Map<Clave, DatosViaje> encontrados = new HashMap<>();
+		try (PreparedStatement st = con.prepareStatement(sql.toString())) {
+			int n = 1;
+			for (Clave clave : pendientes) {
+				st.setString(n++, clave.origen);
+				st.setString(n++, clave.destino);
+				st.setInt(n++, clave.minuto());
+				st.setDate(n++, java.sql.Date.valueOf(clave.fecha));
+			}
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					Clave clave = new Clave(rs.getString(1), rs.getString(2), rs.getDate(3).toLocalDate(),
+							rs.getString(4));
+					DatosViaje viaje = new DatosViaje(rs.getInt(5), rs.getInt(6), rs.getInt(7));
+					encontrados.put(clave, viaje);
+					cache.put(clave, viaje);
+				}
+			}
+		}
+		for (int i = 0; i < viajes.length; i++) {
+			if (viajes[i] == null) {
+				viajes[i] = encontrados.get(claves[i]);
+			}
+		}
+		return viajes;
+	}
+
+	/**
+	 * Vacia la cache. Hay que llamarlo cuando se reescriben {@code viajes} o
+	 * {@code recorridos}.
+	 */
+	public void invalidar() {
+		cache.invalidarTodo();
+	}
+
+	public long getAciertos() {
+		return cache.getAciertos();
+	}
+
+	public long getFallos() {
+		return cache.getFallos();
+	}
+
+	public double getTasaAciertos() {
+		return cache.getTasaAciertos();
+	}
+
+	private DatosViaje consultar(Connection con, Clave clave) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(SELECT_VIAJE)) {
+			st.setString(1, clave.origen);
+			st.setString(2, clave.destino);
+			st.setInt(3, clave.minuto());
+			st.setDate(4, java.sql.Date.valueOf(clave.fecha));
+			try (ResultSet rs = st.executeQuery()) {
+				if (!rs.next()) {
+					throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+				}
+				return new DatosViaje(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+			}
+		}
+	}
+
+	// Dia de la fecha, sin la hora: las compras y las filas de viajes se comparan por el dia.
+	private static LocalDate aFecha(java.util.Date fecha) {
+		return fecha instanceof java.sql.Date ? ((java.sql.Date) fecha).toLocalDate()
+				: new java.sql.Date(fecha.getTime()).toLocalDate();
+	}
+
+	private static final class Clave {
+		final String origen;
+		final String destino;
+		final LocalDate fecha;
+		final String hora;
+
+		Clave(String origen, String destino, LocalDate fecha, String hora) {
+			this.origen = origen;
+			this.destino = destino;
+			this.fecha = fecha;
+			this.hora = hora;
+		}
+
+		// Minuto del dia de la hora HH:mm, como la columna MINUTOSALIDA de recorridos.
+		int minuto() {
+			return Integer.parseInt(hora.substring(0, 2)) * 60 + Integer.parseInt(hora.substring(3, 5));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Clave)) {
+				return false;
+			}
+			Clave otra = (Clave) o;
+			return fecha.equals(otra.fecha) && hora.equals(otra.hora) && origen.equals(otra.origen)
+					&& destino.equals(otra.destino);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(origen, destino, fecha, hora);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package lsi.ubu.servicios;
+
+/**
+ * Datos de un viaje resueltos a partir de origen, destino, fecha y hora de
+ * salida.
+ */
+public final class DatosViaje {
+
+	private final int idViaje;
+	private final int idRecorrido;
+	private final int precio;
+
+	public DatosViaje(int idViaje, int idRecorrido, int precio) {
+		this.idViaje = idViaje;
+		this.idRecorrido = idRecorrido;
+		this.precio = precio;
+	}
+
+	public int getIdViaje() {
+		return idViaje;
+	}
+
+	public int getIdRecorrido() {
+		return idRecorrido;
+	}
+
+	/**
+	 * @return precio por plaza
+	 */
+	public int getPrecio() {
+		return precio;
+	}
+}
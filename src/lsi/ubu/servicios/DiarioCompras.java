@@ -0,0 +1,199 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Diario de recuperacion del inventario en memoria. Cada movimiento se escribe
+ * (y se fuerza a disco) antes de confirmarlo al cliente, y queda pendiente
+ * hasta que se vuelca a la base de datos. Tras un volcado se anota un punto de
+ * control con la ultima secuencia aplicada.
+ *
+ * <p>
+ * Formato de linea: {@code tipo;secuencia;...} para movimientos y
+ * {@code K;secuencia} para los puntos de control.
+ *
+ * <p>
+ * Una caida a mitad de escritura puede dejar la ultima linea incompleta. Esa
+ * linea no se llego a confirmar al cliente, asi que al recuperar se descarta
+ * y se corta del fichero; una linea ilegible antes de la ultima es corrupcion
+ * y no se recupera nada.
+ */
+class DiarioCompras {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiarioCompras.class);
+
+	private static final char PUNTO_CONTROL = 'K';
+
+	private final Path ruta;
+	private final boolean sincronizar;
+	private final FileChannel canal;
+
+	/** Movimientos registrados y aun no volcados, en orden de secuencia. */
+	private final ArrayDeque<Movimiento> pendientes = new ArrayDeque<>();
+
+	private long ultimaSecuencia;
+
+	/**
+	 * Abre (o crea) el diario.
+	 *
+	 * @param ruta        fichero del diario
+	 * @param sincronizar si se fuerza a disco cada movimiento antes de confirmarlo
+	 * @throws IOException si no se puede abrir el fichero
+	 */
+	DiarioCompras(Path ruta, boolean sincronizar) throws IOException {
+		this.ruta = ruta;
+		this.sincronizar = sincronizar;
+		this.canal = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Lee los movimientos posteriores al ultimo punto de control, es decir, los
+	 * que pueden no haber llegado a la base de datos.
+	 *
+	 * @return movimientos en orden de secuencia
+	 * @throws IOException si no se puede leer el fichero o hay una linea
+	 *                     ilegible antes de la ultima
+	 */
+	synchronized List<Movimiento> recuperar() throws IOException {
+		List<Movimiento> movimientos = new ArrayList<>();
+		byte[] contenido = Files.readAllBytes(ruta);
+		int inicio = 0;
+		for (int numero = 1; inicio < contenido.length; numero++) {
+			int fin = inicio;
+			while (fin < contenido.length && contenido[fin] != '\n') {
+				fin++;
+			}
+			String linea = new String(contenido, inicio, fin - inicio, StandardCharsets.UTF_8);
+			if (fin == contenido.length) {// sin salto de linea: la escritura no termino
+				descartarCola(inicio, numero, linea);
+				break;
+			}
+			try {
+				leer(linea, movimientos);
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				if (fin + 1 < contenido.length) {
+					throw new IOException("Diario " + ruta + " corrupto en la linea " + numero + ": " + linea, e);
+				}
+				descartarCola(inicio, numero, linea);
+				break;
+			}
+			inicio = fin + 1;
+		}
+		return movimientos;
+	}
+
+	/**
+	 * Escribe el movimiento en el diario y lo deja pendiente de volcado.
+	 *
+	 * @param m movimiento a registrar
+	 * @throws IOException si no se puede escribir; el movimiento no queda
+	 *                     registrado
+	 */
+	synchronized void registrar(Movimiento m) throws IOException {
+		m.secuencia = ultimaSecuencia + 1;
+		escribir(m.aLinea());
+		ultimaSecuencia = m.secuencia;
+		pendientes.addLast(m);
+	}
+
+	/**
+	 * Extrae los movimientos pendientes mas antiguos.
+	 *
+	 * @param maximo numero maximo de movimientos
+	 * @return movimientos extraidos, posiblemente ninguno
+	 */
+	synchronized List<Movimiento> extraerPendientes(int maximo) {
+		List<Movimiento> lote = new ArrayList<>(Math.min(maximo, pendientes.size()));
+		while (lote.size() < maximo && !pendientes.isEmpty()) {
+			lote.add(pendientes.pollFirst());
+		}
+		return lote;
+	}
+
+	/**
+	 * Anota que todos los movimientos hasta la secuencia dada estan en la base de
+	 * datos. Si no queda nada pendiente el diario se vacia.
+	 *
+	 * @param secuencia ultima secuencia volcada
+	 * @throws IOException si no se puede escribir el punto de control
+	 */
+	synchronized void confirmarHasta(long secuencia) throws IOException {
+		if (pendientes.isEmpty() && secuencia == ultimaSecuencia) {
+			canal.truncate(0);
+			canal.force(true);
+		} else {
+			escribir(PUNTO_CONTROL + ";" + secuencia);
+		}
+	}
+
+	/**
+	 * Cierra el fichero del diario.
+	 *
+	 * @throws IOException si hay un error al cerrar
+	 */
+	synchronized void cerrar() throws IOException {
+		canal.close();
+	}
+
+	private void leer(String linea, List<Movimiento> movimientos) {
+		if (linea.isEmpty()) {
+			return;
+		}
+		if (linea.charAt(0) == PUNTO_CONTROL) {
+			String[] campos = linea.split(";", -1);
+			if (campos.length != 2 || campos[0].length() != 1) {
+				throw new IllegalArgumentException("Punto de control mal formado");
+			}
+			long confirmada = Long.parseLong(campos[1]);
+			movimientos.removeIf(m -> m.secuencia <= confirmada);
+			ultimaSecuencia = Math.max(ultimaSecuencia, confirmada);
+		} else {
+			Movimiento m = Movimiento.deLinea(linea);
+			movimientos.add(m);
+			ultimaSecuencia = Math.max(ultimaSecuencia, m.secuencia);
+		}
+	}
+
+	// Corta la ultima linea, escrita a medias, para que lo siguiente que se escriba empiece en
+	// una linea nueva.
+	private void descartarCola(int desde, int numero, String linea) throws IOException {
+		LOGGER.warn("Descartada la linea {} del diario {}, escrita a medias: {}", numero, ruta, linea);
+		canal.truncate(desde);
+		canal.force(true);
+	}
+
+	// Si la escritura falla se corta lo escrito, para que la linea no quede en mitad del
+	// fichero delante de las siguientes ni se recupere un movimiento que no se registro.
+	private void escribir(String linea) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((linea + "\n").getBytes(StandardCharsets.UTF_8));
+		long inicio = canal.size();
+		try {
+			while (buffer.hasRemaining()) {
+				canal.write(buffer);
+			}
+			if (sincronizar) {
+				canal.force(false);
+			}
+		} catch (IOException e) {
+			try {
+				canal.truncate(inicio);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+	}
+}
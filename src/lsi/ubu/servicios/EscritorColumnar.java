@@ -0,0 +1,106 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exportacion en un formato binario columnar y compacto. Las filas se agrupan
+ * en bloques de hasta {@value #FILAS_POR_BLOQUE}; dentro de un bloque cada
+ * columna se escribe seguida, con el primer valor y despues las diferencias con
+ * el anterior. Como las claves son crecientes y el resto de columnas se repiten
+ * mucho, las diferencias suelen ocupar un byte.
+ *
+ * <p>
+ * Formato (todos los enteros en varint de 7 bits, con signo en zigzag):
+ * <ul>
+ * <li>cabecera: {@code "BTC1"}, numero de columnas y, por cada una, su tipo
+ * (ordinal de {@link TipoColumna}, un byte) y su nombre (longitud y bytes
+ * UTF-8);</li>
+ * <li>bloques: numero de filas (mayor que 0) y los valores de cada columna;</li>
+ * <li>fin: un bloque de 0 filas.</li>
+ * </ul>
+ */
+class EscritorColumnar extends EscritorFilas {
+
+	static final int FILAS_POR_BLOQUE = 1024;
+
+	private static final byte[] MAGICO = { 'B', 'T', 'C', '1' };
+	// Un long en varint ocupa como mucho 10 bytes.
+	private static final int MAXIMO_VARINT = 10;
+
+	private final long[][] bloque;
+	private int filas;
+
+	EscritorColumnar(WritableByteChannel canal, int tamanoBuffer, String[] nombres, TipoColumna[] tipos) {
+		super(canal, tamanoBuffer, nombres, tipos);
+		this.bloque = new long[nombres.length][FILAS_POR_BLOQUE];
+	}
+
+	@Override
+	void cabecera() throws IOException {
+		reservar(MAGICO.length + MAXIMO_VARINT);
+		buffer.put(MAGICO);
+		escribirVarint(nombres.length);
+		for (int i = 0; i < nombres.length; i++) {
+			byte[] nombre = nombres[i].getBytes(StandardCharsets.UTF_8);
+			reservar(1 + MAXIMO_VARINT + nombre.length);
+			buffer.put((byte) tipos[i].ordinal());
+			escribirVarint(nombre.length);
+			buffer.put(nombre);
+		}
+	}
+
+	@Override
+	void fila(long[] valores) throws IOException {
+		for (int i = 0; i < valores.length; i++) {
+			bloque[i][filas] = valores[i];
+		}
+		if (++filas == FILAS_POR_BLOQUE) {
+			escribirBloque();
+		}
+	}
+
+	@Override
+	void vaciar() throws IOException {
+		escribirBloque();
+		super.vaciar();
+	}
+
+	@Override
+	void terminar() throws IOException {
+		escribirBloque();
+		reservar(1);
+		buffer.put((byte) 0);
+		super.terminar();
+	}
+
+	private void escribirBloque() throws IOException {
+		if (filas == 0) {
+			return;
+		}
+		reservar(MAXIMO_VARINT);
+		escribirVarint(filas);
+		for (long[] columna : bloque) {
+			long anterior = 0;
+			for (int f = 0; f < filas; f++) {
+				reservar(MAXIMO_VARINT);
+				escribirVarint(zigzag(columna[f] - anterior));
+				anterior = columna[f];
+			}
+		}
+		filas = 0;
+	}
+
+	private void escribirVarint(long v) {
+		while ((v & ~0x7FL) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+}
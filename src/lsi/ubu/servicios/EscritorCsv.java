@@ -0,0 +1,64 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDate;
+
+/**
+ * Exportacion en CSV: una linea de cabecera con los nombres de las columnas y
+ * una linea por fila. Las fechas van como {@code yyyy-MM-dd} y los importes con
+ * dos decimales separados por punto.
+ */
+class EscritorCsv extends EscritorFilas {
+
+	private final StringBuilder linea = new StringBuilder(128);
+
+	EscritorCsv(WritableByteChannel canal, int tamanoBuffer, String[] nombres, TipoColumna[] tipos) {
+		super(canal, tamanoBuffer, nombres, tipos);
+	}
+
+	@Override
+	void cabecera() throws IOException {
+		linea.setLength(0);
+		for (int i = 0; i < nombres.length; i++) {
+			if (i > 0) linea.append(',');
+			linea.append(nombres[i]);
+		}
+		escribirLinea();
+	}
+
+	@Override
+	void fila(long[] valores) throws IOException {
+		linea.setLength(0);
+		for (int i = 0; i < valores.length; i++) {
+			if (i > 0) linea.append(',');
+			long v = valores[i];
+			switch (tipos[i]) {
+			case FECHA:
+				linea.append(LocalDate.ofEpochDay(v));
+				break;
+			case IMPORTE:
+				if (v < 0) {
+					linea.append('-');
+					v = -v;
+				}
+				linea.append(v / 100).append('.');
+				if (v % 100 < 10) linea.append('0');
+				linea.append(v % 100);
+				break;
+			default:
+				linea.append(v);
+			}
+		}
+		escribirLinea();
+	}
+
+	// Todo el contenido es ASCII: se copia caracter a caracter sin codificar a un String.
+	private void escribirLinea() throws IOException {
+		linea.append('\n');
+		reservar(linea.length());
+		for (int i = 0; i < linea.length(); i++) {
+			buffer.put((byte) linea.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Escritor de filas de una exportacion sobre un canal. Todo pasa por un buffer
+ * de tamano fijo que se vacia en el canal al llenarse, asi que la memoria usada
+ * no depende del numero de filas.
+ */
+abstract class EscritorFilas {
+
+	protected final WritableByteChannel canal;
+	protected final ByteBuffer buffer;
+	protected final String[] nombres;
+	protected final TipoColumna[] tipos;
+
+	protected EscritorFilas(WritableByteChannel canal, int tamanoBuffer, String[] nombres, TipoColumna[] tipos) {
+		this.canal = canal;
+		this.buffer = ByteBuffer.allocateDirect(tamanoBuffer);
+		this.nombres = nombres;
+		this.tipos = tipos;
+	}
+
+	static EscritorFilas crear(FormatoExportacion formato, WritableByteChannel canal, int tamanoBuffer,
+			String[] nombres, TipoColumna[] tipos) {
+		switch (formato) {
+		case CSV:
+			return new EscritorCsv(canal, tamanoBuffer, nombres, tipos);
+		case COLUMNAR:
+			return new EscritorColumnar(canal, tamanoBuffer, nombres, tipos);
+		default:
+			throw new IllegalArgumentException("Formato no soportado: " + formato);
+		}
+	}
+
+	/** Escribe la cabecera de la exportacion. */
+	abstract void cabecera() throws IOException;
+
+	/** Escribe (o acumula) una fila con un valor por columna. */
+	abstract void fila(long[] valores) throws IOException;
+
+	/** Escribe en el canal todo lo acumulado, dejando la salida completa hasta aqui. */
+	void vaciar() throws IOException {
+		volcarBuffer();
+	}
+
+	/** Escribe el final de la exportacion y vacia el buffer. */
+	void terminar() throws IOException {
+		vaciar();
+	}
+
+	// Vacia el buffer si no caben los bytes indicados.
+	protected void reservar(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			volcarBuffer();
+		}
+	}
+
+	protected void volcarBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			canal.write(buffer);
+		}
+		buffer.clear();
+	}
+}
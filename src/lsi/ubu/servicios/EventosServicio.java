@@ -0,0 +1,136 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Difunde a los {@link OyenteServicio} suscritos los cambios de plazas que
+ * confirman las implementaciones de {@link Servicio}.
+ *
+ * <p>
+ * Cada cambio lleva una secuencia que se toma al confirmarlo con
+ * {@link #confirmar(Confirmacion)}. Un oyente que carga su estado de la base de
+ * datos lanza la consulta con {@link #consultar(Consulta, long[])}, que no deja
+ * confirmar cambios mientras empieza y devuelve la ultima secuencia tomada:
+ * los cambios con esa secuencia o menor ya estan en la consulta y los demas
+ * no.
+ */
+public final class EventosServicio {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EventosServicio.class);
+
+	private static final CopyOnWriteArrayList<OyenteServicio> OYENTES = new CopyOnWriteArrayList<>();
+
+	private static final AtomicLong SECUENCIA = new AtomicLong();
+
+	// Las confirmaciones (lectura) excluyen el comienzo de las consultas (escritura).
+	private static final ReentrantReadWriteLock CONFIRMACIONES = new ReentrantReadWriteLock();
+
+	/**
+	 * Confirmacion de una transaccion, normalmente {@code con::commit}.
+	 */
+	@FunctionalInterface
+	interface Confirmacion {
+		void confirmar() throws SQLException;
+	}
+
+	/**
+	 * Comienzo de una consulta; Oracle la responde con los datos confirmados
+	 * cuando empieza.
+	 */
+	@FunctionalInterface
+	interface Consulta<T> {
+		T ejecutar() throws SQLException;
+	}
+
+	private EventosServicio() {
+	}
+
+	/**
+	 * @param oyente oyente que recibira los cambios a partir de ahora
+	 */
+	public static void suscribir(OyenteServicio oyente) {
+		OYENTES.addIfAbsent(oyente);
+	}
+
+	/**
+	 * @param oyente oyente que deja de recibir los cambios
+	 */
+	public static void cancelar(OyenteServicio oyente) {
+		OYENTES.remove(oyente);
+	}
+
+	/**
+	 * Confirma una transaccion cuyos cambios de plazas se notificaran despues
+	 * con {@link #plazasCambiadas(long, int, int)}.
+	 *
+	 * @param confirmacion confirmacion de la transaccion
+	 * @return secuencia con la que notificar los cambios
+	 * @throws SQLException el error de la confirmacion
+	 */
+	static long confirmar(Confirmacion confirmacion) throws SQLException {
+		CONFIRMACIONES.readLock().lock();
+		try {
+			long secuencia = SECUENCIA.incrementAndGet();
+			confirmacion.confirmar();
+			return secuencia;
+		} finally {
+			CONFIRMACIONES.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Empieza una consulta sin confirmaciones en curso. Hay que preparar antes
+	 * la sentencia, para no esperar por una conexion mientras tanto.
+	 *
+	 * @param consulta comienzo de la consulta
+	 * @param secuencia donde se deja la ultima secuencia confirmada antes de la
+	 *                  consulta
+	 * @return resultado de la consulta
+	 * @throws SQLException el error de la consulta
+	 */
+	static <T> T consultar(Consulta<T> consulta, long[] secuencia) throws SQLException {
+		CONFIRMACIONES.writeLock().lock();
+		try {
+			secuencia[0] = SECUENCIA.get();
+			return consulta.ejecutar();
+		} finally {
+			CONFIRMACIONES.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Notifica un cambio de plazas confirmado con {@link #confirmar(Confirmacion)}.
+	 * Un oyente que falla no impide que se notifique a los demas ni afecta a la
+	 * operacion.
+	 *
+	 * @param secuencia secuencia de la confirmacion
+	 * @param idViaje   viaje afectado
+	 * @param variacion plazas libres ganadas o perdidas
+	 */
+	static void plazasCambiadas(long secuencia, int idViaje, int variacion) {
+		for (OyenteServicio oyente : OYENTES) {
+			try {
+				oyente.plazasCambiadas(secuencia, idViaje, variacion);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Error en un oyente del servicio: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Notifica un cambio de plazas que no se confirma en la base de datos al
+	 * hacerlo, como los del inventario en memoria; lleva una secuencia nueva.
+	 *
+	 * @param idViaje   viaje afectado
+	 * @param variacion plazas libres ganadas o perdidas
+	 */
+	static void plazasCambiadas(int idViaje, int variacion) {
+		plazasCambiadas(SECUENCIA.incrementAndGet(), idViaje, variacion);
+	}
+}
@@ -0,0 +1,178 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.LongConsumer;
+
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.MetricasServicio;
+
+/**
+ * Exporta {@code tickets} y la ocupacion de {@code viajes} a un canal en CSV o
+ * en formato columnar, sin cargar las tablas en memoria.
+ *
+ * <p>
+ * Las filas se leen por paginas ordenadas por la clave ({@code IDTICKET} o
+ * {@code IDVIAJE}): cada pagina es una consulta que empieza despues de la
+ * ultima clave leida, con su propia conexion y un tamano de fetch acotado, y
+ * se escribe a traves de un buffer de tamano fijo. La memoria usada es la misma
+ * para cualquier numero de filas.
+ *
+ * <p>
+ * Para reanudar una exportacion interrumpida se vuelve a llamar con la ultima
+ * clave notificada por {@code paginaEscrita} (la salida esta completa hasta ese
+ * punto, asi que el canal se recorta a la posicion que tenia entonces). Una
+ * exportacion reanudada no repite la cabecera.
+ */
+public class ExportadorDatos {
+
+	private static final int FILAS_POR_PAGINA = 10_000;
+	private static final int TAMANO_FETCH = 500;
+	private static final int TAMANO_BUFFER = 64 * 1024;
+	private static final int TAMANO_BUFFER_MINIMO = 1024;
+
+	private static final String[] COLUMNAS_TICKETS = { "IDTICKET", "IDVIAJE", "FECHACOMPRA", "CANTIDAD", "PRECIO" };
+	private static final TipoColumna[] TIPOS_TICKETS = { TipoColumna.ENTERO, TipoColumna.ENTERO, TipoColumna.FECHA,
+			TipoColumna.ENTERO, TipoColumna.IMPORTE };
+	private static final String SELECT_TICKETS = "SELECT * FROM ("
+			+ "SELECT IDTICKET, IDVIAJE, FECHACOMPRA, CANTIDAD, PRECIO FROM tickets "
+			+ "WHERE IDTICKET > ? ORDER BY IDTICKET) WHERE ROWNUM <= ?";
+
+	private static final String[] COLUMNAS_VIAJES = { "IDVIAJE", "IDTREN", "IDRECORRIDO", "FECHA", "NPLAZASLIBRES",
+			"REALIZADO", "IDCONDUCTOR", "PLAZASTOTALES", "PLAZASVENDIDAS" };
+	private static final TipoColumna[] TIPOS_VIAJES = { TipoColumna.ENTERO, TipoColumna.ENTERO, TipoColumna.ENTERO,
+			TipoColumna.FECHA, TipoColumna.ENTERO, TipoColumna.ENTERO, TipoColumna.ENTERO, TipoColumna.ENTERO,
+			TipoColumna.ENTERO };
+	static final String SELECT_VIAJES = "SELECT * FROM ("
+			+ "SELECT v.IDVIAJE, v.IDTREN, v.IDRECORRIDO, v.FECHA, v.NPLAZASLIBRES, v.REALIZADO, v.IDCONDUCTOR, "
+			+ "NVL(m.NPLAZAS, 0), "
+			+ "NVL((SELECT SUM(t.CANTIDAD) FROM tickets t WHERE t.IDVIAJE = v.IDVIAJE), 0) "
+			+ "FROM viajes v JOIN trenes r ON v.IDTREN = r.IDTREN LEFT JOIN modelos m ON r.MODELO = m.IDMODELO "
+			+ "WHERE v.IDVIAJE > ? ORDER BY v.IDVIAJE) WHERE ROWNUM <= ?";
+
+	private final int filasPorPagina;
+	private final int tamanoFetch;
+	private final int tamanoBuffer;
+
+	public ExportadorDatos() {
+		this(FILAS_POR_PAGINA, TAMANO_FETCH, TAMANO_BUFFER);
+	}
+
+	/**
+	 * Crea el exportador.
+	 *
+	 * @param filasPorPagina filas de cada consulta paginada
+	 * @param tamanoFetch    filas que trae el driver en cada viaje a la base de
+	 *                       datos
+	 * @param tamanoBuffer   bytes del buffer de escritura (al menos 1024)
+	 */
+	public ExportadorDatos(int filasPorPagina, int tamanoFetch, int tamanoBuffer) {
+		if (filasPorPagina < 1 || tamanoFetch < 1 || tamanoBuffer < TAMANO_BUFFER_MINIMO) {
+			throw new IllegalArgumentException("Parametros de exportacion no validos");
+		}
+		this.filasPorPagina = filasPorPagina;
+		this.tamanoFetch = tamanoFetch;
+		this.tamanoBuffer = tamanoBuffer;
+	}
+
+	/**
+	 * Exporta los tickets con {@code IDTICKET} mayor que {@code desde}.
+	 *
+	 * @param canal         canal de salida; no se cierra
+	 * @param formato       formato de salida
+	 * @param desde         ultima clave ya exportada, o 0 para empezar
+	 * @param paginaEscrita recibe la ultima clave de cada pagina cuando esta ya
+	 *                      se ha escrito en el canal; puede ser null
+	 * @return ultima clave exportada ({@code desde} si no habia filas)
+	 * @throws SQLException si hay un error con la base de datos
+	 * @throws IOException  si hay un error al escribir en el canal
+	 */
+	public long exportarTickets(WritableByteChannel canal, FormatoExportacion formato, long desde,
+			LongConsumer paginaEscrita) throws SQLException, IOException {
+		return exportar("exportarTickets", SELECT_TICKETS, COLUMNAS_TICKETS, TIPOS_TICKETS, canal, formato, desde,
+				paginaEscrita);
+	}
+
+	/**
+	 * Exporta la ocupacion de los viajes con {@code IDVIAJE} mayor que
+	 * {@code desde}: los datos del viaje, las plazas del modelo de tren y las
+	 * plazas vendidas en tickets.
+	 *
+	 * @see #exportarTickets(WritableByteChannel, FormatoExportacion, long,
+	 *      LongConsumer)
+	 */
+	public long exportarViajes(WritableByteChannel canal, FormatoExportacion formato, long desde,
+			LongConsumer paginaEscrita) throws SQLException, IOException {
+		return exportar("exportarViajes", SELECT_VIAJES, COLUMNAS_VIAJES, TIPOS_VIAJES, canal, formato, desde,
+				paginaEscrita);
+	}
+
+	private long exportar(String metodo, String sql, String[] nombres, TipoColumna[] tipos, WritableByteChannel canal,
+			FormatoExportacion formato, long desde, LongConsumer paginaEscrita) throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		try {
+			EscritorFilas escritor = EscritorFilas.crear(formato, canal, tamanoBuffer, nombres, tipos);
+			if (desde == 0) {
+				escritor.cabecera();
+			}
+			long[] valores = new long[nombres.length];
+			long ultima = desde;
+			int leidas;
+			do {
+				leidas = 0;
+				Connection con = PoolDeConexiones.getInstance().getConnection();
+				try (PreparedStatement st = con.prepareStatement(sql)) {
+					st.setFetchSize(tamanoFetch);
+					st.setLong(1, ultima);
+					st.setInt(2, filasPorPagina);
+					try (ResultSet rs = st.executeQuery()) {
+						while (rs.next()) {
+							leer(rs, tipos, valores);
+							escritor.fila(valores);
+							ultima = valores[0];
+							leidas++;
+						}
+					}
+					con.commit();
+				} catch (SQLException e) {
+					MetricasServicio.registrarError(e);
+					con.rollback();
+					throw e;
+				} finally {
+					con.close();
+				}
+				if (leidas > 0) {
+					escritor.vaciar();
+					if (paginaEscrita != null) paginaEscrita.accept(ultima);
+				}
+			} while (leidas == filasPorPagina);
+			escritor.terminar();
+			return ultima;
+		} finally {
+			MetricasServicio.registrarTransaccion(metodo, inicio);
+		}
+	}
+
+	// Lee la fila actual convirtiendo cada columna a long segun su tipo.
+	private static void leer(ResultSet rs, TipoColumna[] tipos, long[] valores) throws SQLException {
+		for (int i = 0; i < tipos.length; i++) {
+			switch (tipos[i]) {
+			case FECHA:
+				java.sql.Date fecha = rs.getDate(i + 1);
+				valores[i] = fecha == null ? 0 : fecha.toLocalDate().toEpochDay();
+				break;
+			case IMPORTE:
+				BigDecimal importe = rs.getBigDecimal(i + 1);
+				valores[i] = importe == null ? 0 : importe.movePointRight(2).longValue();
+				break;
+			default:
+				valores[i] = rs.getLong(i + 1);
+			}
+		}
+	}
+}
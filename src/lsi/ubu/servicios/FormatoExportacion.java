@@ -0,0 +1,9 @@
+package lsi.ubu.servicios;
+
+/**
+ * Formatos de salida de {@link ExportadorDatos}.
+ */
+public enum FormatoExportacion {
+	CSV, // Texto separado por comas con una linea de cabecera
+	COLUMNAR; // Binario por bloques de filas, cada columna codificada por diferencias
+}
@@ -0,0 +1,491 @@
+package lsi.ubu.servicios;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.RuedaTemporizadora;
+import lsi.ubu.util.metricas.MetricasServicio;
+
+/**
+ * Retenciones temporales de plazas: el comprador retiene plazas mientras paga y
+ * despues confirma la compra o las libera. Si no hace ninguna de las dos cosas
+ * la retencion caduca.
+ *
+ * <p>
+ * Para no escribir en la base de datos por cada retencion, el gestor descuenta
+ * de {@code viajes} un cupo de plazas de una vez (anotado en
+ * {@code cuposReserva}) y reparte las retenciones desde ese cupo en memoria.
+ * Liberar y caducar solo devuelven plazas al cupo; una tarea periodica
+ * devuelve a {@code viajes} las plazas del cupo que no estan retenidas, en
+ * una unica transaccion, y copia las retenciones activas a {@code reservas}.
+ * Las caducidades las entrega en bloque una {@link RuedaTemporizadora}.
+ *
+ * <p>
+ * Hay que llamar a {@link #iniciar()} antes de usarlo y a {@link #close()} al
+ * terminar. Las tablas {@code cuposReserva} y {@code reservas} son enteras del
+ * gestor iniciado, asi que solo puede haber uno iniciado a la vez.
+ */
+public class GestorReservas implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GestorReservas.class);
+
+	private static final long TICK_MS = 100;
+	private static final int RANURAS = 512;
+
+	private static final int ACTIVA = 0;
+	private static final int CONFIRMADA = 1;
+	private static final int LIBERADA = 2;
+
+	// Descuenta plazas del viaje para el cupo solo si quedan suficientes.
+	private static final String AMPLIAR_CUPO = "BEGIN "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - ? WHERE IDVIAJE = ? AND NPLAZASLIBRES >= ?; "
+			+ "? := SQL%ROWCOUNT; "
+			+ "IF SQL%ROWCOUNT = 1 THEN "
+			+ "MERGE INTO cuposReserva c USING dual ON (c.IDVIAJE = ?) "
+			+ "WHEN MATCHED THEN UPDATE SET c.PLAZAS = c.PLAZAS + ? "
+			+ "WHEN NOT MATCHED THEN INSERT VALUES (?, ?); "
+			+ "END IF; "
+			+ "END;";
+	// Alta del ticket con plazas que ya estaban descontadas en el cupo; la retencion deja de
+	// estar guardada en la misma transaccion.
+	private static final String CONFIRMAR = "BEGIN "
+			+ "INSERT INTO tickets VALUES (?, ?, CURRENT_DATE, ?, ?); "
+			+ "UPDATE cuposReserva SET PLAZAS = PLAZAS - ? WHERE IDVIAJE = ?; "
+			+ "DELETE FROM reservas WHERE IDRESERVA = ?; "
+			+ "END;";
+	private static final String DEVOLVER_PLAZAS = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = ?";
+	private static final String REDUCIR_CUPO = "UPDATE cuposReserva SET PLAZAS = PLAZAS - ? WHERE IDVIAJE = ?";
+	private static final String BORRAR_RESERVAS = "DELETE FROM reservas";
+	private static final String INSERT_RESERVA = "INSERT INTO reservas VALUES (?, ?, ?, ?)";
+	private static final String SELECT_CUPOS = "SELECT IDVIAJE, PLAZAS FROM cuposReserva";
+	private static final String SELECT_RESERVAS = "SELECT r.IDRESERVA, r.IDVIAJE, r.PLAZAS, r.CADUCA, b.PRECIO "
+			+ "FROM reservas r JOIN viajes a ON r.IDVIAJE = a.IDVIAJE "
+			+ "JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO ORDER BY r.IDRESERVA";
+
+	private final long duracionMs;
+	private final int tamanoCupo;
+	private final long intervaloPersistenciaMs;
+
+	private final Map<Integer, Cupo> cupos = new ConcurrentHashMap<>();
+	private final Map<Integer, Retencion> retenciones = new ConcurrentHashMap<>();
+	private final AtomicInteger ultimaRetencion = new AtomicInteger();
+	private final RuedaTemporizadora<Retencion> rueda = new RuedaTemporizadora<>(TICK_MS, RANURAS, System.nanoTime());
+	// Las confirmaciones en curso (lectura) excluyen la copia de las retenciones (escritura), para
+	// que una copia tomada antes de confirmar no vuelva a guardar la retencion confirmada.
+	private final ReentrantReadWriteLock copia = new ReentrantReadWriteLock();
+
+	/** Gestor iniciado, dueno de los cupos y las reservas guardadas. */
+	private static final AtomicReference<GestorReservas> INICIADO = new AtomicReference<>();
+
+	private ScheduledExecutorService planificador;
+
+	/**
+	 * Crea el gestor.
+	 *
+	 * @param duracionMs              milisegundos que dura una retencion
+	 * @param tamanoCupo              plazas que se descuentan de una vez de un
+	 *                                viaje cuando el cupo se queda corto
+	 * @param intervaloPersistenciaMs milisegundos entre devoluciones del cupo
+	 *                                sobrante y copias de las retenciones
+	 */
+	public GestorReservas(long duracionMs, int tamanoCupo, long intervaloPersistenciaMs) {
+		this.duracionMs = duracionMs;
+		this.tamanoCupo = tamanoCupo;
+		this.intervaloPersistenciaMs = intervaloPersistenciaMs;
+	}
+
+	/**
+	 * Recupera los cupos y las retenciones guardadas y arranca la caducidad y la
+	 * persistencia periodicas.
+	 *
+	 * @throws IllegalStateException si ya hay otro gestor iniciado
+	 * @throws SQLException          si hay un error con la base de datos
+	 */
+	public void iniciar() throws SQLException {
+		if (!INICIADO.compareAndSet(null, this)) {
+			throw new IllegalStateException("Ya hay un gestor de reservas iniciado");
+		}
+		try {
+			recuperar();
+		} catch (SQLException | RuntimeException e) {
+			INICIADO.set(null);
+			throw e;
+		}
+		planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "reservas");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		planificador.scheduleAtFixedRate(protegida("caducidad", () -> rueda.avanzar(System.nanoTime(), this::caducar)),
+				TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+		planificador.scheduleWithFixedDelay(protegida("persistencia", this::persistir), intervaloPersistenciaMs,
+				intervaloPersistenciaMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Retiene plazas de un viaje durante el tiempo configurado.
+	 *
+	 * @param hora      hora de salida
+	 * @param fecha     fecha del viaje
+	 * @param origen    estacion de origen
+	 * @param destino   estacion de destino
+	 * @param nroPlazas plazas a retener
+	 * @return identificador de la retencion
+	 * @throws CompraBilleteTrenException con NO_EXISTE_VIAJE o NO_PLAZAS
+	 * @throws SQLException               si hay un error con la base de datos
+	 */
+	public int retener(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		long inicio = System.nanoTime();
+		DatosViaje viaje;
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			viaje = CacheViajes.getInstance().resolver(con, hora, fecha, origen, destino);
+			Cupo cupo = cupos.computeIfAbsent(viaje.getIdViaje(), Cupo::new);
+			synchronized (cupo) {
+				if (cupo.libres < nroPlazas) {
+					ampliar(con, cupo, nroPlazas - cupo.libres);
+				}
+				cupo.libres -= nroPlazas;
+				cupo.retenidas += nroPlazas;
+			}
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			throw e;
+		} finally {
+			con.close();
+			MetricasServicio.registrarTransaccion("retener", inicio);
+		}
+
+		Retencion retencion = new Retencion(ultimaRetencion.incrementAndGet(), viaje.getIdViaje(), nroPlazas,
+				viaje.getPrecio(), System.currentTimeMillis() + duracionMs);
+		retenciones.put(retencion.id, retencion);
+		rueda.programar(retencion, retencion.vencimientoNanos());
+		return retencion.id;
+	}
+
+	/**
+	 * Convierte una retencion activa en un ticket.
+	 *
+	 * @param idRetencion retencion a confirmar
+	 * @return identificador del ticket
+	 * @throws CompraBilleteTrenException con NO_RETENCION si no existe, ya se
+	 *                                    confirmo o libero, o ha caducado
+	 * @throws SQLException               si hay un error con la base de datos;
+	 *                                    la retencion sigue activa
+	 */
+	public int confirmar(int idRetencion) throws SQLException {
+		long inicio = System.nanoTime();
+		Retencion retencion = retenciones.get(idRetencion);
+		if (retencion == null || !retencion.estado.compareAndSet(ACTIVA, CONFIRMADA)) {
+			CompraBilleteTrenException e = new CompraBilleteTrenException(CompraBilleteTrenException.NO_RETENCION);
+			MetricasServicio.registrarError(e);
+			throw e;
+		}
+
+		int idTicket;
+		copia.readLock().lock();
+		try {
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try (CallableStatement cst = con.prepareCall(CONFIRMAR)) {
+				idTicket = AsignadorTickets.getInstance().siguiente(con);
+				cst.setInt(1, idTicket);
+				cst.setInt(2, retencion.idViaje);
+				cst.setInt(3, retencion.plazas);
+				cst.setInt(4, retencion.precio * retencion.plazas);
+				cst.setInt(5, retencion.plazas);
+				cst.setInt(6, retencion.idViaje);
+				cst.setInt(7, retencion.id);
+				cst.execute();
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				// Sigue activa; si ha vencido mientras tanto, la rueda la caducara en el siguiente tick.
+				retencion.estado.set(ACTIVA);
+				rueda.programar(retencion, retencion.vencimientoNanos());
+				MetricasServicio.registrarError(e);
+				throw e;
+			} finally {
+				con.close();
+				MetricasServicio.registrarTransaccion("confirmar", inicio);
+			}
+		} finally {
+			copia.readLock().unlock();
+		}
+
+		retenciones.remove(idRetencion);
+		Cupo cupo = cupos.get(retencion.idViaje);
+		synchronized (cupo) {
+			cupo.retenidas -= retencion.plazas;
+		}
+		return idTicket;
+	}
+
+	/**
+	 * Libera una retencion activa. No escribe en la base de datos: las plazas
+	 * vuelven al cupo.
+	 *
+	 * @param idRetencion retencion a liberar
+	 * @throws CompraBilleteTrenException con NO_RETENCION si no existe, ya se
+	 *                                    confirmo o libero, o ha caducado
+	 */
+	public void liberar(int idRetencion) throws CompraBilleteTrenException {
+		Retencion retencion = retenciones.get(idRetencion);
+		if (retencion == null || !retencion.estado.compareAndSet(ACTIVA, LIBERADA)) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_RETENCION);
+		}
+		devolverAlCupo(retencion);
+	}
+
+	/**
+	 * @return numero de retenciones activas
+	 */
+	public int getActivas() {
+		return retenciones.size();
+	}
+
+	/**
+	 * Detiene las tareas periodicas y devuelve el cupo sobrante. Las retenciones
+	 * activas quedan guardadas para el siguiente {@link #iniciar()}. No hace nada
+	 * si el gestor no esta iniciado.
+	 */
+	@Override
+	public void close() {
+		if (INICIADO.get() != this) {
+			return;
+		}
+		if (planificador != null) {
+			planificador.shutdown();
+			try {
+				planificador.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		persistir();
+		INICIADO.compareAndSet(this, null);
+	}
+
+	// Una excepcion en una tarea periodica la cancelaria sin avisar: se registra y la tarea sigue.
+	private static Runnable protegida(String nombre, Runnable tarea) {
+		return () -> {
+			try {
+				tarea.run();
+			} catch (RuntimeException e) {
+				LOGGER.error("Error en la tarea de {} de las reservas", nombre, e);
+			}
+		};
+	}
+
+	// Retencion vencida entregada por la rueda.
+	private void caducar(Retencion retencion) {
+		if (retencion.estado.compareAndSet(ACTIVA, LIBERADA)) {
+			devolverAlCupo(retencion);
+		}
+	}
+
+	private void devolverAlCupo(Retencion retencion) {
+		retenciones.remove(retencion.id);
+		Cupo cupo = cupos.get(retencion.idViaje);
+		synchronized (cupo) {
+			cupo.retenidas -= retencion.plazas;
+			cupo.libres += retencion.plazas;
+		}
+	}
+
+	// Descuenta mas plazas del viaje para el cupo: un cupo completo si quedan, o solo las
+	// que faltan. Se llama con el cupo bloqueado.
+	private void ampliar(Connection con, Cupo cupo, int faltan) throws SQLException {
+		try (CallableStatement cst = con.prepareCall(AMPLIAR_CUPO)) {
+			int plazas = Math.max(faltan, tamanoCupo);
+			boolean descontadas = descontar(cst, cupo.idViaje, plazas);
+			if (!descontadas && plazas > faltan) {
+				plazas = faltan;
+				descontadas = descontar(cst, cupo.idViaje, plazas);
+			}
+			if (!descontadas) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			}
+			long secuencia = EventosServicio.confirmar(con::commit);
+			cupo.libres += plazas;
+			EventosServicio.plazasCambiadas(secuencia, cupo.idViaje, -plazas);
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+	}
+
+	private static boolean descontar(CallableStatement cst, int idViaje, int plazas) throws SQLException {
+		cst.setInt(1, plazas);
+		cst.setInt(2, idViaje);
+		cst.setInt(3, plazas);
+		cst.registerOutParameter(4, Types.INTEGER);
+		cst.setInt(5, idViaje);
+		cst.setInt(6, plazas);
+		cst.setInt(7, idViaje);
+		cst.setInt(8, plazas);
+		cst.execute();
+		return cst.getInt(4) == 1;
+	}
+
+	// Devuelve a viajes las plazas del cupo que no estan retenidas y copia las retenciones
+	// activas, todo en una transaccion.
+	private synchronized void persistir() {
+		Map<Cupo, Integer> sobrantes = new HashMap<>();
+		for (Cupo cupo : cupos.values()) {
+			synchronized (cupo) {
+				if (cupo.libres > 0) {
+					sobrantes.put(cupo, cupo.libres);
+					cupo.libres = 0;
+				}
+			}
+		}
+
+		List<Retencion> activas = new ArrayList<>();
+		long secuencia;
+		copia.writeLock().lock();
+		try {
+			for (Retencion r : retenciones.values()) {
+				if (r.estado.get() == ACTIVA) {
+					activas.add(r);
+				}
+			}
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try (PreparedStatement plazas = con.prepareStatement(DEVOLVER_PLAZAS);
+					PreparedStatement cupo = con.prepareStatement(REDUCIR_CUPO);
+					PreparedStatement borrar = con.prepareStatement(BORRAR_RESERVAS);
+					PreparedStatement insertar = con.prepareStatement(INSERT_RESERVA)) {
+				for (Map.Entry<Cupo, Integer> e : sobrantes.entrySet()) {
+					plazas.setInt(1, e.getValue());
+					plazas.setInt(2, e.getKey().idViaje);
+					plazas.addBatch();
+					cupo.setInt(1, e.getValue());
+					cupo.setInt(2, e.getKey().idViaje);
+					cupo.addBatch();
+				}
+				for (Retencion r : activas) {
+					insertar.setInt(1, r.id);
+					insertar.setInt(2, r.idViaje);
+					insertar.setInt(3, r.plazas);
+					insertar.setTimestamp(4, new Timestamp(r.caducaMs));
+					insertar.addBatch();
+				}
+				plazas.executeBatch();
+				cupo.executeBatch();
+				borrar.executeUpdate();
+				insertar.executeBatch();
+				secuencia = EventosServicio.confirmar(con::commit);
+			} catch (SQLException | RuntimeException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.close();
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.error("Error guardando las reservas, se reintentara: {}", e.toString());
+			for (Map.Entry<Cupo, Integer> e2 : sobrantes.entrySet()) {
+				synchronized (e2.getKey()) {
+					e2.getKey().libres += e2.getValue();
+				}
+			}
+			return;
+		} finally {
+			copia.writeLock().unlock();
+		}
+
+		for (Map.Entry<Cupo, Integer> e : sobrantes.entrySet()) {
+			EventosServicio.plazasCambiadas(secuencia, e.getKey().idViaje, e.getValue());
+		}
+		LOGGER.debug("Devueltas plazas de {} cupos y guardadas {} retenciones", sobrantes.size(), activas.size());
+	}
+
+	// Reconstruye los cupos y las retenciones que siguen vigentes a partir de lo guardado.
+	// Las caducadas se descartan y sus plazas quedan libres en el cupo.
+	private void recuperar() throws SQLException {
+		long ahora = System.currentTimeMillis();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement stCupos = con.prepareStatement(SELECT_CUPOS);
+				PreparedStatement stReservas = con.prepareStatement(SELECT_RESERVAS)) {
+			try (ResultSet rs = stCupos.executeQuery()) {
+				while (rs.next()) {
+					Cupo cupo = new Cupo(rs.getInt(1));
+					cupo.libres = rs.getInt(2);
+					cupos.put(cupo.idViaje, cupo);
+				}
+			}
+			try (ResultSet rs = stReservas.executeQuery()) {
+				while (rs.next()) {
+					Retencion r = new Retencion(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(5),
+							rs.getTimestamp(4).getTime());
+					ultimaRetencion.accumulateAndGet(r.id, Math::max);
+					Cupo cupo = cupos.get(r.idViaje);
+					if (r.caducaMs <= ahora || cupo == null) {
+						continue;
+					}
+					cupo.libres -= r.plazas;
+					cupo.retenidas += r.plazas;
+					retenciones.put(r.id, r);
+					rueda.programar(r, r.vencimientoNanos());
+				}
+			}
+			con.commit();
+		} finally {
+			con.close();
+		}
+		LOGGER.info("Recuperadas {} retenciones en {} cupos", retenciones.size(), cupos.size());
+	}
+
+	// Plazas descontadas de un viaje por el gestor.
+	private static final class Cupo {
+		final int idViaje;
+		int libres;
+		int retenidas;
+
+		Cupo(int idViaje) {
+			this.idViaje = idViaje;
+		}
+	}
+
+	private static final class Retencion {
+		final int id;
+		final int idViaje;
+		final int plazas;
+		final int precio;
+		final long caducaMs;
+		final AtomicInteger estado = new AtomicInteger(ACTIVA);
+
+		Retencion(int id, int idViaje, int plazas, int precio, long caducaMs) {
+			this.id = id;
+			this.idViaje = idViaje;
+			this.plazas = plazas;
+			this.precio = precio;
+			this.caducaMs = caducaMs;
+		}
+
+		long vencimientoNanos() {
+			return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(caducaMs - System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Indice en memoria de las salidas por par de estaciones y fecha, con sus
+ * plazas libres. Se carga de la base de datos en la primera busqueda y despues
+ * se mantiene con los cambios de plazas que notifica el servicio, de modo que
+ * las busquedas no consultan la base de datos.
+ *
+ * <p>
+ * Un cambio confirmado antes de la consulta de carga pero notificado mientras
+ * se carga se cuenta dos veces, porque los avisos no dicen en que momento se
+ * confirmo el cambio. Para corregirlo, y para recoger los cambios que no pasan
+ * por el servicio, un temporizador vuelve a cargar el indice cada
+ * {@value #INTERVALO_RECONCILIACION_MS} ms mientras se sigue usando el
+ * anterior.
+ *
+ * <p>
+ * Se descarta automaticamente cuando {@link ExecuteScript} recarga las tablas;
+ * si {@code viajes} o {@code recorridos} se modifican por otra via y no se
+ * puede esperar a la siguiente reconciliacion hay que llamar a
+ * {@link #invalidar()}.
+ */
+public class IndiceDisponibilidad implements OyenteServicio {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndiceDisponibilidad.class);
+
+	private static final long INTERVALO_RECONCILIACION_MS = 60_000;
+
+	private static final String SELECT_SALIDAS = "SELECT a.IDVIAJE, b.ESTACIONORIGEN, b.ESTACIONDESTINO, a.FECHA, "
+			+ "to_char(b.horaSalida, 'HH24:MI'), "
+			+ "a.NPLAZASLIBRES + NVL((SELECT SUM(c.PLAZAS) FROM viajesCubetas c WHERE c.IDVIAJE = a.IDVIAJE), 0), "
+			+ "b.PRECIO "
+			+ "FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO";
+
+	private static final IndiceDisponibilidad INSTANCIA = new IndiceDisponibilidad();
+
+	/** Indice vigente, null si hay que cargarlo. */
+	private volatile Mapa mapa;
+
+	/** Cambios recibidos mientras se carga el indice, null si no hay carga en curso. */
+	private volatile List<int[]> cambiosDuranteCarga;
+
+	private IndiceDisponibilidad() {
+		EventosServicio.suscribir(this);
+		ExecuteScript.alRecargar(this::invalidar);
+		ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "indice-disponibilidad");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		temporizador.scheduleWithFixedDelay(this::reconciliarPeriodicamente, INTERVALO_RECONCILIACION_MS,
+				INTERVALO_RECONCILIACION_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static IndiceDisponibilidad getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Busca las salidas con plazas libres entre dos estaciones en un rango de
+	 * fechas.
+	 *
+	 * @param origen  estacion de origen
+	 * @param destino estacion de destino
+	 * @param desde   primera fecha, incluida
+	 * @param hasta   ultima fecha, incluida
+	 * @return salidas ordenadas por fecha y hora
+	 * @throws SQLException si hay que cargar el indice y falla la base de datos
+	 */
+	public List<Salida> buscar(String origen, String destino, java.util.Date desde, java.util.Date hasta)
+			throws SQLException {
+		TreeMap<LocalDate, List<SalidaIndexada>> porFecha = mapa().porEstaciones.get(new ParEstaciones(origen, destino));
+		List<Salida> salidas = new ArrayList<>();
+		if (porFecha == null) {
+			return salidas;
+		}
+		LocalDate primera = aFecha(desde);
+		LocalDate ultima = aFecha(hasta);
+		if (primera.isAfter(ultima)) {
+			return salidas;
+		}
+		for (List<SalidaIndexada> delDia : porFecha.subMap(primera, true, ultima, true).values()) {
+			for (SalidaIndexada s : delDia) {
+				int libres = s.plazasLibres.get();
+				if (libres > 0) {
+					salidas.add(new Salida(s.idViaje, origen, destino, s.fecha, s.hora, libres, s.precio));
+				}
+			}
+		}
+		return salidas;
+	}
+
+	/**
+	 * Vuelve a cargar el indice de la base de datos. Las busquedas siguen usando
+	 * el anterior hasta que termina la carga.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void reconciliar() throws SQLException {
+		cargar(true);
+	}
+
+	/**
+	 * Descarta el indice; se volvera a cargar en la siguiente busqueda.
+	 */
+	public void invalidar() {
+		mapa = null;
+	}
+
+	@Override
+	public void plazasCambiadas(int idViaje, int variacion) {
+		// Durante una reconciliacion el cambio va al indice vigente y al que se esta cargando.
+		List<int[]> cambios = cambiosDuranteCarga;
+		if (cambios != null) {
+			synchronized (cambios) {
+				if (cambiosDuranteCarga == cambios) {
+					cambios.add(new int[] { idViaje, variacion });
+				}
+			}
+		}
+		Mapa actual = mapa;
+		if (actual != null) {
+			actual.aplicar(idViaje, variacion);
+		}
+	}
+
+	private Mapa mapa() throws SQLException {
+		Mapa actual = mapa;
+		return actual != null ? actual : cargar(false);
+	}
+
+	// Carga el indice. Los cambios que llegan durante la carga se guardan y se aplican al
+	// nuevo indice antes de publicarlo; los confirmados antes de la consulta ya estan en ella y
+	// se cuentan dos veces hasta la siguiente reconciliacion.
+	private synchronized Mapa cargar(boolean forzar) throws SQLException {
+		Mapa vigente = mapa;
+		if (vigente != null && !forzar) {
+			return vigente;
+		}
+		List<int[]> cambios = new ArrayList<>();
+		cambiosDuranteCarga = cambios;
+		try {
+			Mapa nuevo = new Mapa();
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try (PreparedStatement st = con.prepareStatement(SELECT_SALIDAS); ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					nuevo.anadir(new SalidaIndexada(rs.getInt(1), rs.getDate(4),
+							Time.valueOf(rs.getString(5) + ":00"), rs.getInt(6), rs.getInt(7)), rs.getString(2),
+							rs.getString(3));
+				}
+				con.commit();
+			} finally {
+				con.close();
+			}
+			synchronized (cambios) {
+				for (int[] cambio : cambios) {
+					nuevo.aplicar(cambio[0], cambio[1]);
+				}
+				mapa = nuevo;
+				return nuevo;
+			}
+		} finally {
+			cambiosDuranteCarga = null;
+		}
+	}
+
+	private void reconciliarPeriodicamente() {
+		if (mapa == null) {// nadie ha buscado desde la ultima recarga
+			return;
+		}
+		try {
+			cargar(true);
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.warn("No se ha podido reconciliar el indice de salidas: {}", e.getMessage());
+		}
+	}
+
+	private static LocalDate aFecha(java.util.Date fecha) {
+		return fecha instanceof java.sql.Date ? ((java.sql.Date) fecha).toLocalDate()
+				: new java.sql.Date(fecha.getTime()).toLocalDate();
+	}
+
+	// Estructura del indice. Solo cambian las plazas libres de cada salida.
+	private static final class Mapa {
+		final Map<ParEstaciones, TreeMap<LocalDate, List<SalidaIndexada>>> porEstaciones = new HashMap<>();
+		final Map<Integer, SalidaIndexada> porViaje = new HashMap<>();
+
+		void anadir(SalidaIndexada s, String origen, String destino) {
+			List<SalidaIndexada> delDia = porEstaciones.computeIfAbsent(new ParEstaciones(origen, destino),
+					p -> new TreeMap<>()).computeIfAbsent(s.fecha.toLocalDate(), f -> new ArrayList<>());
+			int i = delDia.size();
+			while (i > 0 && delDia.get(i - 1).hora.after(s.hora)) {
+				i--;
+			}
+			delDia.add(i, s);
+			porViaje.put(s.idViaje, s);
+		}
+
+		void aplicar(int idViaje, int variacion) {
+			SalidaIndexada s = porViaje.get(idViaje);
+			if (s != null) {
+				s.plazasLibres.addAndGet(variacion);
+			}
+		}
+	}
+
+	private static final class SalidaIndexada {
+		final int idViaje;
+		final java.sql.Date fecha;
+		final Time hora;
+		final int precio;
+		final AtomicInteger plazasLibres;
+
+		SalidaIndexada(int idViaje, java.sql.Date fecha, Time hora, int plazasLibres, int precio) {
+			this.idViaje = idViaje;
+			this.fecha = fecha;
+			this.hora = hora;
+			this.precio = precio;
+			this.plazasLibres = new AtomicInteger(plazasLibres);
+		}
+	}
+
+	private static final class ParEstaciones {
+		final String origen;
+		final String destino;
+
+		ParEstaciones(String origen, String destino) {
+			this.origen = origen;
+			this.destino = destino;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ParEstaciones)) {
+				return false;
+			}
+			ParEstaciones otro = (ParEstaciones) o;
+			return origen.equals(otro.origen) && destino.equals(otro.destino);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(origen, destino);
+		}
+	}
+}
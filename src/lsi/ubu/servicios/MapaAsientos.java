@@ -0,0 +1,163 @@
+package lsi.ubu.servicios;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Mapa de bits de los asientos de un viaje, un bit por asiento (1 = ocupado),
+ * en palabras de 64 bits. Las busquedas recorren palabra a palabra y las
+ * reservas marcan los bits con compare-and-set, sin bloqueos: si otro hilo
+ * ocupa alguno de los asientos encontrados entre la busqueda y el marcado, se
+ * deshace lo marcado y se vuelve a buscar.
+ *
+ * <p>
+ * Los asientos se numeran desde 0; los bits de la ultima palabra que sobran
+ * por encima de la capacidad se crean ocupados para no tener que
+ * enmascararlos al buscar.
+ */
+final class MapaAsientos {
+
+	private final int capacidad;
+	private final AtomicLongArray palabras;
+
+	MapaAsientos(int capacidad) {
+		this.capacidad = capacidad;
+		this.palabras = new AtomicLongArray((capacidad + 63) >>> 6);
+		if ((capacidad & 63) != 0) {
+			palabras.set(palabras.length() - 1, -1L << (capacidad & 63));
+		}
+	}
+
+	int getCapacidad() {
+		return capacidad;
+	}
+
+	/**
+	 * Reserva asientos contiguos, los primeros que haya libres.
+	 *
+	 * @param n asientos a reservar, al menos 1
+	 * @return primer asiento reservado, o -1 si no hay n asientos libres
+	 *         seguidos
+	 */
+	int reservar(int n) {
+		if (n < 1 || n > capacidad) {
+			return -1;
+		}
+		for (;;) {
+			int inicio = buscar(n);
+			if (inicio < 0 || marcar(inicio, n)) {
+				return inicio;
+			}
+		}
+	}
+
+	/**
+	 * Libera asientos contiguos reservados antes.
+	 */
+	void liberar(int inicio, int n) {
+		int fin = inicio + n;
+		for (int i = inicio >>> 6; i <= (fin - 1) >>> 6; i++) {
+			long mascara = mascara(i, inicio, fin);
+			palabras.getAndUpdate(i, w -> w & ~mascara);
+		}
+	}
+
+	/**
+	 * Marca un asiento como ocupado, al cargar el mapa desde la base de datos.
+	 */
+	void ocupar(int asiento) {
+		palabras.getAndUpdate(asiento >>> 6, w -> w | 1L << asiento);
+	}
+
+	/**
+	 * @return asientos libres en este momento
+	 */
+	int libres() {
+		int libres = 0;
+		for (int i = 0; i < palabras.length(); i++) {
+			libres += Long.bitCount(~palabras.get(i));
+		}
+		return libres;
+	}
+
+	// Primer asiento de la primera racha de n asientos libres, o -1. Una racha puede empezar en los
+	// bits altos de una palabra y seguir en las siguientes, asi que se arrastra su longitud.
+	private int buscar(int n) {
+		int racha = 0;
+		int inicioRacha = 0;
+		for (int i = 0; i < palabras.length(); i++) {
+			long libres = ~palabras.get(i);
+			if (libres == -1L) {
+				if (racha == 0) {
+					inicioRacha = i << 6;
+				}
+				racha += 64;
+				if (racha >= n) {
+					return inicioRacha;
+				}
+				continue;
+			}
+			if (libres == 0) {
+				racha = 0;
+				continue;
+			}
+			int bajos = Long.numberOfTrailingZeros(~libres);
+			if (racha + bajos >= n) {
+				return racha == 0 ? i << 6 : inicioRacha;
+			}
+			if (n <= 64) {
+				long dentro = rachas(libres, n);
+				if (dentro != 0) {
+					return (i << 6) + Long.numberOfTrailingZeros(dentro);
+				}
+			}
+			racha = Long.numberOfLeadingZeros(~libres);
+			inicioRacha = ((i + 1) << 6) - racha;
+		}
+		return -1;
+	}
+
+	// Bits en los que empieza una racha de n bits a 1 de x, duplicando la longitud comprobada en
+	// cada paso: log2(n) desplazamientos en lugar de n.
+	private static long rachas(long x, int n) {
+		long m = x;
+		int s = 1;
+		while (s < n) {
+			int paso = Math.min(s, n - s);
+			m &= m >>> paso;
+			s += paso;
+		}
+		return m;
+	}
+
+	// Marca [inicio, inicio + n) palabra a palabra; si alguna ya tiene ocupado algun bit del rango,
+	// libera las palabras marcadas y falla.
+	private boolean marcar(int inicio, int n) {
+		int fin = inicio + n;
+		int primera = inicio >>> 6;
+		int ultima = (fin - 1) >>> 6;
+		for (int i = primera; i <= ultima; i++) {
+			long mascara = mascara(i, inicio, fin);
+			for (;;) {
+				long w = palabras.get(i);
+				if ((w & mascara) != 0) {
+					if (i > primera) {
+						liberar(inicio, Math.min(fin, i << 6) - inicio);
+					}
+					return false;
+				}
+				if (palabras.compareAndSet(i, w, w | mascara)) {
+					break;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Bits de la palabra i que caen dentro de [inicio, fin).
+	private static long mascara(int i, int inicio, int fin) {
+		int desde = Math.max(inicio - (i << 6), 0);
+		int hasta = Math.min(fin - (i << 6), 64);
+		long alto = hasta == 64 ? -1L : (1L << hasta) - 1;
+		return alto & (-1L << desde);
+	}
+}
@@ -0,0 +1,9 @@
+package lsi.ubu.servicios;
+
+/**
+ * Comportamiento de una compra por lotes cuando alguna de sus compras falla.
+ */
+public enum ModoLote {
+	TODO_O_NADA, // Si falla una compra no se realiza ninguna
+	MEJOR_ESFUERZO; // Se realizan las compras posibles y se informa de las que fallan
+}
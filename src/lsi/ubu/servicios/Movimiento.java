@@ -0,0 +1,78 @@
+package lsi.ubu.servicios;
+
+/**
+ * Compra o anulacion decidida en memoria y pendiente de volcar a la base de
+ * datos. Se serializa como una linea de texto en el diario de recuperacion.
+ */
+final class Movimiento {
+
+	static final char COMPRA = 'C';
+	static final char ANULACION = 'A';
+
+	final char tipo;
+	final int idTicket;
+	final int idViaje;
+	final int plazas;
+	// Compra: precio total y dia de compra. Anulacion: cantidad del ticket antes y despues.
+	final int valor1;
+	final long valor2;
+
+	/** Numero de orden en el diario, asignado al registrarlo. */
+	long secuencia;
+
+	private Movimiento(char tipo, int idTicket, int idViaje, int plazas, int valor1, long valor2) {
+		this.tipo = tipo;
+		this.idTicket = idTicket;
+		this.idViaje = idViaje;
+		this.plazas = plazas;
+		this.valor1 = valor1;
+		this.valor2 = valor2;
+	}
+
+	static Movimiento compra(int idTicket, int idViaje, int plazas, int precioTotal, long diaCompra) {
+		return new Movimiento(COMPRA, idTicket, idViaje, plazas, precioTotal, diaCompra);
+	}
+
+	static Movimiento anulacion(int idTicket, int idViaje, int plazas, int cantidadAntes, int cantidadDespues) {
+		return new Movimiento(ANULACION, idTicket, idViaje, plazas, cantidadAntes, cantidadDespues);
+	}
+
+	boolean esCompra() {
+		return tipo == COMPRA;
+	}
+
+	int precioTotal() {
+		return valor1;
+	}
+
+	long diaCompra() {
+		return valor2;
+	}
+
+	int cantidadAntes() {
+		return valor1;
+	}
+
+	int cantidadDespues() {
+		return (int) valor2;
+	}
+
+	String aLinea() {
+		return tipo + ";" + secuencia + ";" + idTicket + ";" + idViaje + ";" + plazas + ";" + valor1 + ";" + valor2;
+	}
+
+	/**
+	 * @throws IllegalArgumentException si la linea no es un movimiento completo
+	 */
+	static Movimiento deLinea(String linea) {
+		String[] campos = linea.split(";", -1);
+		if (campos.length != 7 || campos[0].length() != 1
+				|| campos[0].charAt(0) != COMPRA && campos[0].charAt(0) != ANULACION) {
+			throw new IllegalArgumentException("Movimiento mal formado");
+		}
+		Movimiento m = new Movimiento(campos[0].charAt(0), Integer.parseInt(campos[2]), Integer.parseInt(campos[3]),
+				Integer.parseInt(campos[4]), Integer.parseInt(campos[5]), Long.parseLong(campos[6]));
+		m.secuencia = Long.parseLong(campos[1]);
+		return m;
+	}
+}
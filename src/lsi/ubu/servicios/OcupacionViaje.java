@@ -0,0 +1,60 @@
+package lsi.ubu.servicios;
+
+/**
+ * Ocupacion de un viaje en una instantanea de {@link PanelOcupacion}: las
+ * plazas del modelo del tren y las que quedan libres. Las ocupadas incluyen
+ * las vendidas y las retenidas por el gestor de reservas.
+ */
+public final class OcupacionViaje {
+
+	private final int idViaje;
+	private final java.sql.Date fecha;
+	private final int capacidad;
+	private final int plazasLibres;
+
+	OcupacionViaje(int idViaje, java.sql.Date fecha, int capacidad, int plazasLibres) {
+		this.idViaje = idViaje;
+		this.fecha = fecha;
+		this.capacidad = capacidad;
+		this.plazasLibres = plazasLibres;
+	}
+
+	public int getIdViaje() {
+		return idViaje;
+	}
+
+	public java.util.Date getFecha() {
+		return fecha;
+	}
+
+	/**
+	 * @return plazas del modelo del tren
+	 */
+	public int getCapacidad() {
+		return capacidad;
+	}
+
+	public int getPlazasLibres() {
+		return plazasLibres;
+	}
+
+	public int getPlazasOcupadas() {
+		return capacidad - plazasLibres;
+	}
+
+	/**
+	 * @return plazas ocupadas sobre la capacidad, entre 0 y 100
+	 */
+	public double getPorcentaje() {
+		return capacidad == 0 ? 0 : 100.0 * getPlazasOcupadas() / capacidad;
+	}
+
+	OcupacionViaje conVariacion(int variacion) {
+		return new OcupacionViaje(idViaje, fecha, capacidad, plazasLibres + variacion);
+	}
+
+	@Override
+	public String toString() {
+		return "viaje " + idViaje + " " + fecha + " (" + getPlazasOcupadas() + "/" + capacidad + " plazas ocupadas)";
+	}
+}
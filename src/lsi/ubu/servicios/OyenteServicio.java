@@ -0,0 +1,34 @@
+package lsi.ubu.servicios;
+
+/**
+ * Recibe los cambios de plazas libres que confirma el servicio. Se suscribe con
+ * {@link EventosServicio#suscribir(OyenteServicio)}.
+ *
+ * <p>
+ * Se llama desde el hilo que ha hecho la compra o la anulacion, despues del
+ * commit: debe ser rapido y no lanzar excepciones.
+ */
+public interface OyenteServicio {
+
+	/**
+	 * Han cambiado las plazas libres de un viaje.
+	 *
+	 * @param idViaje   viaje afectado
+	 * @param variacion plazas libres ganadas (positivo, anulacion) o perdidas
+	 *                  (negativo, compra)
+	 */
+	void plazasCambiadas(int idViaje, int variacion);
+
+	/**
+	 * Han cambiado las plazas libres de un viaje, con la secuencia de la
+	 * confirmacion (ver {@link EventosServicio}). Por defecto la secuencia se
+	 * ignora.
+	 *
+	 * @param secuencia secuencia de la confirmacion del cambio
+	 * @param idViaje   viaje afectado
+	 * @param variacion plazas libres ganadas o perdidas
+	 */
+	default void plazasCambiadas(long secuencia, int idViaje, int variacion) {
+		plazasCambiadas(idViaje, variacion);
+	}
+}
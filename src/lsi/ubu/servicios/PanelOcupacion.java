@@ -0,0 +1,241 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Ocupacion de los viajes de hoy en adelante para el panel de operaciones,
+ * sin consultar la base de datos en cada lectura.
+ *
+ * <p>
+ * Las lecturas devuelven una {@link Instantanea} inmutable, publicada en un
+ * campo volatil: no toman bloqueos y ven todos los viajes en el mismo momento.
+ * Los cambios de plazas que notifica el servicio solo se encolan; la siguiente
+ * lectura que encuentra cambios pendientes copia la instantanea, les aplica
+ * todos los de la cola y publica la copia. Si otra lectura ya la esta
+ * copiando, se devuelve la vigente sin esperar.
+ *
+ * <p>
+ * La primera lectura carga la instantanea de {@code viajes} y
+ * {@code modelos}, y un temporizador la vuelve a cargar entera cada
+ * {@value #INTERVALO_RECONCILIACION_MS} ms para corregir los cambios que no
+ * pasan por el servicio y los viajes nuevos. La consulta de la carga se lanza
+ * con {@link EventosServicio#consultar(EventosServicio.Consulta, long[])}: los
+ * cambios notificados con una secuencia que no pasa de la suya ya estan en
+ * ella y se descartan, aunque se notifiquen despues de la carga. Se descarta
+ * automaticamente cuando {@link ExecuteScript} recarga las tablas.
+ */
+public class PanelOcupacion implements OyenteServicio {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PanelOcupacion.class);
+
+	private static final long INTERVALO_RECONCILIACION_MS = 60_000;
+
+	// Las plazas libres de un viaje repartido en cubetas son las de viajes mas las de sus cubetas.
+	private static final String SELECT_OCUPACION = "SELECT v.IDVIAJE, v.FECHA, m.NPLAZAS, "
+			+ "v.NPLAZASLIBRES + NVL((SELECT SUM(c.PLAZAS) FROM viajesCubetas c WHERE c.IDVIAJE = v.IDVIAJE), 0) "
+			+ "FROM viajes v JOIN trenes t ON v.IDTREN = t.IDTREN JOIN modelos m ON t.MODELO = m.IDMODELO "
+			+ "WHERE v.FECHA >= TRUNC(CURRENT_DATE)";
+
+	private static final PanelOcupacion INSTANCIA = new PanelOcupacion();
+
+	/** Instantanea vigente, null si hay que cargarla. */
+	private volatile Instantanea actual;
+
+	/** Cambios de plazas (secuencia, viaje, variacion) aun no aplicados a la instantanea vigente. */
+	private final ConcurrentLinkedQueue<long[]> pendientes = new ConcurrentLinkedQueue<>();
+
+	/** Lo toma quien copia o carga la instantanea. */
+	private final ReentrantLock escritura = new ReentrantLock();
+
+	private PanelOcupacion() {
+		EventosServicio.suscribir(this);
+		ExecuteScript.alRecargar(this::invalidar);
+		ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "panel-ocupacion");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		temporizador.scheduleWithFixedDelay(this::reconciliarPeriodicamente, INTERVALO_RECONCILIACION_MS,
+				INTERVALO_RECONCILIACION_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static PanelOcupacion getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Ocupacion de los viajes inmutable en un momento dado.
+	 */
+	public static final class Instantanea {
+		private final Map<Integer, OcupacionViaje> viajes;
+		private final long version;
+		// Ultima secuencia de cambio que ya estaba en la consulta de la carga.
+		private final long secuencia;
+
+		Instantanea(Map<Integer, OcupacionViaje> viajes, long version, long secuencia) {
+			this.viajes = Collections.unmodifiableMap(viajes);
+			this.version = version;
+			this.secuencia = secuencia;
+		}
+
+		/**
+		 * @return ocupacion del viaje, o null si no es de hoy en adelante
+		 */
+		public OcupacionViaje getViaje(int idViaje) {
+			return viajes.get(idViaje);
+		}
+
+		/**
+		 * @return ocupacion de todos los viajes, ordenados por fecha
+		 */
+		public List<OcupacionViaje> getViajes() {
+			List<OcupacionViaje> lista = new ArrayList<>(viajes.values());
+			lista.sort((a, b) -> a.getFecha().compareTo(b.getFecha()));
+			return lista;
+		}
+
+		/**
+		 * @return numero que crece con cada instantanea publicada
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * Devuelve la ocupacion de los viajes, con los cambios notificados hasta
+	 * ahora salvo que otra lectura los este aplicando en este momento.
+	 *
+	 * @return instantanea de la ocupacion
+	 * @throws SQLException si hay que cargarla y falla la base de datos
+	 */
+	public Instantanea instantanea() throws SQLException {
+		Instantanea vigente = actual;
+		if (vigente == null) {
+			return cargar(false);
+		}
+		if (pendientes.isEmpty() || !escritura.tryLock()) {
+			return vigente;
+		}
+		try {
+			vigente = actual;
+			if (vigente == null) {
+				return cargar(false);
+			}
+			Map<Integer, OcupacionViaje> copia = null;
+			for (long[] cambio; (cambio = pendientes.poll()) != null;) {
+				if (cambio[0] <= vigente.secuencia) {// ya estaba en la carga
+					continue;
+				}
+				int idViaje = (int) cambio[1];
+				OcupacionViaje viaje = (copia == null ? vigente.viajes : copia).get(idViaje);
+				if (viaje != null) {
+					if (copia == null) {
+						copia = new HashMap<>(vigente.viajes);
+					}
+					copia.put(idViaje, viaje.conVariacion((int) cambio[2]));
+				}
+			}
+			if (copia != null) {
+				vigente = new Instantanea(copia, vigente.version + 1, vigente.secuencia);
+				actual = vigente;
+			}
+			return vigente;
+		} finally {
+			escritura.unlock();
+		}
+	}
+
+	/**
+	 * Vuelve a cargar la instantanea entera de la base de datos.
+	 *
+	 * @return instantanea cargada
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Instantanea reconciliar() throws SQLException {
+		return cargar(true);
+	}
+
+	/**
+	 * Descarta la instantanea; se volvera a cargar en la siguiente lectura.
+	 */
+	public void invalidar() {
+		actual = null;
+		pendientes.clear();
+	}
+
+	@Override
+	public void plazasCambiadas(int idViaje, int variacion) {
+		// Un aviso sin secuencia no se sabe si esta en la carga: se aplica siempre.
+		plazasCambiadas(Long.MAX_VALUE, idViaje, variacion);
+	}
+
+	@Override
+	public void plazasCambiadas(long secuencia, int idViaje, int variacion) {
+		// Sin instantanea ni carga en curso no hay a que aplicarlos: la carga los vera en la base de datos.
+		if (actual != null || escritura.isLocked()) {
+			pendientes.add(new long[] { secuencia, idViaje, variacion });
+		}
+	}
+
+	// Carga la instantanea de la base de datos. Los cambios con secuencia hasta la de la consulta
+	// ya estan en ella; los posteriores se aplican en la siguiente lectura.
+	private Instantanea cargar(boolean forzar) throws SQLException {
+		escritura.lock();
+		try {
+			Instantanea vigente = actual;
+			if (vigente != null && !forzar) {
+				return vigente;
+			}
+			Map<Integer, OcupacionViaje> viajes = new HashMap<>();
+			long[] secuencia = new long[1];
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try (PreparedStatement st = con.prepareStatement(SELECT_OCUPACION);
+					ResultSet rs = EventosServicio.consultar(st::executeQuery, secuencia)) {
+				while (rs.next()) {
+					int idViaje = rs.getInt(1);
+					viajes.put(idViaje, new OcupacionViaje(idViaje, rs.getDate(2), rs.getInt(3), rs.getInt(4)));
+				}
+				con.commit();
+			} finally {
+				con.close();
+			}
+			pendientes.removeIf(cambio -> cambio[0] <= secuencia[0]);
+			Instantanea nueva = new Instantanea(viajes, vigente == null ? 1 : vigente.version + 1, secuencia[0]);
+			actual = nueva;
+			return nueva;
+		} finally {
+			escritura.unlock();
+		}
+	}
+
+	private void reconciliarPeriodicamente() {
+		if (actual == null) {// nadie ha leido el panel desde la ultima recarga
+			return;
+		}
+		try {
+			cargar(true);
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.warn("No se ha podido reconciliar la ocupacion: {}", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Comprobacion de los planes de ejecucion de las consultas del servicio que
+ * dependen de un indice. Con {@code EXPLAIN PLAN} se obtiene el plan de cada
+ * consulta y se verifica que accede a cada tabla por el indice esperado y no
+ * recorriendola entera, de modo que un cambio en el esquema o en el texto de la
+ * consulta que deje de usar el indice se detecta en las pruebas.
+ */
+public final class PlanesConsulta {
+
+	private static final String ID_PLAN = "planesConsulta";
+	private static final String SELECT_PLAN = "SELECT OPERATION, OPTIONS, OBJECT_NAME FROM plan_table "
+			+ "WHERE STATEMENT_ID = ? ORDER BY ID";
+
+	private static final List<Consulta> CONSULTAS = Arrays.asList(
+			new Consulta("resolver viaje", CacheViajes.SELECT_VIAJE, "RECORRIDOS:UQ_RECORRIDOS_SALIDA",
+					"VIAJES:UQ_VIAJES_RECORRIDO_FECHA"),
+			new Consulta("resolver lote de viajes", CacheViajes.SELECT_VIAJES_LOTE + "(?, ?, ?, ?))",
+					"RECORRIDOS:UQ_RECORRIDOS_SALIDA", "VIAJES:UQ_VIAJES_RECORRIDO_FECHA"),
+			new Consulta("exportar viajes", ExportadorDatos.SELECT_VIAJES, "TICKETS:IX_TICKETS_VIAJE"));
+
+	private PlanesConsulta() {
+	}
+
+	/**
+	 * Comprueba el plan de cada consulta. Deshace la transaccion de la conexion
+	 * para no dejar filas en {@code plan_table}.
+	 *
+	 * @param con conexion a la base de datos
+	 * @return incumplimientos encontrados; vacia si todas las consultas usan sus
+	 *         indices
+	 * @throws SQLException si falla la obtencion de algun plan
+	 */
+	public static List<String> comprobar(Connection con) throws SQLException {
+		List<String> incumplimientos = new ArrayList<>();
+		try {
+			for (Consulta c : CONSULTAS) {
+				List<String[]> plan = explicar(con, c.sql);
+				for (String acceso : c.accesos) {
+					String tabla = acceso.substring(0, acceso.indexOf(':'));
+					String indice = acceso.substring(acceso.indexOf(':') + 1);
+					if (!contiene(plan, "INDEX", null, indice)) {
+						incumplimientos.add(c.nombre + ": no usa el indice " + indice);
+					}
+					if (contiene(plan, "TABLE ACCESS", "FULL", tabla)) {
+						incumplimientos.add(c.nombre + ": recorre entera la tabla " + tabla);
+					}
+				}
+			}
+		} finally {
+			con.rollback();
+		}
+		return incumplimientos;
+	}
+
+	/**
+	 * Obtiene el plan de una consulta sin ejecutarla. Los parametros {@code ?} se
+	 * sustituyen por variables de enlace, que EXPLAIN PLAN no necesita valorar.
+	 *
+	 * @return operacion, opciones y objeto de cada paso del plan
+	 */
+	static List<String[]> explicar(Connection con, String sql) throws SQLException {
+		StringBuilder texto = new StringBuilder();
+		int n = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			char ch = sql.charAt(i);
+			if (ch == '?') {
+				texto.append(":p").append(++n);
+			} else {
+				texto.append(ch);
+			}
+		}
+		try (Statement st = con.createStatement()) {
+			st.executeUpdate("DELETE FROM plan_table WHERE STATEMENT_ID = '" + ID_PLAN + "'");
+			st.execute("EXPLAIN PLAN SET STATEMENT_ID = '" + ID_PLAN + "' FOR " + texto);
+		}
+		List<String[]> plan = new ArrayList<>();
+		try (PreparedStatement st = con.prepareStatement(SELECT_PLAN)) {
+			st.setString(1, ID_PLAN);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					plan.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+				}
+			}
+		}
+		return plan;
+	}
+
+	// Indica si algun paso del plan es la operacion indicada sobre el objeto; opciones a null vale cualquiera.
+	private static boolean contiene(List<String[]> plan, String operacion, String opciones, String objeto) {
+		for (String[] paso : plan) {
+			if (operacion.equals(paso[0]) && (opciones == null || opciones.equals(paso[1]))
+					&& objeto.equals(paso[2])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final class Consulta {
+		final String nombre;
+		final String sql;
+		/** Accesos esperados, como TABLA:INDICE. */
+		final String[] accesos;
+
+		Consulta(String nombre, String sql, String... accesos) {
+			this.nombre = nombre;
+			this.sql = sql;
+			this.accesos = accesos;
+		}
+	}
+}
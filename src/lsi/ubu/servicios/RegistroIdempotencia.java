@@ -0,0 +1,308 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.CacheLRU;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Resultados de las compras y anulaciones con clave de idempotencia, para que
+ * un cliente que repite una peticion (por ejemplo, tras un timeout) reciba el
+ * resultado original en lugar de volver a comprar o anular.
+ *
+ * <p>
+ * Cada resultado se guarda en {@code idempotencia} en la misma transaccion que
+ * la operacion, y la clave primaria de la tabla impide que dos peticiones con
+ * la misma clave se confirmen las dos: la segunda se deshace y devuelve el
+ * resultado de la primera. Los rechazos de negocio tambien se guardan. Las
+ * repeticiones se responden desde una {@link CacheLRU} acotada, sin ir a la
+ * base de datos; al usarse por primera vez se carga con las claves mas
+ * recientes de la tabla, y una clave que no esta en la cache se busca en la
+ * tabla antes de repetir la operacion.
+ *
+ * <p>
+ * Se vacia automaticamente cuando {@link ExecuteScript} recarga las tablas. Las
+ * claves mas antiguas que la caducidad de la cache se borran de la tabla cada
+ * hora.
+ */
+public class RegistroIdempotencia {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RegistroIdempotencia.class);
+
+	/** Operaciones con clave de idempotencia. */
+	public static final String COMPRA = "COMPRA";
+	public static final String ANULACION = "ANULACION";
+
+	/** Longitud maxima de una clave, la de la columna. */
+	public static final int LONGITUD_MAXIMA = 64;
+
+	private static final int TAMANO_MAXIMO = 10_000;
+	private static final long TTL_MS = 24 * 60 * 60 * 1000L;
+	private static final long INTERVALO_PURGA_MS = 60 * 60 * 1000L;
+
+	private static final String INSERT_RESULTADO = "INSERT INTO idempotencia (OPERACION, CLAVE, RESULTADO, IDTICKET) "
+			+ "VALUES (?, ?, ?, ?)";
+	private static final String SELECT_RESULTADO = "SELECT RESULTADO, IDTICKET FROM idempotencia "
+			+ "WHERE OPERACION = ? AND CLAVE = ?";
+	private static final String SELECT_RECIENTES = "SELECT * FROM ("
+			+ "SELECT OPERACION, CLAVE, RESULTADO, IDTICKET FROM idempotencia "
+			+ "WHERE CREADA > SYSTIMESTAMP - NUMTODSINTERVAL(?, 'SECOND') ORDER BY CREADA DESC) WHERE ROWNUM <= ?";
+	private static final String DELETE_CADUCADAS = "DELETE FROM idempotencia "
+			+ "WHERE CREADA <= SYSTIMESTAMP - NUMTODSINTERVAL(?, 'SECOND')";
+
+	private static final SGBDErrorUtil ERRORES = new OracleSGBDErrorUtil();
+
+	private static final RegistroIdempotencia INSTANCIA = new RegistroIdempotencia();
+
+	private final CacheLRU<Clave, Resultado> cache = new CacheLRU<>(TAMANO_MAXIMO, TTL_MS);
+	private volatile boolean cargada;
+
+	private RegistroIdempotencia() {
+		ExecuteScript.alRecargar(this::invalidar);
+		ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "idempotencia");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		temporizador.scheduleWithFixedDelay(this::purgarPeriodicamente, INTERVALO_PURGA_MS, INTERVALO_PURGA_MS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public static RegistroIdempotencia getInstance() {
+		return INSTANCIA;
+	}
+
+	/**
+	 * Resultado guardado de una operacion: el ticket si se hizo o el codigo del
+	 * rechazo.
+	 */
+	public static final class Resultado {
+		private final int codigo;
+		private final int idTicket;
+
+		Resultado(int codigo, int idTicket) {
+			this.codigo = codigo;
+			this.idTicket = idTicket;
+		}
+
+		/**
+		 * Repite el resultado.
+		 *
+		 * @return id del ticket
+		 * @throws CompraBilleteTrenException con el codigo del rechazo original
+		 */
+		public int repetir() throws CompraBilleteTrenException {
+			if (codigo != 0) {
+				throw new CompraBilleteTrenException(codigo);
+			}
+			return idTicket;
+		}
+	}
+
+	/**
+	 * Busca el resultado de una peticion ya confirmada, primero en la cache y, si
+	 * no esta (por ejemplo, porque la cache la ha desalojado), en la tabla.
+	 *
+	 * @param con       conexion con la que consultar la tabla si hace falta
+	 * @param operacion {@link #COMPRA} o {@link #ANULACION}
+	 * @param clave     clave de idempotencia
+	 * @return resultado original, o null si la clave no se conoce
+	 * @throws SQLException si falla la consulta de la tabla
+	 */
+	public Resultado buscar(Connection con, String operacion, String clave) throws SQLException {
+		validar(clave);
+		if (!cargada) {
+			cargar(con);
+		}
+		Resultado resultado = cache.get(new Clave(operacion, clave));
+		return resultado != null ? resultado : leer(con, operacion, clave);
+	}
+
+	/**
+	 * Guarda, sin confirmar, el resultado de una operacion. Si la clave ya tiene
+	 * un resultado confirmado por otra peticion no guarda nada y lo devuelve;
+	 * entonces hay que deshacer la transaccion.
+	 *
+	 * @param con       conexion de la transaccion de la operacion
+	 * @param operacion {@link #COMPRA} o {@link #ANULACION}
+	 * @param clave     clave de idempotencia
+	 * @param codigo    0 si la operacion se ha hecho o el codigo del rechazo
+	 * @param idTicket  ticket de la operacion
+	 * @return null si se ha guardado, o el resultado original de la clave
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public Resultado anotar(Connection con, String operacion, String clave, int codigo, int idTicket)
+			throws SQLException {
+		validar(clave);
+		try (PreparedStatement st = con.prepareStatement(INSERT_RESULTADO)) {
+			st.setString(1, operacion);
+			st.setString(2, clave);
+			st.setInt(3, codigo);
+			st.setInt(4, idTicket);
+			st.executeUpdate();
+			return null;
+		} catch (SQLException e) {
+			if (!ERRORES.checkExceptionToCode(e, SGBDError.PK_VIOLATED)) {
+				throw e;
+			}
+			// La insercion ha esperado a que se confirme la otra peticion: su resultado ya es visible,
+			// salvo que se haya purgado entre medias.
+			Resultado original = leer(con, operacion, clave);
+			if (original == null) {
+				throw e;
+			}
+			return original;
+		}
+	}
+
+	/**
+	 * Guarda y confirma el rechazo de una peticion, despues de deshacer su
+	 * transaccion. Un error al guardarlo solo se registra, para no ocultar el
+	 * rechazo.
+	 *
+	 * @param con       conexion de la peticion, ya deshecha
+	 * @param operacion {@link #COMPRA} o {@link #ANULACION}
+	 * @param clave     clave de idempotencia
+	 * @param codigo    codigo del rechazo
+	 * @return null si se ha guardado el rechazo (o no se ha podido guardar), o
+	 *         el resultado de otra peticion con la misma clave confirmada
+	 *         antes, que es el que hay que devolver
+	 */
+	public Resultado anotarRechazo(Connection con, String operacion, String clave, int codigo) {
+		try {
+			Resultado original = anotar(con, operacion, clave, codigo, 0);
+			if (original == null) {
+				con.commit();
+				recordar(operacion, clave, codigo, 0);
+			} else {
+				con.rollback();
+			}
+			return original;
+		} catch (SQLException e) {
+			LOGGER.warn("No se ha podido guardar el rechazo de {} {}: {}", operacion, clave, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Guarda en la cache el resultado de una operacion ya confirmada.
+	 */
+	public void recordar(String operacion, String clave, int codigo, int idTicket) {
+		cache.put(new Clave(operacion, clave), new Resultado(codigo, idTicket));
+	}
+
+	/**
+	 * Borra de la tabla las claves mas antiguas que la caducidad de la cache.
+	 *
+	 * @param con conexion a la base de datos; se confirma el borrado
+	 * @return claves borradas
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public int purgar(Connection con) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(DELETE_CADUCADAS)) {
+			st.setLong(1, TTL_MS / 1000);
+			int borradas = st.executeUpdate();
+			con.commit();
+			return borradas;
+		}
+	}
+
+	private void purgarPeriodicamente() {
+		try {
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try {
+				LOGGER.debug("Borradas {} claves de idempotencia caducadas", purgar(con));
+			} finally {
+				con.close();
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.warn("No se han podido borrar las claves de idempotencia caducadas: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Vacia la cache, que se volvera a cargar de la tabla.
+	 */
+	public void invalidar() {
+		cache.invalidarTodo();
+		cargada = false;
+	}
+
+	private synchronized void cargar(Connection con) throws SQLException {
+		if (cargada) {
+			return;
+		}
+		try (PreparedStatement st = con.prepareStatement(SELECT_RECIENTES)) {
+			st.setLong(1, TTL_MS / 1000);
+			st.setInt(2, TAMANO_MAXIMO);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					recordar(rs.getString(1), rs.getString(2), rs.getInt(3), rs.getInt(4));
+				}
+			}
+		}
+		cargada = true;
+	}
+
+	// Resultado guardado en la tabla para una clave, que se anota en la cache; null si no esta.
+	private Resultado leer(Connection con, String operacion, String clave) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(SELECT_RESULTADO)) {
+			st.setString(1, operacion);
+			st.setString(2, clave);
+			try (ResultSet rs = st.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				Resultado resultado = new Resultado(rs.getInt(1), rs.getInt(2));
+				cache.put(new Clave(operacion, clave), resultado);
+				return resultado;
+			}
+		}
+	}
+
+	private static void validar(String clave) {
+		if (clave.isEmpty() || clave.length() > LONGITUD_MAXIMA) {
+			throw new IllegalArgumentException("Clave de idempotencia vacia o de mas de " + LONGITUD_MAXIMA
+					+ " caracteres");
+		}
+	}
+
+	private static final class Clave {
+		final String operacion;
+		final String clave;
+
+		Clave(String operacion, String clave) {
+			this.operacion = operacion;
+			this.clave = clave;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Clave)) {
+				return false;
+			}
+			Clave otra = (Clave) o;
+			return operacion.equals(otra.operacion) && clave.equals(otra.clave);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(operacion, clave);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package lsi.ubu.servicios;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+
+/**
+ * Resultado de una compra dentro de un lote.
+ */
+public final class ResultadoCompra {
+
+	private final SolicitudCompra solicitud;
+	private final boolean confirmada;
+	private final int codigoError;
+	private final int idTicket;
+
+	private ResultadoCompra(SolicitudCompra solicitud, boolean confirmada, int codigoError, int idTicket) {
+		this.solicitud = solicitud;
+		this.confirmada = confirmada;
+		this.codigoError = codigoError;
+		this.idTicket = idTicket;
+	}
+
+	/** La compra se ha realizado con el ticket indicado. */
+	static ResultadoCompra confirmada(SolicitudCompra solicitud, int idTicket) {
+		return new ResultadoCompra(solicitud, true, 0, idTicket);
+	}
+
+	/**
+	 * La compra se ha rechazado con un codigo de {@link CompraBilleteTrenException}.
+	 */
+	static ResultadoCompra rechazada(SolicitudCompra solicitud, int codigoError) {
+		return new ResultadoCompra(solicitud, false, codigoError, 0);
+	}
+
+	/**
+	 * La compra era valida pero no se ha realizado porque otra compra del lote ha
+	 * fallado en modo {@link ModoLote#TODO_O_NADA}.
+	 */
+	static ResultadoCompra descartada(SolicitudCompra solicitud) {
+		return new ResultadoCompra(solicitud, false, 0, 0);
+	}
+
+	public SolicitudCompra getSolicitud() {
+		return solicitud;
+	}
+
+	public boolean isConfirmada() {
+		return confirmada;
+	}
+
+	/**
+	 * @return codigo de {@link CompraBilleteTrenException} por el que se rechazo
+	 *         la compra, o 0 si la compra en si no tenia error
+	 */
+	public int getCodigoError() {
+		return codigoError;
+	}
+
+	/**
+	 * @return id del ticket comprado, o 0 si la compra no se ha realizado
+	 */
+	public int getIdTicket() {
+		return idTicket;
+	}
+}
@@ -0,0 +1,66 @@
+package lsi.ubu.servicios;
+
+import java.sql.Time;
+
+/**
+ * Salida de un viaje con plazas libres, tal como la devuelve
+ * {@link Servicio#buscarSalidas}. Las plazas son las del momento de la
+ * busqueda.
+ */
+public final class Salida {
+
+	private final int idViaje;
+	private final String origen;
+	private final String destino;
+	private final java.sql.Date fecha;
+	private final Time hora;
+	private final int plazasLibres;
+	private final int precio;
+
+	Salida(int idViaje, String origen, String destino, java.sql.Date fecha, Time hora, int plazasLibres,
+			int precio) {
+		this.idViaje = idViaje;
+		this.origen = origen;
+		this.destino = destino;
+		this.fecha = fecha;
+		this.hora = hora;
+		this.plazasLibres = plazasLibres;
+		this.precio = precio;
+	}
+
+	public int getIdViaje() {
+		return idViaje;
+	}
+
+	public String getOrigen() {
+		return origen;
+	}
+
+	public String getDestino() {
+		return destino;
+	}
+
+	public java.util.Date getFecha() {
+		return fecha;
+	}
+
+	public Time getHora() {
+		return hora;
+	}
+
+	public int getPlazasLibres() {
+		return plazasLibres;
+	}
+
+	/**
+	 * @return precio por plaza
+	 */
+	public int getPrecio() {
+		return precio;
+	}
+
+	@Override
+	public String toString() {
+		return origen + "-" + destino + " " + fecha + " " + hora + " (" + plazasLibres + " plazas, " + precio + ")";
+	}
+}
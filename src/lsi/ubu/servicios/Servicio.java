@@ -1,13 +1,76 @@
 package lsi.ubu.servicios;
 
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Time;
+import java.util.ArrayList;
+import java.util.List;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
 
 public interface Servicio {
 
 	public void anularBillete(Time p_hora, java.util.Date p_fecha, String p_origen, String p_destino, int p_nroPlazas,
 			int p_ticket) throws SQLException;
 
-	public void comprarBillete(Time p_hora, java.util.Date p_fecha, String p_origen, String p_destino, int p_nroPlazas)
+	/**
+	 * Compra un billete.
+	 *
+	 * @return id del ticket comprado
+	 */
+	public int comprarBillete(Time p_hora, java.util.Date p_fecha, String p_origen, String p_destino, int p_nroPlazas)
 			throws SQLException;
+
+	/**
+	 * Anula plazas de un billete con una clave de idempotencia: si la clave ya se
+	 * ha usado no se anula nada y se repite el resultado de la primera peticion.
+	 */
+	public default void anularBillete(String p_clave, Time p_hora, java.util.Date p_fecha, String p_origen,
+			String p_destino, int p_nroPlazas, int p_ticket) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Claves de idempotencia no soportadas");
+	}
+
+	/**
+	 * Compra un billete con una clave de idempotencia: si la clave ya se ha usado
+	 * no se compra nada y se repite el resultado de la primera peticion.
+	 *
+	 * @return id del ticket comprado con la clave
+	 */
+	public default int comprarBillete(String p_clave, Time p_hora, java.util.Date p_fecha, String p_origen,
+			String p_destino, int p_nroPlazas) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Claves de idempotencia no soportadas");
+	}
+
+	/**
+	 * Compra varios billetes de una vez e informa del resultado de cada uno. La
+	 * implementacion por defecto compra los billetes uno a uno y solo admite
+	 * {@link ModoLote#MEJOR_ESFUERZO}.
+	 */
+	public default List<ResultadoCompra> comprarBilletes(List<SolicitudCompra> p_solicitudes, ModoLote p_modo)
+			throws SQLException {
+		if (p_modo != ModoLote.MEJOR_ESFUERZO) {
+			throw new SQLFeatureNotSupportedException("Modo de lote no soportado: " + p_modo);
+		}
+		List<ResultadoCompra> resultados = new ArrayList<>(p_solicitudes.size());
+		for (SolicitudCompra s : p_solicitudes) {
+			try {
+				int idTicket = comprarBillete(s.getHora(), s.getFecha(), s.getOrigen(), s.getDestino(),
+						s.getNroPlazas());
+				resultados.add(ResultadoCompra.confirmada(s, idTicket));
+			} catch (CompraBilleteTrenException e) {
+				resultados.add(ResultadoCompra.rechazada(s, e.getErrorCode()));
+			}
+		}
+		return resultados;
+	}
+
+	/**
+	 * Busca las salidas con plazas libres entre dos estaciones en un rango de
+	 * fechas. Se resuelve con {@link IndiceDisponibilidad}, sin consultar la
+	 * base de datos en cada busqueda.
+	 */
+	public default List<Salida> buscarSalidas(String p_origen, String p_destino, java.util.Date p_desde,
+			java.util.Date p_hasta) throws SQLException {
+		return IndiceDisponibilidad.getInstance().buscar(p_origen, p_destino, p_desde, p_hasta);
+	}
 }
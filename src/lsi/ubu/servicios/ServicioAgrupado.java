@@ -0,0 +1,254 @@
+package lsi.ubu.servicios;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.MetricasServicio;
+
+/**
+ * Servicio que agrupa las compras concurrentes de un mismo viaje. Las compras
+ * se encolan por viaje y una de las llamadas en espera (la lider) las resuelve
+ * todas en una sola transaccion: bloquea la fila del viaje, reparte las plazas
+ * libres por orden de llegada, las descuenta con un unico UPDATE, inserta los
+ * tickets en un envio por lotes y confirma con un unico commit. Cada llamada
+ * recibe su propio resultado: el id de su ticket o su excepcion.
+ *
+ * <p>
+ * La lider espera como mucho {@code esperaMaximaUs} microsegundos a que se
+ * junten compras, o menos si el lote se llena antes. No hay hilos propios: las
+ * compras las ejecutan los hilos de los llamantes.
+ *
+ * <p>
+ * Las anulaciones y las compras por lotes se hacen como en
+ * {@link ServicioImpl}.
+ */
+public class ServicioAgrupado extends ServicioImpl {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioAgrupado.class);
+
+	private static final String SELECT_PLAZAS_BLOQUEO = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ? FOR UPDATE";
+	private static final String UPDATE_DESCONTAR = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - ? WHERE IDVIAJE = ?";
+	private static final String INSERT_TICKET = "INSERT INTO tickets VALUES (?, ?, CURRENT_DATE, ?, ?)";
+
+	private final long esperaMaximaNanos;
+	private final int tamanoMaximoLote;
+
+	private final ConcurrentHashMap<Integer, Cola> colas = new ConcurrentHashMap<>();
+
+	/**
+	 * Crea el servicio.
+	 *
+	 * @param esperaMaximaUs   microsegundos que se espera a que se junten compras
+	 *                         de un viaje antes de ejecutarlas
+	 * @param tamanoMaximoLote compras que se resuelven como mucho en una
+	 *                         transaccion
+	 */
+	public ServicioAgrupado(long esperaMaximaUs, int tamanoMaximoLote) {
+		if (tamanoMaximoLote < 1) {
+			throw new IllegalArgumentException("Tamano de lote no valido: " + tamanoMaximoLote);
+		}
+		this.esperaMaximaNanos = esperaMaximaUs * 1000L;
+		this.tamanoMaximoLote = tamanoMaximoLote;
+	}
+
+	@Override
+	public int comprarBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		long inicio = System.nanoTime();
+		try {
+			DatosViaje viaje = resolver(hora, fecha, origen, destino);
+			Peticion p = new Peticion(viaje, nroPlazas);
+			Cola cola = colas.computeIfAbsent(viaje.getIdViaje(), id -> new Cola());
+			cola.pendientes.add(p);
+			if (cola.tamano.incrementAndGet() >= tamanoMaximoLote) {
+				// Lote completo: la lider no tiene que seguir esperando.
+				Thread lider = cola.lider.get();
+				if (lider != null) LockSupport.unpark(lider);
+			}
+
+			// Esperamos a que otra llamada resuelva la compra o a poder hacerlo nosotros.
+			Thread actual = Thread.currentThread();
+			while (!p.hecha) {
+				if (cola.lider.compareAndSet(null, actual)) {
+					try {
+						ejecutarLote(cola);
+					} finally {
+						cola.lider.set(null);
+					}
+					// Despertamos a la siguiente compra pendiente para que tome el relevo. Si no queda
+					// ninguna la cola se quita; quien la tenga aun la resuelve el mismo como lider.
+					Peticion siguiente = cola.pendientes.peek();
+					if (siguiente != null) {
+						LockSupport.unpark(siguiente.hilo);
+					} else {
+						colas.remove(viaje.getIdViaje(), cola);
+					}
+				} else {
+					LockSupport.parkNanos(this, Math.max(esperaMaximaNanos, 100_000L));
+				}
+			}
+			if (p.error != null) {
+				throw p.error;
+			}
+			return p.idTicket;
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			throw e;
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarBillete", inicio);
+		}
+	}
+
+	// Normalmente el viaje esta en cache; si no, se resuelve con una conexion propia.
+	private static DatosViaje resolver(Time hora, java.util.Date fecha, String origen, String destino)
+			throws SQLException {
+		DatosViaje viaje = CacheViajes.getInstance().buscarEnCache(hora, fecha, origen, destino);
+		if (viaje != null) {
+			return viaje;
+		}
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			viaje = CacheViajes.getInstance().resolver(con, hora, fecha, origen, destino);
+			con.commit();
+			return viaje;
+		} finally {
+			con.close();
+		}
+	}
+
+	// Espera a que se junten compras (o a que se llene el lote) y resuelve las primeras de la cola.
+	private void ejecutarLote(Cola cola) {
+		long limite = System.nanoTime() + esperaMaximaNanos;
+		long restante;
+		while (cola.tamano.get() < tamanoMaximoLote && (restante = limite - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, restante);
+		}
+
+		List<Peticion> lote = new ArrayList<>(Math.min(tamanoMaximoLote, cola.tamano.get()));
+		Peticion p;
+		while (lote.size() < tamanoMaximoLote && (p = cola.pendientes.poll()) != null) {
+			cola.tamano.decrementAndGet();
+			lote.add(p);
+		}
+		if (lote.isEmpty()) {
+			return;
+		}
+
+		long inicio = System.nanoTime();
+		try {
+			comprar(lote);
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.error(e.getMessage(), e);
+			SQLException error = e instanceof SQLException ? (SQLException) e : new SQLException(e);
+			for (Peticion q : lote) {
+				q.error = error;
+			}
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarLoteAgrupado", inicio);
+			for (Peticion q : lote) {
+				q.hecha = true;
+				LockSupport.unpark(q.hilo);
+			}
+		}
+	}
+
+	// Resuelve las compras de un lote del mismo viaje en una transaccion. Las plazas se asignan
+	// por orden de llegada; una compra que no cabe se rechaza sin impedir las siguientes. Al
+	// confirmar se notifican las plazas vendidas.
+	private static void comprar(List<Peticion> lote) throws SQLException {
+		DatosViaje viaje = lote.get(0).viaje;
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			int libres;
+			try (PreparedStatement st = con.prepareStatement(SELECT_PLAZAS_BLOQUEO)) {
+				st.setInt(1, viaje.getIdViaje());
+				try (ResultSet rs = st.executeQuery()) {
+					if (!rs.next()) {// el viaje se ha borrado despues de guardarlo en cache
+						CacheViajes.getInstance().invalidar();
+						rechazar(lote, CompraBilleteTrenException.NO_EXISTE_VIAJE);
+						con.rollback();
+						return;
+					}
+					libres = rs.getInt(1);
+				}
+			}
+
+			int vendidas = 0;
+			try (PreparedStatement st = con.prepareStatement(INSERT_TICKET)) {
+				for (Peticion p : lote) {
+					if (p.nroPlazas > libres - vendidas) {
+						p.error = new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+						continue;
+					}
+					vendidas += p.nroPlazas;
+					p.idTicket = AsignadorTickets.getInstance().siguiente(con);
+					st.setInt(1, p.idTicket);
+					st.setInt(2, viaje.getIdViaje());
+					st.setInt(3, p.nroPlazas);
+					st.setInt(4, viaje.getPrecio() * p.nroPlazas);
+					st.addBatch();
+				}
+				if (vendidas > 0) {
+					try (PreparedStatement stPlazas = con.prepareStatement(UPDATE_DESCONTAR)) {
+						stPlazas.setInt(1, vendidas);
+						stPlazas.setInt(2, viaje.getIdViaje());
+						stPlazas.executeUpdate();
+					}
+					st.executeBatch();
+				}
+			}
+			long secuencia = EventosServicio.confirmar(con::commit);
+			if (vendidas > 0) {
+				EventosServicio.plazasCambiadas(secuencia, viaje.getIdViaje(), -vendidas);
+			}
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+		}
+	}
+
+	private static void rechazar(List<Peticion> lote, int codigo) {
+		for (Peticion p : lote) {
+			p.error = new CompraBilleteTrenException(codigo);
+		}
+	}
+
+	// Compras pendientes de un viaje y llamada que las esta resolviendo, si hay alguna.
+	private static final class Cola {
+		final ConcurrentLinkedQueue<Peticion> pendientes = new ConcurrentLinkedQueue<>();
+		final AtomicInteger tamano = new AtomicInteger();
+		final AtomicReference<Thread> lider = new AtomicReference<>();
+	}
+
+	private static final class Peticion {
+		final DatosViaje viaje;
+		final int nroPlazas;
+		final Thread hilo = Thread.currentThread();
+		// error e idTicket se escriben antes que hecha, y hecha es volatil.
+		SQLException error;
+		int idTicket;
+		volatile boolean hecha;
+
+		Peticion(DatosViaje viaje, int nroPlazas) {
+			this.viaje = viaje;
+			this.nroPlazas = nroPlazas;
+		}
+	}
+}
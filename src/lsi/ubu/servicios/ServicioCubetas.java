@@ -0,0 +1,251 @@
+package lsi.ubu.servicios;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Servicio para viajes muy demandados: las plazas libres de un viaje se
+ * reparten en varias filas de {@code viajesCubetas} y cada comprador descuenta
+ * de una de ellas, elegida por su hilo, de modo que los compradores del mismo
+ * viaje no se esperan todos por el bloqueo de la misma fila. Si su cubeta no
+ * tiene plazas prueba con las siguientes y, como ultimo recurso, reune las
+ * plazas de varias cubetas.
+ *
+ * <p>
+ * Los viajes se reparten con {@link #repartir(int)}; los que no estan
+ * repartidos se venden como en {@link ServicioImpl}. Al repartir un viaje
+ * todas sus plazas libres pasan a las cubetas y {@code NPLAZASLIBRES} se queda
+ * a 0, de modo que los demas servicios, que solo descuentan de {@code viajes},
+ * no pueden vender las plazas repartidas. Las plazas que devuelvan a
+ * {@code viajes} siguen siendo vendibles por cualquiera, tambien por este
+ * servicio cuando las cubetas no bastan: las libres de un viaje repartido son
+ * {@code NPLAZASLIBRES} mas la suma de sus cubetas. {@link #reunir(int)} y
+ * {@link #consolidar()} devuelven las cubetas a {@code NPLAZASLIBRES}.
+ */
+public class ServicioCubetas extends ServicioImpl {
+
+	// Prueba la cubeta preferida y, si no tiene todas las plazas, las siguientes; si ninguna las
+	// tiene las reune de varias bloqueandolas en orden y, si tampoco, prueba con las plazas que otros
+	// servicios hayan devuelto a viajes. Si el viaje no esta repartido descuenta de viajes.
+	private static final String COMPRA_CUBETAS = "DECLARE "
+			+ "v INTEGER := ?; n INTEGER := ?; c INTEGER := ?; "
+			+ "hecho INTEGER := 0; falta INTEGER; tomar INTEGER; cubetas INTEGER; "
+			+ "BEGIN "
+			+ "UPDATE viajesCubetas SET PLAZAS = PLAZAS - n WHERE IDVIAJE = v AND CUBETA = c AND PLAZAS >= n; "
+			+ "hecho := SQL%ROWCOUNT; "
+			+ "IF hecho = 0 THEN "
+			+ "SELECT COUNT(*) INTO cubetas FROM viajesCubetas WHERE IDVIAJE = v; "
+			+ "IF cubetas = 0 THEN "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - n WHERE IDVIAJE = v AND NPLAZASLIBRES >= n; "
+			+ "hecho := SQL%ROWCOUNT; "
+			+ "ELSE "
+			+ "FOR i IN 1 .. cubetas - 1 LOOP "
+			+ "UPDATE viajesCubetas SET PLAZAS = PLAZAS - n "
+			+ "WHERE IDVIAJE = v AND CUBETA = MOD(c + i, cubetas) AND PLAZAS >= n; "
+			+ "IF SQL%ROWCOUNT = 1 THEN hecho := 1; EXIT; END IF; "
+			+ "END LOOP; "
+			+ "IF hecho = 0 THEN "
+			+ "SAVEPOINT reparto; falta := n; "
+			+ "FOR r IN (SELECT CUBETA, PLAZAS FROM viajesCubetas WHERE IDVIAJE = v ORDER BY CUBETA FOR UPDATE) LOOP "
+			+ "tomar := LEAST(r.PLAZAS, falta); "
+			+ "UPDATE viajesCubetas SET PLAZAS = PLAZAS - tomar WHERE IDVIAJE = v AND CUBETA = r.CUBETA; "
+			+ "falta := falta - tomar; "
+			+ "EXIT WHEN falta = 0; "
+			+ "END LOOP; "
+			+ "IF falta = 0 THEN hecho := 1; ELSE ROLLBACK TO reparto; END IF; "
+			+ "END IF; "
+			+ "IF hecho = 0 THEN "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - n WHERE IDVIAJE = v AND NPLAZASLIBRES >= n; "
+			+ "hecho := SQL%ROWCOUNT; "
+			+ "END IF; "
+			+ "END IF; "
+			+ "END IF; "
+			+ "? := hecho; "
+			+ "IF hecho = 1 THEN "
+			+ "INSERT INTO tickets VALUES (?, v, CURRENT_DATE, n, ?); "
+			+ "END IF; "
+			+ "END;";
+
+	// Devuelve las plazas a la cubeta preferida o, si el viaje no esta repartido, a viajes.
+	private static final String DEVOLUCION_CUBETAS = "BEGIN "
+			+ "UPDATE viajesCubetas SET PLAZAS = PLAZAS + ? WHERE IDVIAJE = ? AND CUBETA = ?; "
+			+ "IF SQL%ROWCOUNT = 0 THEN "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = ?; "
+			+ "END IF; "
+			+ "END;";
+
+	// Pasa las plazas libres del viaje a las cubetas a partes iguales (el resto, en las primeras).
+	private static final String REPARTIR = "DECLARE "
+			+ "v INTEGER := ?; total INTEGER := ?; libres INTEGER; cubetas INTEGER; "
+			+ "BEGIN "
+			+ "SELECT NPLAZASLIBRES INTO libres FROM viajes WHERE IDVIAJE = v FOR UPDATE; "
+			+ "SELECT COUNT(*) INTO cubetas FROM viajesCubetas WHERE IDVIAJE = v; "
+			+ "IF cubetas = 0 THEN "
+			+ "INSERT INTO viajesCubetas "
+			+ "SELECT v, level - 1, TRUNC(libres / total) + CASE WHEN level <= MOD(libres, total) THEN 1 ELSE 0 END "
+			+ "FROM dual CONNECT BY level <= total; "
+			+ "UPDATE viajes SET NPLAZASLIBRES = 0 WHERE IDVIAJE = v; "
+			+ "END IF; "
+			+ "END;";
+
+	// Devuelve a viajes las plazas de las cubetas del viaje y las borra. Bloquea las cubetas antes
+	// que el viaje, en el mismo orden que las compras.
+	private static final String REUNIR = "DECLARE "
+			+ "v INTEGER := ?; total INTEGER := 0; "
+			+ "BEGIN "
+			+ "FOR r IN (SELECT PLAZAS FROM viajesCubetas WHERE IDVIAJE = v ORDER BY CUBETA FOR UPDATE) LOOP "
+			+ "total := total + r.PLAZAS; "
+			+ "END LOOP; "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + total WHERE IDVIAJE = v; "
+			+ "DELETE FROM viajesCubetas WHERE IDVIAJE = v; "
+			+ "END;";
+	private static final String SELECT_REPARTIDOS = "SELECT DISTINCT IDVIAJE FROM viajesCubetas ORDER BY IDVIAJE";
+
+	private final int numCubetas;
+
+	/**
+	 * Crea el servicio.
+	 *
+	 * @param numCubetas cubetas en que se reparte cada viaje
+	 */
+	public ServicioCubetas(int numCubetas) {
+		this.numCubetas = numCubetas;
+	}
+
+	/**
+	 * Reparte las plazas libres del viaje en cubetas. No hace nada si ya esta
+	 * repartido.
+	 *
+	 * @param idViaje viaje a repartir
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void repartir(int idViaje) throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (CallableStatement cst = con.prepareCall(REPARTIR)) {
+			cst.setInt(1, idViaje);
+			cst.setInt(2, numCubetas);
+			cst.execute();
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Deja de repartir el viaje: las plazas de sus cubetas vuelven a
+	 * {@code NPLAZASLIBRES}. No hace nada si no esta repartido.
+	 *
+	 * @param idViaje viaje a reunir
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void reunir(int idViaje) throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (CallableStatement cst = con.prepareCall(REUNIR)) {
+			cst.setInt(1, idViaje);
+			cst.execute();
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Reune todos los viajes repartidos, cada uno en su propia transaccion.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void consolidar() throws SQLException {
+		List<Integer> repartidos = new ArrayList<>();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement st = con.prepareStatement(SELECT_REPARTIDOS); ResultSet rs = st.executeQuery()) {
+			while (rs.next()) {
+				repartidos.add(rs.getInt(1));
+			}
+			con.commit();
+		} finally {
+			con.close();
+		}
+		for (int idViaje : repartidos) {
+			reunir(idViaje);
+		}
+	}
+
+	/**
+	 * Compra los billetes uno a uno; solo admite {@link ModoLote#MEJOR_ESFUERZO}
+	 * porque el descuento por lotes de {@link ServicioImpl} actua sobre
+	 * {@code viajes}.
+	 */
+	@Override
+	public List<ResultadoCompra> comprarBilletes(List<SolicitudCompra> solicitudes, ModoLote modo)
+			throws SQLException {
+		if (modo != ModoLote.MEJOR_ESFUERZO) {
+			throw new SQLFeatureNotSupportedException("Modo de lote no soportado: " + modo);
+		}
+		List<ResultadoCompra> resultados = new ArrayList<>(solicitudes.size());
+		for (SolicitudCompra s : solicitudes) {
+			try {
+				int idTicket = comprarBillete(s.getHora(), s.getFecha(), s.getOrigen(), s.getDestino(),
+						s.getNroPlazas());
+				resultados.add(ResultadoCompra.confirmada(s, idTicket));
+			} catch (CompraBilleteTrenException e) {
+				resultados.add(ResultadoCompra.rechazada(s, e.getErrorCode()));
+			}
+		}
+		return resultados;
+	}
+
+	@Override
+	protected int venderPlazas(Connection con, DatosViaje viaje, int nroPlazas) throws SQLException {
+		AsignadorTickets asignador = AsignadorTickets.getInstance();
+		int idTicket = asignador.siguiente(con);
+		try (CallableStatement cst = con.prepareCall(COMPRA_CUBETAS)) {
+			cst.setInt(1, viaje.getIdViaje());
+			cst.setInt(2, nroPlazas);
+			cst.setInt(3, cubetaPreferida());
+			cst.registerOutParameter(4, Types.INTEGER);//1 si se han descontado las plazas
+			cst.setInt(5, idTicket);
+			cst.setInt(6, viaje.getPrecio() * nroPlazas);//precio total del ticket
+			cst.execute();
+			if (cst.getInt(4) == 0) {
+				asignador.devolver(idTicket);
+				return 0;
+			}
+			return idTicket;
+		}
+	}
+
+	@Override
+	protected int devolverPlazas(Connection con, int idViaje, int idTicket, int nroPlazas) throws SQLException {
+		try (CallableStatement cst = con.prepareCall(DEVOLUCION_CUBETAS)) {
+			cst.setInt(1, nroPlazas);
+			cst.setInt(2, idViaje);
+			cst.setInt(3, cubetaPreferida());
+			cst.setInt(4, nroPlazas);
+			cst.setInt(5, idViaje);
+			cst.execute();
+		}
+		return nroPlazas;
+	}
+
+	// Cubeta del hilo actual: cada hilo usa siempre la misma y los hilos se reparten entre todas.
+	private int cubetaPreferida() {
+		long mezcla = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return (int) ((mezcla >>> 32) % numCubetas);
+	}
+}
@@ -6,230 +6,529 @@
  */
 package lsi.ubu.servicios;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Time;
+import java.sql.Types;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.excepciones.CompraBilleteTrenException;
 import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.MetricasServicio;
 
 public class ServicioImpl implements Servicio {
 	
 	// Logger.
 	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioImpl.class);
 	
+	// Bloque que descuenta las plazas solo si quedan suficientes y, en ese caso, inserta el ticket
+	// con el id asignado en el cliente y sus asientos, si son seguidos. Resuelve la compra en un
+	// unico viaje de ida y vuelta.
+	private static final String COMPRA_ATOMICA = "BEGIN " +
+												 "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - ? " +
+												 "WHERE IDVIAJE = ? AND NPLAZASLIBRES >= ?; " +
+												 "? := SQL%ROWCOUNT; " +
+												 "IF SQL%ROWCOUNT = 1 THEN " +
+												 "INSERT INTO tickets VALUES (?, ?, CURRENT_DATE, ?, ?); " +
+												 "IF ? > 0 THEN " +
+												 "INSERT INTO ticketsAsientos SELECT ?, ? + level - 1, ? FROM dual CONNECT BY level <= ?; " +
+												 "END IF; " +
+												 "END IF; " +
+												 "END;";
+	
+	// Sentencias de la compra por lotes: descuento condicional de plazas y alta del ticket.
+	private static final String UPDATE_DESCONTAR_PLAZAS = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - ? " +
+														  "WHERE IDVIAJE = ? AND NPLAZASLIBRES >= ?";
+	private static final String INSERT_TICKET = "INSERT INTO tickets VALUES (?, ?, CURRENT_DATE, ?, ?)";
+	
+	// Sentencias de la anulación.
+	private static final String SELECT_TICKET = "SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?";
+	private static final String UPDATE_PLAZAS_LIBRES = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = ?";
+	private static final String UPDATE_CANTIDAD_TICKET = "UPDATE tickets SET CANTIDAD = ? WHERE IDTICKET = ?";
+	private static final String DELETE_TICKET = "DELETE FROM tickets WHERE IDTICKET = ?";
+	
+	// Asientos reservados en memoria por la venta en curso en cada conexión, hasta que se confirma o
+	// se deshace; al deshacer se devuelven solo esos, sin tocar los de otras compras sin confirmar.
+	private final Map<Connection, int[]> asientosSinConfirmar = new ConcurrentHashMap<>();
+	
 	// Método que implementa la lógica de anular billetes de tren.
 	@Override
 	public void anularBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas, int ticket)
 			throws SQLException {
+		anular(null, hora, fecha, origen, destino, nroPlazas, ticket);
+	}
+	
+	// Anulación con clave de idempotencia: una petición repetida devuelve el resultado original.
+	@Override
+	public void anularBillete(String clave, Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas, int ticket) throws SQLException {
+		anular(Objects.requireNonNull(clave), hora, fecha, origen, destino, nroPlazas, ticket);
+	}
+	
+	private void anular(String clave, Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas,
+			int ticket) throws SQLException {
+		long inicio = System.nanoTime();
 		
 		// Obtenemos la instancia asociada al pool de conexiones.
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
-		
-		/* Conversiones de fechas y horas */
-		java.sql.Date fechaSqlDate = new java.sql.Date(fecha.getTime());
-		java.sql.Timestamp horaTimestamp = new java.sql.Timestamp(hora.getTime());
+		RegistroIdempotencia registro = RegistroIdempotencia.getInstance();
 		
 		Connection con = null;
-		PreparedStatement st = null;
-		ResultSet rs = null;
 		
-		int precio;
-		int idrecorrido;
-		int idViaje;
-		int nplazas;
+		int idViaje = 0;
 		int plazasReservadas;
-		
-		// Dividimos el string de la hora para obtener solo la hora y los minutos.
-		String horaDef = hora.toString().substring(0, 5);
+		boolean repetida = false;
 		
 		try {
 			// Tomamos una conexión del pool de conexiones.
 			con = pool.getConnection();
 			
-			// Definimos las consultas para obtener la información necesaria y realizar las actualizaciones necesarias.
-			String select_viaje = "SELECT IDVIAJE, NPLAZASLIBRES " +
-								  "FROM viajes a " +
-								  "JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO " +
-								  "WHERE b.ESTACIONORIGEN = ? " +
-                                  "AND b.ESTACIONDESTINO = ? " +
-                                  "AND a.FECHA = ? " +
-                                  "AND trunc(b.horaSalida) = trunc(?)";
-			
-			String select_ticket = "SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?";
-			String update_plazasLibres = "UPDATE viajes SET NPLAZASLIBRES = ? WHERE IDVIAJE = ?";
-			String update_cantidadTicket = "UPDATE tickets SET CANTIDAD = ? WHERE IDTICKET = ?";
-			String delete_ticket = "DELETE FROM tickets WHERE IDTICKET = ?";
-			
-			// Obtenemos el ID y el número de plazas libres del viaje.
-			st = con.prepareStatement(select_viaje);
-			st.setString(1, origen);
-			st.setString(2, destino);
-			st.setDate(3, fechaSqlDate);
-			st.setTimestamp(4,horaTimestamp);
-			rs = st.executeQuery();
-			
-			// Comprobamos que existe el viaje asociado.
-			if (rs.next()) {
-				idViaje = rs.getInt(1);
-				nplazas = rs.getInt(2);
-			} else {
-				// creamos la excepción para poderla lanzas y guardar su mensaje
-				CompraBilleteTrenException e=new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
-				throw (e);//Lanzamos la excepción que hemos creado
+			// Si la petición ya se hizo, se repite su resultado sin tocar viajes ni tickets.
+			RegistroIdempotencia.Resultado previo = clave == null ? null
+					: registro.buscar(con, RegistroIdempotencia.ANULACION, clave);
+			if (previo != null) {
+				repetida = true;
+				previo.repetir();
+				return;
 			}
 			
+			// Obtenemos el ID del viaje (lanza NO_EXISTE_VIAJE si no existe el viaje asociado).
+			idViaje = CacheViajes.getInstance().resolver(con, hora, fecha, origen, destino).getIdViaje();
+			
 			// Obtenemos el número de plazas reservadas en el ticket.
-			st = con.prepareStatement(select_ticket);
-			st.setInt(1, ticket);
-			rs=st.executeQuery();
-			
-			// Comprobamos si existe el ticket y si es posible anular ese número de plazas.
-			if (rs.next()) {
-				plazasReservadas = rs.getInt(1);
-				if (nroPlazas > plazasReservadas) {
-					// creamos la excepción para poderla lanzas y guardar su mensaje
-					CompraBilleteTrenException e=new CompraBilleteTrenException(CompraBilleteTrenException.NO_RESERVAS);
-					throw (e);//Lanzamos la excepción que hemos creado
+			try (PreparedStatement st = con.prepareStatement(SELECT_TICKET)) {
+				st.setInt(1, ticket);
+				try (ResultSet rs = st.executeQuery()) {
+					if (!rs.next()) {
+						throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+					}
+					plazasReservadas = rs.getInt(1);
 				}
-			} else {
-				// creamos la excepción para poderla lanzas y guardar su mensaje
-				CompraBilleteTrenException e=new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
-				throw (e);//Lanzamos la excepción que hemos creado
+			}
+			
+			// Comprobamos si es posible anular ese número de plazas.
+			if (nroPlazas > plazasReservadas) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_RESERVAS);
 			}
 			
 			// Actualizamos el número de plazas libres del viaje.
-			st = con.prepareStatement(update_plazasLibres);
-			st.setInt(1, nplazas + nroPlazas);
-			st.setInt(2, idViaje);
-			st.executeUpdate();
+			int variacion = devolverPlazas(con, idViaje, ticket, nroPlazas);
 			
-			// Actualizamos la cantidad de plazas en el ticket.
-			if(rs.getInt("cantidad")-nroPlazas>0){
-			st = con.prepareStatement(update_cantidadTicket);
-			st.setInt(1, nroPlazas);
-			st.setInt(2, ticket);
-			st.executeUpdate();
+			// Damos de baja los asientos más altos del ticket, que se liberan al confirmar.
+			int[] asientos = nroPlazas > 0 ? AsientosViajes.getInstance().quitar(con, ticket, idViaje, nroPlazas)
+					: new int[0];
+			
+			if (plazasReservadas - nroPlazas > 0) {
+				// Actualizamos la cantidad de plazas en el ticket.
+				try (PreparedStatement st = con.prepareStatement(UPDATE_CANTIDAD_TICKET)) {
+					st.setInt(1, plazasReservadas - nroPlazas);
+					st.setInt(2, ticket);
+					st.executeUpdate();
+				}
+			} else {
+				// Si el ticket se ha quedado sin plazas, procedemos a eliminarlo.
+				try (PreparedStatement st = con.prepareStatement(DELETE_TICKET)) {
+					st.setInt(1, ticket);
+					st.executeUpdate();
+				}
 			}
 			
-			// Si el ticket se ha quedado sin plazas, procedemos a eliminarlo.
-			else if (rs.getInt("cantidad")-nroPlazas==0) {
-				st = con.prepareStatement(delete_ticket);
-				st.setInt(1, ticket);
-				st.executeUpdate();
+			// Guardamos el resultado con la clave; si otra petición con la misma clave se ha confirmado
+			// antes, deshacemos esta anulación y devolvemos su resultado.
+			if (clave != null) {
+				previo = registro.anotar(con, RegistroIdempotencia.ANULACION, clave, 0, ticket);
+				if (previo != null) {
+					con.rollback();
+					deshacerEnMemoria(con, idViaje);
+					repetida = true;
+					previo.repetir();
+					return;
+				}
 			}
 			
 			// Hacemos commit para guardar los cambios.
-			con.commit();
+			long secuencia = EventosServicio.confirmar(con::commit);
+			if (clave != null) {
+				registro.recordar(RegistroIdempotencia.ANULACION, clave, 0, ticket);
+			}
+			AsientosViajes.getInstance().liberar(idViaje, asientos);
+			if (variacion != 0) {
+				EventosServicio.plazasCambiadas(secuencia, idViaje, variacion);
+			}
 		} catch (SQLException e) {
-			con.rollback();
-			LOGGER.error(e.getMessage()); //Gardamos el mensaje de error en el logger
-			st.close(); //cerramos la sentencia para liberar recursos
-			con.close(); //cerramos la conexion para liberar recursos
+			MetricasServicio.registrarError(e);
+			if (con != null) {
+				con.rollback();
+				deshacerEnMemoria(con, idViaje);
+			}
+			if (clave != null && con != null && !repetida && e instanceof CompraBilleteTrenException) {
+				// si otra petición con la misma clave se confirmó antes, se devuelve su resultado
+				RegistroIdempotencia.Resultado original = registro.anotarRechazo(con,
+						RegistroIdempotencia.ANULACION, clave, e.getErrorCode());
+				if (original != null) {
+					original.repetir();
+					return;
+				}
+			}
+			registrarFallo(e); //Gardamos el mensaje de error en el logger
 			throw(e); //Volvemos a lanzar la excepci
 		} finally {
+			MetricasServicio.registrarTransaccion("anularBillete", inicio);
 			
-			// Cerramos las conexiones y liberamos los recursos.
-			if (rs != null) rs.close();
-			if (st != null) st.close();
+			// Devolvemos la conexión al pool (las sentencias ya están cerradas).
 			if (con != null) con.close();
 		}
 	}
 	
 	// Método que implementa la lógica de comprar billetes de tren.
 	@Override
-	public void comprarBillete(Time hora, Date fecha, String origen, String destino, int nroPlazas)
+	public int comprarBillete(Time hora, Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		return comprar(null, hora, fecha, origen, destino, nroPlazas);
+	}
+	
+	// Compra con clave de idempotencia: una petición repetida devuelve el ticket original.
+	@Override
+	public int comprarBillete(String clave, Time hora, Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		return comprar(Objects.requireNonNull(clave), hora, fecha, origen, destino, nroPlazas);
+	}
+	
+	private int comprar(String clave, Time hora, Date fecha, String origen, String destino, int nroPlazas)
 			throws SQLException {
+		long inicio = System.nanoTime();
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		RegistroIdempotencia registro = RegistroIdempotencia.getInstance();
 		
-		java.sql.Date fechaSqlDate = new java.sql.Date(fecha.getTime());
-		java.sql.Timestamp horaTimestamp = new java.sql.Timestamp(hora.getTime());
-		//SimpleDateFormat formatoFecha = new SimpleDateFormat("dd/MM/yyyy HH:mm");
-		
-
 		Connection con = null;
-		PreparedStatement st = null;
-		ResultSet rs = null;
-		int precio;
-		int idViaje;
-		int nplazas;
-		//Dividimos el string de la hora para obtener solo la hora y los minutos
-		String horaDef=hora.toString().substring(0,5);
-		con=pool.getConnection();//Tomamos una conexión del pool de conexiones
+		int idViaje = 0;
+		int idTicket;
+		boolean repetida = false;
+		
 		try {
-			//establecemos una sentencia preparada que unira las tablas de recorridos y viajes y enontrara el 
-			//viaje que quiere el usuario y devuelve el precio, el id y el numero de plazas libres de viaje.
-			st=con.prepareStatement("SELECT PRECIO,IDVIAJE,NPLAZASLIBRES FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO"
-					+"WHERE b.ESTACIONORIGEN = ? AND b.ESTACIONDESTINO = ? AND a.FECHA = ? trunc(b.horaSalida) = trunc(?)");
-			st.setString(1, origen);//rellenamos con la ciudad de origen que recibimos 
-			st.setString(2, destino);//rellenamos con la ciudad de destino que recibimos 
-			st.setDate(3,fechaSqlDate);//rellenamos con la fecha de salida que recibimos
-			st.setTimestamp(4, horaTimestamp);//rellenamos con la hora que hemos recortado previamente
-			rs=st.executeQuery(); //ejecutamos la sentencia
-		}catch (SQLException e) {//en caso de que falle la ejecución de la sentencia  y salte un error sql
-			con.rollback();//Hacemos rollback por que ha saltado una exepción
-			LOGGER.error(e.getMessage()); //Gardamos el mensaje de error en el logger
-			st.close(); //cerramos la sentencia para liberar recursos
-			con.close(); //cerramos la conexion para liberar recursos
-			throw(e); //Volvemos a lanzar la excepción
+			con = pool.getConnection();//Tomamos una conexión del pool de conexiones
+			
+			//si la petición ya se hizo, se repite su resultado sin tocar viajes ni tickets
+			RegistroIdempotencia.Resultado previo = clave == null ? null
+					: registro.buscar(con, RegistroIdempotencia.COMPRA, clave);
+			if (previo != null) {
+				repetida = true;
+				return previo.repetir();
+			}
+			
+			//buscamos el viaje que quiere el usuario (lanza NO_EXISTE_VIAJE si no existe) y obtenemos
+			//su id y el precio por plaza, normalmente sin ir a la base de datos
+			DatosViaje viaje = CacheViajes.getInstance().resolver(con, hora, fecha, origen, destino);
+			idViaje = viaje.getIdViaje();//Guardamos el id del viaje
+			
+			idTicket = venderPlazas(con, viaje, nroPlazas);
+			if (idTicket == 0) {//el viaje existe, luego si no se ha vendido es que no hay plazas
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			}
+			
+			//guardamos el ticket con la clave; si otra petición con la misma clave se ha confirmado antes
+			//(la inserción espera a que lo haga), deshacemos esta venta y devolvemos su ticket
+			if (clave != null) {
+				previo = registro.anotar(con, RegistroIdempotencia.COMPRA, clave, 0, idTicket);
+				if (previo != null) {
+					con.rollback();
+					deshacerEnMemoria(con, idViaje);
+					repetida = true;
+					return previo.repetir();
+				}
+			}
+			LOGGER.debug("Ticket {} comprado en el viaje {}", idTicket, idViaje);
+			
+			long secuencia = EventosServicio.confirmar(con::commit); //comitemaos los cambios
+			if (clave != null) {
+				registro.recordar(RegistroIdempotencia.COMPRA, clave, 0, idTicket);
+			}
+			EventosServicio.plazasCambiadas(secuencia, idViaje, -nroPlazas);
+		} catch (SQLException e) {//en caso de error sql o de negocio deshacemos la transacción
+			MetricasServicio.registrarError(e);
+			if (con != null) {
+				con.rollback();
+				deshacerEnMemoria(con, idViaje);
+			}
+			if (clave != null && con != null && !repetida && e instanceof CompraBilleteTrenException) {
+				//los rechazos tambien se guardan, para que al repetir la petición se rechace igual
+				RegistroIdempotencia.Resultado original = registro.anotarRechazo(con,
+						RegistroIdempotencia.COMPRA, clave, e.getErrorCode());
+				if (original != null) {//otra petición con la misma clave se confirmó antes
+					return original.repetir();
+				}
+			}
+			registrarFallo(e); //Gardamos el mensaje de error en el logger
+			throw (e); //Volvemos a lanzar la excepción
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarBillete", inicio);
+			// Devolvemos la conexión al pool; los asientos de una venta confirmada ya son suyos.
+			if (con != null) {
+				asientosSinConfirmar.remove(con);
+				con.close();
+			}
 		}
-		if(!rs.next()) {//Si el result set esta vacio significa que no existe un viaje con esos parametros
-			con.rollback();//hacemos rollback ya que vamos a lanza una excepción
-			// creamos la excepción para poderla lanzas y guardar su mensaje
-			CompraBilleteTrenException e=new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
-			LOGGER.error(e.getMessage());//Pasamos por el logger el mensaje de error
-			st.close(); //cerramos la sentencia para liberar recursos
-			con.close(); //cerramos la conexion para liberar recursos
-			throw (e);//Lanzamos la excepción que hemos creado
-			
-		}else {//en caso de que haya algo en el result set
-			
-			precio=rs.getInt(1);//Guardamos el precio viaje
-			idViaje=rs.getInt(2); //Guardamos el id del viaje 
-			nplazas=rs.getInt(3); //Guardamos el numero de plazas del viaje 
-			if(nplazas>=nroPlazas) {//Si hay suficiente plazas para reservar
-				try {
-				nplazas=nplazas-nroPlazas;// restamos el numero de plazas que queremos reservar  
-				//preparamos una sentencia para actualizar el numero de plazas libres del viaje que hemos cogido
-				st=con.prepareStatement("UPDATE viajes SET NPLAZASLIBRES = ? WHERE IDVIAJE=?");
-				st.setInt(1, nplazas);//el nuevo numero de plazas libres
-				st.setInt(2, idViaje); //introducimos el id del viaje que se ha seleccionado
-				st.executeUpdate();//Ejecutamos la actualización de la tabla
-				//preparamos una sentencia para añadir la nueva compra de ticket
-				st=con.prepareStatement("insert into tickets values(seq_tickets.nextval,?,CURRENT_DATE,?,?)");
-				st.setInt(1, idViaje);//introducimo el id del viaje que hemos cromprado
-				st.setInt(2,nroPlazas); //introducimos cuantas plazas hemos cogido
-				precio=precio*nroPlazas; //obtenemos el precio del ticket real ya que el precio anterior era el precio por plaza
-				st.setInt(3, precio);//introducimos el precio total
-				st.executeUpdate(); //ejecutamos la actualización de la tabla
-				con.commit(); //comitemaos los cambios
-				}catch(SQLException e) {//en caso de que falle la ejecución de la sentencia  y salte un error sql
-					con.rollback();//Hacemos rollback por que ha saltado una exepción
-					LOGGER.error(e.getMessage()); //Gardamos el mensaje de error en el logger
-					st.close(); //cerramos la sentencia para liberar recursos
-					con.close(); //cerramos la conexion para liberar recursos
-					throw(e); //Volvemos a lanzar la excepción
+		return idTicket;
+	}
+	
+	// Método que implementa la compra de varios billetes en una única transacción.
+	@Override
+	public List<ResultadoCompra> comprarBilletes(List<SolicitudCompra> solicitudes, ModoLote modo)
+			throws SQLException {
+		long inicio = System.nanoTime();
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		
+		Connection con = null;
+		PreparedStatement stPlazas = null;
+		PreparedStatement stTickets = null;
+		ResultadoCompra[] resultados = new ResultadoCompra[solicitudes.size()];
+		AsignadorTickets asignador = AsignadorTickets.getInstance();
+		
+		try {
+			con = pool.getConnection();//Tomamos una conexión del pool de conexiones
+			
+			// Resolvemos todos los viajes del lote (los que no estén en cache, en una sola consulta).
+			DatosViaje[] viajes = CacheViajes.getInstance().resolverTodos(con, solicitudes);
+			
+			// Descontamos las plazas de todas las compras con viaje en un único envío por lotes.
+			// Cada UPDATE solo afecta a la fila si quedan plazas, igual que en comprarBillete.
+			stPlazas = con.prepareStatement(UPDATE_DESCONTAR_PLAZAS);
+			boolean hayRechazos = false;
+			for (int i = 0; i < resultados.length; i++) {
+				SolicitudCompra s = solicitudes.get(i);
+				if (viajes[i] == null) {
+					resultados[i] = ResultadoCompra.rechazada(s, CompraBilleteTrenException.NO_EXISTE_VIAJE);
+					MetricasServicio.registrarError(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+					hayRechazos = true;
+				} else {
+					stPlazas.setInt(1, s.getNroPlazas());
+					stPlazas.setInt(2, viajes[i].getIdViaje());
+					stPlazas.setInt(3, s.getNroPlazas());
+					stPlazas.addBatch();
+				}
+			}
+			
+			if (!(hayRechazos && modo == ModoLote.TODO_O_NADA)) {
+				int[] filas = stPlazas.executeBatch();
+				if (sinNumeroDeFilas(filas)) {
+					// El driver no informa de las filas de cada sentencia del lote: repetimos una a una.
+					con.rollback();
+					filas = descontarUnoAUno(stPlazas, solicitudes, viajes);
+				}
+				
+				// Damos de alta un ticket por cada compra con plazas, de nuevo en un solo envío.
+				stTickets = con.prepareStatement(INSERT_TICKET);
+				int j = 0;
+				for (int i = 0; i < resultados.length; i++) {
+					if (viajes[i] == null) {
+						continue;
+					}
+					SolicitudCompra s = solicitudes.get(i);
+					if (filas[j++] == 0) {
+						resultados[i] = ResultadoCompra.rechazada(s, CompraBilleteTrenException.NO_PLAZAS);
+						MetricasServicio.registrarError(CompraBilleteTrenException.NO_PLAZAS);
+						hayRechazos = true;
+					} else {
+						int idTicket = asignador.siguiente(con);
+						stTickets.setInt(1, idTicket);
+						stTickets.setInt(2, viajes[i].getIdViaje());
+						stTickets.setInt(3, s.getNroPlazas());
+						stTickets.setInt(4, viajes[i].getPrecio() * s.getNroPlazas());
+						stTickets.addBatch();
+						resultados[i] = ResultadoCompra.confirmada(s, idTicket);
+					}
 				}
-			}else {
-				con.rollback();//hacemos rollback ya que vamos a lanza una excepción
-				// creamos la excepción para poderla lanzas y guardar su mensaje
-				CompraBilleteTrenException e=new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
-				LOGGER.error(e.getMessage());//Pasamos por el logger el mensaje de error
-				st.close(); //cerramos la sentencia para liberar recursos
-				con.close(); //cerramos la conexion para liberar recursos
-				throw (e);//Lanzamos la excepción que hemos creado
 			}
 			
+			if (hayRechazos && modo == ModoLote.TODO_O_NADA) {
+				// Basta un rechazo para no realizar ninguna compra del lote.
+				con.rollback();
+				for (int i = 0; i < resultados.length; i++) {
+					if (resultados[i] != null && resultados[i].isConfirmada()) {
+						asignador.devolver(resultados[i].getIdTicket());
+					}
+					if (resultados[i] == null || resultados[i].isConfirmada()) {
+						resultados[i] = ResultadoCompra.descartada(solicitudes.get(i));
+					}
+				}
+			} else {
+				if (stTickets != null) stTickets.executeBatch();
+				long secuencia = EventosServicio.confirmar(con::commit); //un único commit para todo el lote
+				for (int i = 0; i < resultados.length; i++) {
+					if (resultados[i].isConfirmada()) {
+						EventosServicio.plazasCambiadas(secuencia, viajes[i].getIdViaje(),
+								-solicitudes.get(i).getNroPlazas());
+					}
+				}
+			}
+		} catch (SQLException e) {//en caso de error sql deshacemos el lote completo
+			MetricasServicio.registrarError(e);
+			if (con != null) con.rollback();
+			registrarFallo(e); //Gardamos el mensaje de error en el logger
+			throw (e); //Volvemos a lanzar la excepción
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarBilletes", inicio);
+			// Cerramos las sentencias y la conexión para liberar recursos.
+			if (stPlazas != null) stPlazas.close();
+			if (stTickets != null) stTickets.close();
+			if (con != null) con.close();
 		}
-			st.close();//cerramos la sentencia para liberar recursos
-			con.close(); //cerramos la conexión para liberar recursos
+		return Arrays.asList(resultados);
+	}
+	
+	/**
+	 * Descuenta las plazas del viaje, si quedan suficientes, y da de alta el
+	 * ticket con sus asientos, sin confirmar la transacción.
+	 * 
+	 * @param con       conexión de la transacción
+	 * @param viaje     viaje de la compra
+	 * @param nroPlazas plazas a comprar
+	 * @return id del ticket, o 0 si no quedan plazas suficientes
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	protected int venderPlazas(Connection con, DatosViaje viaje, int nroPlazas) throws SQLException {
+		// El id del ticket se asigna en el cliente, sin consultar la secuencia en cada compra.
+		AsignadorTickets asignador = AsignadorTickets.getInstance();
+		int idTicket = asignador.siguiente(con);
 		
+		// Los asientos tambien se escogen en memoria; seguidos se dan de alta en el mismo bloque.
+		// Una compra sin plazas no tiene asientos que asignar.
+		AsientosViajes mapaAsientos = AsientosViajes.getInstance();
+		int[] asientos = nroPlazas > 0 ? mapaAsientos.asignar(con, viaje.getIdViaje(), nroPlazas) : null;
+		boolean seguidos = asientos != null && asientos[nroPlazas - 1] - asientos[0] == nroPlazas - 1;
 		
+		// Descontamos las plazas e insertamos el ticket en una sola llamada a la base de datos.
+		// El UPDATE solo afecta a la fila si quedan plazas suficientes y el bloqueo de fila
+		// serializa a los compradores del mismo viaje, asi que no se puede vender de mas.
+		try (CallableStatement cst = con.prepareCall(COMPRA_ATOMICA)) {
+			cst.setInt(1, nroPlazas);
+			cst.setInt(2, viaje.getIdViaje());
+			cst.setInt(3, nroPlazas);
+			cst.registerOutParameter(4, Types.INTEGER);//filas actualizadas en viajes
+			cst.setInt(5, idTicket);
+			cst.setInt(6, viaje.getIdViaje());
+			cst.setInt(7, nroPlazas);
+			cst.setInt(8, viaje.getPrecio() * nroPlazas);//precio total del ticket
+			cst.setInt(9, seguidos ? nroPlazas : 0);
+			cst.setInt(10, viaje.getIdViaje());
+			cst.setInt(11, seguidos ? asientos[0] : 0);
+			cst.setInt(12, idTicket);
+			cst.setInt(13, seguidos ? nroPlazas : 0);
+			cst.execute();
+			if (cst.getInt(4) == 0) {//sin plazas: el id y los asientos quedan para la siguiente compra
+				asignador.devolver(idTicket);
+				if (asientos != null) {
+					mapaAsientos.liberar(viaje.getIdViaje(), asientos);
+				}
+				return 0;
+			}
+		}
+		if (asientos != null) {
+			asientosSinConfirmar.put(con, asientos);
+			if (!seguidos) {
+				insertarAsientos(con, viaje.getIdViaje(), idTicket, asientos);
+			}
+		}
+		return idTicket;
+	}
+	
+	/**
+	 * Se llama tras deshacer una compra o anulación, también cuando se deshace
+	 * porque su clave ya se había usado, para deshacer lo que haya cambiado en
+	 * memoria. Los asientos asignados en memoria no llegan a la base de datos:
+	 * se devuelven al mapa los de la venta deshecha.
+	 * 
+	 * @param con     conexión de la transacción deshecha
+	 * @param idViaje viaje de la operación, o 0 si no se llegó a resolver
+	 */
+	protected void deshacerEnMemoria(Connection con, int idViaje) {
+		int[] asientos = asientosSinConfirmar.remove(con);
+		if (asientos != null) {
+			AsientosViajes.getInstance().liberar(idViaje, asientos);
+		}
+	}
+	
+	// Da de alta asientos sueltos de un ticket, cuando no quedan suficientes seguidos.
+	private static void insertarAsientos(Connection con, int idViaje, int idTicket, int[] asientos)
+			throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(AsientosViajes.INSERT_ASIENTO)) {
+			for (int asiento : asientos) {
+				st.setInt(1, idViaje);
+				st.setInt(2, asiento);
+				st.setInt(3, idTicket);
+				st.addBatch();
+			}
+			st.executeBatch();
+		}
+	}
+	
+	/**
+	 * Devuelve al viaje las plazas de una anulación, sin confirmar la
+	 * transacción.
+	 * 
+	 * @param con       conexión de la transacción
+	 * @param idViaje   viaje del ticket anulado
+	 * @param idTicket  ticket anulado
+	 * @param nroPlazas plazas anuladas
+	 * @return lo que cambian las plazas libres del viaje
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	protected int devolverPlazas(Connection con, int idViaje, int idTicket, int nroPlazas) throws SQLException {
+		try (PreparedStatement st = con.prepareStatement(UPDATE_PLAZAS_LIBRES)) {
+			st.setInt(1, nroPlazas);
+			st.setInt(2, idViaje);
+			st.executeUpdate();
+		}
+		return nroPlazas;
+	}
+	
+	// Los rechazos de negocio (sin plazas, sin viaje...) son resultados normales y solo se trazan en
+	// depuración; los errores de la base de datos se registran con su traza completa.
+	private static void registrarFallo(SQLException e) {
+		if (e instanceof CompraBilleteTrenException) {
+			LOGGER.debug(e.getMessage());
+		} else {
+			LOGGER.error(e.getMessage(), e);
+		}
+	}
+	
+	// Indica si el driver ha ejecutado el lote sin informar de las filas afectadas por cada sentencia.
+	private static boolean sinNumeroDeFilas(int[] filas) {
+		for (int f : filas) {
+			if (f == Statement.SUCCESS_NO_INFO) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Ejecuta los descuentos de plazas del lote de uno en uno para conocer las filas de cada uno.
+	private static int[] descontarUnoAUno(PreparedStatement st, List<SolicitudCompra> solicitudes,
+			DatosViaje[] viajes) throws SQLException {
+		st.clearBatch();
+		int[] filas = new int[viajes.length];
+		int j = 0;
+		for (int i = 0; i < viajes.length; i++) {
+			if (viajes[i] != null) {
+				int nroPlazas = solicitudes.get(i).getNroPlazas();
+				st.setInt(1, nroPlazas);
+				st.setInt(2, viajes[i].getIdViaje());
+				st.setInt(3, nroPlazas);
+				filas[j++] = st.executeUpdate();
+			}
+		}
+		return filas;
 	}
 }
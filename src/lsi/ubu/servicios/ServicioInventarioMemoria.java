@@ -0,0 +1,401 @@
+package lsi.ubu.servicios;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Implementacion de {@link Servicio} que decide compras y anulaciones sobre
+ * contadores de plazas en memoria, pensada para ventas masivas en las que todos
+ * los compradores compiten por la misma fila de {@code viajes}.
+ *
+ * <p>
+ * Cada movimiento se anota en un {@link DiarioCompras} antes de confirmarse y un
+ * hilo de fondo lo vuelca a {@code viajes}/{@code tickets} en transacciones por
+ * lotes (diferencia neta de plazas por viaje e inserciones de tickets). Al
+ * arrancar se reaplican los movimientos del diario que no llegaron a la base de
+ * datos y despues se carga el estado de los viajes y tickets.
+ *
+ * <p>
+ * Mientras esta activo se asume que es el unico que modifica plazas y tickets
+ * de la base de datos.
+ */
+public class ServicioInventarioMemoria implements Servicio, AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioInventarioMemoria.class);
+
+	private static final int TAMANO_LOTE = 500;
+
+	private static final String SELECT_VIAJES = "SELECT a.IDVIAJE, a.NPLAZASLIBRES, b.PRECIO, b.ESTACIONORIGEN, "
+			+ "b.ESTACIONDESTINO, a.FECHA, to_char(b.horaSalida, 'HH24:MI') "
+			+ "FROM viajes a JOIN recorridos b ON a.IDRECORRIDO = b.IDRECORRIDO";
+	private static final String SELECT_TICKETS = "SELECT IDTICKET, IDVIAJE, CANTIDAD FROM tickets";
+	private static final String SELECT_CANTIDAD_TICKET = "SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?";
+	private static final String INSERT_TICKET = "INSERT INTO tickets VALUES (?, ?, ?, ?, ?)";
+	private static final String UPDATE_TICKET = "UPDATE tickets SET CANTIDAD = ? WHERE IDTICKET = ?";
+	private static final String DELETE_TICKET = "DELETE FROM tickets WHERE IDTICKET = ?";
+	private static final String UPDATE_PLAZAS = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = ?";
+
+	private final Path rutaDiario;
+	private final boolean sincronizarDiario;
+	private final long intervaloVolcadoMs;
+
+	private final Map<String, ViajeEnMemoria> viajesPorClave = new ConcurrentHashMap<>();
+	private final Map<Integer, ViajeEnMemoria> viajesPorId = new ConcurrentHashMap<>();
+	private final Map<Integer, TicketEnMemoria> tickets = new ConcurrentHashMap<>();
+
+	private DiarioCompras diario;
+	private ScheduledExecutorService volcador;
+
+	/** Lote extraido del diario cuyo volcado ha fallado y se reintentara. */
+	private List<Movimiento> loteFallido;
+
+	/**
+	 * Crea el servicio. Hay que llamar a {@link #iniciar()} antes de usarlo.
+	 *
+	 * @param rutaDiario         fichero del diario de recuperacion
+	 * @param sincronizarDiario  si cada movimiento se fuerza a disco antes de
+	 *                           confirmarse
+	 * @param intervaloVolcadoMs milisegundos entre volcados a la base de datos
+	 */
+	public ServicioInventarioMemoria(Path rutaDiario, boolean sincronizarDiario, long intervaloVolcadoMs) {
+		this.rutaDiario = rutaDiario;
+		this.sincronizarDiario = sincronizarDiario;
+		this.intervaloVolcadoMs = intervaloVolcadoMs;
+	}
+
+	/**
+	 * Reaplica el diario pendiente, carga el inventario desde la base de datos y
+	 * arranca el volcado periodico.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 * @throws IOException  si no se puede leer o abrir el diario
+	 */
+	public void iniciar() throws SQLException, IOException {
+		diario = new DiarioCompras(rutaDiario, sincronizarDiario);
+		try {
+			recuperar(diario.recuperar());
+			cargar();
+		} catch (SQLException | IOException | RuntimeException e) {
+			diario.cerrar();
+			throw e;
+		}
+
+		volcador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "volcado-inventario");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		volcador.scheduleWithFixedDelay(this::volcar, intervaloVolcadoMs, intervaloVolcadoMs, TimeUnit.MILLISECONDS);
+		LOGGER.info("Inventario en memoria iniciado con {} viajes y {} tickets", viajesPorClave.size(), tickets.size());
+	}
+
+	@Override
+	public int comprarBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		ViajeEnMemoria viaje = viajesPorClave.get(clave(origen, destino, fecha, hora));
+		if (viaje == null) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+		}
+
+		// Descuento sin bloqueos: solo se aplica si nadie ha cambiado el contador entremedias.
+		int libres;
+		do {
+			libres = viaje.plazasLibres.get();
+			if (libres < nroPlazas) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			}
+		} while (!viaje.plazasLibres.compareAndSet(libres, libres - nroPlazas));
+
+		// Los ids salen de seq_tickets, como en los demas servicios; el primer bloque se reserva al
+		// iniciar y los siguientes con una conexion del pool al agotarse.
+		int idTicket;
+		try {
+			idTicket = AsignadorTickets.getInstance().siguiente();
+		} catch (SQLException e) {
+			viaje.plazasLibres.addAndGet(nroPlazas);
+			throw e;
+		}
+		Movimiento compra = Movimiento.compra(idTicket, viaje.idViaje, nroPlazas, viaje.precio * nroPlazas,
+				LocalDate.now().toEpochDay());
+		try {
+			diario.registrar(compra);
+		} catch (IOException e) {
+			viaje.plazasLibres.addAndGet(nroPlazas);
+			AsignadorTickets.getInstance().devolver(idTicket);
+			throw new SQLException("No se ha podido registrar la compra en el diario", e);
+		}
+		tickets.put(idTicket, new TicketEnMemoria(viaje.idViaje, nroPlazas));
+		EventosServicio.plazasCambiadas(viaje.idViaje, -nroPlazas);
+		return idTicket;
+	}
+
+	@Override
+	public void anularBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas,
+			int ticket) throws SQLException {
+		ViajeEnMemoria viaje = viajesPorClave.get(clave(origen, destino, fecha, hora));
+		if (viaje == null) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+		}
+		TicketEnMemoria reserva = tickets.get(ticket);
+		if (reserva == null) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+		}
+
+		int cantidad;
+		do {
+			cantidad = reserva.cantidad.get();
+			if (cantidad == 0) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+			}
+			if (nroPlazas > cantidad) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_RESERVAS);
+			}
+		} while (!reserva.cantidad.compareAndSet(cantidad, cantidad - nroPlazas));
+
+		try {
+			diario.registrar(Movimiento.anulacion(ticket, reserva.idViaje, nroPlazas, cantidad, cantidad - nroPlazas));
+		} catch (IOException e) {
+			reserva.cantidad.addAndGet(nroPlazas);
+			throw new SQLException("No se ha podido registrar la anulacion en el diario", e);
+		}
+		viajesPorId.get(reserva.idViaje).plazasLibres.addAndGet(nroPlazas);
+		EventosServicio.plazasCambiadas(reserva.idViaje, nroPlazas);
+		if (cantidad == nroPlazas) {
+			tickets.remove(ticket);
+		}
+	}
+
+	/**
+	 * Detiene el volcado periodico y vuelca lo que quede pendiente.
+	 */
+	@Override
+	public void close() throws SQLException, IOException {
+		if (volcador != null) {
+			volcador.shutdown();
+			try {
+				volcador.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		volcar();
+		diario.cerrar();
+	}
+
+	/**
+	 * Vuelca a la base de datos los movimientos pendientes, lote a lote, y anota
+	 * en el diario lo que ya esta aplicado. Si un lote falla se reintenta en la
+	 * siguiente pasada, descartando antes lo que ya este en la base de datos: el
+	 * commit puede haberse confirmado aunque se perdiera la respuesta.
+	 */
+	void volcar() {
+		try {
+			while (true) {
+				boolean reintento = loteFallido != null;
+				List<Movimiento> lote = reintento ? loteFallido : diario.extraerPendientes(TAMANO_LOTE);
+				if (lote.isEmpty()) {
+					return;
+				}
+				loteFallido = lote;
+				List<Movimiento> porAplicar = reintento ? noAplicados(lote) : lote;
+				if (!porAplicar.isEmpty()) {
+					aplicar(porAplicar);
+				}
+				loteFallido = null;
+				diario.confirmarHasta(lote.get(lote.size() - 1).secuencia);
+			}
+		} catch (SQLException | IOException e) {
+			LOGGER.error("Error volcando el inventario, se reintentara: {}", e.getMessage());
+		}
+	}
+
+	// Aplica un lote de movimientos en una unica transaccion.
+	private void aplicar(List<Movimiento> lote) throws SQLException {
+		Map<Integer, Integer> deltaPlazas = new HashMap<>();
+		Map<Integer, Movimiento> compras = new LinkedHashMap<>();
+		Map<Integer, Integer> cantidadFinal = new LinkedHashMap<>();
+
+		for (Movimiento m : lote) {
+			if (m.esCompra()) {
+				deltaPlazas.merge(m.idViaje, -m.plazas, Integer::sum);
+				compras.put(m.idTicket, m);
+				cantidadFinal.put(m.idTicket, m.plazas);
+			} else {
+				deltaPlazas.merge(m.idViaje, m.plazas, Integer::sum);
+				cantidadFinal.put(m.idTicket, m.cantidadDespues());
+			}
+		}
+
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement insert = con.prepareStatement(INSERT_TICKET);
+				PreparedStatement update = con.prepareStatement(UPDATE_TICKET);
+				PreparedStatement delete = con.prepareStatement(DELETE_TICKET);
+				PreparedStatement plazas = con.prepareStatement(UPDATE_PLAZAS)) {
+
+			for (Map.Entry<Integer, Integer> e : cantidadFinal.entrySet()) {
+				Movimiento compra = compras.get(e.getKey());
+				int cantidad = e.getValue();
+				if (compra != null) {
+					if (cantidad > 0) {// comprado y anulado dentro del mismo lote: no llega a insertarse
+						insert.setInt(1, compra.idTicket);
+						insert.setInt(2, compra.idViaje);
+						insert.setDate(3, java.sql.Date.valueOf(LocalDate.ofEpochDay(compra.diaCompra())));
+						insert.setInt(4, cantidad);
+						insert.setInt(5, compra.precioTotal());
+						insert.addBatch();
+					}
+				} else if (cantidad > 0) {
+					update.setInt(1, cantidad);
+					update.setInt(2, e.getKey());
+					update.addBatch();
+				} else {
+					delete.setInt(1, e.getKey());
+					delete.addBatch();
+				}
+			}
+			for (Map.Entry<Integer, Integer> e : deltaPlazas.entrySet()) {
+				if (e.getValue() != 0) {
+					plazas.setInt(1, e.getValue());
+					plazas.setInt(2, e.getKey());
+					plazas.addBatch();
+				}
+			}
+
+			insert.executeBatch();
+			update.executeBatch();
+			delete.executeBatch();
+			plazas.executeBatch();
+			con.commit();
+			LOGGER.debug("Volcados {} movimientos a la base de datos", lote.size());
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+		}
+	}
+
+	// Reaplica los movimientos del diario que no llegaron a la base de datos.
+	private void recuperar(List<Movimiento> movimientos) throws SQLException, IOException {
+		if (movimientos.isEmpty()) {
+			return;
+		}
+
+		// Los lotes se aplican enteros o no se aplican, pero el punto de control puede
+		// haberse perdido tras el commit.
+		List<Movimiento> noAplicados = noAplicados(movimientos);
+		if (!noAplicados.isEmpty()) {
+			aplicar(noAplicados);
+		}
+		diario.confirmarHasta(movimientos.get(movimientos.size() - 1).secuencia);
+		LOGGER.info("Recuperados {} movimientos del diario", noAplicados.size());
+	}
+
+	// Simula la cantidad de cada ticket partiendo de la base de datos para descartar los
+	// movimientos que ya estan aplicados.
+	private List<Movimiento> noAplicados(List<Movimiento> movimientos) throws SQLException {
+		Map<Integer, Integer> cantidades = new HashMap<>();
+		List<Movimiento> noAplicados = new ArrayList<>();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement st = con.prepareStatement(SELECT_CANTIDAD_TICKET)) {
+			for (Movimiento m : movimientos) {
+				Integer actual = cantidades.get(m.idTicket);
+				if (actual == null) {
+					st.setInt(1, m.idTicket);
+					try (ResultSet rs = st.executeQuery()) {
+						actual = rs.next() ? rs.getInt(1) : null;
+					}
+				}
+				if (m.esCompra() ? actual == null : actual != null && actual == m.cantidadAntes()) {
+					noAplicados.add(m);
+					cantidades.put(m.idTicket, m.esCompra() ? m.plazas : m.cantidadDespues());
+				} else if (actual != null) {
+					cantidades.put(m.idTicket, actual);
+				}
+			}
+			con.commit();
+		} finally {
+			con.close();
+		}
+		return noAplicados;
+	}
+
+	// Carga los viajes y tickets de la base de datos.
+	private void cargar() throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement stViajes = con.prepareStatement(SELECT_VIAJES);
+				PreparedStatement stTickets = con.prepareStatement(SELECT_TICKETS);
+				ResultSet viajes = stViajes.executeQuery();
+				ResultSet rsTickets = stTickets.executeQuery()) {
+			while (viajes.next()) {
+				ViajeEnMemoria viaje = new ViajeEnMemoria(viajes.getInt(1), viajes.getInt(2), viajes.getInt(3));
+				String clave = clave(viajes.getString(4), viajes.getString(5), viajes.getDate(6).toLocalDate(),
+						viajes.getString(7));
+				viajesPorClave.put(clave, viaje);
+				viajesPorId.put(viaje.idViaje, viaje);
+			}
+			while (rsTickets.next()) {
+				tickets.put(rsTickets.getInt(1), new TicketEnMemoria(rsTickets.getInt(2), rsTickets.getInt(3)));
+			}
+			AsignadorTickets.getInstance().precargar(con);
+			con.commit();
+		} finally {
+			con.close();
+		}
+	}
+
+	private static String clave(String origen, String destino, java.util.Date fecha, Time hora) {
+		return clave(origen, destino, new java.sql.Date(fecha.getTime()).toLocalDate(),
+				hora.toString().substring(0, 5));
+	}
+
+	private static String clave(String origen, String destino, LocalDate fecha, String hora) {
+		return origen + '|' + destino + '|' + fecha + '|' + hora;
+	}
+
+	// Viaje cargado en memoria con su contador de plazas libres.
+	private static final class ViajeEnMemoria {
+		final int idViaje;
+		final int precio;
+		final AtomicInteger plazasLibres;
+
+		ViajeEnMemoria(int idViaje, int plazasLibres, int precio) {
+			this.idViaje = idViaje;
+			this.precio = precio;
+			this.plazasLibres = new AtomicInteger(plazasLibres);
+		}
+	}
+
+	// Ticket vigente con las plazas que aun se pueden anular.
+	private static final class TicketEnMemoria {
+		final int idViaje;
+		final AtomicInteger cantidad;
+
+		TicketEnMemoria(int idViaje, int cantidad) {
+			this.idViaje = idViaje;
+			this.cantidad = new AtomicInteger(cantidad);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.List;
+
+import lsi.ubu.util.EjecutorReintentos;
+
+/**
+ * Servicio que repite las operaciones de otro cuando fallan por errores
+ * transitorios de la base de datos, con un {@link EjecutorReintentos}. Los
+ * rechazos de negocio nunca se repiten.
+ *
+ * <p>
+ * Las compras y anulaciones sin clave de idempotencia solo se repiten si el
+ * error garantiza que no se hizo nada (interbloqueo, fallo de serializacion,
+ * recurso bloqueado o pool sin conexiones libres); con clave, y en las
+ * busquedas, tambien tras perder la conexion. Las compras por lotes se repiten
+ * en modo {@link ModoLote#TODO_O_NADA}; en {@link ModoLote#MEJOR_ESFUERZO} el
+ * servicio delegado puede haber confirmado parte del lote, asi que no se
+ * repiten.
+ */
+public class ServicioReintentos implements Servicio {
+
+	private final Servicio servicio;
+	private final EjecutorReintentos ejecutor;
+
+	/**
+	 * Crea el servicio con el ejecutor compartido.
+	 *
+	 * @param servicio servicio al que se delegan las llamadas
+	 */
+	public ServicioReintentos(Servicio servicio) {
+		this(servicio, EjecutorReintentos.getInstance());
+	}
+
+	/**
+	 * Crea el servicio.
+	 *
+	 * @param servicio servicio al que se delegan las llamadas
+	 * @param ejecutor ejecutor de los reintentos
+	 */
+	public ServicioReintentos(Servicio servicio, EjecutorReintentos ejecutor) {
+		this.servicio = servicio;
+		this.ejecutor = ejecutor;
+	}
+
+	@Override
+	public void anularBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas, int ticket)
+			throws SQLException {
+		ejecutor.ejecutar("anularBillete", false, () -> {
+			servicio.anularBillete(hora, fecha, origen, destino, nroPlazas, ticket);
+			return null;
+		});
+	}
+
+	@Override
+	public void anularBillete(String clave, Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas, int ticket) throws SQLException {
+		ejecutor.ejecutar("anularBillete", true, () -> {
+			servicio.anularBillete(clave, hora, fecha, origen, destino, nroPlazas, ticket);
+			return null;
+		});
+	}
+
+	@Override
+	public int comprarBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		return ejecutor.ejecutar("comprarBillete", false,
+				() -> servicio.comprarBillete(hora, fecha, origen, destino, nroPlazas));
+	}
+
+	@Override
+	public int comprarBillete(String clave, Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas) throws SQLException {
+		return ejecutor.ejecutar("comprarBillete", true,
+				() -> servicio.comprarBillete(clave, hora, fecha, origen, destino, nroPlazas));
+	}
+
+	@Override
+	public List<ResultadoCompra> comprarBilletes(List<SolicitudCompra> solicitudes, ModoLote modo)
+			throws SQLException {
+		if (modo != ModoLote.TODO_O_NADA) {
+			return servicio.comprarBilletes(solicitudes, modo);
+		}
+		return ejecutor.ejecutar("comprarBilletes", false, () -> servicio.comprarBilletes(solicitudes, modo));
+	}
+
+	@Override
+	public List<Salida> buscarSalidas(String origen, String destino, java.util.Date desde, java.util.Date hasta)
+			throws SQLException {
+		return ejecutor.ejecutar("buscarSalidas", true, () -> servicio.buscarSalidas(origen, destino, desde, hasta));
+	}
+}
@@ -0,0 +1,107 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.metricas.MetricasServicio;
+
+/**
+ * {@link Servicio} con las mismas reglas que {@link ServicioImpl} escrito sobre
+ * un {@link AlmacenBilletes}, de modo que funciona igual contra Oracle
+ * ({@link AlmacenOracle}) que sin servidor ({@link AlmacenMemoria}).
+ * {@link ServicioImpl} sigue siendo la implementacion ajustada para Oracle: la
+ * compra aqui cuesta dos sentencias en lugar del bloque PL/SQL, y las
+ * busquedas de salidas las resuelve el almacen en lugar de
+ * {@link IndiceDisponibilidad}. Los cambios de plazas solo se publican en
+ * {@link EventosServicio} si el almacen es la base de datos de la aplicacion
+ * ({@link AlmacenBilletes#publicaEventos()}).
+ */
+public class ServicioRepositorio implements Servicio {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioRepositorio.class);
+
+	private final AlmacenBilletes almacen;
+
+	/**
+	 * @param almacen almacen de viajes y tickets
+	 */
+	public ServicioRepositorio(AlmacenBilletes almacen) {
+		this.almacen = almacen;
+	}
+
+	@Override
+	public int comprarBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas)
+			throws SQLException {
+		long inicio = System.nanoTime();
+		try (TransaccionAlmacen tx = almacen.iniciar()) {
+			DatosViaje viaje = tx.buscarViaje(hora, fecha, origen, destino);
+			if (!tx.descontarPlazas(viaje.getIdViaje(), nroPlazas)) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			}
+			int idTicket = tx.insertarTicket(viaje, nroPlazas);
+			if (almacen.publicaEventos()) {
+				long secuencia = EventosServicio.confirmar(tx::confirmar);
+				EventosServicio.plazasCambiadas(secuencia, viaje.getIdViaje(), -nroPlazas);
+			} else {
+				tx.confirmar();
+			}
+			return idTicket;
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			registrarFallo(e);
+			throw e;
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarBillete", inicio);
+		}
+	}
+
+	@Override
+	public void anularBillete(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas,
+			int idTicket) throws SQLException {
+		long inicio = System.nanoTime();
+		try (TransaccionAlmacen tx = almacen.iniciar()) {
+			int idViaje = tx.buscarViaje(hora, fecha, origen, destino).getIdViaje();
+			int reservadas = tx.cantidadTicket(idTicket);
+			if (reservadas == 0) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+			}
+			if (nroPlazas > reservadas) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_RESERVAS);
+			}
+			// Como en ServicioImpl, se devuelven las plazas al viaje indicado en la llamada.
+			tx.devolverPlazas(idViaje, nroPlazas);
+			tx.cambiarCantidadTicket(idTicket, reservadas - nroPlazas);
+			if (almacen.publicaEventos()) {
+				long secuencia = EventosServicio.confirmar(tx::confirmar);
+				EventosServicio.plazasCambiadas(secuencia, idViaje, nroPlazas);
+			} else {
+				tx.confirmar();
+			}
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			registrarFallo(e);
+			throw e;
+		} finally {
+			MetricasServicio.registrarTransaccion("anularBillete", inicio);
+		}
+	}
+
+	@Override
+	public List<Salida> buscarSalidas(String origen, String destino, java.util.Date desde, java.util.Date hasta)
+			throws SQLException {
+		return almacen.buscarSalidas(origen, destino, desde, hasta);
+	}
+
+	private static void registrarFallo(SQLException e) {
+		if (e instanceof CompraBilleteTrenException) {
+			LOGGER.debug(e.getMessage());
+		} else {
+			LOGGER.error(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package lsi.ubu.servicios;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.MetricasServicio;
+
+/**
+ * Servicio para recorridos con paradas intermedias. Las paradas de un
+ * recorrido ({@code paradasRecorrido}) lo dividen en tramos y cada viaje lleva
+ * las plazas libres de cada tramo en {@code plazasTramo}; un billete entre dos
+ * paradas descuenta, en una sola sentencia, todos los tramos que recorre.
+ * Ningun tramo puede quedar en negativo (restriccion check de la tabla), asi
+ * que si a alguno le faltan plazas no se descuenta ninguno.
+ *
+ * <p>
+ * En esos viajes {@code NPLAZASLIBRES} son las plazas para el recorrido
+ * completo: cada venta o anulacion le suma, en la misma transaccion, lo que ha
+ * cambiado el minimo de los tramos, de modo que no pisa lo que hayan descontado
+ * otros servicios. Las compras del recorrido completo de {@link Servicio}
+ * descuentan todos los tramos y sus anulaciones devuelven las plazas a los
+ * tramos del ticket; los viajes sin paradas se venden como en
+ * {@link ServicioImpl}; un ticket de un tramo no se anula con otro viaje
+ * (NO_TICKET). Mientras un viaje tiene tramos solo este servicio debe vender o
+ * anular sus plazas, y no admite claves de idempotencia.
+ *
+ * <p>
+ * Las plazas libres entre dos paradas se responden desde un
+ * {@link ArbolTramos} en memoria por viaje, cargado la primera vez que se usa y
+ * descartado cuando {@link ExecuteScript} recarga las tablas. Las ventas y
+ * anulaciones de {@link Servicio} lo cambian antes de confirmar; si se
+ * deshacen, se descarta el del viaje para volver a leerlo.
+ */
+public class ServicioTramos extends ServicioImpl {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServicioTramos.class);
+
+	// Bloquea el viaje, para que el minimo de los tramos no cambie por debajo, y descuenta los tramos;
+	// si alguno quedaria en negativo la sentencia entera falla con ORA-02290 y no se vende. Si se
+	// vende, suma a NPLAZASLIBRES lo que ha cambiado el minimo y da de alta el ticket y, si se pide,
+	// sus tramos.
+	private static final String VENTA_TRAMOS = "DECLARE "
+			+ "sin_plazas EXCEPTION; PRAGMA EXCEPTION_INIT(sin_plazas, -2290); "
+			+ "v INTEGER := ?; n INTEGER := ?; d INTEGER := ?; h INTEGER := ?; t INTEGER := ?; "
+			+ "libres INTEGER; antes INTEGER; despues INTEGER; vendido INTEGER := 0; "
+			+ "BEGIN "
+			+ "SELECT NPLAZASLIBRES INTO libres FROM viajes WHERE IDVIAJE = v FOR UPDATE; "
+			+ "SELECT MIN(PLAZAS) INTO antes FROM plazasTramo WHERE IDVIAJE = v; "
+			+ "despues := antes; "
+			+ "BEGIN "
+			+ "UPDATE plazasTramo SET PLAZAS = PLAZAS - n WHERE IDVIAJE = v AND TRAMO BETWEEN d AND h; "
+			+ "vendido := 1; "
+			+ "EXCEPTION WHEN sin_plazas THEN vendido := 0; "
+			+ "END; "
+			+ "IF vendido = 1 THEN "
+			+ "SELECT MIN(PLAZAS) INTO despues FROM plazasTramo WHERE IDVIAJE = v; "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + despues - antes WHERE IDVIAJE = v; "
+			+ "INSERT INTO tickets VALUES (t, v, CURRENT_DATE, n, ?); "
+			+ "IF ? = 1 THEN INSERT INTO ticketsTramos VALUES (t, d, h); END IF; "
+			+ "END IF; "
+			+ "? := despues - antes; "
+			+ "? := vendido; "
+			+ "END;";
+
+	// Devuelve las plazas a los tramos y suma a NPLAZASLIBRES lo que ha cambiado el minimo.
+	private static final String DEVOLUCION_TRAMOS = "DECLARE "
+			+ "v INTEGER := ?; n INTEGER := ?; d INTEGER := ?; h INTEGER := ?; "
+			+ "libres INTEGER; antes INTEGER; despues INTEGER; "
+			+ "BEGIN "
+			+ "SELECT NPLAZASLIBRES INTO libres FROM viajes WHERE IDVIAJE = v FOR UPDATE; "
+			+ "SELECT MIN(PLAZAS) INTO antes FROM plazasTramo WHERE IDVIAJE = v; "
+			+ "UPDATE plazasTramo SET PLAZAS = PLAZAS + n WHERE IDVIAJE = v AND TRAMO BETWEEN d AND h; "
+			+ "SELECT MIN(PLAZAS) INTO despues FROM plazasTramo WHERE IDVIAJE = v; "
+			+ "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + despues - antes WHERE IDVIAJE = v; "
+			+ "? := despues - antes; "
+			+ "END;";
+
+	private static final String SELECT_TICKET_TRAMOS = "SELECT t.IDVIAJE, t.CANTIDAD, r.TRAMODESDE, r.TRAMOHASTA "
+			+ "FROM tickets t JOIN ticketsTramos r ON r.IDTICKET = t.IDTICKET WHERE t.IDTICKET = ?";
+	private static final String UPDATE_CANTIDAD_TICKET = "UPDATE tickets SET CANTIDAD = ? WHERE IDTICKET = ?";
+	private static final String DELETE_TICKET = "DELETE FROM tickets WHERE IDTICKET = ?";
+
+	private static final String SELECT_PARADAS = "SELECT p.ESTACION, b.PRECIO FROM viajes v "
+			+ "JOIN recorridos b ON b.IDRECORRIDO = v.IDRECORRIDO "
+			+ "JOIN paradasRecorrido p ON p.IDRECORRIDO = v.IDRECORRIDO WHERE v.IDVIAJE = ? ORDER BY p.ORDEN";
+	private static final String SELECT_PLAZAS_TRAMOS = "SELECT PLAZAS FROM plazasTramo WHERE IDVIAJE = ? "
+			+ "ORDER BY TRAMO";
+
+	private static final TramosViaje SIN_TRAMOS = new TramosViaje(new String[0], 0, new ArbolTramos(new int[0]));
+
+	private static final Map<Integer, TramosViaje> TRAMOS = new ConcurrentHashMap<>();
+
+	static {
+		ExecuteScript.alRecargar(TRAMOS::clear);
+	}
+
+	/**
+	 * Compra billetes entre dos paradas de un viaje.
+	 *
+	 * @param idViaje   viaje
+	 * @param desde     parada de subida
+	 * @param hasta     parada de bajada, posterior a la de subida
+	 * @param nroPlazas plazas a comprar
+	 * @return id del ticket
+	 * @throws CompraBilleteTrenException con NO_EXISTE_VIAJE si el viaje no tiene
+	 *                                    esas paradas en ese orden, o NO_PLAZAS si
+	 *                                    algun tramo no tiene plazas suficientes
+	 * @throws SQLException               si hay un error con la base de datos
+	 */
+	public int comprarTramo(int idViaje, String desde, String hasta, int nroPlazas) throws SQLException {
+		long inicio = System.nanoTime();
+		Connection con = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			TramosViaje tramos = tramos(con, idViaje);
+			int primero = tramos.parada(desde);
+			int ultimo = tramos.parada(hasta) - 1;
+			if (primero < 0 || ultimo < primero) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+			}
+			// Se cobra la parte del precio del recorrido que corresponde a los tramos, redondeando hacia arriba.
+			int tramosTicket = ultimo - primero + 1;
+			int total = tramos.arbol.getTramos();
+			int precio = (tramos.precio * nroPlazas * tramosTicket + total - 1) / total;
+
+			int[] venta = vender(con, idViaje, primero, ultimo, nroPlazas, precio, true);
+			if (venta[0] == 0) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			}
+			long secuencia = EventosServicio.confirmar(con::commit);
+			tramos.arbol.sumar(primero, ultimo, -nroPlazas);
+			avisarCambio(secuencia, idViaje, venta[1]);
+			return venta[0];
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			if (con != null) con.rollback();
+			registrarFallo(e);
+			throw e;
+		} finally {
+			MetricasServicio.registrarTransaccion("comprarTramo", inicio);
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Anula plazas de un ticket comprado con
+	 * {@link #comprarTramo(int, String, String, int)}, devolviendolas a sus
+	 * tramos.
+	 *
+	 * @param idTicket  ticket
+	 * @param nroPlazas plazas a anular
+	 * @throws CompraBilleteTrenException con NO_TICKET si no existe o no es de
+	 *                                    un tramo, o NO_RESERVAS si tiene menos
+	 *                                    plazas
+	 * @throws SQLException               si hay un error con la base de datos
+	 */
+	public void anularTramo(int idTicket, int nroPlazas) throws SQLException {
+		long inicio = System.nanoTime();
+		Connection con = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			int idViaje;
+			int cantidad;
+			int primero;
+			int ultimo;
+			try (PreparedStatement st = con.prepareStatement(SELECT_TICKET_TRAMOS)) {
+				st.setInt(1, idTicket);
+				try (ResultSet rs = st.executeQuery()) {
+					if (!rs.next()) {
+						throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+					}
+					idViaje = rs.getInt(1);
+					cantidad = rs.getInt(2);
+					primero = rs.getInt(3) - 1;
+					ultimo = rs.getInt(4) - 1;
+				}
+			}
+			if (nroPlazas > cantidad) {
+				throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_RESERVAS);
+			}
+			TramosViaje tramos = tramos(con, idViaje);
+			int variacion = devolver(con, idViaje, primero, ultimo, nroPlazas);
+			try (PreparedStatement st = con.prepareStatement(cantidad > nroPlazas ? UPDATE_CANTIDAD_TICKET
+					: DELETE_TICKET)) {
+				if (cantidad > nroPlazas) {
+					st.setInt(1, cantidad - nroPlazas);
+					st.setInt(2, idTicket);
+				} else {
+					st.setInt(1, idTicket);
+				}
+				st.executeUpdate();
+			}
+			long secuencia = EventosServicio.confirmar(con::commit);
+			tramos.arbol.sumar(primero, ultimo, nroPlazas);
+			avisarCambio(secuencia, idViaje, variacion);
+		} catch (SQLException e) {
+			MetricasServicio.registrarError(e);
+			if (con != null) con.rollback();
+			registrarFallo(e);
+			throw e;
+		} finally {
+			MetricasServicio.registrarTransaccion("anularTramo", inicio);
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Plazas libres entre dos paradas de un viaje: el minimo de los tramos que
+	 * recorre, sin consultar la base de datos una vez cargado el viaje.
+	 *
+	 * @throws CompraBilleteTrenException con NO_EXISTE_VIAJE si el viaje no tiene
+	 *                                    esas paradas en ese orden
+	 * @throws SQLException               si hay un error al cargar el viaje
+	 */
+	public int plazasLibres(int idViaje, String desde, String hasta) throws SQLException {
+		TramosViaje tramos = TRAMOS.get(idViaje);
+		if (tramos == null) {
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try {
+				tramos = tramos(con, idViaje);
+				con.commit();
+			} finally {
+				con.close();
+			}
+		}
+		int primero = tramos.parada(desde);
+		int ultimo = tramos.parada(hasta) - 1;
+		if (primero < 0 || ultimo < primero) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_EXISTE_VIAJE);
+		}
+		return tramos.arbol.minimo(primero, ultimo);
+	}
+
+	/**
+	 * No soportada: el registro de claves no sabe repetir las compras por tramos.
+	 */
+	@Override
+	public int comprarBillete(String clave, Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Claves de idempotencia no soportadas con tramos");
+	}
+
+	/**
+	 * No soportada: el registro de claves no sabe repetir las anulaciones por
+	 * tramos.
+	 */
+	@Override
+	public void anularBillete(String clave, Time hora, java.util.Date fecha, String origen, String destino,
+			int nroPlazas, int idTicket) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Claves de idempotencia no soportadas con tramos");
+	}
+
+	@Override
+	protected int venderPlazas(Connection con, DatosViaje viaje, int nroPlazas) throws SQLException {
+		TramosViaje tramos = tramos(con, viaje.getIdViaje());
+		if (tramos == SIN_TRAMOS) {
+			return super.venderPlazas(con, viaje, nroPlazas);
+		}
+		// Todos los tramos bajan lo mismo, asi que el minimo baja nroPlazas, como avisa ServicioImpl.
+		int ultimo = tramos.arbol.getTramos() - 1;
+		int idTicket = vender(con, viaje.getIdViaje(), 0, ultimo, nroPlazas, viaje.getPrecio() * nroPlazas,
+				false)[0];
+		if (idTicket != 0) {
+			tramos.arbol.sumar(0, ultimo, -nroPlazas);
+		}
+		return idTicket;
+	}
+
+	@Override
+	protected int devolverPlazas(Connection con, int idViaje, int idTicket, int nroPlazas) throws SQLException {
+		int[] deTicket = null;
+		try (PreparedStatement st = con.prepareStatement(SELECT_TICKET_TRAMOS)) {
+			st.setInt(1, idTicket);
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next()) {// viaje, primer y ultimo tramo del ticket
+					deTicket = new int[] { rs.getInt(1), rs.getInt(3) - 1, rs.getInt(4) - 1 };
+				}
+			}
+		}
+		if (deTicket != null && deTicket[0] != idViaje) {
+			throw new CompraBilleteTrenException(CompraBilleteTrenException.NO_TICKET);
+		}
+		TramosViaje tramos = tramos(con, idViaje);
+		if (tramos == SIN_TRAMOS) {
+			return super.devolverPlazas(con, idViaje, idTicket, nroPlazas);
+		}
+		int primero = deTicket == null ? 0 : deTicket[1];
+		int ultimo = deTicket == null ? tramos.arbol.getTramos() - 1 : deTicket[2];
+		int variacion = devolver(con, idViaje, primero, ultimo, nroPlazas);
+		tramos.arbol.sumar(primero, ultimo, nroPlazas);
+		return variacion;
+	}
+
+	// El arbol del viaje puede haber cambiado en la transaccion deshecha: se descarta para volver a
+	// leerlo.
+	@Override
+	protected void deshacerEnMemoria(Connection con, int idViaje) {
+		super.deshacerEnMemoria(con, idViaje);
+		TRAMOS.remove(idViaje);
+	}
+
+	// Ejecuta la venta sobre los tramos primero..ultimo (desde 0) sin confirmar. Devuelve el id del
+	// ticket, 0 si no hay plazas, y lo que han cambiado las plazas del recorrido completo. Los tickets
+	// de comprarTramo anotan sus tramos para poder anularlos despues.
+	private static int[] vender(Connection con, int idViaje, int primero, int ultimo, int nroPlazas, int precio,
+			boolean anotarTramos) throws SQLException {
+		AsignadorTickets asignador = AsignadorTickets.getInstance();
+		int idTicket = asignador.siguiente(con);
+		try (CallableStatement cst = con.prepareCall(VENTA_TRAMOS)) {
+			cst.setInt(1, idViaje);
+			cst.setInt(2, nroPlazas);
+			cst.setInt(3, primero + 1);
+			cst.setInt(4, ultimo + 1);
+			cst.setInt(5, idTicket);
+			cst.setInt(6, precio);
+			cst.setInt(7, anotarTramos ? 1 : 0);
+			cst.registerOutParameter(8, Types.INTEGER);//cambio de las plazas del recorrido completo
+			cst.registerOutParameter(9, Types.INTEGER);
+			cst.execute();
+			if (cst.getInt(9) == 0) {
+				asignador.devolver(idTicket);
+				return new int[] { 0, 0 };
+			}
+			return new int[] { idTicket, cst.getInt(8) };
+		}
+	}
+
+	// Devuelve las plazas a los tramos primero..ultimo (desde 0) sin confirmar; devuelve lo que han
+	// cambiado las plazas del recorrido completo.
+	private static int devolver(Connection con, int idViaje, int primero, int ultimo, int nroPlazas)
+			throws SQLException {
+		try (CallableStatement cst = con.prepareCall(DEVOLUCION_TRAMOS)) {
+			cst.setInt(1, idViaje);
+			cst.setInt(2, nroPlazas);
+			cst.setInt(3, primero + 1);
+			cst.setInt(4, ultimo + 1);
+			cst.registerOutParameter(5, Types.INTEGER);
+			cst.execute();
+			return cst.getInt(5);
+		}
+	}
+
+	private static void avisarCambio(long secuencia, int idViaje, int variacion) {
+		if (variacion != 0) {
+			EventosServicio.plazasCambiadas(secuencia, idViaje, variacion);
+		}
+	}
+
+	private static TramosViaje tramos(Connection con, int idViaje) throws SQLException {
+		TramosViaje tramos = TRAMOS.get(idViaje);
+		if (tramos == null) {
+			tramos = cargar(con, idViaje);
+			TramosViaje previo = TRAMOS.putIfAbsent(idViaje, tramos);
+			if (previo != null) {
+				tramos = previo;
+			}
+		}
+		return tramos;
+	}
+
+	private static TramosViaje cargar(Connection con, int idViaje) throws SQLException {
+		List<String> paradas = new ArrayList<>();
+		int precio = 0;
+		try (PreparedStatement st = con.prepareStatement(SELECT_PARADAS)) {
+			st.setInt(1, idViaje);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					paradas.add(rs.getString(1));
+					precio = rs.getInt(2);
+				}
+			}
+		}
+		if (paradas.size() < 2) {
+			return SIN_TRAMOS;
+		}
+		int[] plazas = new int[paradas.size() - 1];
+		int n = 0;
+		try (PreparedStatement st = con.prepareStatement(SELECT_PLAZAS_TRAMOS)) {
+			st.setInt(1, idViaje);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next() && n < plazas.length) {
+					plazas[n++] = rs.getInt(1);
+				}
+			}
+		}
+		if (n < plazas.length) {
+			// Recorrido con paradas pero viaje sin plazas por tramo: se vende como un viaje normal.
+			LOGGER.warn("El viaje {} tiene {} paradas pero {} tramos con plazas", idViaje, paradas.size(), n);
+			return SIN_TRAMOS;
+		}
+		return new TramosViaje(paradas.toArray(new String[0]), precio, new ArbolTramos(plazas));
+	}
+
+	private static void registrarFallo(SQLException e) {
+		if (e instanceof CompraBilleteTrenException) {
+			LOGGER.debug(e.getMessage());
+		} else {
+			LOGGER.error(e.getMessage(), e);
+		}
+	}
+
+	// Paradas de un viaje en orden, precio del recorrido completo y plazas de sus tramos.
+	private static final class TramosViaje {
+		final String[] paradas;
+		final int precio;
+		final ArbolTramos arbol;
+
+		TramosViaje(String[] paradas, int precio, ArbolTramos arbol) {
+			this.paradas = paradas;
+			this.precio = precio;
+			this.arbol = arbol;
+		}
+
+		int parada(String estacion) {
+			for (int i = 0; i < paradas.length; i++) {
+				if (paradas[i].equals(estacion)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
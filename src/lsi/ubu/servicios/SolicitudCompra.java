@@ -0,0 +1,43 @@
+package lsi.ubu.servicios;
+
+import java.sql.Time;
+
+/**
+ * Compra de un billete dentro de un lote.
+ */
+public final class SolicitudCompra {
+
+	private final Time hora;
+	private final java.util.Date fecha;
+	private final String origen;
+	private final String destino;
+	private final int nroPlazas;
+
+	public SolicitudCompra(Time hora, java.util.Date fecha, String origen, String destino, int nroPlazas) {
+		this.hora = hora;
+		this.fecha = fecha;
+		this.origen = origen;
+		this.destino = destino;
+		this.nroPlazas = nroPlazas;
+	}
+
+	public Time getHora() {
+		return hora;
+	}
+
+	public java.util.Date getFecha() {
+		return fecha;
+	}
+
+	public String getOrigen() {
+		return origen;
+	}
+
+	public String getDestino() {
+		return destino;
+	}
+
+	public int getNroPlazas() {
+		return nroPlazas;
+	}
+}
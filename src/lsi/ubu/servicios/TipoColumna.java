@@ -0,0 +1,10 @@
+package lsi.ubu.servicios;
+
+/**
+ * Tipo de una columna exportada. Todos los valores viajan como {@code long}.
+ */
+enum TipoColumna {
+	ENTERO, // El propio valor
+	FECHA, // Dias desde el 1/1/1970
+	IMPORTE; // Centimos
+}
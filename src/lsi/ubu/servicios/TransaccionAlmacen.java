@@ -0,0 +1,63 @@
+package lsi.ubu.servicios;
+
+import java.sql.SQLException;
+import java.sql.Time;
+
+/**
+ * Transaccion sobre un {@link AlmacenBilletes}. Las modificaciones no son
+ * visibles para otras transacciones hasta {@link #confirmar()}; al cerrarla sin
+ * confirmar se deshacen. Las plazas de un viaje quedan bloqueadas para las
+ * demas transacciones desde que se modifican hasta que se confirma o deshace,
+ * como con el bloqueo de fila de Oracle.
+ */
+public interface TransaccionAlmacen extends AutoCloseable {
+
+	/**
+	 * Resuelve un viaje por su salida.
+	 *
+	 * @return datos del viaje
+	 * @throws lsi.ubu.excepciones.CompraBilleteTrenException con NO_EXISTE_VIAJE
+	 *                                                        si no existe
+	 */
+	DatosViaje buscarViaje(Time hora, java.util.Date fecha, String origen, String destino) throws SQLException;
+
+	/**
+	 * Descuenta plazas del viaje solo si quedan suficientes.
+	 *
+	 * @return true si se han descontado
+	 */
+	boolean descontarPlazas(int idViaje, int nroPlazas) throws SQLException;
+
+	/**
+	 * Devuelve plazas al viaje.
+	 */
+	void devolverPlazas(int idViaje, int nroPlazas) throws SQLException;
+
+	/**
+	 * Da de alta un ticket comprado hoy al precio del viaje.
+	 *
+	 * @return id del ticket
+	 */
+	int insertarTicket(DatosViaje viaje, int cantidad) throws SQLException;
+
+	/**
+	 * @return plazas del ticket, o 0 si no existe
+	 */
+	int cantidadTicket(int idTicket) throws SQLException;
+
+	/**
+	 * Cambia las plazas de un ticket; con 0 se borra.
+	 */
+	void cambiarCantidadTicket(int idTicket, int cantidad) throws SQLException;
+
+	/**
+	 * Confirma la transaccion.
+	 */
+	void confirmar() throws SQLException;
+
+	/**
+	 * Termina la transaccion, deshaciendola si no se ha confirmado.
+	 */
+	@Override
+	void close() throws SQLException;
+}
@@ -0,0 +1,283 @@
+/*
+ * Nombre: BenchmarkServicio
+ * Descripción: Mide el rendimiento de compras, anulaciones y consultas de viaje
+ * con distinto numero de hilos concurrentes.
+ */
+
+package lsi.ubu.tests;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.servicios.CacheViajes;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioAgrupado;
+import lsi.ubu.servicios.ServicioCubetas;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.HistogramaLatencias;
+
+/**
+ * Banco de pruebas de rendimiento del servicio. Para cada escenario (consulta
+ * del viaje, compra, compra con el viaje repartido en cubetas, compra agrupada
+ * por viaje y anulacion) y cada numero de hilos (1, 4, 16 y 64) recarga el
+ * script de datos, calienta la JVM y mide un numero fijo de operaciones por
+ * hilo. Informa de operaciones por segundo, percentiles 50 y 99 de latencia,
+ * bytes reservados por operacion y actividad del recolector de basura.
+ *
+ * <p>
+ * Uso: {@code BenchmarkServicio [operacionesPorHilo] [hilos...]}
+ */
+public class BenchmarkServicio {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BenchmarkServicio.class);
+
+	private static final String SCRIPT = "sql/CompraBilleteTren.sql";
+	private static final int[] HILOS = { 1, 4, 16, 64 };
+	private static final int OPERACIONES_POR_DEFECTO = 2000;
+	private static final int CUBETAS = 16;
+	private static final long ESPERA_AGRUPADA_US = 2000;
+	private static final int LOTE_AGRUPADO = 64;
+
+	// Viaje de los escenarios (Burgos-Madrid del 20/04/2022 a las 8:30, el viaje 1 del script).
+	private static final int ID_VIAJE = 1;
+	private static final Time HORA = Time.valueOf("8:30:00");
+	private static final String FECHA = "20/04/2022";
+
+	private final Servicio servicio;
+	private final ServicioCubetas servicioCubetas = new ServicioCubetas(CUBETAS);
+	private final ServicioAgrupado servicioAgrupado = new ServicioAgrupado(ESPERA_AGRUPADA_US, LOTE_AGRUPADO);
+	private final java.util.Date fecha;
+
+	public BenchmarkServicio(Servicio servicio) throws ParseException {
+		this.servicio = servicio;
+		this.fecha = new SimpleDateFormat("dd/MM/yyyy").parse(FECHA);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int operaciones = args.length > 0 ? Integer.parseInt(args[0]) : OPERACIONES_POR_DEFECTO;
+		int[] hilos = HILOS;
+		if (args.length > 1) {
+			hilos = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				hilos[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		BenchmarkServicio benchmark = new BenchmarkServicio(new ServicioImpl());
+		LOGGER.info(String.format("%-14s %5s %12s %10s %10s %12s %6s %8s", "escenario", "hilos", "ops/s", "p50(us)",
+				"p99(us)", "bytes/op", "gc", "gc(ms)"));
+		for (Escenario escenario : Escenario.values()) {
+			for (int h : hilos) {
+				benchmark.ejecutar(escenario, h, operaciones);
+			}
+		}
+	}
+
+	/**
+	 * Escenarios medidos.
+	 */
+	public enum Escenario {
+		CONSULTA_VIAJE, COMPRA, COMPRA_CUBETAS, COMPRA_AGRUPADA, ANULACION;
+	}
+
+	/**
+	 * Mide un escenario y escribe una linea con los resultados.
+	 *
+	 * @param escenario          escenario a medir
+	 * @param hilos              numero de hilos concurrentes
+	 * @param operacionesPorHilo operaciones medidas por hilo (se hacen otras
+	 *                           tantas de calentamiento)
+	 * @return histograma de latencias en nanosegundos
+	 * @throws Exception si falla la preparacion o alguna operacion
+	 */
+	public HistogramaLatencias ejecutar(Escenario escenario, int hilos, int operacionesPorHilo) throws Exception {
+		ExecuteScript.run(SCRIPT);
+		int calentamiento = Math.max(1, operacionesPorHilo / 4);
+		int[] tickets = preparar(escenario, hilos * (calentamiento + operacionesPorHilo));
+
+		HistogramaLatencias latencias = new HistogramaLatencias();
+		AtomicLong bytesReservados = new AtomicLong();
+		CyclicBarrier barrera = new CyclicBarrier(hilos + 1);
+		List<Thread> trabajadores = new ArrayList<>();
+		List<Throwable> errores = Collections.synchronizedList(new ArrayList<>());
+
+		for (int h = 0; h < hilos; h++) {
+			int primerTicket = h * (calentamiento + operacionesPorHilo);
+			Thread t = new Thread(() -> {
+				// Un fallo no rompe las barreras: el hilo deja de operar pero sigue sincronizado.
+				try {
+					for (int i = 0; i < calentamiento; i++) {
+						operacion(escenario, tickets, primerTicket + i);
+					}
+				} catch (Exception e) {
+					errores.add(e);
+				}
+				esperar(barrera, errores);
+				long bytesAntes = bytesReservadosHilo();
+				try {
+					for (int i = 0; i < operacionesPorHilo && errores.isEmpty(); i++) {
+						long inicio = System.nanoTime();
+						operacion(escenario, tickets, primerTicket + calentamiento + i);
+						latencias.registrar(System.nanoTime() - inicio);
+					}
+				} catch (Exception e) {
+					errores.add(e);
+				}
+				bytesReservados.addAndGet(bytesReservadosHilo() - bytesAntes);
+				esperar(barrera, errores);
+			}, "benchmark-" + h);
+			trabajadores.add(t);
+			t.start();
+		}
+
+		barrera.await();
+		long gcAntes = contarGc();
+		long gcMsAntes = tiempoGc();
+		long inicio = System.nanoTime();
+		barrera.await();
+		long duracion = System.nanoTime() - inicio;
+		long gc = contarGc() - gcAntes;
+		long gcMs = tiempoGc() - gcMsAntes;
+		for (Thread t : trabajadores) {
+			t.join();
+		}
+		if (!errores.isEmpty()) {
+			throw new IllegalStateException("Fallo en el escenario " + escenario, errores.get(0));
+		}
+
+		long total = (long) hilos * operacionesPorHilo;
+		LOGGER.info(String.format("%-14s %5d %12.1f %10.1f %10.1f %12d %6d %8d", escenario, hilos,
+				total * 1e9 / duracion, latencias.getPercentil(50) / 1e3, latencias.getPercentil(99) / 1e3,
+				bytesReservados.get() / total, gc, gcMs));
+		return latencias;
+	}
+
+	// Una operacion del escenario. Los rechazos de negocio forman parte del camino medido.
+	private void operacion(Escenario escenario, int[] tickets, int n) throws SQLException {
+		switch (escenario) {
+		case CONSULTA_VIAJE:
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try {
+				CacheViajes.getInstance().resolver(con, HORA, fecha, Tests.ORIGEN, Tests.DESTINO);
+				con.commit();
+			} finally {
+				con.close();
+			}
+			break;
+		case COMPRA:
+			try {
+				servicio.comprarBillete(HORA, fecha, Tests.ORIGEN, Tests.DESTINO, 1);
+			} catch (CompraBilleteTrenException e) {
+				// sin plazas: no deberia ocurrir porque se preparan de sobra
+			}
+			break;
+		case COMPRA_CUBETAS:
+			try {
+				servicioCubetas.comprarBillete(HORA, fecha, Tests.ORIGEN, Tests.DESTINO, 1);
+			} catch (CompraBilleteTrenException e) {
+				// sin plazas: no deberia ocurrir porque se preparan de sobra
+			}
+			break;
+		case COMPRA_AGRUPADA:
+			try {
+				servicioAgrupado.comprarBillete(HORA, fecha, Tests.ORIGEN, Tests.DESTINO, 1);
+			} catch (CompraBilleteTrenException e) {
+				// sin plazas: no deberia ocurrir porque se preparan de sobra
+			}
+			break;
+		case ANULACION:
+			servicio.anularBillete(HORA, fecha, Tests.ORIGEN, Tests.DESTINO, 1, tickets[n]);
+			break;
+		}
+	}
+
+	// Deja plazas de sobra en el viaje (repartidas en cubetas si el escenario lo pide) y, para
+	// las anulaciones, crea un ticket de una plaza por operacion. Devuelve los ids de esos tickets.
+	private int[] preparar(Escenario escenario, int operaciones) throws SQLException {
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			try (PreparedStatement st = con.prepareStatement("UPDATE viajes SET NPLAZASLIBRES = ? WHERE IDVIAJE = ?")) {
+				st.setInt(1, operaciones * 2);
+				st.setInt(2, ID_VIAJE);
+				st.executeUpdate();
+			}
+			int[] tickets = new int[0];
+			if (escenario == Escenario.ANULACION) {
+				try (PreparedStatement st = con.prepareStatement("INSERT INTO tickets "
+						+ "SELECT seq_tickets.nextval, ?, CURRENT_DATE, 1, 10 FROM dual CONNECT BY level <= ?")) {
+					st.setInt(1, ID_VIAJE);
+					st.setInt(2, operaciones);
+					st.executeUpdate();
+				}
+				tickets = new int[operaciones];
+				try (PreparedStatement st = con.prepareStatement(
+						"SELECT IDTICKET FROM tickets WHERE IDVIAJE = ? AND CANTIDAD = 1 ORDER BY IDTICKET DESC")) {
+					st.setInt(1, ID_VIAJE);
+					try (ResultSet ids = st.executeQuery()) {
+						for (int i = 0; i < operaciones && ids.next(); i++) {
+							tickets[i] = ids.getInt(1);
+						}
+					}
+				}
+			}
+			con.commit();
+			if (escenario == Escenario.COMPRA_CUBETAS) {
+				servicioCubetas.repartir(ID_VIAJE);
+			}
+			return tickets;
+		} finally {
+			con.close();
+		}
+	}
+
+	private static void esperar(CyclicBarrier barrera, List<Throwable> errores) {
+		try {
+			barrera.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			errores.add(e);
+		}
+	}
+
+	private static long bytesReservadosHilo() {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static long contarGc() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			n += Math.max(0, gc.getCollectionCount());
+		}
+		return n;
+	}
+
+	private static long tiempoGc() {
+		long ms = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			ms += Math.max(0, gc.getCollectionTime());
+		}
+		return ms;
+	}
+}
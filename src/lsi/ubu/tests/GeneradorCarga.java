@@ -0,0 +1,324 @@
+/*
+ * Nombre: GeneradorCarga
+ * Descripción: Repite los escenarios de compra y anulacion de los tests como
+ * carga sostenida y comprueba al final que no se han perdido ni creado plazas.
+ */
+
+package lsi.ubu.tests;
+
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.servicios.AlmacenMemoria;
+import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.servicios.ServicioRepositorio;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.metricas.HistogramaLatencias;
+
+/**
+ * Generador de carga y prueba de resistencia. Varios clientes compran billetes
+ * de los viajes del script (Burgos-Madrid y Leon-Zamora) y anulan total o
+ * parcialmente los que han comprado, con una mezcla, un ritmo de llegadas y un
+ * tiempo de reflexion configurables.
+ *
+ * <p>
+ * Con un ritmo de llegadas cada cliente sigue un calendario de llegadas de
+ * Poisson y la latencia se mide desde la hora prevista de cada operacion, asi
+ * que los retrasos acumulados cuentan. Sin ritmo, cada cliente lanza la
+ * siguiente operacion en cuanto termina la anterior y el tiempo de reflexion.
+ *
+ * <p>
+ * Al terminar comprueba, viaje a viaje, que no hay contadores negativos, que
+ * plazas libres mas vendidas no ha cambiado y que las vendidas han variado
+ * exactamente lo que compraron menos lo que anularon los clientes.
+ *
+ * <p>
+ * Uso: {@code GeneradorCarga [memoria|oracle] [segundos] [clientes]
+ * [llegadasPorSegundo] [reflexionMs] [porcentajeCompras]}
+ */
+public class GeneradorCarga {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeneradorCarga.class);
+
+	private static final String SCRIPT = "sql/CompraBilleteTren.sql";
+	private static final int MAXIMO_PLAZAS = 3;
+
+	/**
+	 * Lectura del inventario para comprobar las invariantes.
+	 */
+	public interface EstadoInventario {
+		/**
+		 * @return por cada viaje, sus plazas libres y las plazas de sus tickets
+		 */
+		Map<Integer, int[]> plazasPorViaje() throws SQLException;
+	}
+
+	private final Servicio servicio;
+	private final EstadoInventario estado;
+	private final int clientes;
+	private final double llegadasPorSegundo;
+	private final long reflexionMs;
+	private final int porcentajeCompras;
+	private final List<Ruta> rutas = new ArrayList<>();
+
+	private final HistogramaLatencias latenciasCompra = new HistogramaLatencias();
+	private final HistogramaLatencias latenciasAnulacion = new HistogramaLatencias();
+	private final Map<Integer, LongAdder> rechazos = new ConcurrentHashMap<>();
+	private final LongAdder errores = new LongAdder();
+
+	/**
+	 * Crea el generador.
+	 *
+	 * @param servicio           servicio a probar
+	 * @param estado             lectura del inventario del mismo almacen
+	 * @param clientes           clientes concurrentes
+	 * @param llegadasPorSegundo operaciones por segundo entre todos los
+	 *                           clientes, o 0 para no limitarlas
+	 * @param reflexionMs        pausa media entre operaciones de un cliente
+	 * @param porcentajeCompras  porcentaje de compras; el resto son anulaciones
+	 */
+	public GeneradorCarga(Servicio servicio, EstadoInventario estado, int clientes, double llegadasPorSegundo,
+			long reflexionMs, int porcentajeCompras) {
+		this.servicio = servicio;
+		this.estado = estado;
+		this.clientes = clientes;
+		this.llegadasPorSegundo = llegadasPorSegundo;
+		this.reflexionMs = reflexionMs;
+		this.porcentajeCompras = porcentajeCompras;
+
+		// Los viajes con fecha relativa del script, mas el viaje 1 del 20/04/2022.
+		LocalDate hoy = LocalDate.now();
+		rutas.add(new Ruta(1, Tests.ORIGEN, Tests.DESTINO, LocalDate.of(2022, 4, 20), "8:30:00"));
+		rutas.add(new Ruta(2, Tests.ORIGEN, Tests.DESTINO, hoy.plusDays(1), "8:30:00"));
+		rutas.add(new Ruta(3, Tests.ORIGEN, Tests.DESTINO, hoy.plusDays(7), "8:30:00"));
+		rutas.add(new Ruta(4, "Leon", "Zamora", hoy.plusDays(7), "8:00:00"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean oracle = args.length > 0 && args[0].equals("oracle");
+		long segundos = args.length > 1 ? Long.parseLong(args[1]) : 10;
+		int clientes = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		double llegadas = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+		long reflexion = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		int compras = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+
+		GeneradorCarga generador;
+		if (oracle) {
+			ExecuteScript.run(SCRIPT);
+			generador = new GeneradorCarga(new ServicioImpl(), GeneradorCarga::leerOracle, clientes, llegadas,
+					reflexion, compras);
+		} else {
+			AlmacenMemoria almacen = AlmacenMemoria.desdeScript(Paths.get(SCRIPT));
+			generador = new GeneradorCarga(new ServicioRepositorio(almacen), almacen::plazasPorViaje, clientes,
+					llegadas, reflexion, compras);
+		}
+		System.exit(generador.ejecutar(TimeUnit.SECONDS.toMillis(segundos)) ? 0 : 1);
+	}
+
+	/**
+	 * Lanza la carga durante el tiempo indicado y comprueba las invariantes.
+	 *
+	 * @param duracionMs duracion de la carga
+	 * @return true si se cumplen las invariantes y no ha habido errores
+	 *         inesperados
+	 * @throws SQLException         si no se puede leer el inventario
+	 * @throws InterruptedException si se interrumpe la espera a los clientes
+	 */
+	public boolean ejecutar(long duracionMs) throws SQLException, InterruptedException {
+		Map<Integer, int[]> antes = estado.plazasPorViaje();
+		Map<Integer, AtomicLong> vendidasPorClientes = new TreeMap<>();
+		for (Ruta r : rutas) {
+			vendidasPorClientes.put(r.idViaje, r.vendidas);
+		}
+
+		long inicio = System.nanoTime();
+		long fin = inicio + TimeUnit.MILLISECONDS.toNanos(duracionMs);
+		List<Thread> hilos = new ArrayList<>();
+		for (int i = 0; i < clientes; i++) {
+			long semilla = i;
+			Thread t = new Thread(() -> cliente(new Random(semilla), fin), "cliente-" + i);
+			hilos.add(t);
+			t.start();
+		}
+		for (Thread t : hilos) {
+			t.join();
+		}
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+
+		informar("compra", latenciasCompra, segundos);
+		informar("anulacion", latenciasAnulacion, segundos);
+		rechazos.forEach((codigo, n) -> LOGGER.info("Rechazos con codigo {}: {}", codigo, n.sum()));
+
+		boolean correcto = comprobar(antes, estado.plazasPorViaje(), vendidasPorClientes);
+		if (errores.sum() > 0) {
+			LOGGER.info("Errores inesperados durante la carga: {} MAL", errores.sum());
+			correcto = false;
+		}
+		return correcto;
+	}
+
+	// Bucle de un cliente: elige operacion y viaje, espera su turno y anota el resultado.
+	private void cliente(Random azar, long fin) {
+		List<TicketCliente> propios = new ArrayList<>();
+		double mediaLlegadaNanos = llegadasPorSegundo > 0 ? clientes * 1e9 / llegadasPorSegundo : 0;
+		long prevista = System.nanoTime();
+
+		while (System.nanoTime() < fin) {
+			if (mediaLlegadaNanos > 0) {
+				prevista += (long) exponencial(azar, mediaLlegadaNanos);
+				esperarHasta(prevista);
+			} else {
+				prevista = System.nanoTime();
+			}
+			boolean compra = propios.isEmpty() || azar.nextInt(100) < porcentajeCompras;
+			try {
+				if (compra) {
+					Ruta ruta = rutas.get(azar.nextInt(rutas.size()));
+					int plazas = 1 + azar.nextInt(MAXIMO_PLAZAS);
+					try {
+						int idTicket = servicio.comprarBillete(ruta.hora, ruta.fecha, ruta.origen, ruta.destino, plazas);
+						propios.add(new TicketCliente(idTicket, ruta, plazas));
+						ruta.vendidas.addAndGet(plazas);
+					} finally {
+						latenciasCompra.registrar(System.nanoTime() - prevista);
+					}
+				} else {
+					TicketCliente ticket = propios.get(azar.nextInt(propios.size()));
+					int plazas = 1 + azar.nextInt(ticket.plazas);
+					try {
+						servicio.anularBillete(ticket.ruta.hora, ticket.ruta.fecha, ticket.ruta.origen,
+								ticket.ruta.destino, plazas, ticket.idTicket);
+						ticket.ruta.vendidas.addAndGet(-plazas);
+						ticket.plazas -= plazas;
+						if (ticket.plazas == 0) {
+							propios.remove(ticket);
+						}
+					} finally {
+						latenciasAnulacion.registrar(System.nanoTime() - prevista);
+					}
+				}
+			} catch (CompraBilleteTrenException e) {
+				rechazos.computeIfAbsent(e.getErrorCode(), c -> new LongAdder()).increment();
+			} catch (SQLException e) {
+				errores.increment();
+				LOGGER.debug(e.getMessage(), e);
+			}
+			if (reflexionMs > 0) {
+				esperarHasta(System.nanoTime() + (long) exponencial(azar, reflexionMs * 1e6));
+			}
+		}
+	}
+
+	// Invariantes por viaje: nada negativo, libres + vendidas constante y vendidas cuadradas con
+	// lo que han hecho los clientes.
+	private static boolean comprobar(Map<Integer, int[]> antes, Map<Integer, int[]> despues,
+			Map<Integer, AtomicLong> vendidasPorClientes) {
+		boolean correcto = true;
+		for (Map.Entry<Integer, int[]> e : antes.entrySet()) {
+			int idViaje = e.getKey();
+			int[] a = e.getValue();
+			int[] d = despues.get(idViaje);
+			AtomicLong netas = vendidasPorClientes.get(idViaje);
+			long esperadas = a[1] + (netas == null ? 0 : netas.get());
+			if (d == null || d[0] < 0 || d[1] < 0 || d[0] + d[1] != a[0] + a[1] || d[1] != esperadas) {
+				LOGGER.info("Invariantes del viaje {} MAL: antes libres={} vendidas={}, despues libres={} "
+						+ "vendidas={}, esperadas={}", idViaje, a[0], a[1], d == null ? "-" : d[0],
+						d == null ? "-" : d[1], esperadas);
+				correcto = false;
+			}
+		}
+		if (correcto) {
+			LOGGER.info("Invariantes de plazas tras la carga OK");
+		}
+		return correcto;
+	}
+
+	private static void informar(String operacion, HistogramaLatencias h, double segundos) {
+		LOGGER.info(String.format("%-10s %8d ops %10.1f ops/s  p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+				operacion, h.getTotal(), h.getTotal() / segundos, h.getPercentil(50) / 1e3, h.getPercentil(99) / 1e3,
+				h.getPercentil(99.9) / 1e3, h.getMaximo() / 1e3));
+	}
+
+	/**
+	 * Inventario leido de Oracle: plazas libres de cada viaje y suma de sus
+	 * tickets.
+	 */
+	static Map<Integer, int[]> leerOracle() throws SQLException {
+		Map<Integer, int[]> resultado = new TreeMap<>();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (PreparedStatement st = con.prepareStatement("SELECT v.IDVIAJE, v.NPLAZASLIBRES, "
+				+ "NVL((SELECT SUM(t.CANTIDAD) FROM tickets t WHERE t.IDVIAJE = v.IDVIAJE), 0) FROM viajes v");
+				ResultSet rs = st.executeQuery()) {
+			while (rs.next()) {
+				resultado.put(rs.getInt(1), new int[] { rs.getInt(2), rs.getInt(3) });
+			}
+			con.commit();
+		} finally {
+			con.close();
+		}
+		return resultado;
+	}
+
+	private static double exponencial(Random azar, double media) {
+		return -media * Math.log(1 - azar.nextDouble());
+	}
+
+	private static void esperarHasta(long nanos) {
+		long restante;
+		while ((restante = nanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(restante);
+		}
+	}
+
+	// Viaje de la carga, con las plazas netas que le han comprado los clientes.
+	private static final class Ruta {
+		final int idViaje;
+		final String origen;
+		final String destino;
+		final java.util.Date fecha;
+		final Time hora;
+		final AtomicLong vendidas = new AtomicLong();
+
+		Ruta(int idViaje, String origen, String destino, LocalDate fecha, String hora) {
+			this.idViaje = idViaje;
+			this.origen = origen;
+			this.destino = destino;
+			this.fecha = java.util.Date.from(fecha.atStartOfDay(ZoneId.systemDefault()).toInstant());
+			this.hora = Time.valueOf(hora);
+		}
+	}
+
+	private static final class TicketCliente {
+		final int idTicket;
+		final Ruta ruta;
+		int plazas;
+
+		TicketCliente(int idTicket, Ruta ruta, int plazas) {
+			this.idTicket = idTicket;
+			this.ruta = ruta;
+			this.plazas = plazas;
+		}
+	}
+}
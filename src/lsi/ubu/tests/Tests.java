@@ -7,21 +7,72 @@
 
 package lsi.ubu.tests;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
 import java.sql.Time;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.excepciones.CompraBilleteTrenException;
+import lsi.ubu.servicios.AlmacenMemoria;
+import lsi.ubu.servicios.AlmacenOracle;
+import lsi.ubu.servicios.AsyncServicio;
+import lsi.ubu.servicios.CacheViajes;
+import lsi.ubu.servicios.ExportadorDatos;
+import lsi.ubu.servicios.FormatoExportacion;
+import lsi.ubu.servicios.GestorReservas;
+import lsi.ubu.servicios.IndiceDisponibilidad;
+import lsi.ubu.servicios.ModoLote;
+import lsi.ubu.servicios.PanelOcupacion;
+import lsi.ubu.servicios.PlanesConsulta;
+import lsi.ubu.servicios.RegistroIdempotencia;
+import lsi.ubu.servicios.ResultadoCompra;
+import lsi.ubu.servicios.Salida;
 import lsi.ubu.servicios.Servicio;
+import lsi.ubu.servicios.ServicioAgrupado;
+import lsi.ubu.servicios.ServicioCubetas;
 import lsi.ubu.servicios.ServicioImpl;
+import lsi.ubu.servicios.ServicioInventarioMemoria;
+import lsi.ubu.servicios.ServicioReintentos;
+import lsi.ubu.servicios.ServicioRepositorio;
+import lsi.ubu.servicios.ServicioTramos;
+import lsi.ubu.servicios.SolicitudCompra;
+import lsi.ubu.util.CargadorHorarios;
+import lsi.ubu.util.Cortacircuitos;
+import lsi.ubu.util.EjecutorReintentos;
+import lsi.ubu.util.LectorScript;
 import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.ResultadoCarga;
+import lsi.ubu.util.exceptions.SGBDError;
 
 //Clase que implementa los tests para las compras y anulaciones de billetes de tren.
 public class Tests {
@@ -32,6 +83,14 @@ public class Tests {
 	public static final String ORIGEN = "Burgos";
 	public static final String DESTINO = "Madrid";
 
+	// Numero de compradores simultaneos en el test de concurrencia.
+	public static final int COMPRADORES_CONCURRENTES = 64;
+
+	// Plazas libres de un viaje, incluidas las de sus cubetas si esta repartido.
+	private static final String PLAZAS_LIBRES_CON_CUBETAS = "SELECT a.NPLAZASLIBRES + "
+			+ "NVL((SELECT SUM(c.PLAZAS) FROM viajesCubetas c WHERE c.IDVIAJE = a.IDVIAJE), 0) "
+			+ "FROM viajes a WHERE a.IDVIAJE = ?";
+
 	// Tests asociados a las anulaciones de los billetes de tren.
 	public void ejecutarTestsAnularBilletes() {
 
@@ -187,13 +246,15 @@ public class Tests {
 			Time hora = Time.valueOf("8:30:00");
 			int nroPlazas = 5;
 
-			servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, nroPlazas);
+			// El servicio devuelve el id del ticket: es el siguiente de la secuencia (3).
+			int idTicket = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, nroPlazas);
 
 			con = pool.getConnection();
 			st = con.prepareStatement(
 					" SELECT IDVIAJE||IDTREN||IDRECORRIDO||FECHA||NPLAZASLIBRES||REALIZADO||IDCONDUCTOR||IDTICKET||CANTIDAD||PRECIO "
 							+ " FROM VIAJES natural join tickets "
-							+ " where idticket=3 and trunc(fechacompra) = trunc(current_date) ");
+							+ " where idticket=? and trunc(fechacompra) = trunc(current_date) ");
+			st.setInt(1, idTicket);
 			rs = st.executeQuery();
 
 			String resultadoReal = "";
@@ -215,6 +276,1195 @@ public class Tests {
 		}
 	}
 
+	// Tests asociados a la compra de billetes por lotes.
+	public void ejecutarTestsCompraLote() {
+
+		Servicio servicio = new ServicioImpl();
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		List<SolicitudCompra> lote = Arrays.asList(new SolicitudCompra(hora, fecha, ORIGEN, DESTINO, 2),
+				new SolicitudCompra(Time.valueOf("12:00:00"), toDate("15/04/2010"), ORIGEN, DESTINO, 1));
+
+		try {
+			int plazasIniciales = consultarEntero("SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?", 1);
+
+			// En modo todo o nada el viaje inexistente impide la compra valida.
+			List<ResultadoCompra> resultados = servicio.comprarBilletes(lote, ModoLote.TODO_O_NADA);
+			int plazas = consultarEntero("SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?", 1);
+			if (!resultados.get(0).isConfirmada()
+					&& resultados.get(1).getCodigoError() == CompraBilleteTrenException.NO_EXISTE_VIAJE
+					&& plazas == plazasIniciales) {
+				LOGGER.info("Lote todo o nada descartado OK");
+			} else {
+				LOGGER.info("Lote todo o nada MAL");
+			}
+
+			// En modo mejor esfuerzo se compra lo posible y se informa del resto.
+			resultados = servicio.comprarBilletes(lote, ModoLote.MEJOR_ESFUERZO);
+			plazas = consultarEntero("SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?", 1);
+			if (resultados.get(0).isConfirmada()
+					&& resultados.get(1).getCodigoError() == CompraBilleteTrenException.NO_EXISTE_VIAJE
+					&& plazas == plazasIniciales - 2) {
+				LOGGER.info("Lote mejor esfuerzo OK");
+			} else {
+				LOGGER.info("Lote mejor esfuerzo MAL");
+			}
+
+			// Una fecha con hora se resuelve por el dia, como en la compra individual, tambien
+			// cuando el viaje no esta en cache.
+			CacheViajes.getInstance().invalidar();
+			java.util.Date conHora = new java.util.Date(fecha.getTime() + TimeUnit.HOURS.toMillis(10));
+			resultados = servicio.comprarBilletes(
+					Arrays.asList(new SolicitudCompra(hora, conHora, ORIGEN, DESTINO, 1)), ModoLote.MEJOR_ESFUERZO);
+			if (resultados.get(0).isConfirmada()) {
+				LOGGER.info("Lote con fecha y hora OK");
+			} else {
+				LOGGER.info("Lote con fecha y hora MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests asociados a la busqueda de salidas con plazas libres.
+	public void ejecutarTestsBusquedaSalidas() {
+
+		Servicio servicio = new ServicioImpl();
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+
+		try {
+			// La busqueda encuentra el viaje 1 con las plazas de la base de datos.
+			int plazas = plazasEnBusqueda(servicio, 1);
+			if (plazas == consultarEntero("SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?", 1)) {
+				LOGGER.info("Busqueda de salidas OK");
+			} else {
+				LOGGER.info("Busqueda de salidas MAL");
+			}
+
+			// Tras una compra el indice refleja las plazas vendidas sin volver a la base de datos.
+			servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2);
+			if (plazasEnBusqueda(servicio, 1) == plazas - 2) {
+				LOGGER.info("Busqueda actualizada tras la compra OK");
+			} else {
+				LOGGER.info("Busqueda actualizada tras la compra MAL");
+			}
+
+			// Un cambio que no pasa por el servicio aparece al reconciliar el indice.
+			ejecutarActualizacion("UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - 1 WHERE IDVIAJE = ?", 1);
+			IndiceDisponibilidad.getInstance().reconciliar();
+			if (plazasEnBusqueda(servicio, 1) == plazas - 3) {
+				LOGGER.info("Busqueda tras reconciliar OK");
+			} else {
+				LOGGER.info("Busqueda tras reconciliar MAL");
+			}
+
+			// Un rango de fechas sin viajes no devuelve salidas.
+			if (servicio.buscarSalidas(ORIGEN, DESTINO, toDate("01/01/2000"), toDate("31/12/2000")).isEmpty()) {
+				LOGGER.info("Busqueda sin salidas OK");
+			} else {
+				LOGGER.info("Busqueda sin salidas MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests asociados a las retenciones temporales de plazas.
+	public void ejecutarTestsReservas() {
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String plazasViaje = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+
+		// Retenciones de medio segundo y devolucion del cupo sobrante cada 200 ms.
+		GestorReservas reservas = new GestorReservas(500, 5, 200);
+		try {
+			reservas.iniciar();
+			int plazasIniciales = consultarEntero(plazasViaje, 1);
+
+			// Las tablas de reservas son del gestor iniciado: no se puede iniciar otro a la vez.
+			try (GestorReservas otro = new GestorReservas(500, 5, 200)) {
+				otro.iniciar();
+				LOGGER.info("Dos gestores de reservas iniciados MAL");
+			} catch (IllegalStateException e) {
+				LOGGER.info("Un solo gestor de reservas iniciado OK");
+			}
+
+			// Retener y confirmar genera el ticket con las plazas retenidas.
+			int idTicket = reservas.confirmar(reservas.retener(hora, fecha, ORIGEN, DESTINO, 2));
+			if (consultarEntero("SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?", idTicket) == 2) {
+				LOGGER.info("Retener y confirmar OK");
+			} else {
+				LOGGER.info("Retener y confirmar MAL");
+			}
+
+			// Una retencion ya guardada deja de estarlo al confirmarla, sin esperar a la siguiente copia.
+			int guardada = reservas.retener(hora, fecha, ORIGEN, DESTINO, 1);
+			Thread.sleep(300);
+			boolean copiada = consultarEntero("SELECT COUNT(*) FROM reservas WHERE IDRESERVA = ?", guardada) == 1;
+			reservas.confirmar(guardada);
+			if (copiada && consultarEntero("SELECT COUNT(*) FROM reservas WHERE IDRESERVA = ?", guardada) == 0) {
+				LOGGER.info("Retencion confirmada fuera de las guardadas OK");
+			} else {
+				LOGGER.info("Retencion confirmada fuera de las guardadas MAL");
+			}
+
+			// Una retencion liberada ya no se puede confirmar.
+			int liberada = reservas.retener(hora, fecha, ORIGEN, DESTINO, 3);
+			reservas.liberar(liberada);
+			try {
+				reservas.confirmar(liberada);
+				LOGGER.info("Confirma una retencion liberada MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_RETENCION) {
+					LOGGER.info("No confirma una retencion liberada OK");
+				}
+			}
+
+			// Una retencion abandonada caduca y sus plazas vuelven al viaje.
+			int abandonada = reservas.retener(hora, fecha, ORIGEN, DESTINO, 1);
+			Thread.sleep(1000);
+			try {
+				reservas.confirmar(abandonada);
+				LOGGER.info("Confirma una retencion caducada MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_RETENCION
+						&& consultarEntero(plazasViaje, 1) == plazasIniciales - 3) {
+					LOGGER.info("Retencion caducada y plazas devueltas OK");
+				} else {
+					LOGGER.info("Retencion caducada MAL");
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			reservas.close();
+		}
+	}
+
+	// Plazas libres del viaje segun la busqueda de salidas en torno al 20/04/2022, -1 si no aparece.
+	private int plazasEnBusqueda(Servicio servicio, int idViaje) throws SQLException {
+		for (Salida salida : servicio.buscarSalidas(ORIGEN, DESTINO, toDate("19/04/2022"), toDate("21/04/2022"))) {
+			if (salida.getIdViaje() == idViaje) {
+				return salida.getPlazasLibres();
+			}
+		}
+		return -1;
+	}
+
+	// Tests asociados a la exportacion de tickets y viajes.
+	public void ejecutarTestsExportacion() {
+
+		// Paginas de una fila para recorrer la paginacion con los pocos tickets del script.
+		ExportadorDatos exportador = new ExportadorDatos(1, 1, 1024);
+
+		try {
+			int tickets = consultarEntero("SELECT COUNT(*) FROM tickets WHERE IDTICKET > ?", 0);
+
+			// CSV completo: cabecera y una linea por ticket, avisando de cada pagina escrita.
+			ByteArrayOutputStream salida = new ByteArrayOutputStream();
+			List<Long> paginas = new ArrayList<>();
+			exportador.exportarTickets(Channels.newChannel(salida), FormatoExportacion.CSV, 0, paginas::add);
+			String[] lineas = salida.toString("US-ASCII").split("\n");
+			if (lineas.length == tickets + 1 && lineas[0].startsWith("IDTICKET,") && paginas.size() == tickets) {
+				LOGGER.info("Exportacion CSV OK");
+			} else {
+				LOGGER.info("Exportacion CSV MAL");
+			}
+
+			// Reanudando desde la primera pagina solo salen los tickets restantes, sin cabecera.
+			salida.reset();
+			exportador.exportarTickets(Channels.newChannel(salida), FormatoExportacion.CSV, paginas.get(0), null);
+			String[] resto = salida.toString("US-ASCII").split("\n");
+			if (resto.length == tickets - 1 && resto[0].equals(lineas[2])) {
+				LOGGER.info("Exportacion reanudada OK");
+			} else {
+				LOGGER.info("Exportacion reanudada MAL");
+			}
+
+			// Columnar: cabecera "BTC1" y marca de fin.
+			salida.reset();
+			exportador.exportarViajes(Channels.newChannel(salida), FormatoExportacion.COLUMNAR, 0, null);
+			byte[] binario = salida.toByteArray();
+			if (new String(binario, 0, 4, "US-ASCII").equals("BTC1") && binario[binario.length - 1] == 0) {
+				LOGGER.info("Exportacion columnar OK");
+			} else {
+				LOGGER.info("Exportacion columnar MAL");
+			}
+		} catch (SQLException | IOException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Test de carga corto: compras y anulaciones mezcladas y comprobacion de las invariantes de plazas.
+	public void ejecutarTestsCarga() {
+		try {
+			GeneradorCarga carga = new GeneradorCarga(new ServicioImpl(), GeneradorCarga::leerOracle, 4, 0, 0, 60);
+			if (carga.ejecutar(2000)) {
+				LOGGER.info("Carga mezclada sin perdida de plazas OK");
+			} else {
+				LOGGER.info("Carga mezclada MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.info("Test de carga interrumpido MAL");
+		}
+	}
+
+	// Tests del lector de scripts y del cargador de scripts y CSV sobre una tabla propia: bloques
+	// PL/SQL terminados en '/', ';' y '--' dentro de cadenas, conversion de tipos del CSV, errores
+	// con su linea y tipo, y repeticion fila a fila de los lotes que fallan.
+	public void ejecutarTestsCargaHorarios() {
+
+		String script = "-- comentario; con punto y coma\n"
+				+ "INSERT INTO t VALUES ('a;b', '--c');\n"
+				+ "BEGIN\n"
+				+ "  x := 1;\n"
+				+ "END;\n"
+				+ "/\n"
+				+ "/* otro */ SELECT 1 FROM dual;\n"
+				+ "BEGIN\n"
+				+ "  NULL;\n"
+				+ "  commit;\n"
+				+ "END;\n"
+				+ "/\n";
+		try {
+			LectorScript lector = new LectorScript(new StringReader(script));
+			LectorScript.Sentencia insert = lector.siguiente();
+			LectorScript.Sentencia bloque = lector.siguiente();
+			LectorScript.Sentencia select = lector.siguiente();
+			// El ';' sigue a la primera palabra del bloque sin espacio en medio.
+			LectorScript.Sentencia pegado = lector.siguiente();
+			if (insert.getTexto().equals("INSERT INTO t VALUES ('a;b', '--c')") && insert.getLinea() == 2
+					&& bloque.getTexto().equals("BEGIN\n  x := 1;\nEND;") && bloque.getLinea() == 3
+					&& select.getTexto().equals("SELECT 1 FROM dual")
+					&& pegado.getTexto().equals("BEGIN\n  NULL;\n  commit;\nEND;") && pegado.getLinea() == 8
+					&& lector.siguiente() == null) {
+				LOGGER.info("Lectura de script OK");
+			} else {
+				LOGGER.info("Lectura de script MAL");
+			}
+		} catch (IOException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+
+		CargadorHorarios cargador = new CargadorHorarios();
+		String filas = "SELECT COUNT(*) FROM cargaPrueba WHERE ID = ?";
+		Path sql = null;
+		Path csv = null;
+		try {
+			sql = Files.createTempFile("carga", ".sql");
+			csv = Files.createTempFile("carga", ".csv");
+
+			// El INSERT repetido de la linea 10 hace fallar el lote, que se repite fila a fila.
+			Files.write(sql, Arrays.asList(
+					"DROP TABLE cargaPrueba;",
+					"CREATE TABLE cargaPrueba (id integer primary key, texto varchar(40), fecha date);",
+					"-- el bloque inserta dos filas",
+					"BEGIN",
+					"  INSERT INTO cargaPrueba VALUES (1, 'bloque', NULL);",
+					"  INSERT INTO cargaPrueba VALUES (2, 'bloque', NULL);",
+					"END;",
+					"/",
+					"INSERT INTO cargaPrueba VALUES (3, 'a;b -- c', NULL);",
+					"INSERT INTO cargaPrueba VALUES (1, 'repetida', NULL);",
+					"INSERT INTO cargaPrueba VALUES (4, 'tras el error', NULL);"), StandardCharsets.UTF_8);
+			ResultadoCarga resultado = cargador.cargarScript(sql);
+			if (resultado.getNumErrores() == 1 && resultado.getErrores().get(0).getLinea() == 10
+					&& resultado.getErrores().get(0).getTipo() == SGBDError.PK_VIOLATED
+					&& consultarEntero("SELECT COUNT(*) FROM cargaPrueba WHERE ID < ?", 5) == 4
+					&& consultarEntero("SELECT COUNT(*) FROM cargaPrueba WHERE ID = ? AND TEXTO = 'a;b -- c'", 3) == 1
+					&& consultarEntero("SELECT COUNT(*) FROM cargaPrueba WHERE ID = ? AND TEXTO = 'bloque'", 1) == 1) {
+				LOGGER.info("Carga de script con error en un lote OK");
+			} else {
+				LOGGER.info("Carga de script con error en un lote MAL: {}", resultado);
+			}
+
+			// Linea 4: numero mal escrito, no llega a la base de datos; linea 5: clave repetida.
+			Files.write(csv, Arrays.asList(
+					"ID,TEXTO,FECHA",
+					"5,\"con, coma\",2024-05-01",
+					"6,,",
+					"x7,mal,2024-01-01",
+					"5,repetida,2024-01-01",
+					"8,ultima,2024-01-02 10:30"), StandardCharsets.UTF_8);
+			resultado = cargador.cargarCsv(csv, "cargaPrueba");
+			List<ResultadoCarga.ErrorCarga> errores = resultado.getErrores();
+			if (resultado.getFilas() == 3 && errores.size() == 2
+					&& errores.get(0).getLinea() == 4 && errores.get(0).getTipo() == SGBDError.UNKNOWN
+					&& errores.get(1).getLinea() == 5 && errores.get(1).getTipo() == SGBDError.PK_VIOLATED
+					&& consultarEntero(filas + " AND TEXTO = 'con, coma' AND FECHA = DATE '2024-05-01'", 5) == 1
+					&& consultarEntero(filas + " AND TEXTO IS NULL AND FECHA IS NULL", 6) == 1
+					&& consultarEntero(filas + " AND FECHA = TIMESTAMP '2024-01-02 10:30:00'", 8) == 1) {
+				LOGGER.info("Carga de CSV con conversion de tipos y errores OK");
+			} else {
+				LOGGER.info("Carga de CSV con conversion de tipos y errores MAL: {}", resultado);
+			}
+
+			Files.write(sql, Arrays.asList("DROP TABLE cargaPrueba;"), StandardCharsets.UTF_8);
+			cargador.cargarScript(sql);
+		} catch (IOException | SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		} finally {
+			try {
+				if (sql != null) {
+					Files.deleteIfExists(sql);
+				}
+				if (csv != null) {
+					Files.deleteIfExists(csv);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("No se han podido borrar los ficheros de la prueba: {}", e.getMessage());
+			}
+		}
+	}
+
+	// Tests de la asignacion de asientos: las compras llevan asientos seguidos y distintos, y las
+	// anulaciones liberan los mas altos del ticket para la siguiente compra.
+	public void ejecutarTestsAsientos() {
+
+		Servicio servicio = new ServicioImpl();
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String rango = "SELECT MAX(ASIENTO) - MIN(ASIENTO) + 1 FROM ticketsAsientos WHERE IDTICKET = ?";
+		String cuenta = "SELECT COUNT(*) FROM ticketsAsientos WHERE IDTICKET = ?";
+		String primero = "SELECT MIN(ASIENTO) FROM ticketsAsientos WHERE IDTICKET = ?";
+
+		try {
+			int t1 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 3);
+			int t2 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2);
+			if (consultarEntero(cuenta, t1) == 3 && consultarEntero(rango, t1) == 3
+					&& consultarEntero(primero, t2) == consultarEntero(primero, t1) + 3) {
+				LOGGER.info("Asientos seguidos OK");
+			} else {
+				LOGGER.info("Asientos seguidos MAL");
+			}
+
+			// Se anula una plaza del primer ticket: queda con dos asientos y la siguiente compra de
+			// una plaza recibe el asiento liberado.
+			int liberado = consultarEntero(primero, t1) + 2;
+			servicio.anularBillete(hora, fecha, ORIGEN, DESTINO, 1, t1);
+			int t3 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+			if (consultarEntero(cuenta, t1) == 2 && consultarEntero(primero, t3) == liberado) {
+				LOGGER.info("Asientos liberados al anular OK");
+			} else {
+				LOGGER.info("Asientos liberados al anular MAL");
+			}
+
+			// Al anular el ticket entero desaparecen sus asientos.
+			servicio.anularBillete(hora, fecha, ORIGEN, DESTINO, 2, t2);
+			if (consultarEntero(cuenta, t2) == 0) {
+				LOGGER.info("Asientos borrados con el ticket OK");
+			} else {
+				LOGGER.info("Asientos borrados con el ticket MAL");
+			}
+
+			// Dos compras esperan por el viaje con sus asientos reservados en memoria y la segunda vence:
+			// al deshacerla solo se liberan los suyos, que recibe la siguiente compra, y no los de la
+			// primera, aun sin confirmar.
+			try (AsyncServicio async = new AsyncServicio(servicio, 2, 0)) {
+				CompletableFuture<Integer> enCurso;
+				Connection bloqueo = PoolDeConexiones.getInstance().getConnection();
+				try {
+					bloquearViaje(bloqueo, 1);
+					enCurso = async.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2, 10, TimeUnit.SECONDS);
+					Thread.sleep(500);// que reserve sus asientos antes que la segunda
+					CompletableFuture<Integer> vencida = async.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2, 1,
+							TimeUnit.SECONDS);
+					if (!(fallo(vencida) instanceof SQLTimeoutException)) {
+						LOGGER.info("Compra vencida con asientos MAL");
+					}
+					Thread.sleep(1000);// que la compra vencida se deshaga
+				} finally {
+					bloqueo.rollback();
+					bloqueo.close();
+				}
+				int t4 = enCurso.get();
+				int t5 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2);
+				if (consultarEntero(cuenta, t4) == 2
+						&& consultarEntero(primero, t5) == consultarEntero(primero, t4) + 2) {
+					LOGGER.info("Asientos liberados al deshacer una compra OK");
+				} else {
+					LOGGER.info("Asientos liberados al deshacer una compra MAL");
+				}
+			}
+
+			// Una compra de cero plazas no reserva asientos.
+			try {
+				int t6 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 0);
+				if (consultarEntero(cuenta, t6) == 0) {
+					LOGGER.info("Compra sin plazas sin asientos OK");
+				} else {
+					LOGGER.info("Compra sin plazas sin asientos MAL");
+				}
+			} catch (RuntimeException e) {
+				LOGGER.info("Compra sin plazas sin asientos MAL");
+			}
+		} catch (SQLException | ExecutionException e) {
+			LOGGER.info("Error inesperado MAL");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.info("Test de asientos interrumpido MAL");
+		}
+	}
+
+	// Tests de la venta por tramos del viaje 5, Bilbao-Madrid con parada intermedia en Burgos y 30
+	// plazas por tramo.
+	public void ejecutarTestsTramos() {
+
+		ServicioTramos servicio = new ServicioTramos();
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("7:00:00");
+		String bilbao = "Bilbao";
+		String libres = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+		String sumar = "UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES + ? WHERE IDVIAJE = 5";
+
+		try {
+			// Bilbao-Burgos solo descuenta el primer tramo; el recorrido completo queda con su minimo.
+			int t1 = servicio.comprarTramo(5, bilbao, ORIGEN, 5);
+			if (servicio.plazasLibres(5, bilbao, ORIGEN) == 25 && servicio.plazasLibres(5, ORIGEN, DESTINO) == 30
+					&& servicio.plazasLibres(5, bilbao, DESTINO) == 25 && consultarEntero(libres, 5) == 25) {
+				LOGGER.info("Compra de un tramo OK");
+			} else {
+				LOGGER.info("Compra de un tramo MAL");
+			}
+
+			// Las plazas del recorrido completo bajan lo que baja el minimo, sin pisar las que haya
+			// descontado otro servicio.
+			ejecutarActualizacion(sumar, -2);
+			servicio.comprarTramo(5, ORIGEN, DESTINO, 10);
+			if (consultarEntero(libres, 5) == 18) {
+				LOGGER.info("Recorrido completo ajustado por el minimo OK");
+			} else {
+				LOGGER.info("Recorrido completo ajustado por el minimo MAL");
+			}
+			ejecutarActualizacion(sumar, 2);
+
+			// Agotado el segundo tramo no se vende el recorrido completo ni se toca el primero.
+			servicio.comprarTramo(5, ORIGEN, DESTINO, 20);
+			try {
+				servicio.comprarBillete(hora, fecha, bilbao, DESTINO, 1);
+				LOGGER.info("Recorrido completo sin plazas en un tramo MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_PLAZAS
+						&& servicio.plazasLibres(5, bilbao, ORIGEN) == 25) {
+					LOGGER.info("Recorrido completo sin plazas en un tramo OK");
+				} else {
+					LOGGER.info("Recorrido completo sin plazas en un tramo MAL");
+				}
+			}
+
+			// Un ticket de un tramo no se anula con otro viaje.
+			try {
+				servicio.anularBillete(Time.valueOf("8:30:00"), fecha, ORIGEN, DESTINO, 1, t1);
+				LOGGER.info("Anulacion de un tramo en otro viaje MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_TICKET
+						&& servicio.plazasLibres(5, bilbao, ORIGEN) == 25) {
+					LOGGER.info("Anulacion de un tramo en otro viaje OK");
+				} else {
+					LOGGER.info("Anulacion de un tramo en otro viaje MAL");
+				}
+			}
+
+			// Anular el primer ticket devuelve sus plazas solo al primer tramo.
+			servicio.anularBillete(hora, fecha, bilbao, DESTINO, 5, t1);
+			if (servicio.plazasLibres(5, bilbao, ORIGEN) == 30 && servicio.plazasLibres(5, ORIGEN, DESTINO) == 0
+					&& consultarEntero(libres, 5) == 0) {
+				LOGGER.info("Anulacion de un tramo OK");
+			} else {
+				LOGGER.info("Anulacion de un tramo MAL");
+			}
+
+			// Las claves de idempotencia no se admiten: el registro no sabe repetir ventas por tramos.
+			try {
+				servicio.comprarBillete("tramo-1", hora, fecha, bilbao, DESTINO, 1);
+				LOGGER.info("Compra con clave en tramos rechazada MAL");
+			} catch (SQLFeatureNotSupportedException e) {
+				LOGGER.info("Compra con clave en tramos rechazada OK");
+			}
+
+			// Paradas en orden inverso.
+			try {
+				servicio.comprarTramo(5, DESTINO, ORIGEN, 1);
+				LOGGER.info("Tramo inexistente MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_EXISTE_VIAJE) {
+					LOGGER.info("Tramo inexistente OK");
+				} else {
+					LOGGER.info("Tramo inexistente MAL");
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests de claves de idempotencia: repetir una peticion devuelve el resultado original sin
+	// volver a descontar ni devolver plazas, tambien despues de vaciar la cache.
+	public void ejecutarTestsIdempotencia() {
+
+		Servicio servicio = new ServicioImpl();
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String libres = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+
+		try {
+			int t1 = servicio.comprarBillete("compra-1", hora, fecha, ORIGEN, DESTINO, 4);
+			int repetido = servicio.comprarBillete("compra-1", hora, fecha, ORIGEN, DESTINO, 4);
+			if (repetido == t1 && consultarEntero(libres, 1) == 26) {
+				LOGGER.info("Compra repetida OK");
+			} else {
+				LOGGER.info("Compra repetida MAL");
+			}
+
+			// Sin la cache el resultado se recupera de la tabla.
+			RegistroIdempotencia.getInstance().invalidar();
+			repetido = servicio.comprarBillete("compra-1", hora, fecha, ORIGEN, DESTINO, 4);
+			if (repetido == t1 && consultarEntero(libres, 1) == 26) {
+				LOGGER.info("Compra repetida tras vaciar la cache OK");
+			} else {
+				LOGGER.info("Compra repetida tras vaciar la cache MAL");
+			}
+
+			// Un rechazo se repite con el mismo codigo.
+			java.util.Date sinViaje = toDate("21/04/2022");
+			int rechazos = 0;
+			for (int i = 0; i < 2; i++) {
+				try {
+					servicio.comprarBillete("compra-2", hora, sinViaje, ORIGEN, DESTINO, 1);
+				} catch (CompraBilleteTrenException e) {
+					if (e.getErrorCode() == CompraBilleteTrenException.NO_EXISTE_VIAJE) {
+						rechazos++;
+					}
+				}
+			}
+			if (rechazos == 2) {
+				LOGGER.info("Rechazo repetido OK");
+			} else {
+				LOGGER.info("Rechazo repetido MAL");
+			}
+
+			// La anulacion repetida solo devuelve las plazas una vez.
+			servicio.anularBillete("anulacion-1", hora, fecha, ORIGEN, DESTINO, 1, t1);
+			servicio.anularBillete("anulacion-1", hora, fecha, ORIGEN, DESTINO, 1, t1);
+			if (consultarEntero(libres, 1) == 27) {
+				LOGGER.info("Anulacion repetida OK");
+			} else {
+				LOGGER.info("Anulacion repetida MAL");
+			}
+
+			// Una clave confirmada que no esta en la cache (como si la hubiera desalojado) se busca en
+			// la tabla antes de tocar el viaje, aunque este ya no tenga plazas.
+			ejecutarActualizacion("INSERT INTO idempotencia (OPERACION, CLAVE, RESULTADO, IDTICKET) "
+					+ "VALUES ('COMPRA', 'fuera-de-cache', 0, ?)", t1);
+			ejecutarActualizacion("UPDATE viajes SET NPLAZASLIBRES = ? WHERE IDVIAJE = 1", 0);
+			try {
+				if (servicio.comprarBillete("fuera-de-cache", hora, fecha, ORIGEN, DESTINO, 1) == t1) {
+					LOGGER.info("Compra repetida fuera de la cache OK");
+				} else {
+					LOGGER.info("Compra repetida fuera de la cache MAL");
+				}
+			} catch (CompraBilleteTrenException e) {
+				LOGGER.info("Compra repetida fuera de la cache MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests de reintentos sobre un servicio que falla a voluntad: se repiten los interbloqueos,
+	// tras perder la conexion solo las compras con clave, y el cortacircuitos corta las llamadas.
+	public void ejecutarTestsReintentos() {
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		AtomicInteger llamadas = new AtomicInteger();
+		AtomicInteger fallos = new AtomicInteger();
+		SQLException[] error = new SQLException[1];
+
+		Servicio fallido = new Servicio() {
+			@Override
+			public void anularBillete(Time h, java.util.Date f, String o, String d, int n, int t) {
+			}
+
+			@Override
+			public int comprarBillete(Time h, java.util.Date f, String o, String d, int n) throws SQLException {
+				llamadas.incrementAndGet();
+				if (fallos.getAndDecrement() > 0) {
+					throw error[0];
+				}
+				return 7;
+			}
+
+			@Override
+			public int comprarBillete(String c, Time h, java.util.Date f, String o, String d, int n)
+					throws SQLException {
+				return comprarBillete(h, f, o, d, n);
+			}
+		};
+		Servicio servicio = new ServicioReintentos(fallido,
+				new EjecutorReintentos(4, 1, 5, 0.1, 20, new Cortacircuitos(3, 60_000)));
+		SQLException perdida = new SQLRecoverableException("Io exception", "08006", 17002);
+
+		try {
+			error[0] = new SQLException("ORA-00060: deadlock detected", "61000", 60);
+			fallos.set(2);
+			llamadas.set(0);
+			if (servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1) == 7 && llamadas.get() == 3) {
+				LOGGER.info("Reintento de interbloqueo OK");
+			} else {
+				LOGGER.info("Reintento de interbloqueo MAL");
+			}
+
+			// Un rechazo de negocio no se repite.
+			error[0] = new CompraBilleteTrenException(CompraBilleteTrenException.NO_PLAZAS);
+			fallos.set(1);
+			llamadas.set(0);
+			try {
+				servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+				LOGGER.info("Rechazo sin reintentos MAL");
+			} catch (CompraBilleteTrenException e) {
+				LOGGER.info(llamadas.get() == 1 ? "Rechazo sin reintentos OK" : "Rechazo sin reintentos MAL");
+			}
+
+			// Sin clave no se sabe si la compra se confirmo antes de perder la conexion.
+			error[0] = perdida;
+			fallos.set(1);
+			llamadas.set(0);
+			try {
+				servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+				LOGGER.info("Conexion perdida sin clave MAL");
+			} catch (SQLRecoverableException e) {
+				LOGGER.info(llamadas.get() == 1 ? "Conexion perdida sin clave OK" : "Conexion perdida sin clave MAL");
+			}
+			fallos.set(1);
+			llamadas.set(0);
+			if (servicio.comprarBillete("compra-1", hora, fecha, ORIGEN, DESTINO, 1) == 7 && llamadas.get() == 2) {
+				LOGGER.info("Conexion perdida con clave OK");
+			} else {
+				LOGGER.info("Conexion perdida con clave MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+
+		// Tras dos errores de conexion seguidos las llamadas se rechazan sin llegar al servicio.
+		Cortacircuitos circuito = new Cortacircuitos(2, 60_000);
+		servicio = new ServicioReintentos(fallido, new EjecutorReintentos(1, 1, 5, 0.1, 20, circuito));
+		error[0] = perdida;
+		fallos.set(Integer.MAX_VALUE);
+		llamadas.set(0);
+		for (int i = 0; i < 3; i++) {
+			try {
+				servicio.comprarBillete("compra-2", hora, fecha, ORIGEN, DESTINO, 1);
+			} catch (SQLException e) {
+				// esperado
+			}
+		}
+		if (llamadas.get() == 2 && circuito.getEstado() == Cortacircuitos.Estado.ABIERTO) {
+			LOGGER.info("Cortacircuitos abierto OK");
+		} else {
+			LOGGER.info("Cortacircuitos abierto MAL");
+		}
+	}
+
+	// Tests del panel de ocupacion: las compras llegan a la instantanea siguiente sin cambiar las
+	// ya leidas, y los cambios hechos fuera del servicio solo tras reconciliar.
+	public void ejecutarTestsOcupacion() {
+
+		Servicio servicio = new ServicioImpl();
+		PanelOcupacion panel = PanelOcupacion.getInstance();
+
+		// El viaje 1 pasa a salir manana, para que entre en el panel.
+		java.util.Date manana = java.sql.Date.valueOf(java.time.LocalDate.now().plusDays(1));
+		Time hora = Time.valueOf("8:30:00");
+		String capacidad = "SELECT m.NPLAZAS FROM viajes v JOIN trenes t ON v.IDTREN = t.IDTREN "
+				+ "JOIN modelos m ON t.MODELO = m.IDMODELO WHERE v.IDVIAJE = ?";
+
+		try {
+			ejecutarActualizacion("UPDATE viajes SET FECHA = TRUNC(CURRENT_DATE) + 1 WHERE IDVIAJE = ?", 1);
+			PanelOcupacion.Instantanea antes = panel.instantanea();
+			int plazas = consultarEntero(capacidad, 1);
+			if (antes.getViaje(1) != null && antes.getViaje(1).getPlazasOcupadas() == plazas - 30
+					&& antes.getViajes().size() == 4) {
+				LOGGER.info("Carga del panel OK");
+			} else {
+				LOGGER.info("Carga del panel MAL");
+			}
+
+			servicio.comprarBillete(hora, manana, ORIGEN, DESTINO, 3);
+			PanelOcupacion.Instantanea despues = panel.instantanea();
+			if (despues.getViaje(1).getPlazasLibres() == 27 && antes.getViaje(1).getPlazasLibres() == 30
+					&& despues.getVersion() > antes.getVersion()) {
+				LOGGER.info("Compra en la instantanea siguiente OK");
+			} else {
+				LOGGER.info("Compra en la instantanea siguiente MAL");
+			}
+
+			// Un cambio que no pasa por el servicio solo se ve al reconciliar.
+			ejecutarActualizacion("UPDATE viajes SET NPLAZASLIBRES = NPLAZASLIBRES - 5 WHERE IDVIAJE = ?", 1);
+			boolean sinCambio = panel.instantanea().getViaje(1).getPlazasLibres() == 27;
+			if (sinCambio && panel.reconciliar().getViaje(1).getPlazasLibres() == 22) {
+				LOGGER.info("Reconciliacion del panel OK");
+			} else {
+				LOGGER.info("Reconciliacion del panel MAL");
+			}
+
+			// Un aviso confirmado antes de la carga pero notificado despues ya esta en ella.
+			panel.plazasCambiadas(0L, 1, -3);
+			if (panel.instantanea().getViaje(1).getPlazasLibres() == 22) {
+				LOGGER.info("Aviso anterior a la carga descartado OK");
+			} else {
+				LOGGER.info("Aviso anterior a la carga descartado MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests de la fachada asincrona con el viaje bloqueado por otra transaccion: las llamadas que
+	// exceden la admision se rechazan en el momento, y la compra que vence el plazo o se cancela no
+	// se confirma aunque el viaje se desbloquee despues.
+	public void ejecutarTestsAsync() {
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String libres = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+		String tickets = "SELECT COUNT(*) FROM tickets WHERE IDVIAJE = ?";
+
+		try (AsyncServicio async = new AsyncServicio(new ServicioImpl(), 1, 0)) {
+			int plazas = consultarEntero(libres, 1);
+			int vendidos = consultarEntero(tickets, 1);
+
+			Connection bloqueo = PoolDeConexiones.getInstance().getConnection();
+			try {
+				bloquearViaje(bloqueo, 1);
+				CompletableFuture<Integer> vencida = async.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1, 1,
+						TimeUnit.SECONDS);
+				CompletableFuture<Integer> rechazada = async.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1, 1,
+						TimeUnit.SECONDS);
+				if (fallo(rechazada) instanceof SQLTransientException && !vencida.isDone()) {
+					LOGGER.info("Llamada sin admision rechazada OK");
+				} else {
+					LOGGER.info("Llamada sin admision rechazada MAL");
+				}
+				if (fallo(vencida) instanceof SQLTimeoutException) {
+					LOGGER.info("Compra con plazo vencido OK");
+				} else {
+					LOGGER.info("Compra con plazo vencido MAL");
+				}
+			} finally {
+				bloqueo.rollback();
+				bloqueo.close();
+			}
+			// Si la sentencia siguiera en curso, se completaria y confirmaria al liberar el viaje.
+			Thread.sleep(1000);
+			if (consultarEntero(libres, 1) == plazas && consultarEntero(tickets, 1) == vendidos) {
+				LOGGER.info("Compra vencida sin confirmar OK");
+			} else {
+				LOGGER.info("Compra vencida sin confirmar MAL");
+			}
+
+			bloqueo = PoolDeConexiones.getInstance().getConnection();
+			try {
+				bloquearViaje(bloqueo, 1);
+				CompletableFuture<Integer> cancelada = async.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1, 10,
+						TimeUnit.SECONDS);
+				Thread.sleep(500);// que llegue a esperar por el viaje
+				if (cancelada.cancel(true) && fallo(cancelada) instanceof CancellationException) {
+					LOGGER.info("Compra cancelada OK");
+				} else {
+					LOGGER.info("Compra cancelada MAL");
+				}
+			} finally {
+				bloqueo.rollback();
+				bloqueo.close();
+			}
+			Thread.sleep(1000);
+			if (consultarEntero(libres, 1) == plazas && consultarEntero(tickets, 1) == vendidos) {
+				LOGGER.info("Compra cancelada sin confirmar OK");
+			} else {
+				LOGGER.info("Compra cancelada sin confirmar MAL");
+			}
+
+			// El plazo vence tras confirmar la compra, mientras la llamada aun no ha terminado: el
+			// futuro termina con el ticket vendido.
+			ServicioImpl lento = new ServicioImpl() {
+				@Override
+				public int comprarBillete(Time hora, java.util.Date fecha, String origen, String destino,
+						int nroPlazas) throws SQLException {
+					int ticket = super.comprarBillete(hora, fecha, origen, destino, nroPlazas);
+					try {
+						Thread.sleep(1500);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return ticket;
+				}
+			};
+			try (AsyncServicio tardio = new AsyncServicio(lento, 1, 0)) {
+				CompletableFuture<Integer> confirmada = tardio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1, 1,
+						TimeUnit.SECONDS);
+				Integer vendido = confirmada.get();
+				plazas--;
+				if (consultarEntero(tickets, 1) == vendidos + 1 && consultarEntero(libres, 1) == plazas
+						&& consultarEntero("SELECT COUNT(*) FROM tickets WHERE IDTICKET = ?", vendido) == 1) {
+					LOGGER.info("Plazo vencido tras confirmar OK");
+				} else {
+					LOGGER.info("Plazo vencido tras confirmar MAL");
+				}
+			}
+
+			// Sin bloqueo la compra con clave termina y al repetirla devuelve el mismo ticket.
+			int ticket = async.comprarBillete("async-1", hora, fecha, ORIGEN, DESTINO, 1, 5, TimeUnit.SECONDS).get();
+			int repetido = async.comprarBillete("async-1", hora, fecha, ORIGEN, DESTINO, 1, 5, TimeUnit.SECONDS).get();
+			if (repetido == ticket && consultarEntero(libres, 1) == plazas - 1) {
+				LOGGER.info("Compra asincrona con clave OK");
+			} else {
+				LOGGER.info("Compra asincrona con clave MAL");
+			}
+		} catch (SQLException | ExecutionException e) {
+			LOGGER.info("Error inesperado MAL");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.info("Test asincrono interrumpido MAL");
+		}
+	}
+
+	private void bloquearViaje(Connection con, int idViaje) throws SQLException { // bloquea la fila del viaje sin confirmar
+		PreparedStatement st = con.prepareStatement("SELECT IDVIAJE FROM viajes WHERE IDVIAJE = ? FOR UPDATE");
+		st.setInt(1, idViaje);
+		st.executeQuery().close();
+		st.close();
+	}
+
+	private Throwable fallo(CompletableFuture<?> futuro) throws InterruptedException { // espera el futuro y devuelve su excepcion
+		try {
+			futuro.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (CancellationException e) {
+			return e;
+		}
+	}
+
+	// Tests del inventario en memoria: las compras y anulaciones llegan a la base de datos al
+	// volcar, y al arrancar se reaplica el diario descartando una ultima linea escrita a medias.
+	public void ejecutarTestsInventarioMemoria() {
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String libres = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+		String cantidad = "SELECT CANTIDAD FROM tickets WHERE IDTICKET = ?";
+		long dia = java.time.LocalDate.of(2022, 4, 20).toEpochDay();
+
+		try {
+			Path ruta = Files.createTempFile("diario", ".log");
+
+			// Con un volcado cada hora la base de datos no cambia hasta cerrar el servicio.
+			ServicioInventarioMemoria servicio = new ServicioInventarioMemoria(ruta, true, 3_600_000);
+			servicio.iniciar();
+			int t1 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 3);
+			servicio.anularBillete(hora, fecha, ORIGEN, DESTINO, 1, t1);
+			boolean sinVolcar = consultarEntero(libres, 1) == 30 && consultarEntero(cantidad, t1) == 0;
+			servicio.close();
+			if (sinVolcar && consultarEntero(libres, 1) == 28 && consultarEntero(cantidad, t1) == 2) {
+				LOGGER.info("Volcado diferido del inventario OK");
+			} else {
+				LOGGER.info("Volcado diferido del inventario MAL");
+			}
+
+			// Diario con una compra sin volcar: se aplica al arrancar.
+			Files.write(ruta, ("C;1;9001;1;2;0;" + dia + "\n").getBytes(StandardCharsets.UTF_8));
+			servicio = new ServicioInventarioMemoria(ruta, true, 3_600_000);
+			servicio.iniciar();
+			servicio.close();
+			if (consultarEntero(libres, 1) == 26 && consultarEntero(cantidad, 9001) == 2) {
+				LOGGER.info("Recuperacion del diario OK");
+			} else {
+				LOGGER.info("Recuperacion del diario MAL");
+			}
+
+			// La ultima linea quedo a medias: se descarta y el servicio arranca y sigue vendiendo.
+			Files.write(ruta, ("C;1;9002;1;1;0;" + dia + "\nC;2;9003;1;").getBytes(StandardCharsets.UTF_8));
+			servicio = new ServicioInventarioMemoria(ruta, true, 3_600_000);
+			servicio.iniciar();
+			int t2 = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+			servicio.close();
+			if (consultarEntero(cantidad, 9002) == 1 && consultarEntero(cantidad, 9003) == 0
+					&& consultarEntero(cantidad, t2) == 1 && consultarEntero(libres, 1) == 24) {
+				LOGGER.info("Recuperacion con la ultima linea a medias OK");
+			} else {
+				LOGGER.info("Recuperacion con la ultima linea a medias MAL");
+			}
+
+			// Una linea ilegible antes de la ultima es corrupcion: no se arranca.
+			Files.write(ruta, ("C;1;9004;1;x;0;" + dia + "\nC;2;9005;1;1;0;" + dia + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			try {
+				new ServicioInventarioMemoria(ruta, true, 3_600_000).iniciar();
+				LOGGER.info("Diario corrupto MAL");
+			} catch (IOException e) {
+				LOGGER.info(consultarEntero(cantidad, 9005) == 0 ? "Diario corrupto OK" : "Diario corrupto MAL");
+			}
+			Files.delete(ruta);
+		} catch (SQLException | IOException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Test de regresion de planes: las busquedas de viajes y tickets usan sus indices.
+	public void ejecutarTestsPlanes() {
+		try {
+			Connection con = PoolDeConexiones.getInstance().getConnection();
+			try {
+				List<String> incumplimientos = PlanesConsulta.comprobar(con);
+				if (incumplimientos.isEmpty()) {
+					LOGGER.info("Consultas por indice OK");
+				} else {
+					LOGGER.info("Consultas por indice MAL: {}", incumplimientos);
+				}
+			} finally {
+				con.close();
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Tests que ejecutan las mismas operaciones sobre Oracle y sobre el almacen en memoria
+	// cargado del script, que deben dar los mismos resultados y dejar las mismas plazas.
+	public void ejecutarTestsAlmacenes() {
+		try {
+			List<String> oracle = secuenciaAlmacen(new ServicioRepositorio(new AlmacenOracle()));
+			int enPanel = PanelOcupacion.getInstance().instantanea().getViaje(1).getPlazasLibres();
+			AlmacenMemoria memoria = AlmacenMemoria.desdeScript(Paths.get("sql/CompraBilleteTren.sql"));
+			List<String> enMemoria = secuenciaAlmacen(new ServicioRepositorio(memoria));
+			if (oracle.equals(enMemoria)) {
+				LOGGER.info("Mismos resultados en Oracle y en memoria OK");
+			} else {
+				LOGGER.info("Mismos resultados en Oracle y en memoria MAL: {} {}", oracle, enMemoria);
+			}
+			// Las compras en memoria no cambian el panel, que sigue a la base de datos.
+			if (PanelOcupacion.getInstance().instantanea().getViaje(1).getPlazasLibres() == enPanel
+					&& enPanel == consultarEntero("SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?", 1)) {
+				LOGGER.info("Almacen en memoria fuera del panel OK");
+			} else {
+				LOGGER.info("Almacen en memoria fuera del panel MAL");
+			}
+
+			Map<Integer, int[]> plazasOracle = GeneradorCarga.leerOracle();
+			Map<Integer, int[]> plazasMemoria = memoria.plazasPorViaje();
+			boolean iguales = plazasOracle.keySet().equals(plazasMemoria.keySet());
+			for (Integer idViaje : plazasOracle.keySet()) {
+				iguales &= Arrays.equals(plazasOracle.get(idViaje), plazasMemoria.get(idViaje));
+			}
+			if (iguales) {
+				LOGGER.info("Mismas plazas en Oracle y en memoria OK");
+			} else {
+				LOGGER.info("Mismas plazas en Oracle y en memoria MAL");
+			}
+		} catch (SQLException | IOException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	// Compras y anulaciones sobre el viaje 1, anotando el ticket o el codigo de error de cada una, y
+	// busqueda de las salidas que quedan.
+	private List<String> secuenciaAlmacen(Servicio servicio) {
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		List<String> resultados = new ArrayList<>();
+		int idTicket = 0;
+		try {
+			idTicket = servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 2);
+			resultados.add("ticket " + idTicket);
+		} catch (SQLException e) {
+			resultados.add("error " + e.getErrorCode());
+		}
+		int[][] anulaciones = { { 1, 1 }, { 1, 1 }, { idTicket, 5 }, { idTicket, 1 } };
+		for (int[] a : anulaciones) {
+			try {
+				servicio.anularBillete(hora, fecha, ORIGEN, DESTINO, a[1], a[0]);
+				resultados.add("anulado");
+			} catch (SQLException e) {
+				resultados.add("error " + e.getErrorCode());
+			}
+		}
+		try {
+			servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 50);
+			resultados.add("comprado");
+		} catch (SQLException e) {
+			resultados.add("error " + e.getErrorCode());
+		}
+		try {
+			servicio.comprarBillete(hora, toDate("01/01/2000"), ORIGEN, DESTINO, 1);
+			resultados.add("comprado");
+		} catch (SQLException e) {
+			resultados.add("error " + e.getErrorCode());
+		}
+		try {
+			resultados.add("salidas " + servicio.buscarSalidas(ORIGEN, DESTINO, fecha, toDate("31/12/2099")));
+		} catch (SQLException e) {
+			resultados.add("error " + e.getErrorCode());
+		}
+		return resultados;
+	}
+
+	// Test de concurrencia: varios compradores intentan a la vez comprar una plaza del mismo viaje.
+	public void ejecutarTestsConcurrenciaCompra() {
+		comprobarCompraConcurrente(new ServicioImpl(), "Compra concurrente");
+	}
+
+	// Test de concurrencia con las compras del mismo viaje agrupadas en lotes de hasta 8.
+	public void ejecutarTestsConcurrenciaCompraAgrupada() {
+		comprobarCompraConcurrente(new ServicioAgrupado(2000, 8), "Compra concurrente agrupada");
+	}
+
+	// Viaje repartido en cubetas: los demas servicios no venden sus plazas, la compra concurrente no
+	// vende de mas y al reunirlo las cubetas vuelven a viajes.
+	public void ejecutarTestsConcurrenciaCompraCubetas() {
+
+		java.util.Date fecha = toDate("20/04/2022");
+		Time hora = Time.valueOf("8:30:00");
+		String libres = "SELECT NPLAZASLIBRES FROM viajes WHERE IDVIAJE = ?";
+		ServicioCubetas servicio = new ServicioCubetas(4);
+
+		try {
+			int plazas = consultarEntero(libres, 1);
+			servicio.repartir(1);
+			if (consultarEntero(libres, 1) == 0
+					&& consultarEntero("SELECT SUM(PLAZAS) FROM viajesCubetas WHERE IDVIAJE = ?", 1) == plazas) {
+				LOGGER.info("Viaje repartido en cubetas OK");
+			} else {
+				LOGGER.info("Viaje repartido en cubetas MAL");
+			}
+			try {
+				new ServicioImpl().comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+				LOGGER.info("Venta de un viaje repartido fuera de las cubetas MAL");
+			} catch (CompraBilleteTrenException e) {
+				if (e.getErrorCode() == CompraBilleteTrenException.NO_PLAZAS) {
+					LOGGER.info("Sin venta de un viaje repartido fuera de las cubetas OK");
+				} else {
+					LOGGER.info("Venta de un viaje repartido fuera de las cubetas MAL");
+				}
+			}
+
+			comprobarCompraConcurrente(servicio, "Compra concurrente en cubetas");
+
+			servicio.reunir(1);
+			if (consultarEntero(libres, 1) == 0
+					&& consultarEntero("SELECT COUNT(*) FROM viajesCubetas WHERE IDVIAJE = ?", 1) == 0) {
+				LOGGER.info("Viaje reunido OK");
+			} else {
+				LOGGER.info("Viaje reunido MAL");
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		}
+	}
+
+	private void comprobarCompraConcurrente(final Servicio servicio, String nombre) {
+
+		final java.util.Date fecha = toDate("20/04/2022");
+		final Time hora = Time.valueOf("8:30:00");
+		final int idViaje = 1;
+
+		final AtomicInteger compradas = new AtomicInteger();
+		final AtomicInteger sinPlazas = new AtomicInteger();
+		final AtomicInteger errores = new AtomicInteger();
+		final CountDownLatch salida = new CountDownLatch(1);
+
+		try {
+			// Plazas libres antes de la prueba, que deben coincidir con las compras que tengan exito.
+			int plazasIniciales = consultarEntero(PLAZAS_LIBRES_CON_CUBETAS, idViaje);
+			int vendidasIniciales = consultarEntero("SELECT SUM(CANTIDAD) FROM tickets WHERE IDVIAJE = ?", idViaje);
+
+			ExecutorService compradores = Executors.newFixedThreadPool(COMPRADORES_CONCURRENTES);
+			for (int i = 0; i < COMPRADORES_CONCURRENTES; i++) {
+				compradores.execute(() -> {
+					try {
+						// Todos los compradores arrancan a la vez para forzar la carrera.
+						salida.await();
+						servicio.comprarBillete(hora, fecha, ORIGEN, DESTINO, 1);
+						compradas.incrementAndGet();
+					} catch (SQLException e) {
+						if (e.getErrorCode() == CompraBilleteTrenException.NO_PLAZAS) {
+							sinPlazas.incrementAndGet();
+						} else {
+							errores.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						errores.incrementAndGet();
+					}
+				});
+			}
+			salida.countDown();
+			compradores.shutdown();
+			compradores.awaitTermination(60, TimeUnit.SECONDS);
+
+			int plazasFinales = consultarEntero(PLAZAS_LIBRES_CON_CUBETAS, idViaje);
+			int vendidasFinales = consultarEntero("SELECT SUM(CANTIDAD) FROM tickets WHERE IDVIAJE = ?", idViaje);
+
+			// No se puede vender mas de lo que habia ni dejar plazas en negativo.
+			if (compradas.get() == plazasIniciales && sinPlazas.get() == COMPRADORES_CONCURRENTES - plazasIniciales
+					&& errores.get() == 0 && plazasFinales == 0
+					&& vendidasFinales - vendidasIniciales == plazasIniciales) {
+				LOGGER.info("{} sin sobreventa OK", nombre);
+			} else {
+				LOGGER.info("{} MAL: compradas={} sinPlazas={} errores={} plazasFinales={}",
+						nombre, compradas.get(), sinPlazas.get(), errores.get(), plazasFinales);
+			}
+		} catch (SQLException e) {
+			LOGGER.info("Error inesperado MAL");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.info("Test de concurrencia interrumpido MAL");
+		}
+	}
+
+	private int consultarEntero(String sql, int parametro) throws SQLException { // ejecuta una consulta que devuelve un entero
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			PreparedStatement st = con.prepareStatement(sql);
+			st.setInt(1, parametro);
+			ResultSet rs = st.executeQuery();
+			int valor = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			st.close();
+			con.commit();
+			return valor;
+		} finally {
+			con.close();
+		}
+	}
+
+	private void ejecutarActualizacion(String sql, int parametro) throws SQLException { // ejecuta y confirma una actualizacion
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try {
+			PreparedStatement st = con.prepareStatement(sql);
+			st.setInt(1, parametro);
+			st.executeUpdate();
+			st.close();
+			con.commit();
+		} finally {
+			con.close();
+		}
+	}
+
 	private java.util.Date toDate(String miString) { // convierte una cadena en fecha
 		try {
 			SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy"); // Las M en mayusculas porque sino interpreta
@@ -0,0 +1,139 @@
+package lsi.ubu.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache acotada con expulsion del menos usado recientemente (LRU) y caducidad
+ * de las entradas (TTL). Lleva la cuenta de aciertos y fallos.
+ *
+ * @param <K> tipo de la clave
+ * @param <V> tipo del valor
+ */
+public class CacheLRU<K, V> {
+
+	private final int tamanoMaximo;
+	private final long ttlNanos;
+
+	private final LinkedHashMap<K, Entrada<V>> entradas;
+
+	private final LongAdder aciertos = new LongAdder();
+	private final LongAdder fallos = new LongAdder();
+
+	/**
+	 * Crea la cache.
+	 *
+	 * @param tamanoMaximo numero maximo de entradas
+	 * @param ttlMs        milisegundos que una entrada es valida desde que se
+	 *                     inserta
+	 */
+	public CacheLRU(int tamanoMaximo, long ttlMs) {
+		this.tamanoMaximo = tamanoMaximo;
+		this.ttlNanos = ttlMs * 1_000_000L;
+		this.entradas = new LinkedHashMap<K, Entrada<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entrada<V>> eldest) {
+				return size() > CacheLRU.this.tamanoMaximo;
+			}
+		};
+	}
+
+	/**
+	 * Consulta un valor.
+	 *
+	 * @param clave clave buscada
+	 * @return el valor o null si no esta o ha caducado
+	 */
+	public V get(K clave) {
+		synchronized (entradas) {
+			Entrada<V> entrada = entradas.get(clave);
+			if (entrada != null && System.nanoTime() - entrada.insertada < ttlNanos) {
+				aciertos.increment();
+				return entrada.valor;
+			}
+			if (entrada != null) {
+				entradas.remove(clave);
+			}
+		}
+		fallos.increment();
+		return null;
+	}
+
+	/**
+	 * Guarda un valor, expulsando la entrada menos usada si la cache esta llena.
+	 *
+	 * @param clave clave
+	 * @param valor valor
+	 */
+	public void put(K clave, V valor) {
+		Entrada<V> entrada = new Entrada<>(valor, System.nanoTime());
+		synchronized (entradas) {
+			entradas.put(clave, entrada);
+		}
+	}
+
+	/**
+	 * Elimina una entrada.
+	 *
+	 * @param clave clave a eliminar
+	 */
+	public void invalidar(K clave) {
+		synchronized (entradas) {
+			entradas.remove(clave);
+		}
+	}
+
+	/**
+	 * Vacia la cache.
+	 */
+	public void invalidarTodo() {
+		synchronized (entradas) {
+			entradas.clear();
+		}
+	}
+
+	/**
+	 * @return numero de entradas actuales
+	 */
+	public int size() {
+		synchronized (entradas) {
+			return entradas.size();
+		}
+	}
+
+	/**
+	 * @return numero de consultas que encontraron el valor
+	 */
+	public long getAciertos() {
+		return aciertos.sum();
+	}
+
+	/**
+	 * @return numero de consultas que no encontraron el valor
+	 */
+	public long getFallos() {
+		return fallos.sum();
+	}
+
+	/**
+	 * @return proporcion de aciertos entre 0 y 1
+	 */
+	public double getTasaAciertos() {
+		long a = aciertos.sum();
+		long total = a + fallos.sum();
+		return total == 0 ? 0 : (double) a / total;
+	}
+
+	private static final class Entrada<V> {
+		final V valor;
+		final long insertada;
+
+		Entrada(V valor, long insertada) {
+			this.valor = valor;
+			this.insertada = insertada;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package lsi.ubu.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.LectorScript.Sentencia;
+import lsi.ubu.util.ResultadoCarga.ErrorCarga;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * Carga de datos por JDBC, sin SQL*Plus. Admite scripts SQL y ficheros CSV de
+ * horarios.
+ *
+ * <p>
+ * En los scripts, las sentencias DML seguidas se envian juntas en lotes de
+ * {@code tamanoLote} y cada lote se confirma en su propia transaccion; el resto
+ * de sentencias (DDL y bloques PL/SQL) se ejecutan y confirman de una en una,
+ * para que deshacer un lote que falla no deshaga tambien lo que hicieron. En los CSV, cada fila se
+ * asocia a los parametros de un unico INSERT preparado y las filas se envian
+ * igualmente por lotes. Si un lote falla se deshace y se repite fila a fila
+ * para localizar los errores; como SQL*Plus, la carga sigue con el resto.
+ *
+ * <p>
+ * Los errores se clasifican con {@link OracleSGBDErrorUtil}. Borrar una tabla o
+ * secuencia que no existe no cuenta como error.
+ */
+public class CargadorHorarios {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CargadorHorarios.class);
+
+	private static final int TAMANO_LOTE = 500;
+
+	private static final SGBDErrorUtil ERRORES = new OracleSGBDErrorUtil();
+
+	private final int tamanoLote;
+
+	public CargadorHorarios() {
+		this(TAMANO_LOTE);
+	}
+
+	/**
+	 * @param tamanoLote sentencias o filas de cada lote y de cada transaccion
+	 */
+	public CargadorHorarios(int tamanoLote) {
+		if (tamanoLote < 1) {
+			throw new IllegalArgumentException("Tamano de lote no valido: " + tamanoLote);
+		}
+		this.tamanoLote = tamanoLote;
+	}
+
+	/**
+	 * Ejecuta un script SQL. Termina al llegar al final o a {@code exit}.
+	 *
+	 * @param script fichero del script
+	 * @return resultado de la carga
+	 * @throws IOException  si no se puede leer el script
+	 * @throws SQLException si falla la conexion con la base de datos
+	 */
+	public ResultadoCarga cargarScript(Path script) throws IOException, SQLException {
+		ResultadoCarga resultado = new ResultadoCarga(script.toString());
+		long inicio = System.nanoTime();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (Reader entrada = Files.newBufferedReader(script, StandardCharsets.UTF_8);
+				Statement st = con.createStatement()) {
+			LectorScript lector = new LectorScript(entrada);
+			List<Sentencia> lote = new ArrayList<>(tamanoLote);
+			Sentencia s;
+			while ((s = lector.siguiente()) != null) {
+				String orden = primeraPalabra(s.texto);
+				if (orden.equals("EXIT") || orden.equals("QUIT")) {
+					break;
+				}
+				if (orden.equals("COMMIT")) {
+					ejecutarLote(con, st, lote, resultado);
+					con.commit();
+				} else if (orden.equals("INSERT") || orden.equals("UPDATE") || orden.equals("DELETE")
+						|| orden.equals("MERGE")) {
+					st.addBatch(s.texto);
+					lote.add(s);
+					if (lote.size() == tamanoLote) {
+						ejecutarLote(con, st, lote, resultado);
+					}
+				} else {
+					ejecutarLote(con, st, lote, resultado);
+					ejecutar(st, s, orden, resultado);
+					con.commit();
+				}
+			}
+			ejecutarLote(con, st, lote, resultado);
+			con.commit();
+		} catch (SQLException | IOException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+			terminar(resultado, inicio);
+		}
+		return resultado;
+	}
+
+	/**
+	 * Inserta las filas de un CSV en una tabla. La primera linea tiene los nombres
+	 * de las columnas; los valores van separados por comas y pueden ir entre
+	 * comillas dobles. Las fechas se escriben como {@code yyyy-MM-dd}, las horas
+	 * como {@code HH:mm} (las columnas de hora de {@code recorridos} se guardan en
+	 * el dia 1/1/0001) y los campos vacios se cargan como nulos.
+	 *
+	 * @param csv   fichero CSV
+	 * @param tabla tabla destino
+	 * @return resultado de la carga
+	 * @throws IOException  si no se puede leer el fichero
+	 * @throws SQLException si falla la conexion o la tabla o columnas no existen
+	 */
+	public ResultadoCarga cargarCsv(Path csv, String tabla) throws IOException, SQLException {
+		ResultadoCarga resultado = new ResultadoCarga(csv.toString());
+		long inicio = System.nanoTime();
+		Connection con = PoolDeConexiones.getInstance().getConnection();
+		try (BufferedReader entrada = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+			String cabecera = entrada.readLine();
+			if (cabecera == null) {
+				return resultado;
+			}
+			String[] columnas = partirCsv(cabecera);
+			int[] tipos = tiposColumnas(con, tabla, columnas);
+
+			try (PreparedStatement st = con.prepareStatement(insertar(tabla, columnas))) {
+				List<String[]> lote = new ArrayList<>(tamanoLote);
+				List<Integer> lineas = new ArrayList<>(tamanoLote);
+				String texto;
+				int linea = 1;
+				while ((texto = entrada.readLine()) != null) {
+					linea++;
+					if (texto.trim().isEmpty()) {
+						continue;
+					}
+					String[] valores = partirCsv(texto);
+					try {
+						asignar(st, tipos, valores);
+					} catch (IllegalArgumentException e) {// valor mal escrito: no llega a la base de datos
+						resultado.anadirError(new ErrorCarga(linea, SGBDError.UNKNOWN, e.getMessage()));
+						st.clearParameters();
+						continue;
+					}
+					st.addBatch();
+					lote.add(valores);
+					lineas.add(linea);
+					if (lote.size() == tamanoLote) {
+						ejecutarLoteCsv(con, st, tipos, lote, lineas, resultado);
+					}
+				}
+				ejecutarLoteCsv(con, st, tipos, lote, lineas, resultado);
+			}
+		} catch (SQLException | IOException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.close();
+			terminar(resultado, inicio);
+		}
+		return resultado;
+	}
+
+	// Envia las sentencias DML acumuladas y confirma. Si falla alguna, repite el lote una a una.
+	private void ejecutarLote(Connection con, Statement st, List<Sentencia> lote, ResultadoCarga resultado)
+			throws SQLException {
+		if (lote.isEmpty()) {
+			return;
+		}
+		try {
+			sumarFilas(st.executeBatch(), resultado);
+			for (int i = 0; i < lote.size(); i++) {
+				resultado.sumarSentencia();
+			}
+		} catch (BatchUpdateException e) {
+			con.rollback();
+			st.clearBatch();
+			for (Sentencia s : lote) {
+				ejecutar(st, s, primeraPalabra(s.texto), resultado);
+			}
+		}
+		con.commit();
+		lote.clear();
+	}
+
+	private void ejecutarLoteCsv(Connection con, PreparedStatement st, int[] tipos, List<String[]> lote,
+			List<Integer> lineas, ResultadoCarga resultado) throws SQLException {
+		if (lote.isEmpty()) {
+			return;
+		}
+		try {
+			sumarFilas(st.executeBatch(), resultado);
+			for (int i = 0; i < lote.size(); i++) {
+				resultado.sumarSentencia();
+			}
+		} catch (BatchUpdateException e) {
+			con.rollback();
+			st.clearBatch();
+			for (int i = 0; i < lote.size(); i++) {
+				try {
+					asignar(st, tipos, lote.get(i));
+					resultado.sumarFilas(st.executeUpdate());
+					resultado.sumarSentencia();
+				} catch (SQLException ex) {
+					anotarError(lineas.get(i), "INSERT", ex, resultado);
+				}
+			}
+		}
+		con.commit();
+		lote.clear();
+		lineas.clear();
+	}
+
+	private static void ejecutar(Statement st, Sentencia s, String orden, ResultadoCarga resultado) {
+		try {
+			if (!st.execute(s.texto)) {
+				resultado.sumarFilas(Math.max(0, st.getUpdateCount()));
+			}
+			resultado.sumarSentencia();
+		} catch (SQLException e) {
+			anotarError(s.linea, orden, e, resultado);
+		}
+	}
+
+	private static void anotarError(int linea, String orden, SQLException e, ResultadoCarga resultado) {
+		SGBDError tipo = ERRORES.translate(e.getErrorCode());
+		if (orden.equals("DROP") && (tipo == SGBDError.NOT_EXISTS_TABLE || tipo == SGBDError.NOT_EXISTS_SEQUENCE)) {
+			// Los scripts borran antes de crear: en una base de datos vacia no hay nada que borrar.
+			resultado.sumarIgnorada();
+			return;
+		}
+		String mensaje = e.getMessage() == null ? "" : e.getMessage().trim();
+		resultado.anadirError(new ErrorCarga(linea, tipo, mensaje));
+		LOGGER.warn("Linea {}: {} {}", linea, tipo, mensaje);
+	}
+
+	// Filas afectadas por un lote; si el driver no las conoce (SUCCESS_NO_INFO) se cuenta una.
+	private static void sumarFilas(int[] filas, ResultadoCarga resultado) {
+		for (int f : filas) {
+			resultado.sumarFilas(f >= 0 ? f : 1);
+		}
+	}
+
+	private static void terminar(ResultadoCarga resultado, long inicio) {
+		resultado.terminar(System.nanoTime() - inicio);
+		if (resultado.getNumErrores() > 0) {
+			LOGGER.warn(resultado.toString());
+		} else {
+			LOGGER.info(resultado.toString());
+		}
+	}
+
+	private static String primeraPalabra(String texto) {
+		int fin = 0;
+		while (fin < texto.length() && Character.isLetter(texto.charAt(fin))) {
+			fin++;
+		}
+		return texto.substring(0, fin).toUpperCase();
+	}
+
+	// Tipos JDBC de las columnas, que deciden como se convierte cada valor del CSV.
+	private static int[] tiposColumnas(Connection con, String tabla, String[] columnas) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < columnas.length; i++) {
+			sql.append(i == 0 ? "" : ", ").append(identificador(columnas[i]));
+		}
+		sql.append(" FROM ").append(identificador(tabla)).append(" WHERE 1 = 0");
+		try (Statement st = con.createStatement(); ResultSet rs = st.executeQuery(sql.toString())) {
+			ResultSetMetaData md = rs.getMetaData();
+			int[] tipos = new int[columnas.length];
+			for (int i = 0; i < tipos.length; i++) {
+				tipos[i] = md.getColumnType(i + 1);
+			}
+			return tipos;
+		}
+	}
+
+	private static String insertar(String tabla, String[] columnas) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(identificador(tabla)).append(" (");
+		for (int i = 0; i < columnas.length; i++) {
+			sql.append(i == 0 ? "" : ", ").append(identificador(columnas[i]));
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < columnas.length; i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		return sql.append(')').toString();
+	}
+
+	// Los nombres de tabla y columna se concatenan en el SQL: solo se admiten identificadores simples.
+	private static String identificador(String nombre) {
+		String n = nombre.trim();
+		if (!n.matches("[A-Za-z][A-Za-z0-9_$#]*")) {
+			throw new IllegalArgumentException("Identificador no valido: " + nombre);
+		}
+		return n;
+	}
+
+	private static void asignar(PreparedStatement st, int[] tipos, String[] valores) throws SQLException {
+		if (valores.length != tipos.length) {
+			throw new IllegalArgumentException(
+					"Se esperaban " + tipos.length + " valores y hay " + valores.length);
+		}
+		for (int i = 0; i < tipos.length; i++) {
+			String v = valores[i].trim();
+			if (v.isEmpty()) {
+				st.setNull(i + 1, tipos[i]);
+				continue;
+			}
+			switch (tipos[i]) {
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.BIGINT:
+			case Types.DOUBLE:
+			case Types.FLOAT:
+				st.setBigDecimal(i + 1, new BigDecimal(v));// NumberFormatException es IllegalArgumentException
+				break;
+			case Types.DATE:
+			case Types.TIMESTAMP:
+				if (v.length() == 10) {
+					st.setDate(i + 1, java.sql.Date.valueOf(v));
+				} else {
+					st.setTimestamp(i + 1, marcaDeTiempo(v));
+				}
+				break;
+			default:
+				st.setString(i + 1, v);
+			}
+		}
+	}
+
+	// "yyyy-MM-dd HH:mm[:ss]" o solo "HH:mm[:ss]", que se guarda el 1/1/0001 como en el script.
+	private static Timestamp marcaDeTiempo(String v) {
+		String t = v.indexOf('-') < 0 ? "0001-01-01 " + v : v;
+		if (t.length() == 16) {
+			t += ":00";
+		}
+		return Timestamp.valueOf(t);
+	}
+
+	// Parte una linea CSV en campos, con comillas dobles opcionales ("" dentro de una cadena).
+	static String[] partirCsv(String linea) {
+		List<String> campos = new ArrayList<>();
+		StringBuilder campo = new StringBuilder();
+		boolean entreComillas = false;
+		for (int i = 0; i < linea.length(); i++) {
+			char c = linea.charAt(i);
+			if (entreComillas) {
+				if (c == '"' && i + 1 < linea.length() && linea.charAt(i + 1) == '"') {
+					campo.append('"');
+					i++;
+				} else if (c == '"') {
+					entreComillas = false;
+				} else {
+					campo.append(c);
+				}
+			} else if (c == '"') {
+				entreComillas = true;
+			} else if (c == ',') {
+				campos.add(campo.toString());
+				campo.setLength(0);
+			} else {
+				campo.append(c);
+			}
+		}
+		campos.add(campo.toString());
+		return campos.toArray(new String[0]);
+	}
+}
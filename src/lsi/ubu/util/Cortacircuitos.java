@@ -0,0 +1,109 @@
+package lsi.ubu.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.metricas.Metricas;
+import lsi.ubu.util.metricas.MetricasReintentos;
+
+/**
+ * Cortacircuitos para la base de datos. Tras {@code umbralFallos} errores de
+ * conexion seguidos se abre y rechaza las llamadas sin intentarlas durante
+ * {@code aperturaMs} milisegundos; pasado ese tiempo deja pasar una llamada de
+ * prueba (semiabierto) que lo vuelve a cerrar si la base de datos responde o
+ * lo abre de nuevo si vuelve a fallar.
+ *
+ * <p>
+ * Solo cuentan como fallos los errores de conexion: un interbloqueo o un
+ * rechazo de negocio demuestran que la base de datos responde.
+ */
+public class Cortacircuitos {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Cortacircuitos.class);
+
+	/** Estados del cortacircuitos. */
+	public enum Estado {
+		CERRADO, // Las llamadas pasan
+		ABIERTO, // Las llamadas se rechazan sin intentarlas
+		SEMIABIERTO; // Hay una llamada de prueba en curso; las demas se rechazan
+	}
+
+	private final int umbralFallos;
+	private final long aperturaNanos;
+
+	private final AtomicReference<Estado> estado = new AtomicReference<>(Estado.CERRADO);
+	private final AtomicInteger fallosSeguidos = new AtomicInteger();
+	private volatile long abiertoDesde;
+
+	/**
+	 * Crea el cortacircuitos, cerrado.
+	 *
+	 * @param umbralFallos errores de conexion seguidos que lo abren
+	 * @param aperturaMs   milisegundos que permanece abierto antes de probar
+	 */
+	public Cortacircuitos(int umbralFallos, long aperturaMs) {
+		this.umbralFallos = umbralFallos;
+		this.aperturaNanos = TimeUnit.MILLISECONDS.toNanos(aperturaMs);
+	}
+
+	/**
+	 * Decide si una llamada puede intentarse. Si el cortacircuitos lleva abierto
+	 * el tiempo de apertura, la llamada admitida es la de prueba y hay que
+	 * informar de su resultado con {@link #exito()} o {@link #fallo()}.
+	 *
+	 * @return true si la llamada puede intentarse
+	 */
+	public boolean permitir() {
+		switch (estado.get()) {
+		case CERRADO:
+			return true;
+		case ABIERTO:
+			return System.nanoTime() - abiertoDesde >= aperturaNanos
+					&& estado.compareAndSet(Estado.ABIERTO, Estado.SEMIABIERTO);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Anota una llamada en la que la base de datos ha respondido.
+	 */
+	public void exito() {
+		fallosSeguidos.set(0);
+		if (estado.compareAndSet(Estado.SEMIABIERTO, Estado.CERRADO)) {
+			LOGGER.info("Cortacircuitos cerrado: la base de datos vuelve a responder");
+		}
+	}
+
+	/**
+	 * Anota un error de conexion.
+	 */
+	public void fallo() {
+		if (estado.get() == Estado.SEMIABIERTO) {
+			abrir(Estado.SEMIABIERTO);
+		} else if (fallosSeguidos.incrementAndGet() >= umbralFallos) {
+			abrir(Estado.CERRADO);
+		}
+	}
+
+	/**
+	 * @return estado actual
+	 */
+	public Estado getEstado() {
+		return estado.get();
+	}
+
+	private void abrir(Estado desde) {
+		abiertoDesde = System.nanoTime();
+		if (estado.compareAndSet(desde, Estado.ABIERTO)) {
+			fallosSeguidos.set(0);
+			Metricas.incrementar(MetricasReintentos.APERTURAS);
+			LOGGER.warn("Cortacircuitos abierto durante {} ms por errores de conexion",
+					TimeUnit.NANOSECONDS.toMillis(aperturaNanos));
+		}
+	}
+}
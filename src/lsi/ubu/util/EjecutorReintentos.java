@@ -0,0 +1,191 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+import lsi.ubu.util.metricas.Metricas;
+import lsi.ubu.util.metricas.MetricasReintentos;
+
+/**
+ * Repite las operaciones que fallan por errores transitorios de la base de
+ * datos (interbloqueos, fallos de serializacion, recursos bloqueados, pool sin
+ * conexiones libres o conexion perdida).
+ *
+ * <p>
+ * Antes de cada reintento se espera un tiempo aleatorio entre 0 y una espera
+ * que se dobla en cada intento hasta un maximo, para que los que chocaron no
+ * vuelvan a chocar. Los reintentos salen de un presupuesto que cada operacion
+ * recarga en una fraccion de reintento, de forma que cuando todo falla no se
+ * multiplica la carga. Un {@link Cortacircuitos} rechaza las operaciones sin
+ * intentarlas mientras la base de datos no responde.
+ *
+ * <p>
+ * Con la conexion perdida no se sabe si la operacion llego a confirmarse, asi
+ * que esos errores solo se reintentan en operaciones idempotentes.
+ */
+public class EjecutorReintentos {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EjecutorReintentos.class);
+
+	private static final SGBDErrorUtil ERRORES = new OracleSGBDErrorUtil();
+
+	// El saldo del presupuesto se lleva en milesimas de reintento.
+	private static final long UN_REINTENTO = 1000;
+
+	private static volatile EjecutorReintentos porDefecto;
+
+	private final int maxIntentos;
+	private final long esperaBaseNanos;
+	private final long esperaMaximaNanos;
+	private final long recarga;
+	private final long saldoMaximo;
+	private final AtomicLong saldo;
+	private final Cortacircuitos circuito;
+
+	/**
+	 * Operacion que se puede repetir.
+	 */
+	public interface Operacion<T> {
+		T ejecutar() throws SQLException;
+	}
+
+	/**
+	 * Crea el ejecutor.
+	 *
+	 * @param maxIntentos     intentos de cada operacion, incluido el primero
+	 * @param esperaBaseMs    espera maxima antes del primer reintento
+	 * @param esperaMaximaMs  tope de la espera al doblarla
+	 * @param ratioReintentos reintentos que gana el presupuesto por cada
+	 *                        operacion
+	 * @param maxAcumulados   reintentos que puede acumular el presupuesto; empieza
+	 *                        lleno
+	 * @param circuito        cortacircuitos de la base de datos
+	 */
+	public EjecutorReintentos(int maxIntentos, long esperaBaseMs, long esperaMaximaMs, double ratioReintentos,
+			int maxAcumulados, Cortacircuitos circuito) {
+		this.maxIntentos = maxIntentos;
+		this.esperaBaseNanos = TimeUnit.MILLISECONDS.toNanos(esperaBaseMs);
+		this.esperaMaximaNanos = TimeUnit.MILLISECONDS.toNanos(esperaMaximaMs);
+		this.recarga = Math.round(ratioReintentos * UN_REINTENTO);
+		this.saldoMaximo = maxAcumulados * UN_REINTENTO;
+		this.saldo = new AtomicLong(saldoMaximo);
+		this.circuito = circuito;
+	}
+
+	/**
+	 * Ejecutor compartido: 4 intentos, esperas de 10 ms a 500 ms, un reintento
+	 * por cada 10 operaciones con hasta 20 acumulados, y cortacircuitos que se
+	 * abre 2 segundos tras 5 errores de conexion seguidos. Sus metricas se
+	 * publican como {@code lsi.ubu:type=Reintentos}.
+	 *
+	 * @return ejecutor compartido
+	 */
+	public static EjecutorReintentos getInstance() {
+		if (porDefecto == null) {
+			synchronized (EjecutorReintentos.class) {
+				if (porDefecto == null) {
+					EjecutorReintentos ejecutor = new EjecutorReintentos(4, 10, 500, 0.1, 20,
+							new Cortacircuitos(5, 2000));
+					Metricas.registrarMBean("Reintentos", new MetricasReintentos(ejecutor));
+					porDefecto = ejecutor;
+				}
+			}
+		}
+		return porDefecto;
+	}
+
+	/**
+	 * Ejecuta una operacion, repitiendola mientras falle por errores
+	 * transitorios y queden intentos y presupuesto.
+	 *
+	 * @param nombre      nombre de la operacion para las metricas
+	 * @param idempotente si repetirla tras perder la conexion no puede hacerla
+	 *                    dos veces
+	 * @param operacion   operacion a ejecutar
+	 * @return resultado de la operacion
+	 * @throws SQLTransientConnectionException si el cortacircuitos esta abierto
+	 * @throws SQLException                    el error del ultimo intento
+	 */
+	public <T> T ejecutar(String nombre, boolean idempotente, Operacion<T> operacion) throws SQLException {
+		saldo.getAndUpdate(s -> Math.min(saldoMaximo, s + recarga));
+		for (int intento = 1;; intento++) {
+			if (!circuito.permitir()) {
+				Metricas.incrementar(MetricasReintentos.RECHAZADAS);
+				throw new SQLTransientConnectionException("Base de datos no disponible: cortacircuitos abierto");
+			}
+			try {
+				T resultado = operacion.ejecutar();
+				circuito.exito();
+				return resultado;
+			} catch (SQLException e) {
+				if (ERRORES.isConnectionError(e)) {
+					circuito.fallo();
+				} else {
+					circuito.exito();
+				}
+				if (!reintentable(e, idempotente) || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				if (intento >= maxIntentos) {
+					Metricas.incrementar(MetricasReintentos.AGOTADOS);
+					throw e;
+				}
+				if (saldo.getAndUpdate(s -> s >= UN_REINTENTO ? s - UN_REINTENTO : s) < UN_REINTENTO) {
+					Metricas.incrementar(MetricasReintentos.SIN_PRESUPUESTO);
+					throw e;
+				}
+				Metricas.incrementar(MetricasReintentos.REINTENTOS + nombre);
+				LOGGER.debug("Reintento {} de {} tras error transitorio: {}", intento, nombre, e.getMessage());
+				try {
+					TimeUnit.NANOSECONDS.sleep(espera(intento));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			} catch (RuntimeException e) {// la base de datos no tiene que ver: se libera la prueba si la habia
+				circuito.exito();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return cortacircuitos del ejecutor
+	 */
+	public Cortacircuitos getCortacircuitos() {
+		return circuito;
+	}
+
+	/**
+	 * @return reintentos disponibles ahora en el presupuesto
+	 */
+	public double getPresupuesto() {
+		return (double) saldo.get() / UN_REINTENTO;
+	}
+
+	private static boolean reintentable(SQLException e, boolean idempotente) {
+		if (!ERRORES.isTransient(e)) {
+			return false;
+		}
+		// Sin conexion del pool la operacion no llego a empezar; con la conexion perdida, puede que
+		// se confirmara.
+		return idempotente || !ERRORES.isConnectionError(e) || e instanceof SQLTransientConnectionException;
+	}
+
+	// Espera aleatoria entre 0 y la base doblada en cada intento, sin pasar del maximo.
+	private long espera(int intento) {
+		long tope = esperaBaseNanos << Math.min(intento - 1, 30);
+		if (tope <= 0 || tope > esperaMaximaNanos) {
+			tope = esperaMaximaNanos;
+		}
+		return ThreadLocalRandom.current().nextLong(tope + 1);
+	}
+}
@@ -1,14 +1,18 @@
 package lsi.ubu.util;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Utilidad para ejecutar el script sql de borrado y creacion de datos. Permite
- * la ejecucion de los "tests" con independencia.
+ * la ejecucion de los "tests" con independencia. El script se ejecuta por JDBC
+ * con {@link CargadorHorarios}, sin depender de SQL*Plus.
  * 
  * @author <a href="mailto:jmaudes@ubu.es">Jesus Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Raul Marticorena</a>
@@ -17,14 +21,23 @@ public class ExecuteScript {
 	/** Logger. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(ExecuteScript.class);;
 
+	/** Acciones a ejecutar cada vez que se recargan las tablas. */
+	private static final List<Runnable> AL_RECARGAR = new CopyOnWriteArrayList<>();
+
 	/**
 	 * Principal.
 	 * 
-	 * @param args el primer argumento incluye el nombre del script a ejecutar
+	 * @param args el primer argumento incluye el nombre del script a ejecutar o
+	 *             del CSV a cargar; en el caso del CSV, el segundo es la tabla
+	 *             destino
 	 */
-	public static void main(String[] args) {
-		run(args[0]);
-		// run();
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length > 1) {
+			new CargadorHorarios().cargarCsv(Paths.get(args[0]), args[1]);
+			avisarRecarga();
+		} else {
+			run(args[0]);
+		}
 	}
 
 	/**
@@ -33,30 +46,29 @@ public class ExecuteScript {
 	 * @param file_name nombre del script .sql a ejecutar
 	 */
 	public static void run(String file_name) {
-		String os = System.getProperty("os.name").toLowerCase();
-
 		try {
-
-			String line;
-			Process p = null;
-
-			// if is linux
-			if (os.indexOf("nux") >= 0) {
-				String sqlLauncher = "sql/lanza_sqlplus.sh";
-				p = Runtime.getRuntime().exec(new String[] { sqlLauncher, "hr/hr", "@" + file_name });
-			} else if (os.indexOf("win") >= 0) { // if is windows
-				p = Runtime.getRuntime().exec("sqlplus hr/hr @" + file_name);
-			} else {
-				throw (new Exception("lsi.ubu.util.ExecuteScript.java" + " Sistema operativo incompatible"));
-			}
-
-			BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			while ((line = input.readLine()) != null) {
-				LOGGER.debug(line);
-			}
-			input.close();
-		} catch (Exception err) {
+			// Los errores de cada sentencia quedan en el resultado y en el log; la carga continua.
+			new CargadorHorarios().cargarScript(Paths.get(file_name));
+		} catch (IOException | SQLException err) {
 			LOGGER.error(err.getMessage());
 		}
+		avisarRecarga();
+	}
+
+	// Lo cacheado a partir de las tablas anteriores ya no es valido.
+	private static void avisarRecarga() {
+		for (Runnable accion : AL_RECARGAR) {
+			accion.run();
+		}
+	}
+
+	/**
+	 * Registra una accion (tipicamente vaciar una cache) que se ejecuta cada vez
+	 * que se recargan las tablas con {@link #run(String)}.
+	 * 
+	 * @param accion accion a ejecutar
+	 */
+	public static void alRecargar(Runnable accion) {
+		AL_RECARGAR.add(accion);
 	}
 }
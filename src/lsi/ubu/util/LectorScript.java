@@ -0,0 +1,168 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Lee un script SQL sentencia a sentencia, sin cargarlo entero en memoria.
+ * Quita los comentarios ({@code --} y {@code /* ... *}{@code /}) fuera de las
+ * cadenas y separa las sentencias por {@code ;}. Los bloques PL/SQL (los que
+ * empiezan por {@code BEGIN}, {@code DECLARE} o {@code CREATE} de un objeto
+ * PL/SQL) terminan, como en SQL*Plus, en una linea con solo {@code /}.
+ */
+public class LectorScript {
+
+	private final Reader entrada;
+	private final StringBuilder actual = new StringBuilder(256);
+	private int linea = 1;
+	private int siguiente = -2; // caracter leido por adelantado, -2 si no hay
+
+	public LectorScript(Reader entrada) {
+		this.entrada = entrada;
+	}
+
+	/**
+	 * Sentencia del script y linea en la que empieza.
+	 */
+	public static final class Sentencia {
+		final String texto;
+		final int linea;
+
+		Sentencia(String texto, int linea) {
+			this.texto = texto;
+			this.linea = linea;
+		}
+
+		public String getTexto() {
+			return texto;
+		}
+
+		public int getLinea() {
+			return linea;
+		}
+	}
+
+	/**
+	 * @return la siguiente sentencia, sin el terminador, o null al final del
+	 *         script
+	 * @throws IOException si hay un error al leer
+	 */
+	public Sentencia siguiente() throws IOException {
+		actual.setLength(0);
+		int lineaInicio = linea;
+		boolean enCadena = false;
+		boolean plsql = false;
+		int c;
+		while ((c = leer()) != -1) {
+			if (actual.length() == 0 && Character.isWhitespace(c)) {
+				lineaInicio = linea;
+				continue;
+			}
+			if (enCadena) {
+				actual.append((char) c);
+				if (c == '\'') {
+					enCadena = false; // una comilla doble ('') vuelve a abrir la cadena
+				}
+				continue;
+			}
+			// Al completarse una palabra se decide si la sentencia es un bloque, antes de que un ';'
+			// o un comentario pegados a ella la corten.
+			if (!plsql && actual.length() < 64 && !esDePalabra(c)) {
+				plsql = esPlsql(actual);
+			}
+			if (c == '-' && mirar() == '-') {
+				saltarLinea();
+				appendSeparador();
+				continue;
+			}
+			if (c == '/' && mirar() == '*') {
+				leer();
+				saltarComentario();
+				appendSeparador();
+				continue;
+			}
+			if (c == '/' && (plsql || actual.length() == 0) && finDeBloque()) {
+				if (actual.length() == 0) {
+					continue; // '/' suelta: en SQL*Plus repite la ultima sentencia, aqui se ignora
+				}
+				return new Sentencia(actual.toString().trim(), lineaInicio);
+			}
+			if (!plsql && c == ';') {
+				return new Sentencia(actual.toString().trim(), lineaInicio);
+			}
+			if (c == '\'') {
+				enCadena = true;
+			}
+			actual.append((char) c);
+		}
+		String resto = actual.toString().trim();
+		return resto.isEmpty() ? null : new Sentencia(resto, lineaInicio);
+	}
+
+	// El cuerpo de un bloque PL/SQL tiene ';' dentro, asi que se reconoce por como empieza. El
+	// texto acaba en una palabra completa.
+	private static boolean esPlsql(StringBuilder texto) {
+		String inicio = texto.toString().trim().toUpperCase().replaceAll("\\s+", " ");
+		return inicio.matches("(BEGIN|DECLARE)( .*)?")
+				|| inicio.matches("CREATE (OR REPLACE )?(PROCEDURE|FUNCTION|TRIGGER|PACKAGE|TYPE)( .*)?");
+	}
+
+	private static boolean esDePalabra(int c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+	}
+
+	// Una '/' termina el bloque si es lo unico que hay en su linea.
+	private boolean finDeBloque() throws IOException {
+		int i = actual.length() - 1;
+		while (i >= 0 && (actual.charAt(i) == ' ' || actual.charAt(i) == '\t')) {
+			i--;
+		}
+		if (i >= 0 && actual.charAt(i) != '\n') {
+			return false;
+		}
+		int c;
+		while ((c = mirar()) == ' ' || c == '\t' || c == '\r') {
+			leer();
+		}
+		return c == '\n' || c == -1;
+	}
+
+	private void appendSeparador() {
+		if (actual.length() > 0) {
+			actual.append('\n');
+		}
+	}
+
+	private void saltarLinea() throws IOException {
+		int c;
+		while ((c = mirar()) != -1 && c != '\n') {
+			leer();
+		}
+	}
+
+	private void saltarComentario() throws IOException {
+		int c;
+		while ((c = leer()) != -1) {
+			if (c == '*' && mirar() == '/') {
+				leer();
+				return;
+			}
+		}
+	}
+
+	private int leer() throws IOException {
+		int c = siguiente != -2 ? siguiente : entrada.read();
+		siguiente = -2;
+		if (c == '\n') {
+			linea++;
+		}
+		return c;
+	}
+
+	private int mirar() throws IOException {
+		if (siguiente == -2) {
+			siguiente = entrada.read();
+		}
+		return siguiente;
+	}
+}
@@ -0,0 +1,156 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plazo de una llamada que usa conexiones de un {@link PoolLigero} desde el
+ * hilo que la ejecuta.
+ *
+ * <p>
+ * Mientras la llamada se ejecuta con {@link #ejecutar(Callable)}, el pool pone
+ * a cada sentencia que presta un tiempo maximo igual al que le queda al plazo
+ * y se niega a confirmar la transaccion si el plazo ha vencido o se ha
+ * cancelado. {@link #cancelar()} cancela en la base de datos las sentencias en
+ * curso; si en ese momento se esta confirmando una transaccion, o ya se ha
+ * confirmado alguna, no cancela nada, porque la confirmacion puede haber
+ * llegado ya a la base de datos, y la llamada termina con su resultado.
+ */
+public final class Plazo {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Plazo.class);
+
+	private static final ThreadLocal<Plazo> DEL_HILO = new ThreadLocal<>();
+
+	private final long limite;
+
+	// Sentencias prestadas a la llamada en conexiones aun no devueltas al pool.
+	private final List<Statement> sentencias = new ArrayList<>();
+	private boolean cancelado;
+	private int confirmando;
+	// Una vez confirmada una transaccion la llamada ya no se cancela.
+	private boolean confirmada;
+
+	/**
+	 * Crea un plazo que empieza a contar ahora.
+	 *
+	 * @param plazo  tiempo maximo de la llamada
+	 * @param unidad unidad del plazo
+	 */
+	public Plazo(long plazo, TimeUnit unidad) {
+		this.limite = System.nanoTime() + unidad.toNanos(plazo);
+	}
+
+	/**
+	 * @return plazo de la llamada que ejecuta el hilo actual, o null si no tiene
+	 */
+	static Plazo delHilo() {
+		return DEL_HILO.get();
+	}
+
+	/**
+	 * Ejecuta una llamada en el hilo actual sujeta a este plazo.
+	 *
+	 * @param llamada llamada a ejecutar
+	 * @return resultado de la llamada
+	 * @throws Exception la excepcion de la llamada
+	 */
+	public <T> T ejecutar(Callable<T> llamada) throws Exception {
+		Plazo anterior = DEL_HILO.get();
+		DEL_HILO.set(this);
+		try {
+			return llamada.call();
+		} finally {
+			DEL_HILO.set(anterior);
+		}
+	}
+
+	/**
+	 * Cancela la llamada: las sentencias en curso se cancelan en la base de
+	 * datos y las siguientes, y la confirmacion, fallan con
+	 * {@link SQLTimeoutException}.
+	 *
+	 * @return false si no se ha cancelado porque se esta confirmando o ya se ha
+	 *         confirmado una transaccion
+	 */
+	public boolean cancelar() {
+		return cancelar(() -> {
+		});
+	}
+
+	/**
+	 * Cancela la llamada como {@link #cancelar()}, ejecutando antes de cancelar
+	 * las sentencias una accion; asi quien espera el resultado de la llamada ve
+	 * la cancelacion antes que el error de la sentencia cancelada.
+	 *
+	 * @param alCancelar accion que se ejecuta si la llamada se cancela
+	 * @return false si no se ha cancelado porque se esta confirmando o ya se ha
+	 *         confirmado una transaccion
+	 */
+	public synchronized boolean cancelar(Runnable alCancelar) {
+		if (confirmando > 0 || confirmada) {
+			return false;
+		}
+		if (!cancelado) {
+			cancelado = true;
+			alCancelar.run();
+			for (Statement sentencia : sentencias) {
+				try {
+					sentencia.cancel();
+				} catch (SQLException e) {
+					LOGGER.debug("No se ha podido cancelar una sentencia: {}", e.getMessage());
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return milisegundos que quedan, negativo si ha vencido
+	 */
+	public long restanteMs() {
+		return TimeUnit.NANOSECONDS.toMillis(limite - System.nanoTime());
+	}
+
+	// Anota una sentencia prestada a la llamada y le pone como tiempo maximo el que queda.
+	synchronized void anotar(Statement sentencia) throws SQLException {
+		comprobar();
+		sentencias.add(sentencia);
+		// El tiempo maximo de una sentencia va en segundos enteros; se redondea hacia arriba.
+		sentencia.setQueryTimeout((int) Math.max(1, (restanteMs() + 999) / 1000));
+	}
+
+	// Olvida las sentencias de una conexion antes de devolverla al pool.
+	synchronized void quitar(Collection<Statement> devueltas) {
+		sentencias.removeAll(devueltas);
+	}
+
+	// Marca el inicio de una confirmacion; a partir de aqui la llamada no se cancela.
+	synchronized void empezarConfirmacion() throws SQLTimeoutException {
+		comprobar();
+		confirmando++;
+	}
+
+	synchronized void terminarConfirmacion(boolean hecha) {
+		confirmando--;
+		confirmada |= hecha;
+	}
+
+	private void comprobar() throws SQLTimeoutException {
+		if (cancelado) {
+			throw new SQLTimeoutException("Llamada cancelada");
+		}
+		if (System.nanoTime() - limite >= 0) {
+			throw new SQLTimeoutException("Plazo de la llamada vencido");
+		}
+	}
+}
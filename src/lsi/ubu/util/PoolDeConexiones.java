@@ -2,21 +2,21 @@ package lsi.ubu.util;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Properties;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import oracle.ucp.jdbc.PoolDataSource;
-import oracle.ucp.jdbc.PoolDataSourceFactory;
+import lsi.ubu.util.metricas.Metricas;
+import lsi.ubu.util.metricas.MetricasPool;
+
+import oracle.jdbc.pool.OracleDataSource;
 
 /**
- * Pool de conexiones.
+ * Pool de conexiones. Las conexiones fisicas se obtienen de un
+ * {@link OracleDataSource} (o de cualquier {@link DataSource} indicado con
+ * {@link #inicializar(DataSource)}) y se gestionan con un {@link PoolLigero}.
  * 
  * @author <a href="mailto:jmaudes@ubu.es">Jesus Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Raul Marticorena</a>
@@ -29,11 +29,6 @@ public class PoolDeConexiones {
 	/** Logger. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(PoolDeConexiones.class);
 
-	// Configuracion de JNDI
-	private static final String FILE_SYSTEM_CONTEXT_FACTORY = "com.sun.jndi.fscontext.RefFSContextFactory";
-	private static final String FILE_RES = "file:./res";
-	private static final String JDBC_TESTDB_DS = "jdbc/testdb_pooled";
-
 	// Constantes de conexion
 	private static final String DRIVER_TYPE = "thin";
 	private static final int PORT = 1521;
@@ -41,112 +36,172 @@ public class PoolDeConexiones {
 	private static final String HOST = "localhost";
 	private static final String USER = "hr";
 
-	private static final String CONNECTION_FACTORY = "oracle.jdbc.pool.OracleDataSource";
-
 	// Tip: si hay problemas de conexion, comprueba que en la BD el password esta en
 	// minusculas,
 	// prueba desde SQL*Plus o SQLDeveloper que efectivamente puedes conectarte con
 	// hr/hr.
 	private static final String PASSWORD = "hr";
 
+	// Configuracion del pool
+	private static final int MIN_POOL_SIZE = 3;
+	private static final int MAX_POOL_SIZE = 10;
+	// Sentencias por conexion. El servicio base usa 16 fijas: busqueda del viaje, compra atomica,
+	// bloque de tickets, alta de asientos sueltos y carga de los asientos del viaje (2) en la
+	// compra; consulta y alta de claves de idempotencia (2); consulta del ticket, devolucion de
+	// plazas, consulta y baja de sus asientos (2), y actualizacion o borrado del ticket en la
+	// anulacion; descuento de plazas y alta de tickets por lotes. Las variantes (cubetas, tramos,
+	// reservas) anaden hasta 8 propias y la busqueda de los viajes de un lote cambia de texto con
+	// el numero de viajes, asi que se deja sitio para unas cuantas. Se puede cambiar con la
+	// propiedad del sistema lsi.ubu.pool.cacheSentencias o con inicializar(DataSource, int).
+	private static final int TAMANO_CACHE_SENTENCIAS = 32;
+	private static final String PROPIEDAD_CACHE_SENTENCIAS = "lsi.ubu.pool.cacheSentencias";
+	private static final long ESPERA_MAXIMA_MS = 3000;
+	private static final long VIDA_MAXIMA_MS = 30 * 60 * 1000L;
+	private static final long INTERVALO_VALIDACION_MS = 30 * 1000L;
+
 	/** Pool de conexiones. */
-	private static PoolDeConexiones poolDeConexiones;
+	private static volatile PoolDeConexiones poolDeConexiones;
 
-	/** DataSource. */
-	private DataSource ds;
+	/** Pool sobre el DataSource. */
+	private final PoolLigero pool;
 
 	/**
 	 * Constructor del pool de conexiones, siguiendo el patron de dise�o Singleton.
 	 * 
-	 * @throws RuntimeException si no encuentra el el recurso JNDI, y por tanto no
-	 *                          logra instanciar el pool
+	 * @param ds                    origen de las conexiones fisicas
+	 * @param tamanoCacheSentencias sentencias preparadas que se guardan por
+	 *                              conexion
+	 * @throws RuntimeException si no logra abrir las conexiones iniciales, y por
+	 *                          tanto no logra instanciar el pool
 	 */
-	private PoolDeConexiones() {
+	private PoolDeConexiones(DataSource ds, int tamanoCacheSentencias) {
 		try {
-			Properties properties = new Properties();
-			properties.setProperty(Context.INITIAL_CONTEXT_FACTORY, FILE_SYSTEM_CONTEXT_FACTORY);
-			properties.setProperty(Context.PROVIDER_URL, FILE_RES);
-			Context context = new InitialContext(properties);
-
-			ds = (DataSource) context.lookup(JDBC_TESTDB_DS);
-
-		} catch (NamingException e) {
-			LOGGER.error("Problema: no se encuentra el nombre del recurso en el contexto JNDI");
+			pool = new PoolLigero(ds, this::prepararSesion, MIN_POOL_SIZE, MAX_POOL_SIZE, tamanoCacheSentencias,
+					ESPERA_MAXIMA_MS, VIDA_MAXIMA_MS, INTERVALO_VALIDACION_MS);
+			Metricas.registrarMBean("PoolDeConexiones", new MetricasPool(pool));
+		} catch (SQLException e) {
+			LOGGER.error("Problema: no se pueden abrir las conexiones iniciales del pool");
 			LOGGER.error(e.getMessage());
 
 			// La aplicacion ya no puede seguir si no se instancia un pool
-			throw new RuntimeException();
+			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Obtiene la instancia del pool de conexiones si no existia.
+	 * Obtiene la instancia del pool de conexiones si no existia, conectando con la
+	 * base de datos Oracle configurada.
 	 * 
 	 */
 	public static PoolDeConexiones getInstance() {
-		if (poolDeConexiones == null) {
-			poolDeConexiones = new PoolDeConexiones();
+		PoolDeConexiones instancia = poolDeConexiones;
+		if (instancia == null) {
+			synchronized (PoolDeConexiones.class) {
+				instancia = poolDeConexiones;
+				if (instancia == null) {
+					instancia = new PoolDeConexiones(crearOracleDataSource(), tamanoCacheSentencias());
+					poolDeConexiones = instancia;
+				}
+			}
+		}
+		return instancia;
+	}
+
+	/**
+	 * Sustituye el pool por uno nuevo sobre el DataSource indicado (por ejemplo,
+	 * una base de datos distinta de la Oracle por defecto). El pool anterior, si
+	 * lo habia, se cierra.
+	 * 
+	 * @param ds origen de las conexiones fisicas
+	 */
+	public static void inicializar(DataSource ds) {
+		inicializar(ds, tamanoCacheSentencias());
+	}
+
+	/**
+	 * Sustituye el pool por uno nuevo sobre el DataSource indicado, guardando
+	 * por conexion el numero de sentencias preparadas indicado. El pool
+	 * anterior, si lo habia, se cierra.
+	 * 
+	 * @param ds                    origen de las conexiones fisicas
+	 * @param tamanoCacheSentencias sentencias preparadas que se guardan por
+	 *                              conexion (0 para no guardar ninguna)
+	 */
+	public static synchronized void inicializar(DataSource ds, int tamanoCacheSentencias) {
+		PoolDeConexiones anterior = poolDeConexiones;
+		poolDeConexiones = new PoolDeConexiones(ds, tamanoCacheSentencias);
+		if (anterior != null) {
+			anterior.pool.close();
 		}
-		return poolDeConexiones;
 	}
 
 	/**
-	 * Obtiene una conexion.
+	 * Obtiene una conexion, sin autocommit y con aislamiento READ_COMMITTED.
 	 * 
 	 * @return conexion
 	 * @throws SQLException si hay un error con la base de datos
 	 */
 	public Connection getConnection() throws SQLException {
-		Connection conn = ds.getConnection();
-
-		conn.setAutoCommit(false);
-		LOGGER.debug("Activacion de Autocommit={}", conn.getAutoCommit());
-
-		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
-		// Connection.TRANSACTION_SERIALIZABLE);
-		// No v�lidos en Oracle:
-		// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-		// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-
-		LOGGER.debug(traceConnectionSettings(conn));
-
-		return conn;
+		return pool.getConnection();
 	}
 
 	/**
-	 * Reconfigura el pool de conexiones volviendo a publicar la nueva
-	 * configuracion.
+	 * Consulta el numero maximo de conexiones del pool.
 	 * 
-	 * @throws NamingException si el nombre del recurso JNDI genera errores
-	 * @throws SQLException    si hay un error con la base de datos
+	 * @return tamano maximo del pool
 	 */
-	public static void reconfigurarPool() throws NamingException, SQLException {
-
-		Properties properties = new Properties();
-		properties.setProperty(Context.INITIAL_CONTEXT_FACTORY, FILE_SYSTEM_CONTEXT_FACTORY);
-
-		properties.setProperty(Context.PROVIDER_URL, FILE_RES);
-
-		Context context = new InitialContext(properties);
-
-		PoolDataSource pds = PoolDataSourceFactory.getPoolDataSource();
-		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
+	public int getMaxPoolSize() {
+		return pool.getMaximo();
+	}
 
-		String url = "jdbc:oracle:" + DRIVER_TYPE + ":" + USER + "/" + PASSWORD + "@" + HOST + ":" + PORT + ":" + SID;
-		pds.setURL(url);
+	/**
+	 * Sentencias preparadas por conexion: la propiedad del sistema
+	 * {@value #PROPIEDAD_CACHE_SENTENCIAS} o, si no esta, el valor por defecto.
+	 * 
+	 * @return tamano de la cache de sentencias
+	 */
+	private static int tamanoCacheSentencias() {
+		return Integer.getInteger(PROPIEDAD_CACHE_SENTENCIAS, TAMANO_CACHE_SENTENCIAS);
+	}
 
-		//// Configuracion del pool
-		pds.setMinPoolSize(3);
-		pds.setMaxPoolSize(10);
-		pds.setInitialPoolSize(5);
-		pds.setTimeToLiveConnectionTimeout(18000);
+	/**
+	 * Crea el DataSource de Oracle con los datos de conexion.
+	 * 
+	 * @return DataSource sin pool
+	 * @throws RuntimeException si no se puede crear
+	 */
+	private static DataSource crearOracleDataSource() {
+		try {
+			OracleDataSource ods = new OracleDataSource();
+			ods.setURL("jdbc:oracle:" + DRIVER_TYPE + ":@" + HOST + ":" + PORT + ":" + SID);
+			ods.setUser(USER);
+			ods.setPassword(PASSWORD);
+			return ods;
+		} catch (SQLException e) {
+			LOGGER.error("Problema: no se puede crear el DataSource de Oracle");
+			LOGGER.error(e.getMessage());
+			throw new RuntimeException(e);
+		}
+	}
 
-		//// Activacion de la cache de sentencias prepradas (6 sentencias)
-		pds.setMaxStatements(6);
+	/**
+	 * Prepara la sesion de cada conexion fisica una unica vez, al crearla.
+	 * 
+	 * @param conn conexion fisica recien creada
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	private void prepararSesion(Connection conn) throws SQLException {
+		conn.setAutoCommit(false);
 
-		context.rebind(JDBC_TESTDB_DS, pds);
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		// Connection.TRANSACTION_SERIALIZABLE);
+		// No v�lidos en Oracle:
+		// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 
-		LOGGER.info("Contexto JNDI para el nombre " + JDBC_TESTDB_DS + " registrado OK en " + FILE_RES);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(traceConnectionSettings(conn));
+		}
 	}
 
 	/**
@@ -181,41 +236,4 @@ public class PoolDeConexiones {
 		}
 		return retorno;
 	}
-
-	/**
-	 * Redimensiona el pool.
-	 * 
-	 * @param initialLimit tama�o inicial
-	 * @param minLimit     tama�o minimo
-	 * @param maxLimit     tama�o maximo
-	 * @throws SQLException si hay un error con la cache de conexiones
-	 */
-	private void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
-		((PoolDataSource) ds).setMinPoolSize(minLimit);
-		((PoolDataSource) ds).setMaxPoolSize(maxLimit);
-		((PoolDataSource) ds).setInitialPoolSize(initialLimit);
-	}
-
-	/**
-	 * Consulta la configuracion del data source de Oracle.
-	 * 
-	 * @param conn conexion
-	 * @return texto con las caracteristicas actuales
-	 * @throws SQLException si hay un error con la base de datos
-	 */
-	private String traceOracleSettings() throws SQLException {
-		PoolDataSource pds = (PoolDataSource) ds;
-
-		String retorno = "trabajando con OracleDataSource\n";
-		retorno += "Activacion de Cache de Sentencias Preparadas con " + pds.getMaxStatements() + " sentencias \n";
-
-		retorno += "Tama�o Inicial Pool de Conexiones=" + pds.getInitialPoolSize() + "\n";
-		retorno += "Tama�o Minimo Pool de Conexiones=" + pds.getMinPoolSize() + "\n";
-		retorno += "Tama�o Maximo Pool de Conexiones=" + pds.getMaxPoolSize() + "\n";
-
-		retorno += "Tiempo maximo de conexion viva=" + pds.getTimeToLiveConnectionTimeout() + "\n";
-
-		return retorno;
-	}
-
 }
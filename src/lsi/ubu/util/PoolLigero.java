@@ -0,0 +1,648 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.metricas.Metricas;
+import lsi.ubu.util.metricas.MetricasPool;
+
+/**
+ * Pool de conexiones sobre cualquier {@link DataSource}.
+ *
+ * <p>
+ * Prestar y devolver una conexion no bloquea: cada hilo intenta primero
+ * recuperar la ultima conexion que uso y, si esta ocupada, recorre la bolsa
+ * compartida reservando con una operacion CAS. Solo cuando todas estan en uso y
+ * el pool esta al maximo se espera a que otro hilo devuelva una.
+ *
+ * <p>
+ * La sesion de cada conexion fisica (autocommit, aislamiento...) se prepara una
+ * unica vez al crearla. Al devolverla se deshace la transaccion si quedo
+ * abierta y se restaura la configuracion si el usuario la cambio. La validacion
+ * de las conexiones libres y su renovacion se hacen en segundo plano, fuera del
+ * camino de prestamo.
+ *
+ * <p>
+ * Cada conexion fisica guarda una cache LRU de sentencias preparadas indexada
+ * por su SQL: {@code prepareStatement(sql)} y {@code prepareCall(sql)}
+ * devuelven la sentencia ya preparada si la hay, y al cerrarla vuelve a la
+ * cache en lugar de cerrarse. Las sentencias que el usuario no cierre se
+ * cierran al devolver la conexion.
+ *
+ * <p>
+ * Si el hilo ejecuta una llamada con {@link Plazo}, las sentencias que se le
+ * prestan llevan como tiempo maximo lo que queda del plazo, se cancelan al
+ * cancelar la llamada y la confirmacion falla si el plazo ha vencido.
+ */
+public class PoolLigero implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PoolLigero.class);
+
+	private static final int LIBRE = 0;
+	private static final int EN_USO = 1;
+	private static final int RESERVADA = 2;
+
+	// Una conexion liberada justo antes de empezar a esperar se ve al volver a recorrer la bolsa.
+	private static final long SONDEO_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** Preparacion de la sesion de una conexion fisica recien creada. */
+	public interface PreparadorSesion {
+		void preparar(Connection conexion) throws SQLException;
+	}
+
+	private final DataSource fuente;
+	private final PreparadorSesion preparador;
+	private final int minimo;
+	private final int maximo;
+	private final int tamanoCacheSentencias;
+	private final long esperaMaximaMs;
+	private final long vidaMaximaMs;
+
+	private final CopyOnWriteArrayList<Entrada> bolsa = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Entrada> ultimaDelHilo = new ThreadLocal<>();
+	private final SynchronousQueue<Entrada> traspaso = new SynchronousQueue<>(true);
+	private final AtomicInteger totales = new AtomicInteger();
+	private final AtomicInteger esperando = new AtomicInteger();
+	private final ScheduledExecutorService mantenimiento;
+
+	private volatile boolean cerrado;
+
+	/**
+	 * Crea el pool y abre las conexiones minimas.
+	 *
+	 * @param fuente                origen de las conexiones fisicas
+	 * @param preparador            preparacion de la sesion de cada conexion
+	 *                              fisica
+	 * @param minimo                conexiones que se mantienen abiertas
+	 * @param maximo                conexiones maximas
+	 * @param tamanoCacheSentencias sentencias preparadas que se guardan por
+	 *                              conexion (0 para no guardar ninguna)
+	 * @param esperaMaximaMs        espera maxima por una conexion libre
+	 * @param vidaMaximaMs          tiempo tras el cual una conexion se renueva
+	 * @param intervaloValidacionMs periodo de validacion en segundo plano
+	 * @throws SQLException si no se pueden abrir las conexiones minimas
+	 */
+	public PoolLigero(DataSource fuente, PreparadorSesion preparador, int minimo, int maximo,
+			int tamanoCacheSentencias, long esperaMaximaMs, long vidaMaximaMs, long intervaloValidacionMs)
+			throws SQLException {
+		this.fuente = fuente;
+		this.preparador = preparador;
+		this.minimo = minimo;
+		this.maximo = maximo;
+		this.tamanoCacheSentencias = tamanoCacheSentencias;
+		this.esperaMaximaMs = esperaMaximaMs;
+		this.vidaMaximaMs = vidaMaximaMs;
+
+		for (int i = 0; i < minimo; i++) {
+			totales.incrementAndGet();
+			Entrada e = crear();
+			e.estado.set(LIBRE);
+			bolsa.add(e);
+		}
+
+		mantenimiento = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread hilo = new Thread(r, "pool-mantenimiento");
+			hilo.setDaemon(true);
+			return hilo;
+		});
+		mantenimiento.scheduleWithFixedDelay(this::mantener, intervaloValidacionMs, intervaloValidacionMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Presta una conexion. Al cerrarla vuelve al pool.
+	 *
+	 * @return conexion lista para usar
+	 * @throws SQLException si no hay conexion libre dentro de la espera maxima o
+	 *                      no se puede crear
+	 */
+	public Connection getConnection() throws SQLException {
+		long inicio = System.nanoTime();
+		Connection conexion = obtener();
+		Metricas.registrarDuracion(MetricasPool.ESPERA, System.nanoTime() - inicio);
+		return conexion;
+	}
+
+	private Connection obtener() throws SQLException {
+		if (cerrado) {
+			throw new SQLException("Pool de conexiones cerrado");
+		}
+
+		// 1. La ultima conexion que uso este hilo.
+		Entrada e = ultimaDelHilo.get();
+		if (e != null && e.estado.compareAndSet(LIBRE, EN_USO)) {
+			return e.prestar();
+		}
+
+		// 2. Cualquier conexion libre de la bolsa compartida.
+		for (Entrada libre : bolsa) {
+			if (libre.estado.compareAndSet(LIBRE, EN_USO)) {
+				return libre.prestar();
+			}
+		}
+
+		// 3. Una conexion nueva si no se ha alcanzado el maximo.
+		int n;
+		while ((n = totales.get()) < maximo) {
+			if (totales.compareAndSet(n, n + 1)) {
+				Entrada nueva = crear();
+				bolsa.add(nueva);
+				return nueva.prestar();
+			}
+		}
+
+		// 4. Esperar a que otro hilo devuelva una.
+		long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(esperaMaximaMs);
+		esperando.incrementAndGet();
+		try {
+			long restante;
+			while ((restante = limite - System.nanoTime()) > 0) {
+				// La entrada traspasada llega ya marcada en uso.
+				Entrada devuelta = traspaso.poll(Math.min(restante, SONDEO_NANOS), TimeUnit.NANOSECONDS);
+				if (devuelta != null) {
+					return devuelta.prestar();
+				}
+				for (Entrada libre : bolsa) {
+					if (libre.estado.compareAndSet(LIBRE, EN_USO)) {
+						return libre.prestar();
+					}
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrumpido esperando una conexion", ie);
+		} finally {
+			esperando.decrementAndGet();
+		}
+		Metricas.incrementar(MetricasPool.AGOTAMIENTOS);
+		throw new SQLTransientConnectionException(
+				"No hay conexiones libres tras esperar " + esperaMaximaMs + " ms (maximo " + maximo + ")");
+	}
+
+	/**
+	 * @return numero maximo de conexiones
+	 */
+	public int getMaximo() {
+		return maximo;
+	}
+
+	/**
+	 * @return sentencias preparadas que se guardan por conexion
+	 */
+	public int getTamanoCacheSentencias() {
+		return tamanoCacheSentencias;
+	}
+
+	/**
+	 * @return conexiones fisicas abiertas
+	 */
+	public int getTotales() {
+		return totales.get();
+	}
+
+	/**
+	 * @return conexiones prestadas en este momento
+	 */
+	public int getActivas() {
+		int activas = 0;
+		for (Entrada e : bolsa) {
+			if (e.estado.get() == EN_USO) {
+				activas++;
+			}
+		}
+		return activas;
+	}
+
+	/**
+	 * @return conexiones libres en este momento
+	 */
+	public int getLibres() {
+		int libres = 0;
+		for (Entrada e : bolsa) {
+			if (e.estado.get() == LIBRE) {
+				libres++;
+			}
+		}
+		return libres;
+	}
+
+	/**
+	 * @return hilos esperando una conexion
+	 */
+	public int getEsperando() {
+		return esperando.get();
+	}
+
+	/**
+	 * Cierra las conexiones libres y deja de prestar. Las prestadas se cierran al
+	 * devolverse.
+	 */
+	@Override
+	public void close() {
+		cerrado = true;
+		mantenimiento.shutdownNow();
+		for (Entrada e : bolsa) {
+			if (e.estado.compareAndSet(LIBRE, RESERVADA)) {
+				retirar(e);
+			}
+		}
+	}
+
+	private Entrada crear() throws SQLException {
+		Connection fisica = null;
+		try {
+			fisica = fuente.getConnection();
+			preparador.preparar(fisica);
+			return new Entrada(fisica);
+		} catch (SQLException | RuntimeException ex) {
+			totales.decrementAndGet();
+			if (fisica != null) {
+				cerrarEnSilencio(fisica);
+			}
+			throw ex;
+		}
+	}
+
+	// Vuelta de una conexion prestada.
+	private void devolver(Entrada e) {
+		if (cerrado || e.rota) {
+			e.estado.set(RESERVADA);
+			retirar(e);
+			return;
+		}
+		ultimaDelHilo.set(e);
+		e.ultimoUso = System.nanoTime();
+		// Si alguien espera se le pasa sin liberarla, para que otro hilo no se la adelante.
+		if (esperando.get() > 0 && traspaso.offer(e)) {
+			return;
+		}
+		e.estado.set(LIBRE);
+	}
+
+	private void retirar(Entrada e) {
+		if (bolsa.remove(e)) {
+			totales.decrementAndGet();
+		}
+		cerrarEnSilencio(e.fisica);
+	}
+
+	// Validacion y renovacion en segundo plano de las conexiones libres.
+	private void mantener() {
+		long ahora = System.nanoTime();
+		for (Entrada e : bolsa) {
+			if (!e.estado.compareAndSet(LIBRE, RESERVADA)) {
+				continue;
+			}
+			boolean caducada = ahora - e.creada > TimeUnit.MILLISECONDS.toNanos(vidaMaximaMs);
+			boolean valida;
+			try {
+				valida = !caducada && e.fisica.isValid(5);
+			} catch (SQLException ex) {
+				valida = false;
+			}
+			if (valida) {
+				e.estado.set(LIBRE);
+			} else {
+				LOGGER.debug("Retirada conexion {}", caducada ? "caducada" : "no valida");
+				retirar(e);
+			}
+		}
+		try {
+			while (!cerrado && totales.get() < minimo) {
+				totales.incrementAndGet();
+				Entrada e = crear();
+				e.estado.set(LIBRE);
+				bolsa.add(e);
+			}
+		} catch (SQLException ex) {
+			LOGGER.error("No se pudo reponer el minimo de conexiones: {}", ex.getMessage());
+		}
+	}
+
+	private static void cerrarEnSilencio(Connection c) {
+		try {
+			c.close();
+		} catch (SQLException ex) {
+			LOGGER.debug("Error cerrando conexion fisica: {}", ex.getMessage());
+		}
+	}
+
+	// Conexion fisica del pool con su estado de prestamo.
+	private final class Entrada {
+		final Connection fisica;
+		final AtomicInteger estado = new AtomicInteger(EN_USO);
+		final long creada = System.nanoTime();
+		final boolean autoCommit;
+		final int aislamiento;
+		volatile long ultimoUso;
+		volatile boolean rota;
+
+		// Solo la usa el hilo que tiene prestada la conexion.
+		final LinkedHashMap<String, SentenciaCacheada> sentencias = new LinkedHashMap<String, SentenciaCacheada>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SentenciaCacheada> eldest) {
+				if (size() <= tamanoCacheSentencias) {
+					return false;
+				}
+				eldest.getValue().expulsar();
+				return true;
+			}
+		};
+
+		Entrada(Connection fisica) throws SQLException {
+			this.fisica = fisica;
+			this.autoCommit = fisica.getAutoCommit();
+			this.aislamiento = fisica.getTransactionIsolation();
+		}
+
+		// Sentencia de la cache o, si no esta o ya esta en uso en este prestamo, una nueva.
+		Statement preparar(Connection proxy, String sql, boolean llamada) throws SQLException {
+			SentenciaCacheada cacheada = sentencias.get(sql);
+			if (cacheada != null && !cacheada.enUso) {
+				Metricas.incrementar(MetricasPool.SENTENCIAS_ACIERTOS);
+				return cacheada.usar(proxy);
+			}
+			Metricas.incrementar(MetricasPool.SENTENCIAS_FALLOS);
+			PreparedStatement nueva = llamada ? fisica.prepareCall(sql) : fisica.prepareStatement(sql);
+			if (cacheada != null) {
+				return nueva;
+			}
+			cacheada = new SentenciaCacheada(this, nueva);
+			sentencias.put(sql, cacheada);
+			return cacheada.usar(proxy);
+		}
+
+		Connection prestar() {
+			return (Connection) Proxy.newProxyInstance(PoolLigero.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Prestamo(this));
+		}
+	}
+
+	// Conexion tal como la ve el usuario durante un prestamo. Cerrarla la devuelve al pool.
+	private final class Prestamo implements InvocationHandler {
+		private final Entrada entrada;
+		private List<Statement> sentencias;
+		private Plazo plazo;
+		private boolean cerrada;
+		private boolean transaccionAbierta;
+		private boolean sesionAlterada;
+
+		Prestamo(Entrada entrada) {
+			this.entrada = entrada;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+			String nombre = metodo.getName();
+			switch (nombre) {
+			case "close":
+				if (!cerrada) {
+					cerrada = true;
+					liberar();
+				}
+				return null;
+			case "isClosed":
+				return cerrada || entrada.fisica.isClosed();
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Prestamo[" + entrada.fisica + "]";
+			default:
+				break;
+			}
+			if (cerrada) {
+				throw new SQLException("Conexion ya devuelta al pool");
+			}
+
+			if (nombre.equals("commit") || nombre.equals("rollback")) {
+				transaccionAbierta = false;
+			} else if (nombre.startsWith("prepare") || nombre.equals("createStatement")) {
+				transaccionAbierta = true;
+			} else if (nombre.startsWith("set")) {
+				sesionAlterada = true;
+			}
+			try {
+				if (args != null && args.length == 1 && tamanoCacheSentencias > 0
+						&& (nombre.equals("prepareStatement") || nombre.equals("prepareCall"))) {
+					return anotar(entrada.preparar((Connection) proxy, (String) args[0], nombre.equals("prepareCall")));
+				}
+				if (nombre.equals("commit") && Plazo.delHilo() != null) {
+					confirmar(Plazo.delHilo());
+					return null;
+				}
+				Object resultado = metodo.invoke(entrada.fisica, args);
+				return resultado instanceof Statement ? anotar((Statement) resultado) : resultado;
+			} catch (InvocationTargetException ex) {
+				throw fallo(entrada, ex.getCause());
+			} catch (SQLException ex) {
+				throw fallo(entrada, ex);
+			}
+		}
+
+		private Statement anotar(Statement sentencia) throws SQLException {
+			if (sentencias == null) {
+				sentencias = new ArrayList<>();
+			}
+			sentencias.add(sentencia);
+			Plazo delHilo = Plazo.delHilo();
+			if (delHilo != null) {
+				plazo = delHilo;
+				delHilo.anotar(sentencia);
+			}
+			return sentencia;
+		}
+
+		// Con el plazo vencido o cancelado no se confirma: la transaccion se deshace al devolverla.
+		private void confirmar(Plazo delHilo) throws SQLException {
+			try {
+				delHilo.empezarConfirmacion();
+			} catch (SQLException ex) {
+				transaccionAbierta = true;
+				throw ex;
+			}
+			boolean hecha = false;
+			try {
+				entrada.fisica.commit();
+				hecha = true;
+			} finally {
+				delHilo.terminarConfirmacion(hecha);
+			}
+		}
+
+		// Deja la conexion fisica como estaba al prepararla y la devuelve.
+		private void liberar() {
+			// Las sentencias que el usuario no cerro: las cacheadas vuelven a la cache.
+			if (plazo != null) {
+				plazo.quitar(sentencias);
+			}
+			if (sentencias != null) {
+				for (Statement sentencia : sentencias) {
+					cerrarSentencia(sentencia);
+				}
+			}
+			try {
+				if (transaccionAbierta && !entrada.rota && !entrada.fisica.getAutoCommit()) {
+					entrada.fisica.rollback();
+				}
+				if (sesionAlterada) {
+					entrada.fisica.setAutoCommit(entrada.autoCommit);
+					entrada.fisica.setTransactionIsolation(entrada.aislamiento);
+					entrada.fisica.setReadOnly(false);
+				}
+			} catch (SQLException ex) {
+				entrada.rota = true;
+			}
+			devolver(entrada);
+		}
+	}
+
+	// Sentencia preparada de la cache de una conexion fisica.
+	private static final class SentenciaCacheada {
+		final Entrada entrada;
+		final PreparedStatement fisica;
+		final Class<?> tipo;
+		boolean enUso;
+		boolean expulsada;
+
+		SentenciaCacheada(Entrada entrada, PreparedStatement fisica) {
+			this.entrada = entrada;
+			this.fisica = fisica;
+			this.tipo = fisica instanceof CallableStatement ? CallableStatement.class : PreparedStatement.class;
+		}
+
+		Statement usar(Connection proxy) {
+			enUso = true;
+			return (Statement) Proxy.newProxyInstance(PoolLigero.class.getClassLoader(), new Class<?>[] { tipo },
+					new UsoSentencia(this, proxy));
+		}
+
+		// Deja la sentencia lista para el siguiente uso o la cierra si ya no esta en la cache.
+		void devolver(ResultSet abierto) {
+			enUso = false;
+			try {
+				if (abierto != null) {
+					abierto.close();
+				}
+				if (!expulsada) {
+					if (fisica.getQueryTimeout() != 0) {
+						fisica.setQueryTimeout(0);
+					}
+					fisica.clearParameters();
+					fisica.clearBatch();
+					return;
+				}
+			} catch (SQLException ex) {
+				expulsada = true;
+				entrada.sentencias.values().remove(this);
+			}
+			cerrarSentencia(fisica);
+		}
+
+		void expulsar() {
+			expulsada = true;
+			if (!enUso) {
+				cerrarSentencia(fisica);
+			}
+		}
+	}
+
+	// Sentencia cacheada tal como la ve el usuario entre prepararla y cerrarla.
+	private static final class UsoSentencia implements InvocationHandler {
+		private final SentenciaCacheada sentencia;
+		private final Connection conexion;
+		private ResultSet abierto;
+		private boolean cerrada;
+
+		UsoSentencia(SentenciaCacheada sentencia, Connection conexion) {
+			this.sentencia = sentencia;
+			this.conexion = conexion;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+			switch (metodo.getName()) {
+			case "close":
+				if (!cerrada) {
+					cerrada = true;
+					sentencia.devolver(abierto);
+				}
+				return null;
+			case "isClosed":
+				return cerrada;
+			case "getConnection":
+				return conexion;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Sentencia[" + sentencia.fisica + "]";
+			default:
+				break;
+			}
+			if (cerrada) {
+				throw new SQLException("Sentencia ya cerrada");
+			}
+			try {
+				Object resultado = metodo.invoke(sentencia.fisica, args);
+				if (resultado instanceof ResultSet) {
+					abierto = (ResultSet) resultado;
+				}
+				return resultado;
+			} catch (InvocationTargetException ex) {
+				throw fallo(sentencia.entrada, ex.getCause());
+			}
+		}
+	}
+
+	private static void cerrarSentencia(Statement st) {
+		try {
+			st.close();
+		} catch (SQLException ex) {
+			LOGGER.debug("Error cerrando sentencia: {}", ex.getMessage());
+		}
+	}
+
+	// Marca la conexion como rota si el error es de conexion y devuelve el error para relanzarlo.
+	private static Throwable fallo(Entrada entrada, Throwable causa) {
+		if (causa instanceof SQLException && esErrorDeConexion((SQLException) causa)) {
+			entrada.rota = true;
+		}
+		return causa;
+	}
+
+	// SQLState de clase 08: errores de conexion.
+	private static boolean esErrorDeConexion(SQLException ex) {
+		String estado = ex.getSQLState();
+		return estado != null && estado.startsWith("08");
+	}
+}
@@ -0,0 +1,133 @@
+package lsi.ubu.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lsi.ubu.util.exceptions.SGBDError;
+
+/**
+ * Resultado de una carga de {@link CargadorHorarios}: sentencias y filas
+ * procesadas, duracion y errores encontrados.
+ */
+public final class ResultadoCarga {
+
+	/** Numero maximo de errores que se guardan con detalle; el resto solo se cuentan. */
+	static final int MAXIMO_ERRORES = 100;
+
+	private final String origen;
+	private long sentencias;
+	private long filas;
+	private long ignoradas;
+	private long numErrores;
+	private long duracionNanos;
+	private final List<ErrorCarga> errores = new ArrayList<>();
+
+	ResultadoCarga(String origen) {
+		this.origen = origen;
+	}
+
+	/**
+	 * Error de una sentencia o fila de la carga.
+	 */
+	public static final class ErrorCarga {
+		private final int linea;
+		private final SGBDError tipo;
+		private final String mensaje;
+
+		ErrorCarga(int linea, SGBDError tipo, String mensaje) {
+			this.linea = linea;
+			this.tipo = tipo;
+			this.mensaje = mensaje;
+		}
+
+		/** @return linea del fichero donde empieza la sentencia o fila */
+		public int getLinea() {
+			return linea;
+		}
+
+		/** @return tipo de error segun {@link lsi.ubu.util.exceptions.SGBDErrorUtil} */
+		public SGBDError getTipo() {
+			return tipo;
+		}
+
+		public String getMensaje() {
+			return mensaje;
+		}
+
+		@Override
+		public String toString() {
+			return "linea " + linea + ": " + tipo + " " + mensaje;
+		}
+	}
+
+	void sumarSentencia() {
+		sentencias++;
+	}
+
+	void sumarFilas(long n) {
+		filas += n;
+	}
+
+	void sumarIgnorada() {
+		ignoradas++;
+	}
+
+	void anadirError(ErrorCarga error) {
+		numErrores++;
+		if (errores.size() < MAXIMO_ERRORES) {
+			errores.add(error);
+		}
+	}
+
+	void terminar(long duracionNanos) {
+		this.duracionNanos = duracionNanos;
+	}
+
+	/** @return fichero cargado */
+	public String getOrigen() {
+		return origen;
+	}
+
+	/** @return sentencias ejecutadas (cada fila de un CSV cuenta como una) */
+	public long getSentencias() {
+		return sentencias;
+	}
+
+	/** @return filas insertadas, actualizadas o borradas */
+	public long getFilas() {
+		return filas;
+	}
+
+	/**
+	 * @return sentencias cuyo error se da por bueno, como borrar una tabla o
+	 *         secuencia que aun no existe
+	 */
+	public long getIgnoradas() {
+		return ignoradas;
+	}
+
+	/** @return numero total de errores */
+	public long getNumErrores() {
+		return numErrores;
+	}
+
+	/** @return los primeros {@value #MAXIMO_ERRORES} errores */
+	public List<ErrorCarga> getErrores() {
+		return Collections.unmodifiableList(errores);
+	}
+
+	public long getDuracionNanos() {
+		return duracionNanos;
+	}
+
+	public double getFilasPorSegundo() {
+		return duracionNanos == 0 ? 0 : filas * 1e9 / duracionNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d sentencias, %d filas en %.1f ms (%.0f filas/s), %d errores, %d ignoradas",
+				origen, sentencias, filas, duracionNanos / 1e6, getFilasPorSegundo(), numErrores, ignoradas);
+	}
+}
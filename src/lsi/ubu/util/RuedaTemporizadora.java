@@ -0,0 +1,112 @@
+package lsi.ubu.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Rueda de temporizadores: reparte los elementos programados en ranuras segun
+ * su vencimiento, de modo que programar es O(1) y cada avance solo recorre las
+ * ranuras de los ticks transcurridos, entregando de golpe todo lo vencido.
+ *
+ * <p>
+ * Cualquier hilo puede programar; solo un hilo debe llamar a
+ * {@link #avanzar(long, Consumer)}. Los elementos no se cancelan: quien los
+ * recibe debe comprobar si siguen vigentes.
+ *
+ * @param <T> tipo de los elementos programados
+ */
+public class RuedaTemporizadora<T> {
+
+	private final long tickNanos;
+	private final long origen;
+	private final int mascara;
+	private final ArrayDeque<Programado<T>>[] ranuras;
+
+	/** Programados desde cualquier hilo, pendientes de colocar en su ranura. */
+	private final ConcurrentLinkedQueue<Programado<T>> entrantes = new ConcurrentLinkedQueue<>();
+
+	/** Ultimo tick procesado. */
+	private long tickActual;
+
+	/**
+	 * Crea la rueda.
+	 *
+	 * @param tickMs     resolucion en milisegundos
+	 * @param ranuras    numero de ranuras (se redondea a potencia de dos); una
+	 *                   vuelta dura {@code tickMs * ranuras}
+	 * @param ahoraNanos instante inicial, de {@link System#nanoTime()}
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RuedaTemporizadora(long tickMs, int ranuras, long ahoraNanos) {
+		int n = Integer.highestOneBit(Math.max(1, ranuras - 1)) << 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+		this.mascara = n - 1;
+		this.ranuras = new ArrayDeque[n];
+		for (int i = 0; i < n; i++) {
+			this.ranuras[i] = new ArrayDeque<>();
+		}
+		this.origen = ahoraNanos;
+		this.tickActual = 0;
+	}
+
+	/**
+	 * Programa un elemento.
+	 *
+	 * @param elemento         elemento a entregar al vencer
+	 * @param vencimientoNanos instante de vencimiento, de {@link System#nanoTime()}
+	 */
+	public void programar(T elemento, long vencimientoNanos) {
+		entrantes.add(new Programado<>(elemento, vencimientoNanos));
+	}
+
+	/**
+	 * Avanza la rueda hasta el instante dado y entrega los elementos vencidos.
+	 *
+	 * @param ahoraNanos instante actual, de {@link System#nanoTime()}
+	 * @param alVencer   receptor de cada elemento vencido
+	 * @return numero de elementos entregados
+	 */
+	public int avanzar(long ahoraNanos, Consumer<T> alVencer) {
+		Programado<T> p;
+		while ((p = entrantes.poll()) != null) {
+			colocar(p);
+		}
+
+		long tickFinal = Math.floorDiv(ahoraNanos - origen, tickNanos);
+		// Si hay mas ticks pendientes que ranuras basta con dar una vuelta completa.
+		long desde = Math.max(tickActual + 1, tickFinal - mascara);
+		int entregados = 0;
+		for (long tick = desde; tick <= tickFinal; tick++) {
+			ArrayDeque<Programado<T>> ranura = ranuras[(int) (tick & mascara)];
+			for (int i = ranura.size(); i > 0; i--) {
+				Programado<T> q = ranura.poll();
+				if (q.vencimiento <= ahoraNanos) {
+					alVencer.accept(q.elemento);
+					entregados++;
+				} else {
+					ranura.add(q); // vence en una vuelta posterior
+				}
+			}
+		}
+		tickActual = Math.max(tickActual, tickFinal);
+		return entregados;
+	}
+
+	private void colocar(Programado<T> p) {
+		// Primer tick que empieza en o despues del vencimiento; lo ya vencido va al siguiente tick.
+		long tick = Math.max(-Math.floorDiv(origen - p.vencimiento, tickNanos), tickActual + 1);
+		ranuras[(int) (tick & mascara)].add(p);
+	}
+
+	private static final class Programado<T> {
+		final T elemento;
+		final long vencimiento;
+
+		Programado(T elemento, long vencimiento) {
+			this.elemento = elemento;
+			this.vencimiento = vencimiento;
+		}
+	}
+}
@@ -13,6 +13,13 @@ public enum SGBDError {
 	FK_VIOLATED_DELETE, // Violaci�n de clave for�nea por hijo existente => con delete/udate
 	PK_VIOLATED, // Violaci�n de clave primaria
 	NOT_EXISTS_SEQUENCE, // No existe la secuencia utilizada
+	NOT_EXISTS_TABLE, // No existe la tabla o vista utilizada
+	CHECK_VIOLATED, // Violación de una restricción check
+	NOT_NULL_VIOLATED, // Valor nulo en una columna not null
+	DEADLOCK, // Interbloqueo detectado: se deshace la sentencia
+	SERIALIZATION_FAILURE, // La transacción serializable no puede serializar el acceso
+	RESOURCE_BUSY, // Recurso bloqueado por otra transacción (NOWAIT o espera agotada)
+	CONNECTION_LOST, // Conexión perdida o base de datos no disponible
 	// A�adir antes de esta l�nea si fuera necesario
 
 	UNKNOWN; // No determinado.
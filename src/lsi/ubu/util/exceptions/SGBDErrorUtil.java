@@ -1,6 +1,9 @@
 package lsi.ubu.util.exceptions;
 
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
 
 /**
  * Utilidad para el tratamiento de errores en bases de datos.
@@ -29,4 +32,36 @@ public interface SGBDErrorUtil {
 	 * @return true si coinciden, false en caso contrario
 	 */
 	boolean checkExceptionToCode(SQLException ex, SGBDError error);
+
+	/**
+	 * Comprueba si el error es transitorio, es decir, si repetir la operación
+	 * puede tener éxito: interbloqueos, fallos de serialización, recursos
+	 * bloqueados y errores de conexión.
+	 * 
+	 * @param ex excepción con código interno de la base de datos
+	 * @return true si el error es transitorio
+	 */
+	default boolean isTransient(SQLException ex) {
+		switch (translate(ex.getErrorCode())) {
+		case DEADLOCK:
+		case SERIALIZATION_FAILURE:
+		case RESOURCE_BUSY:
+		case CONNECTION_LOST:
+			return true;
+		default:
+			return ex instanceof SQLTransientException || ex instanceof SQLRecoverableException;
+		}
+	}
+
+	/**
+	 * Comprueba si el error se debe a la conexión (perdida, sin conexiones libres
+	 * o base de datos no disponible) y no a la operación.
+	 * 
+	 * @param ex excepción con código interno de la base de datos
+	 * @return true si es un error de conexión
+	 */
+	default boolean isConnectionError(SQLException ex) {
+		return translate(ex.getErrorCode()) == SGBDError.CONNECTION_LOST
+				|| ex instanceof SQLTransientConnectionException || ex instanceof SQLRecoverableException;
+	}
 }
\ No newline at end of file
@@ -21,6 +21,21 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	private static final int FK_VIOLATED = 2291; //ORA-02291: integrity constraint (la que sea) violated - parent key not found
 	private static final int NOT_EXISTS_SEQUENCE = 2289;
 	private static final int FK_VIOLATED_DELETE = 2292; //ORA-02292: integrity constraint (la que sea) violated - child record found
+	private static final int NOT_EXISTS_TABLE = 942; //ORA-00942: table or view does not exist
+	private static final int CHECK_VIOLATED = 2290; //ORA-02290: check constraint (la que sea) violated
+	private static final int NOT_NULL_VIOLATED = 1400; //ORA-01400: cannot insert NULL into (columna)
+	private static final int DEADLOCK = 60; //ORA-00060: deadlock detected while waiting for resource
+	private static final int SERIALIZATION_FAILURE = 8177; //ORA-08177: can't serialize access for this transaction
+	private static final int RESOURCE_BUSY = 54; //ORA-00054: resource busy and acquire with NOWAIT specified
+	private static final int RESOURCE_BUSY_TIMEOUT = 30006; //ORA-30006: resource busy; acquire with WAIT timeout expired
+	private static final int END_OF_FILE = 3113; //ORA-03113: end-of-file on communication channel
+	private static final int NOT_CONNECTED = 3114; //ORA-03114: not connected to ORACLE
+	private static final int CONNECTION_TIMEOUT = 3135; //ORA-03135: connection lost contact
+	private static final int NOT_AVAILABLE = 1034; //ORA-01034: ORACLE not available
+	private static final int SHUTDOWN_IN_PROGRESS = 1089; //ORA-01089: immediate shutdown in progress
+	private static final int IO_ERROR = 17002; //Error del driver: Io exception
+	private static final int CLOSED_CONNECTION = 17008; //Error del driver: Closed Connection
+	private static final int NO_MORE_DATA = 17410; //Error del driver: No more data to read from socket
 	// Aadir segn sea necesario, por parte del alumno...
 
 	/**
@@ -49,6 +64,28 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 			return SGBDError.FK_VIOLATED_DELETE;
 		case NOT_EXISTS_SEQUENCE:
 			return SGBDError.NOT_EXISTS_SEQUENCE;
+		case NOT_EXISTS_TABLE:
+			return SGBDError.NOT_EXISTS_TABLE;
+		case CHECK_VIOLATED:
+			return SGBDError.CHECK_VIOLATED;
+		case NOT_NULL_VIOLATED:
+			return SGBDError.NOT_NULL_VIOLATED;
+		case DEADLOCK:
+			return SGBDError.DEADLOCK;
+		case SERIALIZATION_FAILURE:
+			return SGBDError.SERIALIZATION_FAILURE;
+		case RESOURCE_BUSY:
+		case RESOURCE_BUSY_TIMEOUT:
+			return SGBDError.RESOURCE_BUSY;
+		case END_OF_FILE:
+		case NOT_CONNECTED:
+		case CONNECTION_TIMEOUT:
+		case NOT_AVAILABLE:
+		case SHUTDOWN_IN_PROGRESS:
+		case IO_ERROR:
+		case CLOSED_CONNECTION:
+		case NO_MORE_DATA:
+			return SGBDError.CONNECTION_LOST;
 		}
 		return SGBDError.UNKNOWN;
 	}
@@ -0,0 +1,145 @@
+package lsi.ubu.util.metricas;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con cubetas log-lineales: cada potencia de dos se
+ * divide en 32 cubetas, asi que el error relativo de cualquier percentil es
+ * menor del 3 % con independencia de la magnitud. Registrar es una operacion
+ * sin bloqueos ni reserva de memoria, apta para el camino critico.
+ *
+ * <p>
+ * Los valores son enteros no negativos; normalmente nanosegundos.
+ */
+public class HistogramaLatencias {
+
+	private static final int BITS_SUBCUBETA = 5;
+	private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+	private static final int NUM_CUBETAS = (64 - BITS_SUBCUBETA) * SUBCUBETAS;
+
+	private final AtomicLongArray cubetas = new AtomicLongArray(NUM_CUBETAS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong suma = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	/**
+	 * Registra un valor. Los negativos se cuentan como 0.
+	 *
+	 * @param valor valor a registrar
+	 */
+	public void registrar(long valor) {
+		long v = Math.max(0, valor);
+		cubetas.incrementAndGet(indice(v));
+		total.incrementAndGet();
+		suma.addAndGet(v);
+		long max;
+		while (v > (max = maximo.get()) && !maximo.compareAndSet(max, v)) {
+			// reintento
+		}
+	}
+
+	/**
+	 * @return numero de valores registrados
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return mayor valor registrado
+	 */
+	public long getMaximo() {
+		return maximo.get();
+	}
+
+	/**
+	 * @return media de los valores registrados, 0 si no hay ninguno
+	 */
+	public double getMedia() {
+		long n = total.get();
+		return n == 0 ? 0 : (double) suma.get() / n;
+	}
+
+	/**
+	 * Calcula un percentil.
+	 *
+	 * @param percentil entre 0 y 100
+	 * @return valor aproximado por debajo del cual queda ese porcentaje de los
+	 *         registros, 0 si no hay ninguno
+	 */
+	public long getPercentil(double percentil) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long objetivo = Math.max(1, (long) Math.ceil(n * percentil / 100.0));
+		long acumulado = 0;
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			acumulado += cubetas.get(i);
+			if (acumulado >= objetivo) {
+				return Math.min(valorMedio(i), maximo.get());
+			}
+		}
+		return maximo.get();
+	}
+
+	/**
+	 * Suma a este histograma los registros de otro.
+	 *
+	 * @param otro histograma a acumular
+	 */
+	public void acumular(HistogramaLatencias otro) {
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			long c = otro.cubetas.get(i);
+			if (c != 0) {
+				cubetas.addAndGet(i, c);
+			}
+		}
+		total.addAndGet(otro.total.get());
+		suma.addAndGet(otro.suma.get());
+		long max;
+		long v = otro.maximo.get();
+		while (v > (max = maximo.get()) && !maximo.compareAndSet(max, v)) {
+			// reintento
+		}
+	}
+
+	/**
+	 * Pone el histograma a cero.
+	 */
+	public void reiniciar() {
+		for (int i = 0; i < NUM_CUBETAS; i++) {
+			cubetas.set(i, 0);
+		}
+		total.set(0);
+		suma.set(0);
+		maximo.set(0);
+	}
+
+	static int indice(long v) {
+		if (v < SUBCUBETAS) {
+			return (int) v;
+		}
+		int magnitud = 63 - Long.numberOfLeadingZeros(v);
+		int grupo = magnitud - BITS_SUBCUBETA + 1;
+		return (grupo << BITS_SUBCUBETA) + (int) ((v >>> (magnitud - BITS_SUBCUBETA)) & (SUBCUBETAS - 1));
+	}
+
+	static long valorInferior(int indice) {
+		if (indice < SUBCUBETAS) {
+			return indice;
+		}
+		int grupo = indice >> BITS_SUBCUBETA;
+		int desplazamiento = grupo - 1;
+		return ((long) (SUBCUBETAS + (indice & (SUBCUBETAS - 1)))) << desplazamiento;
+	}
+
+	private static long valorMedio(int indice) {
+		if (indice < SUBCUBETAS) {
+			return indice;
+		}
+		int desplazamiento = (indice >> BITS_SUBCUBETA) - 1;
+		return valorInferior(indice) + ((1L << desplazamiento) >> 1);
+	}
+}
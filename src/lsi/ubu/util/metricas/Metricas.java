@@ -0,0 +1,113 @@
+package lsi.ubu.util.metricas;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Punto unico de registro de metricas. Todo se anota en un
+ * {@link RegistroMetricasMemoria}, que es lo que se publica por JMX bajo el
+ * dominio {@value #DOMINIO_JMX}, y ademas en los registros externos que se
+ * hayan anadido.
+ */
+public final class Metricas {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Metricas.class);
+
+	/** Dominio de los MBeans de la aplicacion. */
+	public static final String DOMINIO_JMX = "lsi.ubu";
+
+	private static final RegistroMetricasMemoria MEMORIA = new RegistroMetricasMemoria();
+	private static final CopyOnWriteArrayList<RegistroMetricas> EXTERNOS = new CopyOnWriteArrayList<>();
+
+	private Metricas() {
+	}
+
+	/**
+	 * @return registro en memoria con todas las metricas
+	 */
+	public static RegistroMetricasMemoria getMemoria() {
+		return MEMORIA;
+	}
+
+	/**
+	 * Envia tambien las metricas a otro registro.
+	 *
+	 * @param registro registro externo
+	 */
+	public static void anadirRegistro(RegistroMetricas registro) {
+		EXTERNOS.addIfAbsent(registro);
+	}
+
+	/**
+	 * Deja de enviar las metricas a un registro externo.
+	 *
+	 * @param registro registro externo
+	 */
+	public static void quitarRegistro(RegistroMetricas registro) {
+		EXTERNOS.remove(registro);
+	}
+
+	/**
+	 * Suma uno a un contador.
+	 *
+	 * @param nombre nombre del contador
+	 */
+	public static void incrementar(String nombre) {
+		MEMORIA.incrementar(nombre);
+		for (RegistroMetricas r : EXTERNOS) {
+			r.incrementar(nombre);
+		}
+	}
+
+	/**
+	 * Anota una duracion.
+	 *
+	 * @param nombre nombre de la medida
+	 * @param nanos  duracion en nanosegundos
+	 */
+	public static void registrarDuracion(String nombre, long nanos) {
+		MEMORIA.registrarDuracion(nombre, nanos);
+		for (RegistroMetricas r : EXTERNOS) {
+			r.registrarDuracion(nombre, nanos);
+		}
+	}
+
+	/**
+	 * Publica un MBean con nombre {@code lsi.ubu:type=<tipo>}, sustituyendo al
+	 * que hubiera con ese nombre. Si no se puede publicar solo se anota en el log.
+	 *
+	 * @param tipo  tipo del MBean
+	 * @param mbean objeto a publicar
+	 */
+	public static void registrarMBean(String tipo, Object mbean) {
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nombre = new ObjectName(DOMINIO_JMX + ":type=" + tipo);
+			synchronized (Metricas.class) {
+				if (servidor.isRegistered(nombre)) {
+					servidor.unregisterMBean(nombre);
+				}
+				servidor.registerMBean(mbean, nombre);
+			}
+		} catch (JMException e) {
+			LOGGER.warn("No se pudo publicar el MBean {}: {}", tipo, e.getMessage());
+		}
+	}
+
+	/**
+	 * Convierte nanosegundos a microsegundos.
+	 *
+	 * @param nanos nanosegundos
+	 * @return microsegundos
+	 */
+	static double aMicros(double nanos) {
+		return nanos / 1e3;
+	}
+}
@@ -0,0 +1,105 @@
+package lsi.ubu.util.metricas;
+
+import lsi.ubu.util.PoolLigero;
+
+/**
+ * MBean del pool de conexiones: el estado lo consulta en el propio pool y las
+ * esperas en el registro de metricas.
+ */
+public class MetricasPool implements PoolMXBean {
+
+	/** Medida de la espera de cada prestamo. */
+	public static final String ESPERA = "pool.espera";
+	/** Contador de prestamos que agotaron la espera. */
+	public static final String AGOTAMIENTOS = "pool.agotamientos";
+	/** Contador de sentencias preparadas servidas desde la cache de la conexion. */
+	public static final String SENTENCIAS_ACIERTOS = "pool.sentencias.aciertos";
+	/** Contador de sentencias que hubo que preparar en la base de datos. */
+	public static final String SENTENCIAS_FALLOS = "pool.sentencias.fallos";
+
+	private final PoolLigero pool;
+
+	public MetricasPool(PoolLigero pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public int getMaximo() {
+		return pool.getMaximo();
+	}
+
+	@Override
+	public int getTotales() {
+		return pool.getTotales();
+	}
+
+	@Override
+	public int getActivas() {
+		return pool.getActivas();
+	}
+
+	@Override
+	public int getLibres() {
+		return pool.getLibres();
+	}
+
+	@Override
+	public int getEsperando() {
+		return pool.getEsperando();
+	}
+
+	@Override
+	public long getPrestamos() {
+		return esperas().getTotal();
+	}
+
+	@Override
+	public long getAgotamientos() {
+		return Metricas.getMemoria().getContador(AGOTAMIENTOS);
+	}
+
+	@Override
+	public double getEsperaMediaUs() {
+		return Metricas.aMicros(esperas().getMedia());
+	}
+
+	@Override
+	public double getEsperaP50Us() {
+		return Metricas.aMicros(esperas().getPercentil(50));
+	}
+
+	@Override
+	public double getEsperaP99Us() {
+		return Metricas.aMicros(esperas().getPercentil(99));
+	}
+
+	@Override
+	public double getEsperaMaximaUs() {
+		return Metricas.aMicros(esperas().getMaximo());
+	}
+
+	@Override
+	public int getTamanoCacheSentencias() {
+		return pool.getTamanoCacheSentencias();
+	}
+
+	@Override
+	public long getSentenciasReutilizadas() {
+		return Metricas.getMemoria().getContador(SENTENCIAS_ACIERTOS);
+	}
+
+	@Override
+	public long getSentenciasPreparadas() {
+		return Metricas.getMemoria().getContador(SENTENCIAS_FALLOS);
+	}
+
+	@Override
+	public void reiniciar() {
+		Metricas.getMemoria().reiniciar("pool.");
+	}
+
+	private HistogramaLatencias esperas() {
+		HistogramaLatencias h = Metricas.getMemoria().getHistograma(ESPERA);
+		return h == null ? new HistogramaLatencias() : h;
+	}
+}
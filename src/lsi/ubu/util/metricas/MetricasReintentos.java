@@ -0,0 +1,69 @@
+package lsi.ubu.util.metricas;
+
+import java.util.Map;
+
+import lsi.ubu.util.EjecutorReintentos;
+
+/**
+ * MBean de los reintentos: el presupuesto y el estado del cortacircuitos los
+ * consulta en el propio ejecutor y los contadores en el registro de metricas.
+ */
+public class MetricasReintentos implements ReintentosMXBean {
+
+	/** Prefijo de los contadores de reintentos, seguido del nombre de la operacion. */
+	public static final String REINTENTOS = "reintentos.operacion.";
+	/** Contador de operaciones que fallaron en todos sus intentos. */
+	public static final String AGOTADOS = "reintentos.agotados";
+	/** Contador de reintentos que no se hicieron por falta de presupuesto. */
+	public static final String SIN_PRESUPUESTO = "reintentos.sinPresupuesto";
+	/** Contador de aperturas del cortacircuitos. */
+	public static final String APERTURAS = "reintentos.cortacircuitos.aperturas";
+	/** Contador de operaciones rechazadas con el cortacircuitos abierto. */
+	public static final String RECHAZADAS = "reintentos.cortacircuitos.rechazadas";
+
+	private final EjecutorReintentos ejecutor;
+
+	public MetricasReintentos(EjecutorReintentos ejecutor) {
+		this.ejecutor = ejecutor;
+	}
+
+	@Override
+	public Map<String, Long> getReintentos() {
+		return Metricas.getMemoria().getContadores(REINTENTOS);
+	}
+
+	@Override
+	public long getAgotados() {
+		return Metricas.getMemoria().getContador(AGOTADOS);
+	}
+
+	@Override
+	public long getSinPresupuesto() {
+		return Metricas.getMemoria().getContador(SIN_PRESUPUESTO);
+	}
+
+	@Override
+	public double getPresupuesto() {
+		return ejecutor.getPresupuesto();
+	}
+
+	@Override
+	public String getEstadoCortacircuitos() {
+		return ejecutor.getCortacircuitos().getEstado().name();
+	}
+
+	@Override
+	public long getAperturasCortacircuitos() {
+		return Metricas.getMemoria().getContador(APERTURAS);
+	}
+
+	@Override
+	public long getRechazadasCortacircuitos() {
+		return Metricas.getMemoria().getContador(RECHAZADAS);
+	}
+
+	@Override
+	public void reiniciar() {
+		Metricas.getMemoria().reiniciar("reintentos.");
+	}
+}
@@ -0,0 +1,99 @@
+package lsi.ubu.util.metricas;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToDoubleFunction;
+
+import lsi.ubu.excepciones.CompraBilleteTrenException;
+
+/**
+ * Instrumentacion de los metodos del servicio y su MBean. Se publica como
+ * {@code lsi.ubu:type=Servicio} la primera vez que se usa.
+ */
+public final class MetricasServicio implements ServicioMXBean {
+
+	private static final String DURACION = "servicio.duracion.";
+	private static final String ERROR = "servicio.error.";
+
+	// Nombres de los codigos de CompraBilleteTrenException, indexados por el codigo.
+	private static final String[] CODIGOS = { "SQL", "NO_PLAZAS", "NO_EXISTE_VIAJE", "NO_RESERVAS", "NO_TICKET",
+			"NO_RETENCION" };
+
+	private static final MetricasServicio INSTANCIA = new MetricasServicio();
+
+	static {
+		Metricas.registrarMBean("Servicio", INSTANCIA);
+	}
+
+	private MetricasServicio() {
+	}
+
+	/**
+	 * Anota la duracion de una transaccion del servicio.
+	 *
+	 * @param metodo      nombre del metodo
+	 * @param inicioNanos valor de {@link System#nanoTime()} al empezar
+	 */
+	public static void registrarTransaccion(String metodo, long inicioNanos) {
+		Metricas.registrarDuracion(DURACION + metodo, System.nanoTime() - inicioNanos);
+	}
+
+	/**
+	 * Cuenta un error del servicio por su codigo.
+	 *
+	 * @param e error lanzado por el servicio
+	 */
+	public static void registrarError(SQLException e) {
+		registrarError(e instanceof CompraBilleteTrenException ? e.getErrorCode() : 0);
+	}
+
+	/**
+	 * Cuenta un rechazo de negocio que no llega a lanzarse como excepcion (por
+	 * ejemplo, una compra rechazada dentro de un lote).
+	 *
+	 * @param codigo codigo de {@link CompraBilleteTrenException}
+	 */
+	public static void registrarError(int codigo) {
+		Metricas.incrementar(ERROR + (codigo > 0 && codigo < CODIGOS.length ? CODIGOS[codigo] : CODIGOS[0]));
+	}
+
+	@Override
+	public Map<String, Long> getTransacciones() {
+		Map<String, Long> resultado = new TreeMap<>();
+		Metricas.getMemoria().getHistogramas(DURACION).forEach((m, h) -> resultado.put(m, h.getTotal()));
+		return resultado;
+	}
+
+	@Override
+	public Map<String, Double> getDuracionMediaUs() {
+		return duraciones(HistogramaLatencias::getMedia);
+	}
+
+	@Override
+	public Map<String, Double> getDuracionP99Us() {
+		return duraciones(h -> h.getPercentil(99));
+	}
+
+	@Override
+	public Map<String, Double> getDuracionMaximaUs() {
+		return duraciones(HistogramaLatencias::getMaximo);
+	}
+
+	@Override
+	public Map<String, Long> getErrores() {
+		return Metricas.getMemoria().getContadores(ERROR);
+	}
+
+	@Override
+	public void reiniciar() {
+		Metricas.getMemoria().reiniciar("servicio.");
+	}
+
+	private static Map<String, Double> duraciones(ToDoubleFunction<HistogramaLatencias> valor) {
+		Map<String, Double> resultado = new TreeMap<>();
+		Metricas.getMemoria().getHistogramas(DURACION)
+				.forEach((m, h) -> resultado.put(m, Metricas.aMicros(valor.applyAsDouble(h))));
+		return resultado;
+	}
+}
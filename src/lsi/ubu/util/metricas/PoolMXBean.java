@@ -0,0 +1,41 @@
+package lsi.ubu.util.metricas;
+
+/**
+ * Estado del pool de conexiones publicado por JMX. Las esperas miden lo que
+ * tarda cada prestamo, tanto si habia conexion libre como si hubo que esperar.
+ */
+public interface PoolMXBean {
+
+	int getMaximo();
+
+	int getTotales();
+
+	int getActivas();
+
+	int getLibres();
+
+	int getEsperando();
+
+	long getPrestamos();
+
+	/** Prestamos que no consiguieron conexion dentro de la espera maxima. */
+	long getAgotamientos();
+
+	double getEsperaMediaUs();
+
+	double getEsperaP50Us();
+
+	double getEsperaP99Us();
+
+	double getEsperaMaximaUs();
+
+	int getTamanoCacheSentencias();
+
+	/** Sentencias preparadas servidas desde la cache de la conexion. */
+	long getSentenciasReutilizadas();
+
+	/** Sentencias que hubo que preparar en la base de datos. */
+	long getSentenciasPreparadas();
+
+	void reiniciar();
+}
@@ -0,0 +1,28 @@
+package lsi.ubu.util.metricas;
+
+/**
+ * Destino de las metricas de la aplicacion. Permite enviarlas a un sistema de
+ * monitorizacion externo registrandolo con
+ * {@link Metricas#anadirRegistro(RegistroMetricas)}.
+ *
+ * <p>
+ * Los metodos se llaman desde el camino critico: deben ser rapidos y no
+ * lanzar excepciones.
+ */
+public interface RegistroMetricas {
+
+	/**
+	 * Suma uno a un contador.
+	 *
+	 * @param nombre nombre del contador
+	 */
+	void incrementar(String nombre);
+
+	/**
+	 * Anota una duracion.
+	 *
+	 * @param nombre nombre de la medida
+	 * @param nanos  duracion en nanosegundos
+	 */
+	void registrarDuracion(String nombre, long nanos);
+}
@@ -0,0 +1,106 @@
+package lsi.ubu.util.metricas;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de metricas en memoria: un contador por nombre y un
+ * {@link HistogramaLatencias} por cada medida de duracion. Es el que consultan
+ * los MBeans de JMX.
+ */
+public class RegistroMetricasMemoria implements RegistroMetricas {
+
+	private final ConcurrentHashMap<String, LongAdder> contadores = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, HistogramaLatencias> duraciones = new ConcurrentHashMap<>();
+
+	@Override
+	public void incrementar(String nombre) {
+		LongAdder contador = contadores.get(nombre);
+		if (contador == null) {
+			contador = contadores.computeIfAbsent(nombre, n -> new LongAdder());
+		}
+		contador.increment();
+	}
+
+	@Override
+	public void registrarDuracion(String nombre, long nanos) {
+		HistogramaLatencias histograma = duraciones.get(nombre);
+		if (histograma == null) {
+			histograma = duraciones.computeIfAbsent(nombre, n -> new HistogramaLatencias());
+		}
+		histograma.registrar(nanos);
+	}
+
+	/**
+	 * @param nombre nombre del contador
+	 * @return valor del contador, 0 si nunca se ha incrementado
+	 */
+	public long getContador(String nombre) {
+		LongAdder contador = contadores.get(nombre);
+		return contador == null ? 0 : contador.sum();
+	}
+
+	/**
+	 * @param nombre nombre de la medida
+	 * @return histograma de la medida (en nanosegundos) o null si no hay
+	 *         registros
+	 */
+	public HistogramaLatencias getHistograma(String nombre) {
+		return duraciones.get(nombre);
+	}
+
+	/**
+	 * Valores de los contadores cuyo nombre empieza por el prefijo, indexados
+	 * por el resto del nombre.
+	 *
+	 * @param prefijo prefijo de los nombres
+	 * @return contadores ordenados por nombre
+	 */
+	public Map<String, Long> getContadores(String prefijo) {
+		Map<String, Long> resultado = new TreeMap<>();
+		contadores.forEach((nombre, contador) -> {
+			if (nombre.startsWith(prefijo)) {
+				resultado.put(nombre.substring(prefijo.length()), contador.sum());
+			}
+		});
+		return resultado;
+	}
+
+	/**
+	 * Histogramas cuyo nombre empieza por el prefijo, indexados por el resto del
+	 * nombre.
+	 *
+	 * @param prefijo prefijo de los nombres
+	 * @return histogramas ordenados por nombre
+	 */
+	public Map<String, HistogramaLatencias> getHistogramas(String prefijo) {
+		Map<String, HistogramaLatencias> resultado = new TreeMap<>();
+		duraciones.forEach((nombre, histograma) -> {
+			if (nombre.startsWith(prefijo)) {
+				resultado.put(nombre.substring(prefijo.length()), histograma);
+			}
+		});
+		return resultado;
+	}
+
+	/**
+	 * Pone a cero los contadores e histogramas cuyo nombre empieza por el
+	 * prefijo.
+	 *
+	 * @param prefijo prefijo de los nombres
+	 */
+	public void reiniciar(String prefijo) {
+		contadores.forEach((nombre, contador) -> {
+			if (nombre.startsWith(prefijo)) {
+				contador.reset();
+			}
+		});
+		duraciones.forEach((nombre, histograma) -> {
+			if (nombre.startsWith(prefijo)) {
+				histograma.reiniciar();
+			}
+		});
+	}
+}
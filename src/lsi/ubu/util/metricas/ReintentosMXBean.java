@@ -0,0 +1,32 @@
+package lsi.ubu.util.metricas;
+
+import java.util.Map;
+
+/**
+ * Reintentos de operaciones por errores transitorios y estado del
+ * cortacircuitos de la base de datos, publicados por JMX. Los reintentos se
+ * indexan por el nombre de la operacion.
+ */
+public interface ReintentosMXBean {
+
+	Map<String, Long> getReintentos();
+
+	/** Operaciones que fallaron en todos sus intentos. */
+	long getAgotados();
+
+	/** Reintentos que no se hicieron por falta de presupuesto. */
+	long getSinPresupuesto();
+
+	/** Reintentos disponibles ahora en el presupuesto. */
+	double getPresupuesto();
+
+	/** CERRADO, ABIERTO o SEMIABIERTO. */
+	String getEstadoCortacircuitos();
+
+	long getAperturasCortacircuitos();
+
+	/** Operaciones rechazadas sin intentarlas con el cortacircuitos abierto. */
+	long getRechazadasCortacircuitos();
+
+	void reiniciar();
+}
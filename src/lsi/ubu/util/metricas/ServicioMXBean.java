@@ -0,0 +1,24 @@
+package lsi.ubu.util.metricas;
+
+import java.util.Map;
+
+/**
+ * Metricas del servicio publicadas por JMX. Las transacciones y duraciones se
+ * indexan por el nombre del metodo de {@code Servicio}; los errores, por el
+ * codigo de {@code CompraBilleteTrenException} (o {@code SQL} si son errores
+ * de la base de datos).
+ */
+public interface ServicioMXBean {
+
+	Map<String, Long> getTransacciones();
+
+	Map<String, Double> getDuracionMediaUs();
+
+	Map<String, Double> getDuracionP99Us();
+
+	Map<String, Double> getDuracionMaximaUs();
+
+	Map<String, Long> getErrores();
+
+	void reiniciar();
+}